@@ -0,0 +1,28 @@
+package org.sakaiproject.search.producer;
+
+import org.sakaiproject.search.api.EntityContentProducer;
+
+import java.util.Collection;
+
+/**
+ * Produce indexable documents while providing the realms controlling the access to each document.
+ * <p>
+ * The realms are indexed with the document, allowing to exclude documents that aren't accessible to the current user
+ * directly in the search query.<br />
+ * Results are still checked with {@link #canRead(String)} afterwards.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public interface AuthzEntityContentProducer extends EntityContentProducer {
+    /**
+     * Obtains the realms (authz groups) granting access to the referenced document.
+     * <p>
+     * A user can read the document if they are allowed to read in at least one of those realms.
+     * </p>
+     *
+     * @param reference reference of the document
+     * @return identifiers of the realms controlling the access to the document, null if they can't be provided
+     */
+    Collection<String> getAuthzGroups(String reference);
+}
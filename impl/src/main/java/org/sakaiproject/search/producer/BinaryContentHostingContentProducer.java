@@ -2,6 +2,7 @@ package org.sakaiproject.search.producer;
 
 import org.apache.tika.Tika;
 import org.sakaiproject.content.api.ContentResource;
+import org.sakaiproject.entity.api.ResourceProperties;
 import org.sakaiproject.search.api.StoredDigestContentProducer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -114,6 +115,25 @@ public class BinaryContentHostingContentProducer extends ContentHostingContentPr
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The fingerprint combines the length of the resource and its modification date.
+     * </p>
+     */
+    @Override
+    public String getContentFingerprint(String reference) {
+        try {
+            ContentResource contentResource = contentHostingService.getResource(getId(reference));
+            ResourceProperties rp = contentResource.getProperties();
+            String modificationDate = rp.getProperty(rp.getNamePropModifiedDate());
+            return (modificationDate != null) ? contentResource.getContentLength() + "@" + modificationDate : null;
+        } catch (Exception e) {
+            logger.info("Couldn't get the fingerprint of '{}'", reference);
+            return null;
+        }
+    }
+
     public void setSupportedResourceTypes(List<String> supportedResourceTypes) {
         this.supportedResourceTypes = supportedResourceTypes;
     }
@@ -44,4 +44,17 @@ public interface BinaryEntityContentProducer extends EntityContentProducer {
      * @return the resource name of the referenced document or null if it can't be provided
      */
     String getResourceName(String reference);
+
+    /**
+     * Obtains a fingerprint of the binary content of the referenced document, without reading the content.
+     * <p>
+     * The fingerprint must change whenever the content changes, it can be a checksum or a combination of the length
+     * and the modification date of the content.<br />
+     * The fingerprint allows the index to skip the parsing of a content that hasn't changed.
+     * </p>
+     *
+     * @param reference reference of the document
+     * @return the fingerprint of the content or null if it can't be provided
+     */
+    String getContentFingerprint(String reference);
 }
@@ -7,7 +7,6 @@ import org.sakaiproject.entity.api.EntityManager;
 import org.sakaiproject.entity.api.ResourceProperties;
 import org.sakaiproject.event.api.Event;
 import org.sakaiproject.exception.IdUnusedException;
-import org.sakaiproject.search.api.EntityContentProducer;
 import org.sakaiproject.search.api.SearchIndexBuilder;
 import org.sakaiproject.search.api.SearchService;
 import org.sakaiproject.search.model.SearchBuilderItem;
@@ -24,7 +23,7 @@ import static org.sakaiproject.content.api.ContentHostingService.*;
  *
  * @author Colin Hebert
  */
-public abstract class ContentHostingContentProducer implements EntityContentProducer {
+public abstract class ContentHostingContentProducer implements AuthzEntityContentProducer {
     /**
      * Content hosting service providing details on the potentially indexed documents.
      */
@@ -182,6 +181,12 @@ public abstract class ContentHostingContentProducer implements EntityContentProd
         }
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public Collection<String> getAuthzGroups(String reference) {
+        return entityManager.newReference(reference).getAuthzGroups();
+    }
+
     @Override
     public Map<String, Collection<String>> getCustomProperties(String ref) {
         try {
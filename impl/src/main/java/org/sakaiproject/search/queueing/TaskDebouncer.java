@@ -0,0 +1,276 @@
+package org.sakaiproject.search.queueing;
+
+import org.sakaiproject.search.indexing.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds tasks for a while before queueing them, so only the last task for a given key is executed.
+ * <p>
+ * Some clients (office suites, WebDAV) generate many events for a single save. Instead of indexing the same document
+ * multiple times in a few seconds, a task is held for {@link #debounceDelay} seconds. If a new task for the same key
+ * comes in the meantime, it replaces the previous one and the delay starts again.<br />
+ * A document modified continuously would never be indexed, so a task isn't held for more than
+ * {@link #maxWaitFactor} times the delay after the first task for its key, whatever the number of replacements.
+ * </p>
+ * <p>
+ * Pending tasks are stored in a hashed timer wheel: an array of {@link #wheelSize} buckets, each covering
+ * {@link #tickDuration} ms. A single thread moves through the wheel one bucket per tick and queues the tasks whose
+ * delay has expired.<br />
+ * Restarting the delay of a task only updates its deadline, the task stays in its bucket and is moved to the right
+ * bucket once the wheel reaches it. Adding or restarting a task is done in constant time, regardless of the number of
+ * pending tasks.
+ * </p>
+ * <p>
+ * Tasks are held in memory, pending tasks are queued straight away when the debouncer is shut down.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class TaskDebouncer {
+    private static final Logger logger = LoggerFactory.getLogger(TaskDebouncer.class);
+    private static final long DEFAULT_DEBOUNCE_DELAY = 5;
+    private static final long DEFAULT_TICK_DURATION = 500;
+    private static final int DEFAULT_WHEEL_SIZE = 512;
+    private static final int DEFAULT_MAX_WAIT_FACTOR = 6;
+    /**
+     * Time (in seconds) during which a task is held before being queued.
+     */
+    private long debounceDelay = DEFAULT_DEBOUNCE_DELAY;
+    /**
+     * Maximum time a task can be held, as a multiple of {@link #debounceDelay}.
+     */
+    private int maxWaitFactor = DEFAULT_MAX_WAIT_FACTOR;
+    /**
+     * Time (in ms) covered by each bucket of the wheel, the precision of the delay.
+     */
+    private long tickDuration = DEFAULT_TICK_DURATION;
+    /**
+     * Number of buckets in the wheel.
+     */
+    private int wheelSize = DEFAULT_WHEEL_SIZE;
+    private final ConcurrentMap<String, PendingTask> pendingTasks = new ConcurrentHashMap<String, PendingTask>();
+    private Queue<PendingTask>[] wheel;
+    private long lastTick;
+    private IndexQueueing indexQueueing;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Creates the timer wheel and starts moving through it.
+     */
+    public void init() {
+        createWheel(System.currentTimeMillis());
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    advance(System.currentTimeMillis());
+                } catch (Exception e) {
+                    logger.error("Couldn't queue the debounced tasks", e);
+                }
+            }
+        }, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates the buckets of the wheel.
+     *
+     * @param now current time in ms.
+     */
+    @SuppressWarnings("unchecked")
+    void createWheel(long now) {
+        wheel = new Queue[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new ConcurrentLinkedQueue<PendingTask>();
+        }
+        lastTick = now / tickDuration;
+    }
+
+    /**
+     * Stops the timer wheel and queues every pending task.
+     */
+    public void destroy() {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+
+        for (PendingTask pendingTask : pendingTasks.values()) {
+            Task task = pendingTask.expire(Long.MAX_VALUE);
+            if (task != null && pendingTasks.remove(pendingTask.key, pendingTask))
+                indexQueueing.addTaskToQueue(task);
+        }
+    }
+
+    /**
+     * Holds a task until no other task with the same key has been received for {@link #debounceDelay} seconds.
+     * <p>
+     * The task is queued anyway once it has been held for {@link #maxWaitFactor} times the delay.
+     * </p>
+     *
+     * @param key  key identifying the tasks replacing each other, usually the reference of a document.
+     * @param task task to queue once the delay expires.
+     */
+    public void debounce(String key, Task task) {
+        debounce(key, task, System.currentTimeMillis());
+    }
+
+    /**
+     * Holds a task until no other task with the same key has been received for {@link #debounceDelay} seconds.
+     *
+     * @param key  key identifying the tasks replacing each other.
+     * @param task task to queue once the delay expires.
+     * @param now  current time in ms.
+     */
+    void debounce(String key, Task task, long now) {
+        if (debounceDelay <= 0) {
+            indexQueueing.addTaskToQueue(task);
+            return;
+        }
+
+        long delay = TimeUnit.SECONDS.toMillis(debounceDelay);
+        long deadline = now + delay;
+        while (true) {
+            PendingTask pendingTask = pendingTasks.get(key);
+            if (pendingTask == null) {
+                pendingTask = new PendingTask(key, task, deadline, now + delay * Math.max(maxWaitFactor, 1));
+                if (pendingTasks.putIfAbsent(key, pendingTask) == null) {
+                    logger.debug("Hold the task '{}' until {}", task, deadline);
+                    schedule(pendingTask, deadline);
+                    return;
+                }
+            } else if (pendingTask.restart(task, deadline)) {
+                logger.debug("Replace the task held for '{}' by '{}'", key, task);
+                return;
+            } else {
+                // The previous task is being queued, a new one must be held
+                pendingTasks.remove(key, pendingTask);
+            }
+        }
+    }
+
+    /**
+     * Moves through the wheel up to the current time and queues every expired task.
+     *
+     * @param now current time in ms.
+     */
+    synchronized void advance(long now) {
+        long currentTick = now / tickDuration;
+        // After a long pause, each bucket only needs to be checked once
+        long firstTick = Math.max(lastTick + 1, currentTick - wheelSize + 1);
+        for (long tick = firstTick; tick <= currentTick; tick++) {
+            Queue<PendingTask> bucket = wheel[(int) (tick % wheelSize)];
+            List<PendingTask> rescheduledTasks = new ArrayList<PendingTask>();
+            PendingTask pendingTask;
+            while ((pendingTask = bucket.poll()) != null) {
+                Task task = pendingTask.expire(now);
+                if (task == null) {
+                    rescheduledTasks.add(pendingTask);
+                } else {
+                    pendingTasks.remove(pendingTask.key, pendingTask);
+                    logger.debug("Add the task '{}' to the queuing system", task);
+                    indexQueueing.addTaskToQueue(task);
+                }
+            }
+            // Tasks restarted in the meantime are moved to the bucket of their new deadline
+            for (PendingTask rescheduledTask : rescheduledTasks) {
+                schedule(rescheduledTask, rescheduledTask.getDeadline());
+            }
+        }
+        lastTick = Math.max(lastTick, currentTick);
+    }
+
+    private void schedule(PendingTask pendingTask, long deadline) {
+        // Rounded up so the task isn't queued before its deadline
+        long tick = (deadline + tickDuration - 1) / tickDuration;
+        wheel[(int) (tick % wheelSize)].add(pendingTask);
+    }
+
+    /**
+     * Gets the number of tasks currently held.
+     *
+     * @return the number of pending tasks.
+     */
+    public int getPendingTaskCount() {
+        return pendingTasks.size();
+    }
+
+    public void setDebounceDelay(long debounceDelay) {
+        this.debounceDelay = debounceDelay;
+    }
+
+    public void setMaxWaitFactor(int maxWaitFactor) {
+        this.maxWaitFactor = maxWaitFactor;
+    }
+
+    public void setTickDuration(long tickDuration) {
+        this.tickDuration = tickDuration;
+    }
+
+    public void setWheelSize(int wheelSize) {
+        this.wheelSize = wheelSize;
+    }
+
+    public void setIndexQueueing(IndexQueueing indexQueueing) {
+        this.indexQueueing = indexQueueing;
+    }
+
+    /**
+     * Task held in the wheel, with its current deadline and the latest deadline it can be pushed back to.
+     */
+    private static final class PendingTask {
+        private final String key;
+        private final long maxDeadline;
+        private Task task;
+        private long deadline;
+        private boolean expired;
+
+        private PendingTask(String key, Task task, long deadline, long maxDeadline) {
+            this.key = key;
+            this.task = task;
+            this.maxDeadline = maxDeadline;
+            this.deadline = Math.min(deadline, maxDeadline);
+        }
+
+        private synchronized long getDeadline() {
+            return deadline;
+        }
+
+        /**
+         * Replaces the held task and restarts the delay, without going beyond the maximum deadline.
+         *
+         * @param newTask     task replacing the current one.
+         * @param newDeadline new deadline of the task.
+         * @return true if the task has been replaced, false if the task has already been queued.
+         */
+        private synchronized boolean restart(Task newTask, long newDeadline) {
+            if (expired)
+                return false;
+            task = newTask;
+            deadline = Math.min(newDeadline, maxDeadline);
+            return true;
+        }
+
+        /**
+         * Marks the task as expired if its deadline has passed.
+         *
+         * @param now current time in ms.
+         * @return the task to queue if the deadline has passed, null otherwise.
+         */
+        private synchronized Task expire(long now) {
+            if (expired || deadline > now)
+                return null;
+            expired = true;
+            return task;
+        }
+    }
+}
@@ -2,6 +2,8 @@ package org.sakaiproject.search.response.filter;
 
 import org.sakaiproject.search.api.SearchResult;
 
+import java.util.List;
+
 /**
  * Filter for search results, allowing to massage the returned result.
  *
@@ -15,4 +17,15 @@ public interface SearchItemFilter {
      * @return massaged result.
      */
     SearchResult filter(SearchResult result);
+
+    /**
+     * Filters a page of results.
+     * <p>
+     * Filtering every result at once allows to share the cost of the filtering between results.
+     * </p>
+     *
+     * @param results original results.
+     * @return massaged results, in the same order as the original results.
+     */
+    List<SearchResult> filter(List<SearchResult> results);
 }
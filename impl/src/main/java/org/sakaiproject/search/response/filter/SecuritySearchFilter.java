@@ -1,37 +1,375 @@
 package org.sakaiproject.search.response.filter;
 
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.sakaiproject.authz.api.AuthzGroupService;
+import org.sakaiproject.event.api.Event;
+import org.sakaiproject.event.api.EventTrackingService;
 import org.sakaiproject.search.api.EntityContentProducer;
 import org.sakaiproject.search.api.SearchResult;
 import org.sakaiproject.search.api.TermFrequency;
 import org.sakaiproject.search.producer.ContentProducerFactory;
+import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Observable;
+import java.util.Observer;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Filter for search results based on the current user's rights.
  * <p>
  * Every result considered as not accessible to the current user is automatically censored.
  * </p>
+ * <p>
+ * Checking the permissions of a result can be slow (loading the resource, its realm...), the results of a page are
+ * checked in parallel by at most {@link #threadCount} threads, in the session of the current user. Checks are never
+ * queued behind the checks of other searches: when every thread is busy, the remaining checks are run by the thread
+ * doing the search.<br />
+ * Decisions are cached per reference and per user for {@link #cacheExpiry} seconds.
+ * </p>
+ * <p>
+ * Decisions on a reference are forgotten as soon as an event modifies that reference (content revised, hidden,
+ * released or retracted...), or one of its parent collections.<br />
+ * When a realm or a site membership is modified, the users concerned aren't known, so the decisions of every user on
+ * the references of that site are forgotten. If the site can't be determined, every decision is forgotten.<br />
+ * Permissions changing without any event (release dates reached, changes in a tool with its own permissions) are
+ * only taken into account once the decisions expire, so {@link #cacheExpiry} should stay short.
+ * </p>
  *
  * @author Colin Hebert
  */
-public class SecuritySearchFilter implements SearchItemFilter {
+public class SecuritySearchFilter implements SearchItemFilter, Observer {
+    private static final Logger logger = LoggerFactory.getLogger(SecuritySearchFilter.class);
     private static final SearchResult CENSORED_SEARCH_RESULT = new CensoredSearchResult();
+    private static final int DEFAULT_THREAD_COUNT = 8;
+    private static final long DEFAULT_CACHE_EXPIRY = 60;
+    private static final long DEFAULT_CACHE_SIZE = 100000;
+    /**
+     * Events after which permissions may have changed.
+     */
+    private static final Set<String> PERMISSION_EVENTS = new HashSet<String>(Arrays.asList(
+            AuthzGroupService.SECURE_ADD_AUTHZ_GROUP,
+            AuthzGroupService.SECURE_UPDATE_AUTHZ_GROUP,
+            AuthzGroupService.SECURE_UPDATE_OWN_AUTHZ_GROUP,
+            AuthzGroupService.SECURE_REMOVE_AUTHZ_GROUP,
+            SiteService.SECURE_UPDATE_SITE,
+            SiteService.SECURE_UPDATE_SITE_MEMBERSHIP,
+            SiteService.SECURE_UPDATE_GROUP_MEMBERSHIP,
+            SiteService.SECURE_REMOVE_SITE));
+    /**
+     * Site concerned by a site or realm event, from references such as {@code /site/siteId} or
+     * {@code /realm//site/siteId/group/groupId}.
+     */
+    private static final Pattern SITE_REFERENCE = Pattern.compile("^(?:/realm/)?/site/([^/]+)");
+    /**
+     * Maximum number of permission checks run at the same time in the background.
+     */
+    private int threadCount = DEFAULT_THREAD_COUNT;
+    /**
+     * Time (in seconds) during which a permission decision is kept.
+     */
+    private long cacheExpiry = DEFAULT_CACHE_EXPIRY;
+    /**
+     * Maximum number of references whose permission decisions are kept.
+     */
+    private long cacheSize = DEFAULT_CACHE_SIZE;
     private ContentProducerFactory contentProducerFactory;
+    private SessionManager sessionManager;
+    private ThreadLocalManager threadLocalManager;
+    private EventTrackingService eventTrackingService;
+    private ExecutorService permissionCheckExecutor;
+    private Cache<String, ReferenceDecisions> permissions;
+
+    /**
+     * Initialises the permission cache and the threads checking permissions.
+     */
+    public void init() {
+        permissions = CacheBuilder.newBuilder()
+                .maximumSize(cacheSize)
+                .expireAfterWrite(cacheExpiry, TimeUnit.SECONDS)
+                .build();
+        // Without queue, checks are rejected when every thread is busy and run by the caller instead
+        permissionCheckExecutor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>());
+        if (eventTrackingService != null)
+            eventTrackingService.addObserver(this);
+    }
+
+    /**
+     * Stops the threads checking permissions.
+     */
+    public void destroy() {
+        if (eventTrackingService != null)
+            eventTrackingService.deleteObserver(this);
+        permissionCheckExecutor.shutdownNow();
+    }
 
     @Override
     public SearchResult filter(SearchResult result) {
-        String reference = result.getReference();
+        return filter(Collections.singletonList(result)).get(0);
+    }
+
+    @Override
+    public List<SearchResult> filter(List<SearchResult> results) {
+        String userId = sessionManager.getCurrentSessionUserId();
+        Session session = sessionManager.getCurrentSession();
+
+        // Start checking permissions that aren't cached yet
+        Boolean[] decisions = new Boolean[results.size()];
+        boolean[] checkedInline = new boolean[results.size()];
+        List<Future<Boolean>> permissionChecks = new ArrayList<Future<Boolean>>(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            String reference = results.get(i).getReference();
+            ReferenceDecisions referenceDecisions = permissions.getIfPresent(reference);
+            decisions[i] = (referenceDecisions != null) ? referenceDecisions.get(userId) : null;
+            Future<Boolean> permissionCheck = null;
+            if (decisions[i] == null) {
+                try {
+                    permissionCheck = permissionCheckExecutor.submit(new PermissionCheck(session, reference));
+                } catch (RejectedExecutionException e) {
+                    checkedInline[i] = true;
+                }
+            }
+            permissionChecks.add(permissionCheck);
+        }
+
+        List<SearchResult> filteredResults = new ArrayList<SearchResult>(results.size());
+        for (int i = 0; i < results.size(); i++) {
+            SearchResult result = results.get(i);
+            Future<Boolean> permissionCheck = permissionChecks.get(i);
+            if (permissionCheck != null || checkedInline[i]) {
+                decisions[i] = (permissionCheck != null)
+                        ? getDecision(permissionCheck, result.getReference())
+                        : checkInline(result.getReference());
+                if (decisions[i] != null)
+                    cacheDecision(result, userId, decisions[i]);
+            }
+            filteredResults.add(decisions[i] != null && decisions[i] ? result : CENSORED_SEARCH_RESULT);
+        }
+        return filteredResults;
+    }
+
+    /**
+     * Keeps the decision of a user on a result, along with the site of the result.
+     *
+     * @param result   result whose permission has been checked.
+     * @param userId   user doing the search.
+     * @param decision whether the user can read the result.
+     */
+    private void cacheDecision(final SearchResult result, String userId, boolean decision) {
+        try {
+            permissions.get(result.getReference(), new Callable<ReferenceDecisions>() {
+                @Override
+                public ReferenceDecisions call() throws Exception {
+                    return new ReferenceDecisions(result.getSiteId());
+                }
+            }).put(userId, decision);
+        } catch (ExecutionException e) {
+            logger.warn("Couldn't cache the permissions on '{}'", result.getReference(), e.getCause());
+        }
+    }
+
+    /**
+     * Waits for a permission check to be done.
+     *
+     * @param permissionCheck permission check running.
+     * @param reference       reference of the checked resource.
+     * @return the decision, or null if the check failed.
+     */
+    private Boolean getDecision(Future<Boolean> permissionCheck, String reference) {
+        try {
+            return permissionCheck.get();
+        } catch (ExecutionException e) {
+            logger.warn("Couldn't check the permissions on '{}'", reference, e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            permissionCheck.cancel(true);
+            return null;
+        }
+    }
+
+    /**
+     * Checks a permission in the thread doing the search, already running in the session of the user.
+     *
+     * @param reference reference of the checked resource.
+     * @return the decision, or null if the check failed.
+     */
+    private Boolean checkInline(String reference) {
+        try {
+            return canRead(reference);
+        } catch (RuntimeException e) {
+            logger.warn("Couldn't check the permissions on '{}'", reference, e);
+            return null;
+        }
+    }
+
+    private boolean canRead(String reference) {
         EntityContentProducer contentProducer = contentProducerFactory.getContentProducerForElement(reference);
-        return contentProducer == null || !contentProducer.canRead(reference) ? CENSORED_SEARCH_RESULT : result;
+        return contentProducer != null && contentProducer.canRead(reference);
+    }
+
+    /**
+     * Forgets the permission decisions that may have changed after an event.
+     *
+     * @param observable source of the event.
+     * @param arg        event that took place.
+     */
+    @Override
+    public void update(Observable observable, Object arg) {
+        if (!(arg instanceof Event))
+            return;
+
+        Event event = (Event) arg;
+        if (PERMISSION_EVENTS.contains(event.getEvent())) {
+            forgetSiteDecisions(event);
+        } else if (event.getModify() && event.getResource() != null) {
+            forgetReferenceDecisions(event.getResource());
+        }
+    }
+
+    /**
+     * Forgets the decisions on every reference of the site concerned by a realm or site event.
+     *
+     * @param event event modifying the permissions in a site.
+     */
+    private void forgetSiteDecisions(Event event) {
+        Matcher siteReference = (event.getResource() != null) ? SITE_REFERENCE.matcher(event.getResource()) : null;
+        if (siteReference == null || !siteReference.find()) {
+            logger.debug("Permissions may have changed anywhere after '{}', decisions are forgotten", event);
+            permissions.invalidateAll();
+            return;
+        }
+
+        String siteId = siteReference.group(1);
+        logger.debug("Permissions may have changed in '{}' after '{}', decisions are forgotten", siteId, event);
+        Iterator<ReferenceDecisions> referenceDecisions = permissions.asMap().values().iterator();
+        while (referenceDecisions.hasNext()) {
+            if (siteId.equals(referenceDecisions.next().siteId))
+                referenceDecisions.remove();
+        }
+    }
+
+    /**
+     * Forgets the decisions on a modified reference, and on its content if it's a collection.
+     *
+     * @param reference modified reference.
+     */
+    private void forgetReferenceDecisions(String reference) {
+        permissions.invalidate(reference);
+        if (reference.endsWith("/")) {
+            logger.debug("The collection '{}' has been modified, decisions on its content are forgotten", reference);
+            Iterator<String> references = permissions.asMap().keySet().iterator();
+            while (references.hasNext()) {
+                if (references.next().startsWith(reference))
+                    references.remove();
+            }
+        }
     }
 
     public void setContentProducerFactory(ContentProducerFactory contentProducerFactory) {
         this.contentProducerFactory = contentProducerFactory;
     }
 
+    public void setSessionManager(SessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    public void setThreadLocalManager(ThreadLocalManager threadLocalManager) {
+        this.threadLocalManager = threadLocalManager;
+    }
+
+    public void setEventTrackingService(EventTrackingService eventTrackingService) {
+        this.eventTrackingService = eventTrackingService;
+    }
+
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    public void setCacheExpiry(long cacheExpiry) {
+        this.cacheExpiry = cacheExpiry;
+    }
+
+    public void setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Check of the read permission on a resource, run in the session of the user doing the search.
+     * <p>
+     * Only the session is passed to the checking thread, security advisors set by the caller don't apply.
+     * </p>
+     */
+    private final class PermissionCheck implements Callable<Boolean> {
+        private final Session session;
+        private final String reference;
+
+        private PermissionCheck(Session session, String reference) {
+            this.session = session;
+            this.reference = reference;
+        }
+
+        @Override
+        public Boolean call() throws Exception {
+            sessionManager.setCurrentSession(session);
+            try {
+                return canRead(reference);
+            } finally {
+                threadLocalManager.clear();
+            }
+        }
+    }
+
+    /**
+     * Permission decisions of each user on a reference, with the site of the reference.
+     * <p>
+     * Decisions of the anonymous user are kept under an empty user id.
+     * </p>
+     */
+    private static final class ReferenceDecisions {
+        private final String siteId;
+        private final ConcurrentMap<String, Boolean> decisions = new ConcurrentHashMap<String, Boolean>();
+
+        private ReferenceDecisions(String siteId) {
+            this.siteId = siteId;
+        }
+
+        private Boolean get(String userId) {
+            return decisions.get(Strings.nullToEmpty(userId));
+        }
+
+        private void put(String userId, boolean decision) {
+            decisions.put(Strings.nullToEmpty(userId), decision);
+        }
+    }
+
     private static class CensoredSearchResult implements SearchResult {
         private static final TermFrequency TERM_FREQUENCY = new TermFrequency() {
             @Override
@@ -2,7 +2,6 @@ package org.sakaiproject.search.solr;
 
 import org.sakaiproject.event.api.Event;
 import org.sakaiproject.event.api.Notification;
-import org.sakaiproject.exception.IdUnusedException;
 import org.sakaiproject.search.api.EntityContentProducer;
 import org.sakaiproject.search.api.SearchIndexBuilder;
 import org.sakaiproject.search.indexing.DefaultTask;
@@ -10,7 +9,9 @@ import org.sakaiproject.search.indexing.Task;
 import org.sakaiproject.search.model.SearchBuilderItem;
 import org.sakaiproject.search.producer.ContentProducerFactory;
 import org.sakaiproject.search.queueing.IndexQueueing;
+import org.sakaiproject.search.queueing.TaskDebouncer;
 import org.sakaiproject.search.solr.indexing.SolrTools;
+import org.sakaiproject.search.solr.util.SearchToolSiteCache;
 import org.sakaiproject.site.api.SiteService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,6 +23,10 @@ import static org.sakaiproject.search.indexing.DefaultTask.Type.*;
 
 /**
  * IndexBuilder in charge of adding or removing documents from the Solr index.
+ * <p>
+ * If a {@link TaskDebouncer} is set, tasks created from events are held for a few seconds, so a document modified
+ * multiple times in a row is only indexed once, in its final state.
+ * </p>
  *
  * @author Colin Hebert
  */
@@ -31,12 +36,14 @@ public class SolrSearchIndexBuilder implements SearchIndexBuilder {
      */
     public static final String SEARCH_TOOL_ID = "sakai.search";
     private static final Logger logger = LoggerFactory.getLogger(SolrSearchIndexBuilder.class);
-    private SiteService siteService;
+    private static final String SITE_REFERENCE_PREFIX = SiteService.REFERENCE_ROOT + "/";
     private SolrTools solrTools;
+    private SearchToolSiteCache searchToolSiteCache;
     private ContentProducerFactory contentProducerFactory;
     private boolean searchToolRequired;
     private boolean ignoreUserSites;
     private IndexQueueing indexQueueing;
+    private TaskDebouncer taskDebouncer;
 
     @Override
     public void addResource(Notification notification, Event event) {
@@ -61,6 +68,13 @@ public class SolrSearchIndexBuilder implements SearchIndexBuilder {
             // TODO: Shouldn't addResource just stop there instead?
             resourceName = "";
 
+        if (isSiteModificationEvent(event)) {
+            // The search tool may have been added or removed, the site has to be checked again
+            if (resourceName.startsWith(SITE_REFERENCE_PREFIX))
+                solrTools.invalidateSite(resourceName.substring(SITE_REFERENCE_PREFIX.length()));
+            return;
+        }
+
         EntityContentProducer entityContentProducer = contentProducerFactory.getContentProducerForEvent(event);
         // If there is no matching entity content producer or no associated site, return
         if (entityContentProducer == null) {
@@ -71,14 +85,9 @@ public class SolrSearchIndexBuilder implements SearchIndexBuilder {
         // If the indexing is only enabled on sites with search tool, check that the tool is actually enabled
         if (isOnlyIndexSearchToolSites()) {
             String siteId = entityContentProducer.getSiteId(resourceName);
-            try {
-                if (siteService.getSite(siteId).getToolForCommonId(SEARCH_TOOL_ID) == null) {
-                    logger.debug("Impossible to index the content of the site '{}'"
-                            + "because the search tool hasn't been added", siteId);
-                    return;
-                }
-            } catch (IdUnusedException e) {
-                logger.warn("Couldn't find the site '{}'", siteId, e);
+            if (!searchToolSiteCache.hasSearchTool(siteId)) {
+                logger.debug("Impossible to index the content of the site '{}'"
+                        + "because the search tool hasn't been added", siteId);
                 return;
             }
         }
@@ -98,8 +107,23 @@ public class SolrSearchIndexBuilder implements SearchIndexBuilder {
                 throw new UnsupportedOperationException("Unsupported action " + entityContentProducer.getAction(event)
                         + " is not yet supported");
         }
-        logger.debug("Add the task '{}' to the queuing system", task);
-        indexQueueing.addTaskToQueue(task);
+        if (taskDebouncer != null) {
+            taskDebouncer.debounce(resourceName, task);
+        } else {
+            logger.debug("Add the task '{}' to the queuing system", task);
+            indexQueueing.addTaskToQueue(task);
+        }
+    }
+
+    /**
+     * Checks whether an event is the modification or the removal of a site.
+     *
+     * @param event event to check.
+     * @return true if the event modified or removed a site, false otherwise.
+     */
+    private boolean isSiteModificationEvent(Event event) {
+        return SiteService.SECURE_UPDATE_SITE.equals(event.getEvent())
+                || SiteService.SECURE_REMOVE_SITE.equals(event.getEvent());
     }
 
     /**
@@ -219,10 +243,6 @@ public class SolrSearchIndexBuilder implements SearchIndexBuilder {
         return null;
     }
 
-    public void setSiteService(SiteService siteService) {
-        this.siteService = siteService;
-    }
-
     public void setSolrTools(SolrTools solrTools) {
         this.solrTools = solrTools;
     }
@@ -242,4 +262,12 @@ public class SolrSearchIndexBuilder implements SearchIndexBuilder {
     public void setIndexQueueing(IndexQueueing indexQueueing) {
         this.indexQueueing = indexQueueing;
     }
+
+    public void setSearchToolSiteCache(SearchToolSiteCache searchToolSiteCache) {
+        this.searchToolSiteCache = searchToolSiteCache;
+    }
+
+    public void setTaskDebouncer(TaskDebouncer taskDebouncer) {
+        this.taskDebouncer = taskDebouncer;
+    }
 }
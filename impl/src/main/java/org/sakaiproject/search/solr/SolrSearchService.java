@@ -1,12 +1,27 @@
 package org.sakaiproject.search.solr;
 
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.request.SolrPing;
+import org.apache.solr.client.solrj.response.FacetField;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.response.SpellCheckResponse;
+import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.params.TermVectorParams;
 import org.sakaiproject.component.cover.ServerConfigurationService;
 import org.sakaiproject.event.api.NotificationEdit;
 import org.sakaiproject.event.api.NotificationService;
@@ -15,15 +30,39 @@ import org.sakaiproject.search.model.SearchBuilderItem;
 import org.sakaiproject.search.notification.SearchNotificationAction;
 import org.sakaiproject.search.producer.ContentProducerFactory;
 import org.sakaiproject.search.response.filter.SearchItemFilter;
+import org.sakaiproject.search.solr.indexing.SolrTools;
+import org.sakaiproject.search.solr.response.CursorSearchList;
+import org.sakaiproject.search.solr.response.SearchCursor;
+import org.sakaiproject.search.solr.response.SearchOverview;
 import org.sakaiproject.search.solr.response.SolrSearchList;
+import org.sakaiproject.search.solr.response.StreamingXmlResultWriter;
+import org.sakaiproject.search.solr.util.AdaptivePaging;
+import org.sakaiproject.search.solr.util.AsyncSearchExecutor;
+import org.sakaiproject.search.solr.util.QueryCostGuard;
+import org.sakaiproject.search.solr.util.QueryResponseCache;
+import org.sakaiproject.search.solr.util.SearchSuggester;
+import org.sakaiproject.search.solr.util.UserAuthzGroupsCache;
+import org.sakaiproject.site.api.SiteService;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 /**
  * Search service using Solr to execute search queries.
@@ -35,13 +74,132 @@ import java.util.Map;
  * @author Colin Hebert
  */
 public class SolrSearchService implements SearchService {
+    /**
+     * Fields for which the number of results per value can be obtained.
+     */
+    public static final List<String> FACET_FIELDS = Collections.unmodifiableList(Arrays.asList(
+            SearchService.FIELD_TOOL, SearchService.FIELD_TYPE, SearchService.FIELD_SITEID,
+            SearchService.FIELD_CONTAINER));
     private static final Logger logger = LoggerFactory.getLogger(SolrSearchService.class);
+    private static final int DEFAULT_MAX_ROUTED_SITES = 10;
+    private static final int MAX_CACHED_SITE_FILTERS = 10000;
+    private static final int DEFAULT_FACET_LIMIT = 20;
+    // Parameters of searchXML
+    private static final String XML_TERMS = "q";
+    private static final String XML_CONTEXTS = "ctx";
+    private static final String XML_START = "s";
+    private static final String XML_END = "e";
+    private static final String XML_USER_ID = "u";
+    private static final String XML_CHECKSUM = "cs";
+    /**
+     * Fields returned for each result of a search.
+     * <p>
+     * Large stored fields such as the contents are left out, {@link SolrSearchList} fetches them only if needed.
+     * </p>
+     */
+    private static final String[] RESULT_FIELDS = {SolrTools.FIELD_ID, SearchService.FIELD_REFERENCE,
+            SearchService.FIELD_TITLE, SearchService.FIELD_URL, SearchService.FIELD_SITEID, SearchService.FIELD_TOOL,
+            SearchService.FIELD_TYPE, SearchService.FIELD_CONTAINER, "score"};
+    /**
+     * Maximum number of sites for which a search is only sent to the shards containing those sites.
+     * <p>
+     * Above that number, the search is likely to hit every shard anyway.
+     * </p>
+     */
+    private int maxRoutedSites = DEFAULT_MAX_ROUTED_SITES;
+    /**
+     * Filter queries already generated for a set of sites.
+     * <p>
+     * Users run many searches on the same set of sites, there is no need to generate the same filter every time.
+     * </p>
+     */
+    private final LoadingCache<List<String>, String> sitesFilterQueries = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_SITE_FILTERS)
+            .build(new CacheLoader<List<String>, String>() {
+                @Override
+                public String load(List<String> siteIds) throws Exception {
+                    return createSitesFilterQuery(siteIds);
+                }
+            });
+    /**
+     * Filter queries already generated for a set of realms.
+     */
+    private final LoadingCache<List<String>, String> authzGroupsFilterQueries = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_SITE_FILTERS)
+            .build(new CacheLoader<List<String>, String>() {
+                @Override
+                public String load(List<String> authzGroups) throws Exception {
+                    return createAuthzGroupsFilterQuery(authzGroups);
+                }
+            });
     private SolrServer solrServer;
     private NotificationEdit notification;
     private SearchIndexBuilder searchIndexBuilder;
     private ContentProducerFactory contentProducerFactory;
     private List<String> triggerFunctions;
     private NotificationService notificationService;
+    /**
+     * Cache of the raw responses, optional.
+     * <p>
+     * Responses are filtered by {@link #searchItemFilter} after being retrieved from the cache.
+     * </p>
+     */
+    private QueryResponseCache queryResponseCache;
+    /**
+     * Realms of the current user, optional.
+     * <p>
+     * If set, documents indexed with realms in which the user isn't allowed to read are excluded by solr.
+     * </p>
+     */
+    private UserAuthzGroupsCache userAuthzGroupsCache;
+    private SessionManager sessionManager;
+    private String sharedKey;
+    /**
+     * Paging strategy fetching more documents than requested to return full pages of visible results, optional.
+     * <p>
+     * If not set, censored results are returned as part of the page.
+     * </p>
+     */
+    private AdaptivePaging adaptivePaging;
+    /**
+     * Whether term vectors are retrieved when the caller doesn't specify it.
+     * <p>
+     * Term vectors are only needed to get the frequency of terms in each result, which is rarely displayed.
+     * </p>
+     */
+    private boolean termVectorsByDefault;
+    /**
+     * Autocompletion of search queries, optional.
+     * <p>
+     * If not set, a spelling correction is suggested instead.
+     * </p>
+     */
+    private SearchSuggester searchSuggester;
+    /**
+     * Maximum number of values returned for each facet.
+     */
+    private int facetLimit = DEFAULT_FACET_LIMIT;
+    /**
+     * Check of the cost of search queries, optional.
+     * <p>
+     * If set, expensive queries are rewritten or rejected before being sent to solr.
+     * </p>
+     */
+    private QueryCostGuard queryCostGuard;
+    /**
+     * Time in milliseconds after which solr stops collecting documents, 0 for unlimited.
+     * <p>
+     * Results collected before the time allowed are returned, see {@link SolrSearchList#isPartialResults()}.
+     * </p>
+     */
+    private int timeAllowed;
+    /**
+     * Executor running searches in the background, optional.
+     * <p>
+     * If not set, asynchronous searches are run in the current thread.
+     * </p>
+     */
+    private AsyncSearchExecutor asyncSearchExecutor;
     /**
      * Filter applied to search results.
      * <p>
@@ -53,6 +211,11 @@ public class SolrSearchService implements SearchService {
         public SearchResult filter(SearchResult result) {
             return result;
         }
+
+        @Override
+        public List<SearchResult> filter(List<SearchResult> results) {
+            return results;
+        }
     };
 
     /**
@@ -74,6 +237,9 @@ public class SolrSearchService implements SearchService {
         for (String function : triggerFunctions) {
             notification.addFunction(function);
         }
+        // site modifications may change the indexability of sites
+        notification.addFunction(SiteService.SECURE_UPDATE_SITE);
+        notification.addFunction(SiteService.SECURE_REMOVE_SITE);
 
         // set the filter to any site related resource
         notification.setResourceFilter("/");
@@ -92,51 +258,496 @@ public class SolrSearchService implements SearchService {
     public SearchList search(String searchTerms, List<String> siteIds, int start, int end,
                              String filterName, String sorterName)
             throws InvalidSearchQueryException {
+        return search(searchTerms, siteIds, start, end, filterName, sorterName, termVectorsByDefault);
+    }
+
+    /**
+     * Searches for documents matching the search terms.
+     *
+     * @param searchTerms search query.
+     * @param siteIds     sites in which the search is done, all sites if null or empty.
+     * @param start       position of the first result.
+     * @param end         position after the last result.
+     * @param filterName  name of the filter, unused.
+     * @param sorterName  name of the sorter, unused.
+     * @param termVectors whether term vectors are retrieved, required for {@link SearchResult#getTerms()}.
+     * @return the results of the search.
+     * @throws InvalidSearchQueryException if the query couldn't be executed.
+     */
+    public SearchList search(String searchTerms, List<String> siteIds, int start, int end,
+                             String filterName, String sorterName, boolean termVectors)
+            throws InvalidSearchQueryException {
         try {
-            SolrQuery query = new SolrQuery();
+            List<String> authzGroups = (userAuthzGroupsCache != null)
+                    ? userAuthzGroupsCache.getCurrentUserAuthzGroups()
+                    : null;
+            SolrQuery query = createSearchQuery(searchTerms, siteIds, authzGroups, termVectors);
 
-            query.setStart(start);
-            query.setRows(end - start);
+            // Position and number of the documents fetched from solr
+            int solrStart = start;
+            int solrRows = end - start;
+            if (adaptivePaging != null) {
+                solrStart = adaptivePaging.getSolrStart(searchTerms, siteIds, start);
+                solrRows = adaptivePaging.getRowsToFetch(end - start);
+            }
+            query.setStart(solrStart);
+            query.setRows(solrRows);
 
-            query.setHighlight(true);
-            query.setParam("hl.useFastVectorHighlighter", true);
-            query.setParam("hl.mergeContiguous", true);
-            query.setParam("hl.fl", SearchService.FIELD_CONTENTS);
-            query.setParam("hl.formatter", "html");
+            logger.debug("Searching with Solr '{}'", searchTerms);
 
-            if (siteIds != null && !siteIds.isEmpty())
-                query.addFilterQuery(createSitesFilterQuery(siteIds));
+            QueryResponse rsp;
+            if (queryResponseCache != null)
+                rsp = queryResponseCache.getResponse(searchTerms, siteIds, authzGroups, solrStart,
+                        solrStart + solrRows, filterName, sorterName, query);
+            else
+                rsp = solrServer.query(query);
 
-            logger.debug("Searching with Solr '{}'", searchTerms);
+            if (adaptivePaging == null)
+                return new SolrSearchList(rsp, start, searchItemFilter, contentProducerFactory, solrServer);
 
-            query.setQuery(searchTerms);
-            QueryResponse rsp = solrServer.query(query);
-            return new SolrSearchList(rsp, start, searchItemFilter, contentProducerFactory);
+            SolrSearchList results = new SolrSearchList(rsp, start, searchItemFilter, contentProducerFactory,
+                    solrServer, end - start);
+            adaptivePaging.recordPage(searchTerms, siteIds, start, solrStart, results);
+            return results;
         } catch (SolrServerException e) {
             throw new InvalidSearchQueryException("Failed to parse Query", e);
         }
     }
 
     /**
-     * Creates a solr filter query based on a list of site ids.
+     * Searches for documents matching the search terms, one page after another.
+     * <p>
+     * Results are sorted by score, then by unique key. Instead of a position, each page starts after the document
+     * pointed by the cursor, so solr doesn't have to collect and sort every previous result. Deep pages cost the same
+     * as the first one, which makes this method suitable to crawl or export every result.<br />
+     * Documents with the same score as the last document of the previous page are found by comparing scores
+     * computed again by solr, so pages are consistent only as long as the index doesn't change.
+     * </p>
+     *
+     * @param searchTerms search query.
+     * @param siteIds     sites in which the search is done, all sites if null or empty.
+     * @param cursor      cursor obtained with {@link CursorSearchList#getNextCursor()}, null for the first page.
+     * @param rows        maximum number of results in the page.
+     * @return the results of the page, with the cursor to the next page.
+     * @throws InvalidSearchQueryException if the cursor isn't valid or the query couldn't be executed.
+     */
+    public CursorSearchList search(String searchTerms, List<String> siteIds, String cursor, int rows)
+            throws InvalidSearchQueryException {
+        try {
+            List<String> authzGroups = (userAuthzGroupsCache != null)
+                    ? userAuthzGroupsCache.getCurrentUserAuthzGroups()
+                    : null;
+            SolrQuery query = createSearchQuery(searchTerms, siteIds, authzGroups, termVectorsByDefault);
+            query.setStart(0);
+            query.setRows(rows);
+            query.addSort("score", SolrQuery.ORDER.desc);
+            query.addSort(SolrTools.FIELD_ID, SolrQuery.ORDER.asc);
+            if (cursor != null)
+                addCursorFilter(query, SearchCursor.decode(cursor));
+
+            logger.debug("Searching with Solr '{}' after '{}'", searchTerms, cursor);
+
+            // Cursor pages are typically used once, they're not worth caching
+            return new CursorSearchList(solrServer.query(query), searchItemFilter, contentProducerFactory,
+                    solrServer);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSearchQueryException("Invalid cursor '" + cursor + "'", e);
+        } catch (SolrServerException e) {
+            throw new InvalidSearchQueryException("Failed to parse Query", e);
+        }
+    }
+
+    /**
+     * Counts the documents matching the search terms for each value of the {@link #FACET_FIELDS}.
+     * <p>
+     * This allows to display how many results each tool, type, site or container would return and to narrow the
+     * search down. The response is cached with the search responses, for the same filters (sites and realms).<br />
+     * Counts aren't checked one by one like the results of a search, they're restricted to the documents of the
+     * user's sites accessible through the user's realms, like suggestions. Nothing is counted if the sites of the user
+     * are unknown.
+     * </p>
+     *
+     * @param searchTerms search query.
+     * @param siteIds     sites in which the search is done, every site of the user if null or empty.
+     * @return for each faceted field, the number of documents for each value, the most frequent values first. Empty if
+     *         the counts can't be restricted to the sites of the user.
+     * @throws InvalidSearchQueryException if the query couldn't be executed.
+     */
+    public Map<String, Map<String, Long>> getFacets(String searchTerms, List<String> siteIds)
+            throws InvalidSearchQueryException {
+        try {
+            List<String> authzGroups = (userAuthzGroupsCache != null)
+                    ? userAuthzGroupsCache.getCurrentUserAuthzGroups()
+                    : null;
+            List<String> readableSiteIds = getReadableSiteIds(siteIds, authzGroups);
+            if (readableSiteIds.isEmpty())
+                return Collections.emptyMap();
+
+            SolrQuery query = createSearchQuery(searchTerms, readableSiteIds, authzGroups, false);
+            query.setHighlight(false);
+            query.setRows(0);
+            query.setFacet(true);
+            query.addFacetField(FACET_FIELDS.toArray(new String[FACET_FIELDS.size()]));
+            query.setFacetMinCount(1);
+            query.setFacetLimit(facetLimit);
+
+            logger.debug("Counting facets for '{}'", searchTerms);
+
+            QueryResponse rsp;
+            if (queryResponseCache != null)
+                rsp = queryResponseCache.getResponse(searchTerms, readableSiteIds, authzGroups, 0, 0, null, null,
+                        query);
+            else
+                rsp = solrServer.query(query);
+
+            Map<String, Map<String, Long>> facets = new LinkedHashMap<String, Map<String, Long>>();
+            for (String facetField : FACET_FIELDS) {
+                FacetField facet = rsp.getFacetField(facetField);
+                Map<String, Long> counts = new LinkedHashMap<String, Long>();
+                if (facet != null && facet.getValues() != null) {
+                    for (FacetField.Count count : facet.getValues()) {
+                        // Default value of documents without a value for this field
+                        if (!count.getName().isEmpty())
+                            counts.put(count.getName(), count.getCount());
+                    }
+                }
+                facets.put(facetField, Collections.unmodifiableMap(counts));
+            }
+            return Collections.unmodifiableMap(facets);
+        } catch (SolrServerException e) {
+            throw new InvalidSearchQueryException("Failed to parse Query", e);
+        }
+    }
+
+    /**
+     * Searches for documents matching the search terms in the background.
+     * <p>
+     * Several searches can be started at once (one for each site, for example) and joined with
+     * {@link Futures#allAsList}. Searches are run in the session of the current user, by the
+     * {@link #asyncSearchExecutor} if set, in the current thread otherwise.
+     * </p>
+     *
+     * @param searchTerms search query.
+     * @param siteIds     sites in which the search is done, all sites if null or empty.
+     * @param start       position of the first result.
+     * @param end         position after the last result.
+     * @param timeout     time in milliseconds after which the search is cancelled, 0 for the default timeout.
+     * @return the results of the search, once available.
+     */
+    public ListenableFuture<SearchList> searchAsync(final String searchTerms, final List<String> siteIds,
+                                                    final int start, final int end, long timeout) {
+        return submit(new Callable<SearchList>() {
+            @Override
+            public SearchList call() throws Exception {
+                return search(searchTerms, siteIds, start, end);
+            }
+        }, timeout);
+    }
+
+    /**
+     * Counts the documents matching the search terms for each value of the {@link #FACET_FIELDS} in the background.
+     *
+     * @param searchTerms search query.
+     * @param siteIds     sites in which the search is done, all sites if null or empty.
+     * @param timeout     time in milliseconds after which the count is cancelled, 0 for the default timeout.
+     * @return the counts of each facet, once available.
+     * @see #getFacets(String, List)
+     */
+    public ListenableFuture<Map<String, Map<String, Long>>> getFacetsAsync(final String searchTerms,
+                                                                         final List<String> siteIds, long timeout) {
+        return submit(new Callable<Map<String, Map<String, Long>>>() {
+            @Override
+            public Map<String, Map<String, Long>> call() throws Exception {
+                return getFacets(searchTerms, siteIds);
+            }
+        }, timeout);
+    }
+
+    /**
+     * Gets suggestions for a search query in the background.
+     *
+     * @param searchString search query typed so far.
+     * @param siteIds      sites in which the search is done, every site of the user if null or empty.
+     * @param timeout      time in milliseconds after which the lookup is cancelled, 0 for the default timeout.
+     * @return the suggestions, once available.
+     * @see #getSearchSuggestions(String, List)
+     */
+    public ListenableFuture<String[]> getSearchSuggestionsAsync(final String searchString, final List<String> siteIds,
+                                                                long timeout) {
+        return submit(new Callable<String[]>() {
+            @Override
+            public String[] call() throws Exception {
+                return getSearchSuggestions(searchString, siteIds);
+            }
+        }, timeout);
+    }
+
+    /**
+     * Gets a page of results, suggestions and the counts of each facet for a search, obtained in parallel.
+     * <p>
+     * The search fails if the results can't be obtained. Suggestions and facets only complete the results, if they
+     * fail or time out the search is returned without them.<br />
+     * Cancelling the search cancels the three lookups.
+     * </p>
+     *
+     * @param searchTerms search query.
+     * @param siteIds     sites in which the search is done, all sites if null or empty.
+     * @param start       position of the first result.
+     * @param end         position after the last result.
+     * @param timeout     time in milliseconds after which each lookup is cancelled, 0 for the default timeout.
+     * @return the results, suggestions and facets of the search, once the three lookups are done.
+     */
+    public ListenableFuture<SearchOverview> getSearchOverview(String searchTerms, List<String> siteIds,
+                                                              int start, int end, long timeout) {
+        final ListenableFuture<SearchList> results = searchAsync(searchTerms, siteIds, start, end, timeout);
+        final ListenableFuture<String[]> suggestions = getSearchSuggestionsAsync(searchTerms, siteIds, timeout);
+        final ListenableFuture<Map<String, Map<String, Long>>> facets = getFacetsAsync(searchTerms, siteIds, timeout);
+
+        final ListenableFuture<SearchOverview> overview = Futures.transform(
+                Futures.<Object>successfulAsList(results, suggestions, facets),
+                new AsyncFunction<List<Object>, SearchOverview>() {
+                    @Override
+                    public ListenableFuture<SearchOverview> apply(List<Object> input) {
+                        final String[] suggestionsValue = getOrDefault(suggestions, new String[0]);
+                        final Map<String, Map<String, Long>> facetsValue = getOrDefault(facets,
+                                Collections.<String, Map<String, Long>>emptyMap());
+                        // A failed or cancelled search for results is the failure of the whole search
+                        return Futures.transform(results, new Function<SearchList, SearchOverview>() {
+                            @Override
+                            public SearchOverview apply(SearchList resultsValue) {
+                                return new SearchOverview(resultsValue, suggestionsValue, facetsValue);
+                            }
+                        });
+                    }
+                });
+        overview.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (overview.isCancelled()) {
+                    results.cancel(true);
+                    suggestions.cancel(true);
+                    facets.cancel(true);
+                }
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return overview;
+    }
+
+    /**
+     * Runs a search in the background, or in the current thread if there is no {@link #asyncSearchExecutor}.
+     *
+     * @param search  search to run.
+     * @param timeout time in milliseconds after which the search is cancelled, 0 for the default timeout.
+     * @param <T>     type of the result of the search.
+     * @return the result of the search, once available.
+     */
+    private <T> ListenableFuture<T> submit(Callable<T> search, long timeout) {
+        if (asyncSearchExecutor != null)
+            return asyncSearchExecutor.submit(search, timeout);
+
+        try {
+            return Futures.immediateFuture(search.call());
+        } catch (Exception e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    /**
+     * Gets the result of a lookup that is done.
+     *
+     * @param future       lookup that is done.
+     * @param defaultValue value returned if the lookup failed or was cancelled.
+     * @param <T>          type of the result.
+     * @return the result of the lookup, or the default value.
+     */
+    private static <T> T getOrDefault(Future<T> future, T defaultValue) {
+        try {
+            return Futures.getUnchecked(future);
+        } catch (RuntimeException e) {
+            logger.debug("A part of the search couldn't be obtained", e);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Creates a search query with the parameters common to every search.
+     *
+     * @param searchTerms search query.
+     * @param siteIds     sites in which the search is done, all sites if null or empty.
+     * @param authzGroups realms in which the current user can read documents, null if not restricted.
+     * @param termVectors whether term vectors are retrieved.
+     * @return a query without position nor number of rows.
+     * @throws InvalidSearchQueryException if the search query is too expensive.
+     */
+    private SolrQuery createSearchQuery(String searchTerms, List<String> siteIds, List<String> authzGroups,
+                                        boolean termVectors) throws InvalidSearchQueryException {
+        SolrQuery query = new SolrQuery();
+        query.setFields(RESULT_FIELDS);
+        query.set(TermVectorParams.TV, termVectors);
+        if (timeAllowed > 0)
+            query.setTimeAllowed(timeAllowed);
+
+        query.setHighlight(true);
+        query.setParam("hl.useFastVectorHighlighter", true);
+        query.setParam("hl.mergeContiguous", true);
+        query.setParam("hl.fl", SearchService.FIELD_CONTENTS);
+        query.setParam("hl.formatter", "html");
+
+        if (siteIds != null && !siteIds.isEmpty()) {
+            List<String> sortedSiteIds = sortSiteIds(siteIds);
+            query.addFilterQuery(sitesFilterQueries.getUnchecked(sortedSiteIds));
+            if (sortedSiteIds.size() <= maxRoutedSites)
+                query.set(ShardParams.SHARD_KEYS, createShardKeys(sortedSiteIds));
+        }
+
+        if (authzGroups != null)
+            query.addFilterQuery(authzGroupsFilterQueries.getUnchecked(authzGroups));
+
+        query.setQuery((queryCostGuard != null) ? queryCostGuard.checkQuery(searchTerms) : searchTerms);
+        return query;
+    }
+
+    /**
+     * Restricts a query sorted by score and unique key to the documents after a cursor.
+     * <p>
+     * cursorMark isn't available in this version of solr. Instead, the score of each document is computed again with
+     * a function range query, keeping the documents scoring lower than the cursor, or scoring the same with a
+     * greater unique key (tied documents up to the cursor are given a negative value, out of the range).<br />
+     * The function range isn't cached and has a cost above 100, so it's run as a post filter, only on the documents
+     * matching the search and the other filters, rather than on the whole index.
+     * </p>
+     * <p>
+     * The score of a document depends on the statistics of the index of the server computing it. If two pages are
+     * served by replicas whose indexes aren't exactly the same (segments merged differently, replication in
+     * progress), the scores may differ slightly and a few documents may be skipped or returned twice around the
+     * cursor.
+     * </p>
+     *
+     * @param query  query to restrict.
+     * @param cursor position of the last document already returned.
+     */
+    private static void addCursorFilter(SolrQuery query, SearchCursor cursor) {
+        String score = Float.toString(cursor.getScore());
+        // Same parser as the main query, so the computed score is the same
+        query.set("cursorQuery", "{!edismax v=$q}");
+        query.set("cursorUpTo", SolrTools.FIELD_ID + ":[* TO " + ClientUtils.escapeQueryChars(cursor.getDocumentId())
+                + "]");
+        query.addFilterQuery("{!frange cache=false cost=200 l=0 u=" + score + "}"
+                + "if(and(query($cursorUpTo,0),map(query($cursorQuery)," + score + "," + score + ",1,0)),"
+                + "-1,query($cursorQuery))");
+    }
+
+    /**
+     * Gets the sites in which the current user can see terms or counts that aren't checked document by document.
+     * <p>
+     * Suggestions and facets aren't filtered like results, they're restricted to the sites of the current user (and
+     * to the documents readable through the user's realms) instead.<br />
+     * Without the realms of the user (anonymous user, administrator, realms unavailable), nothing can be restricted.
+     * </p>
+     *
+     * @param siteIds     sites in which the search is done, every site of the user if null or empty.
+     * @param authzGroups realms in which the current user can read documents, null if unknown.
+     * @return the sorted sites of the user in which the search is done, empty if there is none or they're unknown.
+     */
+    private static List<String> getReadableSiteIds(List<String> siteIds, List<String> authzGroups) {
+        if (authzGroups == null)
+            return Collections.emptyList();
+
+        List<String> readableSiteIds = sortSiteIds(UserAuthzGroupsCache.getSiteIds(authzGroups));
+        if (siteIds != null && !siteIds.isEmpty())
+            readableSiteIds.retainAll(siteIds);
+        return readableSiteIds;
+    }
+
+    /**
+     * Sorts a list of site ids and removes duplicates.
+     * <p>
+     * The same set of sites always generates the same filter query, which can then be found in solr's filterCache.
+     * </p>
      *
-     * @param siteIds sites ID to add to the filter
+     * @param siteIds sites ID to sort
+     * @return a sorted list of unique site ids
+     */
+    private static List<String> sortSiteIds(List<String> siteIds) {
+        return new ArrayList<String>(new TreeSet<String>(siteIds));
+    }
+
+    /**
+     * Creates a solr filter query based on a sorted list of site ids.
+     * <p>
+     * The terms parser isn't available in this version of solr, the filter is a disjunction of escaped terms on the
+     * site id field, with the field and the operator set once as local parameters to keep the query short.
+     * </p>
+     *
+     * @param siteIds sorted sites ID to add to the filter
      * @return a filter query allowing to search only in the given sites
      */
-    private String createSitesFilterQuery(List<String> siteIds) {
+    private static String createSitesFilterQuery(List<String> siteIds) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{!lucene q.op=OR df=").append(SearchService.FIELD_SITEID).append('}');
+        for (Iterator<String> siteIdsIterator = siteIds.iterator(); siteIdsIterator.hasNext(); ) {
+            sb.append(ClientUtils.escapeQueryChars(siteIdsIterator.next()));
+            if (siteIdsIterator.hasNext())
+                sb.append(' ');
+        }
+        logger.debug("Create filter query {}", sb);
+        return sb.toString();
+    }
+
+    /**
+     * Creates a solr filter query excluding documents that aren't accessible from the given realms.
+     * <p>
+     * Only documents from the user's own sites can be excluded, documents from other sites may be accessible through
+     * the roles of every authenticated or anonymous user, which aren't part of the user's realms.<br />
+     * Documents indexed with {@link SolrTools#UNKNOWN_AUTHZ_GROUPS} can't be excluded either.<br />
+     * Documents that are kept are checked once retrieved.
+     * </p>
+     *
+     * @param authzGroups sorted realms in which the user is allowed to read documents
+     * @return a filter query allowing to search only in documents accessible from the given realms
+     */
+    private static String createAuthzGroupsFilterQuery(List<String> authzGroups) {
+        List<String> siteIds = UserAuthzGroupsCache.getSiteIds(authzGroups);
+        if (siteIds.isEmpty())
+            return "*:*";
+
         StringBuilder sb = new StringBuilder();
-        sb.append('+').append(SearchService.FIELD_SITEID).append(":");
-        sb.append('(');
+        sb.append("{!lucene q.op=OR df=").append(SolrTools.FIELD_AUTHZ_GROUPS).append('}');
+        sb.append(ClientUtils.escapeQueryChars(SolrTools.UNKNOWN_AUTHZ_GROUPS));
+        for (String authzGroup : authzGroups) {
+            sb.append(' ').append(ClientUtils.escapeQueryChars(authzGroup));
+        }
+        sb.append(" (*:* -").append(SearchService.FIELD_SITEID).append(":(");
         for (Iterator<String> siteIdsIterator = siteIds.iterator(); siteIdsIterator.hasNext(); ) {
-            sb.append('"').append(siteIdsIterator.next()).append('"');
+            sb.append(ClientUtils.escapeQueryChars(siteIdsIterator.next()));
             if (siteIdsIterator.hasNext())
-                sb.append(" OR ");
+                sb.append(' ');
         }
-        sb.append(')');
+        sb.append("))");
         logger.debug("Create filter query {}", sb);
         return sb.toString();
     }
 
+    /**
+     * Creates the list of shard keys containing the documents of the given sites.
+     * <p>
+     * With SolrCloud, documents are routed by site id, so only the shards containing those sites are queried.<br />
+     * This parameter is ignored by standalone servers.
+     * </p>
+     *
+     * @param siteIds sites ID in which the search is done
+     * @return the shard keys of the sites
+     */
+    private String createShardKeys(List<String> siteIds) {
+        StringBuilder sb = new StringBuilder();
+        for (Iterator<String> siteIdsIterator = siteIds.iterator(); siteIdsIterator.hasNext(); ) {
+            sb.append(siteIdsIterator.next()).append(SolrTools.ROUTING_SEPARATOR);
+            if (siteIdsIterator.hasNext())
+                sb.append(',');
+        }
+        return sb.toString();
+    }
+
     @Override
     public void registerFunction(String function) {
         logger.info("Register {} as a trigger for the search service", function);
@@ -268,9 +879,158 @@ public class SolrSearchService implements SearchService {
         throw new UnsupportedOperationException("Solr can't use documentId");
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Parameters are the search terms (q), the sites separated by semicolons (ctx), the position of the first result
+     * (s) and the position after the last result (e).
+     * </p>
+     * <p>
+     * The search is done as the user given in the parameters (u), if the checksum (cs) proves that the request comes
+     * from a server knowing the shared key (search.sharedKey). Without a user, the search is done as the current user.
+     * </p>
+     */
     @Override
     public String searchXML(Map parameterMap) {
-        throw new UnsupportedOperationException("Local search must be done against the solr server directly");
+        StringWriter writer = new StringWriter();
+        try {
+            searchXML(parameterMap, writer);
+            return writer.toString();
+        } catch (Exception e) {
+            logger.warn("Couldn't search with the parameters '{}'", parameterMap, e);
+            return "<error>" + StringEscapeUtils.escapeXml(e.getMessage()) + "</error>";
+        }
+    }
+
+    /**
+     * Searches for documents and writes the results as XML while solr streams them.
+     * <p>
+     * Results are written as soon as they're received and checked by {@link #searchItemFilter}, so the memory used
+     * doesn't depend on the number of results requested.
+     * </p>
+     *
+     * @param parameterMap parameters of the search, see {@link #searchXML(Map)}.
+     * @param writer       output in which the results are written.
+     * @throws InvalidSearchQueryException if the parameters are invalid or the query couldn't be executed.
+     * @throws IOException                 if the results couldn't be written.
+     */
+    public void searchXML(Map parameterMap, Writer writer) throws InvalidSearchQueryException, IOException {
+        String searchTerms = getParameter(parameterMap, XML_TERMS);
+        String contexts = getParameter(parameterMap, XML_CONTEXTS);
+        List<String> siteIds = (contexts != null) ? Arrays.asList(contexts.split(";")) : null;
+        int start;
+        int end;
+        try {
+            start = Integer.parseInt(getParameter(parameterMap, XML_START));
+            end = Integer.parseInt(getParameter(parameterMap, XML_END));
+        } catch (NumberFormatException e) {
+            throw new InvalidSearchQueryException("The start and end of the search must be numbers", e);
+        }
+        if (searchTerms == null || start < 0 || end < start)
+            throw new InvalidSearchQueryException("Invalid search '" + searchTerms + "' from " + start + " to " + end);
+
+        String userId = getParameter(parameterMap, XML_USER_ID);
+        if (userId == null) {
+            streamSearchResults(searchTerms, siteIds, start, end, writer);
+            return;
+        }
+
+        checkXmlChecksum(userId, searchTerms, getParameter(parameterMap, XML_CHECKSUM));
+        // Results are filtered and restricted for the requested user
+        Session previousSession = sessionManager.getCurrentSession();
+        Session searchSession = sessionManager.startSession();
+        searchSession.setUserId(userId);
+        sessionManager.setCurrentSession(searchSession);
+        try {
+            streamSearchResults(searchTerms, siteIds, start, end, writer);
+        } finally {
+            sessionManager.setCurrentSession(previousSession);
+            searchSession.invalidate();
+        }
+    }
+
+    /**
+     * Checks that the checksum of an XML search has been generated with the shared key.
+     * <p>
+     * The checksum is the hexadecimal SHA-1 of the shared key, the user id and the search terms.
+     * </p>
+     *
+     * @param userId      user doing the search.
+     * @param searchTerms terms of the search.
+     * @param checksum    checksum sent with the search.
+     * @throws InvalidSearchQueryException if there is no shared key or if the checksum doesn't match.
+     */
+    private void checkXmlChecksum(String userId, String searchTerms, String checksum)
+            throws InvalidSearchQueryException {
+        String key = (sharedKey != null) ? sharedKey : ServerConfigurationService.getString("search.sharedKey", null);
+        if (key == null || key.isEmpty())
+            throw new InvalidSearchQueryException("Searches on behalf of a user require a shared key");
+        if (checksum == null)
+            throw new InvalidSearchQueryException("The security checksum is missing");
+
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
+            byte[] expectedChecksum = messageDigest.digest((key + userId + searchTerms).getBytes(Charsets.UTF_8));
+            byte[] actualChecksum = BaseEncoding.base16().lowerCase().decode(checksum.toLowerCase());
+            if (!MessageDigest.isEqual(expectedChecksum, actualChecksum))
+                throw new InvalidSearchQueryException("The security checksum isn't valid");
+        } catch (NoSuchAlgorithmException e) {
+            throw new InvalidSearchQueryException("The security checksum can't be verified", e);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidSearchQueryException("The security checksum isn't valid", e);
+        }
+    }
+
+    /**
+     * Runs a search as the current user and writes the results as XML while solr streams them.
+     *
+     * @param searchTerms terms of the search.
+     * @param siteIds     sites in which the search is done, all sites if null.
+     * @param start       position of the first result.
+     * @param end         position after the last result.
+     * @param writer      output in which the results are written.
+     * @throws InvalidSearchQueryException if the query couldn't be executed.
+     * @throws IOException                 if the results couldn't be written.
+     */
+    private void streamSearchResults(String searchTerms, List<String> siteIds, int start, int end, Writer writer)
+            throws InvalidSearchQueryException, IOException {
+        List<String> authzGroups = (userAuthzGroupsCache != null)
+                ? userAuthzGroupsCache.getCurrentUserAuthzGroups()
+                : null;
+        SolrQuery query = createSearchQuery(searchTerms, siteIds, authzGroups, false);
+        // Highlights would only be received after every document
+        query.setHighlight(false);
+        query.setStart(start);
+        query.setRows(end - start);
+
+        logger.debug("Streaming the search '{}'", searchTerms);
+        StreamingXmlResultWriter resultWriter = new StreamingXmlResultWriter(writer, end - start, searchItemFilter,
+                contentProducerFactory, solrServer);
+        try {
+            solrServer.queryAndStreamResponse(query, resultWriter);
+        } catch (StreamingXmlResultWriter.StreamAbortedException e) {
+            resultWriter.checkWriteFailure();
+        } catch (SolrServerException e) {
+            // An embedded server wraps the abortion of the stream
+            resultWriter.checkWriteFailure();
+            throw new InvalidSearchQueryException("Failed to parse Query", e);
+        }
+        resultWriter.finish();
+    }
+
+    /**
+     * Gets the first value of a parameter.
+     *
+     * @param parameterMap parameters, with either a String or an array of Strings as values.
+     * @param name         name of the parameter.
+     * @return the first value of the parameter, null if there is none.
+     */
+    private static String getParameter(Map parameterMap, String name) {
+        Object value = parameterMap.get(name);
+        if (value instanceof String[])
+            return ((String[]) value).length > 0 ? ((String[]) value)[0] : null;
+        else
+            return (String) value;
     }
 
     @Override
@@ -286,6 +1046,9 @@ public class SolrSearchService implements SearchService {
     @Override
     public String getSearchSuggestion(String searchString) {
         logger.debug("Search a suggestion for '{}'", searchString);
+        if (searchSuggester != null)
+            return searchSuggester.getSpellingSuggestion(searchString);
+
         try {
             ModifiableSolrParams params = new ModifiableSolrParams();
             params.set("qt", "/spell");
@@ -295,7 +1058,7 @@ public class SolrSearchService implements SearchService {
 
             QueryResponse response = solrServer.query(params);
             SpellCheckResponse spellCheckResponse = response.getSpellCheckResponse();
-            if (spellCheckResponse == null || !spellCheckResponse.isCorrectlySpelled())
+            if (spellCheckResponse == null || spellCheckResponse.isCorrectlySpelled())
                 return null;
             else
                 return spellCheckResponse.getCollatedResult();
@@ -305,10 +1068,48 @@ public class SolrSearchService implements SearchService {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Suggestions are restricted to the terms of the documents accessible by the current user, in the current site or
+     * in every site of the user. Nothing is suggested if the sites of the user are unknown.
+     * </p>
+     */
     @Override
     public String[] getSearchSuggestions(String searchString, String currentSite, boolean allMySites) {
-        String suggestion = getSearchSuggestion(searchString);
-        return (suggestion != null) ? new String[]{searchString} : new String[0];
+        return getSearchSuggestions(searchString, (!allMySites && currentSite != null)
+                ? Collections.singletonList(currentSite)
+                : null);
+    }
+
+    /**
+     * Gets suggestions for a search query done in some sites.
+     * <p>
+     * Suggestions are restricted to the terms of the documents accessible by the current user in the searched sites
+     * the user is a member of. Nothing is suggested if the sites of the user are unknown.
+     * </p>
+     *
+     * @param searchString search query typed so far.
+     * @param siteIds      sites in which the search is done, every site of the user if null or empty.
+     * @return the suggestions, the most relevant first.
+     */
+    public String[] getSearchSuggestions(String searchString, List<String> siteIds) {
+        if (searchSuggester == null) {
+            String suggestion = getSearchSuggestion(searchString);
+            return (suggestion != null) ? new String[]{suggestion} : new String[0];
+        }
+
+        List<String> authzGroups = (userAuthzGroupsCache != null)
+                ? userAuthzGroupsCache.getCurrentUserAuthzGroups()
+                : null;
+        List<String> readableSiteIds = getReadableSiteIds(siteIds, authzGroups);
+        if (readableSiteIds.isEmpty())
+            return new String[0];
+
+        List<String> filterQueries = Arrays.asList(sitesFilterQueries.getUnchecked(readableSiteIds),
+                authzGroupsFilterQueries.getUnchecked(authzGroups));
+        List<String> suggestions = searchSuggester.getSuggestions(searchString, filterQueries);
+        return suggestions.toArray(new String[suggestions.size()]);
     }
 
     //-------------------------------------------------------------------------------------------
@@ -358,4 +1159,60 @@ public class SolrSearchService implements SearchService {
     public void setContentProducerFactory(ContentProducerFactory contentProducerFactory) {
         this.contentProducerFactory = contentProducerFactory;
     }
+
+    public void setMaxRoutedSites(int maxRoutedSites) {
+        this.maxRoutedSites = maxRoutedSites;
+    }
+
+    public void setQueryResponseCache(QueryResponseCache queryResponseCache) {
+        this.queryResponseCache = queryResponseCache;
+    }
+
+    public void setUserAuthzGroupsCache(UserAuthzGroupsCache userAuthzGroupsCache) {
+        this.userAuthzGroupsCache = userAuthzGroupsCache;
+    }
+
+    public void setAdaptivePaging(AdaptivePaging adaptivePaging) {
+        this.adaptivePaging = adaptivePaging;
+    }
+
+    public void setTermVectorsByDefault(boolean termVectorsByDefault) {
+        this.termVectorsByDefault = termVectorsByDefault;
+    }
+
+    public void setSearchSuggester(SearchSuggester searchSuggester) {
+        this.searchSuggester = searchSuggester;
+    }
+
+    public void setFacetLimit(int facetLimit) {
+        this.facetLimit = facetLimit;
+    }
+
+    public void setQueryCostGuard(QueryCostGuard queryCostGuard) {
+        this.queryCostGuard = queryCostGuard;
+    }
+
+    public void setTimeAllowed(int timeAllowed) {
+        this.timeAllowed = timeAllowed;
+    }
+
+    public void setSessionManager(SessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    /**
+     * Sets the key shared with the servers sending XML searches on behalf of a user.
+     * <p>
+     * If not set, the key is obtained from the search.sharedKey property.
+     * </p>
+     *
+     * @param sharedKey key used to generate the checksum of XML searches.
+     */
+    public void setSharedKey(String sharedKey) {
+        this.sharedKey = sharedKey;
+    }
+
+    public void setAsyncSearchExecutor(AsyncSearchExecutor asyncSearchExecutor) {
+        this.asyncSearchExecutor = asyncSearchExecutor;
+    }
 }
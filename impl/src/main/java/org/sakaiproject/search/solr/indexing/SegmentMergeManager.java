@@ -0,0 +1,215 @@
+package org.sakaiproject.search.solr.indexing;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+import org.apache.solr.client.solrj.request.UpdateRequest;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.common.util.NamedList;
+import org.sakaiproject.search.queueing.IndexQueueing;
+import org.sakaiproject.search.solr.util.MaintenanceServerSelector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.sakaiproject.search.solr.indexing.SolrTask.Type.OPTIMISE_INDEX;
+
+/**
+ * Component in charge of keeping the number of segments and deleted documents of the index under control.
+ * <p>
+ * Optimising the index rewrites every segment in a single one and invalidates every cache, which is only worth it
+ * when the index is actually fragmented.<br />
+ * Instead, the segments and deleted documents statistics are obtained from the Luke handler and:
+ * <ul>
+ * <li>deleted documents are expunged if they represent more than {@link #maxDeletedDocumentsRatio} of the index</li>
+ * <li>the index is optimised down to {@link #maxSegments} segments if there are more segments than that</li>
+ * </ul>
+ * Those operations are only done during the off-peak window, between {@link #offPeakStart} and {@link #offPeakEnd}.
+ * </p>
+ * <p>
+ * An {@link SolrTask.Type#OPTIMISE_INDEX} task is queued periodically during the off-peak window, so the maintenance
+ * goes through the usual queueing system. Only the maintenance server of the cluster queues those tasks.<br />
+ * Replicas receive the merged segments from the master through replication, they don't merge their own index.
+ * </p>
+ * <p>
+ * The spelling dictionaries don't depend on the merges, they are rebuilt by the {@link SpellingDictionaryBuilder}.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class SegmentMergeManager {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentMergeManager.class);
+    private static final String LUKE_HANDLER = "/admin/luke";
+    private static final double DEFAULT_MAX_DELETED_DOCUMENTS_RATIO = 0.1;
+    private static final int DEFAULT_MAX_SEGMENTS = 10;
+    private static final int DEFAULT_OFF_PEAK_START = 1;
+    private static final int DEFAULT_OFF_PEAK_END = 5;
+    private static final long DEFAULT_CHECK_INTERVAL = 60 * 60;
+    /**
+     * Ratio of deleted documents (compared to the total number of documents) above which deletions are expunged.
+     */
+    private double maxDeletedDocumentsRatio = DEFAULT_MAX_DELETED_DOCUMENTS_RATIO;
+    /**
+     * Number of segments above which the index is merged down to this number of segments.
+     */
+    private int maxSegments = DEFAULT_MAX_SEGMENTS;
+    /**
+     * Hour of the day (0-23) at which the off-peak window starts.
+     */
+    private int offPeakStart = DEFAULT_OFF_PEAK_START;
+    /**
+     * Hour of the day (0-24) at which the off-peak window ends, the window can span over midnight.
+     */
+    private int offPeakEnd = DEFAULT_OFF_PEAK_END;
+    /**
+     * Time (in seconds) between two maintenance checks.
+     */
+    private long checkInterval = DEFAULT_CHECK_INTERVAL;
+    private SolrServer solrServer;
+    private IndexQueueing indexQueueing;
+    private MaintenanceServerSelector maintenanceServerSelector;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Schedules the periodic maintenance of the index.
+     */
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (isOffPeak(new Date()) && maintenanceServerSelector.isMaintenanceServer())
+                        indexQueueing.addTaskToQueue(new SolrTask(OPTIMISE_INDEX));
+                } catch (Exception e) {
+                    logger.error("Couldn't schedule the maintenance of the index", e);
+                }
+            }
+        }, checkInterval, checkInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the periodic maintenance of the index.
+     */
+    public void destroy() {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+    }
+
+    /**
+     * Merges segments and expunges deleted documents if necessary.
+     * <p>
+     * Nothing is done outside of the off-peak window or if the index isn't fragmented enough.
+     * </p>
+     *
+     * @throws SolrServerException if the statistics couldn't be obtained or the merge failed.
+     * @throws IOException         if the Solr server couldn't be contacted.
+     */
+    public void maintainIndex() throws SolrServerException, IOException {
+        if (!isOffPeak(new Date())) {
+            logger.debug("Outside of the off-peak window, the maintenance of the index is delayed");
+            return;
+        }
+
+        NamedList<?> indexStatistics = getIndexStatistics();
+        int numDocs = ((Number) indexStatistics.get("numDocs")).intValue();
+        int maxDoc = ((Number) indexStatistics.get("maxDoc")).intValue();
+        int segmentCount = ((Number) indexStatistics.get("segmentCount")).intValue();
+        int deletedDocs = maxDoc - numDocs;
+        logger.debug("The index contains {} segments and {} deleted documents out of {}",
+                new Object[]{segmentCount, deletedDocs, maxDoc});
+
+        if (segmentCount > maxSegments) {
+            // Merging segments gets rid of the deleted documents as well
+            logger.info("Merging the {} segments of the index down to {}", segmentCount, maxSegments);
+            solrServer.optimize(true, true, maxSegments);
+        } else if (maxDoc > 0 && (double) deletedDocs / maxDoc > maxDeletedDocumentsRatio) {
+            logger.info("Expunging {} deleted documents out of {}", deletedDocs, maxDoc);
+            expungeDeletes();
+        } else {
+            logger.debug("The index doesn't need to be merged");
+        }
+    }
+
+    /**
+     * Obtains the statistics of the index (number of documents, deleted documents and segments) from Luke.
+     *
+     * @return the index part of the Luke response.
+     * @throws SolrServerException if the statistics couldn't be obtained.
+     */
+    private NamedList<?> getIndexStatistics() throws SolrServerException {
+        SolrQuery query = new SolrQuery()
+                .setRequestHandler(LUKE_HANDLER)
+                .set("show", "index")
+                .set("numTerms", 0);
+        return (NamedList<?>) solrServer.query(query).getResponse().get("index");
+    }
+
+    /**
+     * Commits with the expungeDeletes flag, only merging the segments containing deleted documents.
+     *
+     * @throws SolrServerException if the commit failed.
+     * @throws IOException         if the Solr server couldn't be contacted.
+     */
+    private void expungeDeletes() throws SolrServerException, IOException {
+        UpdateRequest request = new UpdateRequest();
+        request.setAction(AbstractUpdateRequest.ACTION.COMMIT, true, true);
+        request.setParam(UpdateParams.EXPUNGE_DELETES, Boolean.TRUE.toString());
+        request.process(solrServer);
+    }
+
+    /**
+     * Checks whether a date is within the off-peak window.
+     *
+     * @param date date to check.
+     * @return true if the hour of the date is within the off-peak window, false otherwise.
+     */
+    boolean isOffPeak(Date date) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTime(date);
+        int hour = calendar.get(Calendar.HOUR_OF_DAY);
+        if (offPeakStart <= offPeakEnd)
+            return offPeakStart <= hour && hour < offPeakEnd;
+        else
+            return offPeakStart <= hour || hour < offPeakEnd;
+    }
+
+    public void setSolrServer(SolrServer solrServer) {
+        this.solrServer = solrServer;
+    }
+
+    public void setIndexQueueing(IndexQueueing indexQueueing) {
+        this.indexQueueing = indexQueueing;
+    }
+
+    public void setMaintenanceServerSelector(MaintenanceServerSelector maintenanceServerSelector) {
+        this.maintenanceServerSelector = maintenanceServerSelector;
+    }
+
+    public void setMaxDeletedDocumentsRatio(double maxDeletedDocumentsRatio) {
+        this.maxDeletedDocumentsRatio = maxDeletedDocumentsRatio;
+    }
+
+    public void setMaxSegments(int maxSegments) {
+        this.maxSegments = maxSegments;
+    }
+
+    public void setOffPeakStart(int offPeakStart) {
+        this.offPeakStart = offPeakStart;
+    }
+
+    public void setOffPeakEnd(int offPeakEnd) {
+        this.offPeakEnd = offPeakEnd;
+    }
+
+    public void setCheckInterval(long checkInterval) {
+        this.checkInterval = checkInterval;
+    }
+}
@@ -0,0 +1,320 @@
+package org.sakaiproject.search.solr.indexing;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.sakaiproject.search.api.SearchService;
+import org.sakaiproject.search.indexing.exception.TaskHandlingException;
+import org.sakaiproject.search.solr.util.SolrServerAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Coordinates the complete reindexation of every site in a shadow core.
+ * <p>
+ * Instead of rebuilding the index in place (which leaves a half-rebuilt index visible for hours and ends with an
+ * expensive cleanup and optimisation), a fresh shadow core is created and every site is indexed in it.<br />
+ * Modifications happening during the rebuild are written in both cores by the {@link SolrServerAdapter}.<br />
+ * Once every site has been rebuilt, the shadow core is swapped with the actual core and the old index is dropped.
+ * </p>
+ * <p>
+ * Sites can be rebuilt by any server, so the progress of the rebuild is kept in a status document stored in the
+ * shadow core itself. The status document is updated with optimistic concurrency, only the server bringing the
+ * number of rebuilt sites to the number of registered sites swaps the cores, after removing the status document.<br />
+ * Sites are registered by a single server, which writes the number of sites once they are all registered.<br />
+ * Every server writes its modifications in the shadow core once it has noticed it, which takes at most the shadow
+ * check interval of the {@link SolrServerAdapter}. The rebuild waits for that long before any site is indexed.
+ * </p>
+ * <p>
+ * If a site can't be rebuilt, the shadow core would miss its documents. The failure is recorded in the status
+ * document and the site is rebuilt again later, up to {@link #maxSiteAttempts} times. Past that, the whole rebuild is
+ * aborted and the actual core is kept.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class ShadowIndexRebuilder {
+    private static final Logger logger = LoggerFactory.getLogger(ShadowIndexRebuilder.class);
+    private static final String VERSION_FIELD = "_version_";
+    /**
+     * Id of the document holding the status of the rebuild in the shadow core.
+     */
+    static final String STATUS_ID = "shadow-rebuild-status";
+    /**
+     * Number of sites to rebuild, absent until every site has been registered.
+     */
+    static final String FIELD_REGISTERED_SITES = "rebuild_registeredsites";
+    /**
+     * Number of sites successfully rebuilt.
+     */
+    static final String FIELD_REBUILT_SITES = "rebuild_rebuiltsites";
+    /**
+     * Sites that couldn't be rebuilt, once per failed attempt.
+     */
+    static final String FIELD_FAILED_SITES = "rebuild_failedsites";
+    private static final int DEFAULT_MAX_SITE_ATTEMPTS = 3;
+    /**
+     * Number of sites registered by this server since the beginning of the rebuild.
+     */
+    private final AtomicInteger registeredSites = new AtomicInteger();
+    /**
+     * Number of times a site is rebuilt before aborting the rebuild.
+     */
+    private int maxSiteAttempts = DEFAULT_MAX_SITE_ATTEMPTS;
+    private SolrServerAdapter solrServerAdapter;
+
+    /**
+     * Starts a new rebuild by creating the shadow core.
+     * <p>
+     * Once the rebuild is started, {@link #allSitesRegistered()} must be called when every site has been registered,
+     * otherwise the rebuild will never end.
+     * </p>
+     *
+     * @return true if the rebuild has started, false if a rebuild is already running, shadow cores aren't available or
+     *         the shadow core couldn't be created.
+     */
+    public synchronized boolean startRebuild() {
+        if (solrServerAdapter.isCloudMode()) {
+            logger.info("Shadow cores aren't available with SolrCloud, the index will be rebuilt in place");
+            return false;
+        }
+
+        try {
+            if (solrServerAdapter.findShadowCore() != null) {
+                logger.warn("A rebuild is already running, if it has been interrupted the core '{}' must be dropped",
+                        solrServerAdapter.getShadowCoreName());
+                return false;
+            }
+
+            SolrServer shadowCore = solrServerAdapter.createShadowCore();
+            registeredSites.set(0);
+            SolrInputDocument status = createStatusDocument();
+            status.setField(FIELD_REBUILT_SITES, 0L);
+            shadowCore.add(status);
+
+            // Modifications made by the other servers before they notice the shadow core would be lost
+            Thread.sleep(solrServerAdapter.getShadowCheckInterval());
+            return true;
+        } catch (InterruptedException e) {
+            logger.error("Interrupted while waiting for the other servers to notice the shadow core", e);
+            dropIncompleteShadowCore();
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            logger.error("Couldn't create the shadow core", e);
+            dropIncompleteShadowCore();
+            return false;
+        }
+    }
+
+    /**
+     * Registers a site that will be rebuilt in the shadow core.
+     */
+    public void registerSite() {
+        registeredSites.incrementAndGet();
+    }
+
+    /**
+     * Notifies that every site has been registered.
+     * <p>
+     * If every site has already been rebuilt, the shadow core replaces the actual core.
+     * </p>
+     */
+    public void allSitesRegistered() {
+        updateStatus(FIELD_REGISTERED_SITES, registeredSites.getAndSet(0), null);
+    }
+
+    /**
+     * Notifies that a site has been successfully rebuilt.
+     * <p>
+     * If it was the last site being rebuilt, the shadow core replaces the actual core.
+     * </p>
+     */
+    public void siteRebuilt() {
+        updateStatus(FIELD_REBUILT_SITES, 1, null);
+    }
+
+    /**
+     * Notifies that a site couldn't be rebuilt.
+     * <p>
+     * The failure is recorded in the status document. Once the site has failed {@link #maxSiteAttempts} times, the
+     * rebuild is aborted.
+     * </p>
+     *
+     * @param siteId id of the site that couldn't be rebuilt.
+     * @return true if the site must be rebuilt again later, false if the rebuild has been aborted or is over.
+     */
+    public boolean siteFailed(String siteId) {
+        SolrInputDocument status = updateStatus(FIELD_REBUILT_SITES, 0, siteId);
+        if (status == null)
+            return false;
+
+        int attempts = Collections.frequency(getFailedSites(status.getFieldValues(FIELD_FAILED_SITES)), siteId);
+        if (attempts < maxSiteAttempts) {
+            logger.warn("The site '{}' couldn't be rebuilt in the shadow core (attempt {} of {}), it will be rebuilt "
+                    + "again later", new Object[]{siteId, attempts, maxSiteAttempts});
+            return true;
+        } else {
+            logger.error("The site '{}' couldn't be rebuilt in the shadow core after {} attempts", siteId, attempts);
+            abortRebuild();
+            return false;
+        }
+    }
+
+    /**
+     * Gets the server in charge of the shadow core on this server.
+     *
+     * @return the shadow core, or null if there is no rebuild running.
+     */
+    public SolrServer getShadowCore() {
+        return solrServerAdapter.getShadowCore();
+    }
+
+    /**
+     * Gets the server in charge of the shadow core, even if the rebuild has been started by another server.
+     *
+     * @return the shadow core, or null if there is no rebuild running.
+     */
+    public SolrServer findShadowCore() {
+        try {
+            return solrServerAdapter.findShadowCore();
+        } catch (Exception e) {
+            throw new TaskHandlingException("Couldn't check if a shadow core exists", e);
+        }
+    }
+
+    /**
+     * Aborts the current rebuild and drops the shadow core.
+     */
+    public void abortRebuild() {
+        logger.warn("Aborting the rebuild of the index");
+        try {
+            solrServerAdapter.dropShadowCore();
+        } catch (Exception e) {
+            throw new TaskHandlingException("Couldn't drop the shadow core", e);
+        }
+    }
+
+    private void dropIncompleteShadowCore() {
+        try {
+            solrServerAdapter.dropShadowCore();
+        } catch (Exception e) {
+            logger.error("Couldn't drop the shadow core", e);
+        }
+    }
+
+    /**
+     * Increments a counter of the status document, and replaces the actual core if the rebuild is over.
+     * <p>
+     * If the status document has been modified concurrently by another server, it is read and updated again.
+     * </p>
+     *
+     * @param field        counter to increment.
+     * @param increment    value added to the counter.
+     * @param failedSiteId site recorded as failed, null if no site failed.
+     * @return the updated status, or null if there is no rebuild running anymore.
+     */
+    private SolrInputDocument updateStatus(String field, long increment, String failedSiteId) {
+        SolrServer shadowCore = findShadowCore();
+        if (shadowCore == null) {
+            logger.warn("There is no rebuild running anymore, the status of the rebuild won't be updated");
+            return null;
+        }
+
+        try {
+            while (true) {
+                SolrDocument currentStatus = (SolrDocument) shadowCore.query(new SolrQuery()
+                        .setRequestHandler("/get").set("id", STATUS_ID)).getResponse().get("doc");
+                if (currentStatus == null) {
+                    logger.warn("The rebuild has been aborted or is already over");
+                    return null;
+                }
+
+                SolrInputDocument status = createStatusDocument();
+                status.setField(VERSION_FIELD, currentStatus.getFieldValue(VERSION_FIELD));
+                status.setField(FIELD_REBUILT_SITES, getCounter(currentStatus, FIELD_REBUILT_SITES));
+                if (currentStatus.containsKey(FIELD_REGISTERED_SITES))
+                    status.setField(FIELD_REGISTERED_SITES, getCounter(currentStatus, FIELD_REGISTERED_SITES));
+                status.setField(field, getCounter(currentStatus, field) + increment);
+                Collection<Object> failedSites = getFailedSites(currentStatus.getFieldValues(FIELD_FAILED_SITES));
+                if (failedSiteId != null)
+                    failedSites.add(failedSiteId);
+                if (!failedSites.isEmpty())
+                    status.setField(FIELD_FAILED_SITES, failedSites);
+                try {
+                    shadowCore.add(status);
+                } catch (SolrException e) {
+                    if (e.code() != SolrException.ErrorCode.CONFLICT.code)
+                        throw e;
+                    logger.debug("The status of the rebuild was modified concurrently, attempting to update it again");
+                    continue;
+                }
+
+                if (isRebuildOver(status))
+                    finishRebuild(shadowCore);
+                return status;
+            }
+        } catch (TaskHandlingException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new TaskHandlingException("Couldn't update the status of the rebuild", e);
+        }
+    }
+
+    private static boolean isRebuildOver(SolrInputDocument status) {
+        Object registered = status.getFieldValue(FIELD_REGISTERED_SITES);
+        return registered != null && registered.equals(status.getFieldValue(FIELD_REBUILT_SITES));
+    }
+
+    private static Collection<Object> getFailedSites(Collection<Object> failedSites) {
+        return (failedSites != null) ? new ArrayList<Object>(failedSites) : new ArrayList<Object>();
+    }
+
+    private static long getCounter(SolrDocument status, String field) {
+        Number counter = (Number) status.getFieldValue(field);
+        return (counter != null) ? counter.longValue() : 0L;
+    }
+
+    /**
+     * Creates the status document with the fields required by the schema.
+     *
+     * @return a status document without any counter.
+     */
+    private static SolrInputDocument createStatusDocument() {
+        SolrInputDocument status = new SolrInputDocument();
+        status.setField(SolrTools.FIELD_ID, STATUS_ID);
+        status.setField(SearchService.FIELD_REFERENCE, STATUS_ID);
+        status.setField(SearchService.FIELD_TYPE, STATUS_ID);
+        status.setField(SearchService.FIELD_TITLE, STATUS_ID);
+        status.setField(SearchService.FIELD_TOOL, STATUS_ID);
+        status.setField(SearchService.FIELD_URL, "");
+        return status;
+    }
+
+    private void finishRebuild(SolrServer shadowCore) {
+        logger.info("Every site has been rebuilt, replacing the index");
+        try {
+            shadowCore.deleteById(STATUS_ID);
+            solrServerAdapter.swapShadowCore();
+        } catch (Exception e) {
+            // Keep the current index rather than the shadow one in an unknown state
+            abortRebuild();
+            throw new TaskHandlingException("Couldn't swap the shadow core with the actual core", e);
+        }
+    }
+
+    public void setSolrServerAdapter(SolrServerAdapter solrServerAdapter) {
+        this.solrServerAdapter = solrServerAdapter;
+    }
+
+    public void setMaxSiteAttempts(int maxSiteAttempts) {
+        this.maxSiteAttempts = maxSiteAttempts;
+    }
+}
@@ -9,7 +9,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Date;
-import java.util.Queue;
+import java.util.Iterator;
 
 import static org.sakaiproject.search.indexing.DefaultTask.Type.*;
 import static org.sakaiproject.search.solr.indexing.SolrTask.Type.REMOVE_ALL_DOCUMENTS;
@@ -24,6 +24,14 @@ import static org.sakaiproject.search.solr.indexing.SolrTask.Type.REMOVE_ALL_DOC
  * An optimisation is also triggered after those heavy operations.
  * </p>
  * <p>
+ * Every subtask is flagged with {@link SolrTask#BULK_LOAD} so documents are indexed in bulk, the cleanup task
+ * ends the bulk load with a single commit.
+ * </p>
+ * <p>
+ * If a {@link ShadowIndexRebuilder} is available, "reindex everything" is done in a shadow core instead. The cleanup
+ * and the optimisation aren't necessary as the shadow core starts empty and replaces the actual core at the end.
+ * </p>
+ * <p>
  * If a task isn't an heavy one that deserves to be split, the task will be sent to another {@link TaskHandler}.
  * </p>
  *
@@ -34,6 +42,7 @@ public class SolrSplitterProcesses implements TaskHandler {
     private TaskHandler actualTaskHandler;
     private IndexQueueing indexQueueing;
     private SolrTools solrTools;
+    private ShadowIndexRebuilder shadowIndexRebuilder;
 
     @Override
     public void executeTask(Task task) {
@@ -41,7 +50,10 @@ public class SolrSplitterProcesses implements TaskHandler {
             logger.debug("Attempt to handle '{}'", task);
             String taskType = task.getType();
             if (INDEX_ALL.getTypeName().equals(taskType)) {
-                createTaskForEverySite(INDEX_SITE, task.getCreationDate());
+                if (shadowIndexRebuilder != null && shadowIndexRebuilder.startRebuild())
+                    createShadowTaskForEverySite(task.getCreationDate());
+                else
+                    createTaskForEverySite(INDEX_SITE, task.getCreationDate());
             } else if (REFRESH_ALL.getTypeName().equals(taskType)) {
                 createTaskForEverySite(REFRESH_SITE, task.getCreationDate());
             } else {
@@ -65,17 +77,47 @@ public class SolrSplitterProcesses implements TaskHandler {
      * @param creationDate creation date of the task (should be the same as the original task).
      */
     private void createTaskForEverySite(DefaultTask.Type taskType, Date creationDate) {
-        Queue<String> sites = solrTools.getIndexableSites();
-        while (sites.peek() != null) {
-            Task refreshSite = new DefaultTask(taskType, creationDate).setProperty(DefaultTask.SITE_ID, sites.poll());
+        Iterator<String> sites = solrTools.getIndexableSites();
+        while (sites.hasNext()) {
+            Task refreshSite = new DefaultTask(taskType, creationDate).setProperty(DefaultTask.SITE_ID, sites.next())
+                    .setProperty(SolrTask.BULK_LOAD, Boolean.TRUE.toString());
             indexQueueing.addTaskToQueue(refreshSite);
         }
 
         // Clean up the index by removing sites/documents that shouldn't be indexed anymore
-        Task removeAll = new SolrTask(REMOVE_ALL_DOCUMENTS, creationDate);
+        Task removeAll = new SolrTask(REMOVE_ALL_DOCUMENTS, creationDate)
+                .setProperty(SolrTask.BULK_LOAD, Boolean.TRUE.toString());
         indexQueueing.addTaskToQueue(removeAll);
     }
 
+    /**
+     * Creates and queues a "reindex site" task in the shadow core for every site.
+     * <p>
+     * Every site is registered in the {@link ShadowIndexRebuilder} so the shadow core can replace the actual core
+     * once the last site has been reindexed.
+     * </p>
+     *
+     * @param creationDate creation date of the task (should be the same as the original task).
+     */
+    private void createShadowTaskForEverySite(Date creationDate) {
+        try {
+            Iterator<String> sites = solrTools.getIndexableSites();
+            while (sites.hasNext()) {
+                Task indexSite = new DefaultTask(INDEX_SITE, creationDate)
+                        .setProperty(DefaultTask.SITE_ID, sites.next())
+                        .setProperty(SolrTask.BULK_LOAD, Boolean.TRUE.toString())
+                        .setProperty(SolrTask.SHADOW_CORE, Boolean.TRUE.toString());
+                shadowIndexRebuilder.registerSite();
+                indexQueueing.addTaskToQueue(indexSite);
+            }
+        } catch (RuntimeException e) {
+            // Swapping now would replace the index with an incomplete one
+            shadowIndexRebuilder.abortRebuild();
+            throw e;
+        }
+        shadowIndexRebuilder.allSitesRegistered();
+    }
+
     public void setActualTaskHandler(TaskHandler actualTaskHandler) {
         this.actualTaskHandler = actualTaskHandler;
     }
@@ -87,4 +129,8 @@ public class SolrSplitterProcesses implements TaskHandler {
     public void setSolrTools(SolrTools solrTools) {
         this.solrTools = solrTools;
     }
+
+    public void setShadowIndexRebuilder(ShadowIndexRebuilder shadowIndexRebuilder) {
+        this.shadowIndexRebuilder = shadowIndexRebuilder;
+    }
 }
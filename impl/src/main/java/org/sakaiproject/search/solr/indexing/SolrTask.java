@@ -10,6 +10,24 @@ import java.util.Date;
  * @author Colin Hebert
  */
 public class SolrTask extends DefaultTask {
+    /**
+     * Marks a task as part of a bulk load (complete reindexation or refresh of the index).
+     * <p>
+     * Documents indexed during a bulk load are sent in batches and are only made searchable at the end of the bulk
+     * load (or after a long period of time), avoiding the constant reopening of searchers.
+     * </p>
+     */
+    public static final String BULK_LOAD = SolrTask.class.getCanonicalName() + ".bulkLoad";
+    /**
+     * Marks a task as part of a rebuild happening in a shadow core.
+     * <p>
+     * Documents are indexed in the shadow core which replaces the actual core once every site has been rebuilt.
+     * </p>
+     *
+     * @see ShadowIndexRebuilder
+     */
+    public static final String SHADOW_CORE = SolrTask.class.getCanonicalName() + ".shadowCore";
+
     /**
      * Creates a solr task based on the types provided in {@link Type}.
      * <p>
@@ -57,7 +75,11 @@ public class SolrTask extends DefaultTask {
         /**
          * Type of a task in charge of optimising the solr index.
          */
-        OPTIMISE_INDEX;
+        OPTIMISE_INDEX,
+        /**
+         * Type of a task in charge of committing every pending modification, usually at the end of a bulk load.
+         */
+        COMMIT_INDEX;
         private final String typeName = Type.class.getCanonicalName() + '.' + this.toString();
 
         public String getTypeName() {
@@ -5,9 +5,11 @@ import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.util.ClientUtils;
 import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
 import org.sakaiproject.search.api.SearchService;
 import org.sakaiproject.search.indexing.DefaultTask;
 import org.sakaiproject.search.indexing.Task;
@@ -15,42 +17,107 @@ import org.sakaiproject.search.indexing.TaskHandler;
 import org.sakaiproject.search.indexing.exception.NestedTaskHandlingException;
 import org.sakaiproject.search.indexing.exception.TaskHandlingException;
 import org.sakaiproject.search.indexing.exception.TemporaryTaskHandlingException;
+import org.sakaiproject.search.solr.util.SolrServerAdapter;
 import org.sakaiproject.thread_local.api.ThreadLocalManager;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.sakaiproject.search.indexing.DefaultTask.Type.*;
 import static org.sakaiproject.search.solr.indexing.SolrTask.Type.*;
 
 /**
  * Component in charge of executing a Task by generating a solr request and modifying the search index.
+ * <p>
+ * Modifications are sent with a commitWithin delay, letting Solr decide when to make them searchable.<br />
+ * Tasks flagged with {@link SolrTask#BULK_LOAD} are part of a complete reindexation, the documents are then sent
+ * in batches with a much longer commitWithin delay and a single commit is done at the end of the bulk load.<br />
+ * In bulk, the indexed versions of a whole batch are read with a single real-time get, so documents modified since
+ * the creation of the task are still skipped. Only bulk refreshes skip parsing the documents whose content hasn't
+ * changed, a reindexation parses every document again.<br />
+ * The long commitWithin delay only postpones the visibility of bulk documents if nothing else is indexed meanwhile,
+ * the commit triggered by any regular update makes every pending bulk document searchable as well.
+ * </p>
+ * <p>
+ * If the binary content of an indexed document hasn't changed (same digest), only its metadata is sent to Solr as an
+ * atomic update, avoiding a costly parsing of the content.
+ * </p>
+ * <p>
+ * Version conflicts (a document modified or created concurrently) are resolved locally by reading the new version of
+ * the document and sending it again, up to {@link #maxConflictRetries} times.
+ * </p>
+ * <p>
+ * Tasks flagged with {@link SolrTask#SHADOW_CORE} are part of a complete reindexation in a shadow core, handled by
+ * the {@link ShadowIndexRebuilder}.
+ * </p>
  *
  * @author Colin Hebert
  */
 public class SolrTaskHandler implements TaskHandler {
     private static final Logger logger = LoggerFactory.getLogger(SolrTaskHandler.class);
     private static final String VERSION_FIELD = "_version_";
+    /**
+     * Expected version of a document that mustn't exist yet.
+     */
+    private static final long NEW_DOCUMENT_VERSION = -1L;
+    private static final int DEFAULT_COMMIT_WITHIN = 1000;
+    private static final int DEFAULT_BULK_COMMIT_WITHIN = 5 * 60 * 1000;
+    private static final int DEFAULT_BULK_BATCH_SIZE = 100;
+    private static final int DEFAULT_MAX_CONFLICT_RETRIES = 3;
+    /**
+     * Maximum time (in ms) before a modification is searchable.
+     */
+    private int commitWithin = DEFAULT_COMMIT_WITHIN;
+    /**
+     * Maximum time (in ms) before a modification done during a bulk load is searchable.
+     */
+    private int bulkCommitWithin = DEFAULT_BULK_COMMIT_WITHIN;
+    /**
+     * Number of documents sent at once to Solr during a bulk load.
+     */
+    private int bulkBatchSize = DEFAULT_BULK_BATCH_SIZE;
+    /**
+     * Number of times a document is sent again after a version conflict.
+     */
+    private int maxConflictRetries = DEFAULT_MAX_CONFLICT_RETRIES;
+    /**
+     * Number of version conflicts resolved without failing the task.
+     */
+    private final AtomicLong resolvedConflicts = new AtomicLong();
     private SolrServer solrServer;
     private SolrTools solrTools;
     private ThreadLocalManager threadLocalManager;
+    private ShadowIndexRebuilder shadowIndexRebuilder;
+    private SegmentMergeManager segmentMergeManager;
 
     @Override
     public void executeTask(Task task) {
         logger.debug("Attempt to handle '{}'", task);
         try {
             String taskType = task.getType();
+            boolean bulkLoad = Boolean.parseBoolean(task.getProperty(SolrTask.BULK_LOAD));
             if (INDEX_DOCUMENT.getTypeName().equals(taskType)) {
                 indexDocument(task.getProperty(DefaultTask.REFERENCE), task.getCreationDate());
             } else if (REMOVE_DOCUMENT.getTypeName().equals(taskType)) {
                 removeDocument(task.getProperty(DefaultTask.REFERENCE), task.getCreationDate());
             } else if (INDEX_SITE.getTypeName().equals(taskType)) {
-                indexSite(task.getProperty(DefaultTask.SITE_ID), task.getCreationDate());
+                if (Boolean.parseBoolean(task.getProperty(SolrTask.SHADOW_CORE)))
+                    indexSiteInShadowCore(task.getProperty(DefaultTask.SITE_ID), task.getCreationDate());
+                else
+                    indexSite(task.getProperty(DefaultTask.SITE_ID), task.getCreationDate(), bulkLoad);
             } else if (REFRESH_SITE.getTypeName().equals(taskType)) {
-                refreshSite(task.getProperty(DefaultTask.SITE_ID), task.getCreationDate());
+                refreshSite(task.getProperty(DefaultTask.SITE_ID), task.getCreationDate(), bulkLoad);
             } else if (INDEX_ALL.getTypeName().equals(taskType)) {
                 indexAll(task.getCreationDate());
             } else if (REFRESH_ALL.getTypeName().equals(taskType)) {
@@ -59,8 +126,12 @@ public class SolrTaskHandler implements TaskHandler {
                 removeSiteDocuments(task.getProperty(DefaultTask.SITE_ID), task.getCreationDate());
             } else if (REMOVE_ALL_DOCUMENTS.getTypeName().equals(taskType)) {
                 removeAllDocuments(task.getCreationDate());
+                if (bulkLoad)
+                    endBulkLoad();
             } else if (OPTIMISE_INDEX.getTypeName().equals(taskType)) {
                 optimiseSolrIndex();
+            } else if (COMMIT_INDEX.getTypeName().equals(taskType)) {
+                endBulkLoad();
             } else {
                 throw new TaskHandlingException("Task '" + task + "' can't be executed");
             }
@@ -82,32 +153,336 @@ public class SolrTaskHandler implements TaskHandler {
         logger.debug("Add '{}' to the index", reference);
 
         try {
-            // Real-time get the last version of the document
-            SolrParams q = new SolrQuery()
-                    .setRequestHandler("/get")
-                    .set("id", reference)
-                    .set("fl", VERSION_FIELD + "," + SearchService.DATE_STAMP);
-            SolrDocument currentDocument = (SolrDocument) solrServer.query(q).getResponse().get("doc");
-
-            // Check if the document exists and hasn't been indexed since the creation of the task
-            if (currentDocument != null
-                    && actionDate.compareTo((Date) currentDocument.getFieldValue(SearchService.DATE_STAMP)) <= 0) {
-                logger.debug("Indexation not useful as the document was updated earlier");
+            SolrInputDocument document = prepareDocument(reference, actionDate,
+                    getCurrentDocument(reference, solrServer), solrServer, true);
+            if (document != null) {
+                logger.debug("Adding the document '{}'", document);
+                addDocument(document, reference, actionDate, solrServer, commitWithin);
+            }
+        } catch (Exception e) {
+            throw wrapException(e, "An exception occurred while indexing the document '" + reference + "'",
+                    createIndexDocumentTask(reference, actionDate));
+        }
+    }
+
+    /**
+     * Generates the document to index, unless the document has been updated since the actionDate.
+     *
+     * @param reference       reference to the document.
+     * @param actionDate      creation date of the task.
+     * @param currentDocument document currently indexed, null if there is none.
+     * @param server          server in which the document will be indexed.
+     * @param reuseContent    whether only the metadata is sent if the content of the document hasn't changed.
+     * @return a document ready to be sent to Solr, or null if the indexed document is more recent.
+     */
+    private SolrInputDocument prepareDocument(String reference, Date actionDate, SolrDocument currentDocument,
+                                              SolrServer server, boolean reuseContent) {
+        if (isMoreRecent(currentDocument, actionDate)) {
+            logger.debug("Indexation not useful as the document was updated earlier");
+            return null;
+        }
+
+        String contentDigest = solrTools.getContentDigest(reference);
+        SolrInputDocument document;
+        if (reuseContent && isContentUnchanged(currentDocument, contentDigest, server)) {
+            logger.debug("The content of '{}' hasn't changed, only the metadata will be updated", reference);
+            document = solrTools.toSolrMetadataUpdate(reference, actionDate, currentDocument.getFieldNames());
+        } else {
+            document = solrTools.toSolrDocument(reference, actionDate, contentDigest);
+        }
+        setVersion(document, currentDocument);
+        return document;
+    }
+
+    /**
+     * Gets the version and the indexation date of the document currently indexed with a real-time get.
+     *
+     * @param reference reference to the document.
+     * @param server    server in which the document is indexed.
+     * @return the current document, or null if the document isn't indexed.
+     * @throws SolrServerException if the current version of the document couldn't be obtained.
+     */
+    private SolrDocument getCurrentDocument(String reference, SolrServer server) throws SolrServerException {
+        SolrParams q = new SolrQuery()
+                .setRequestHandler("/get")
+                .set("id", solrTools.getDocumentId(reference))
+                .set("fl", VERSION_FIELD + "," + SearchService.DATE_STAMP + "," + SolrTools.FIELD_CONTENT_DIGEST + ","
+                        + SolrTools.PROPERTY_PREFIX + "*");
+        return (SolrDocument) server.query(q).getResponse().get("doc");
+    }
+
+    /**
+     * Gets the version and the indexation date of several documents currently indexed with a single real-time get.
+     *
+     * @param documentIds identifiers of the documents.
+     * @param server      server in which the documents are indexed.
+     * @return the current documents by identifier, without the documents that aren't indexed.
+     * @throws SolrServerException if the current version of the documents couldn't be obtained.
+     */
+    private Map<String, SolrDocument> getCurrentDocuments(Collection<String> documentIds, SolrServer server)
+            throws SolrServerException {
+        SolrParams q = new SolrQuery()
+                .setRequestHandler("/get")
+                .set("id", documentIds.toArray(new String[documentIds.size()]))
+                .set("fl", SolrTools.FIELD_ID + "," + VERSION_FIELD + "," + SearchService.DATE_STAMP + ","
+                        + SolrTools.FIELD_CONTENT_DIGEST + "," + SolrTools.PROPERTY_PREFIX + "*");
+        NamedList<Object> response = server.query(q).getResponse();
+
+        // A single document is returned on its own, multiple documents are returned as a list
+        List<SolrDocument> fetchedDocuments = new ArrayList<SolrDocument>(documentIds.size());
+        if (response.get("response") instanceof SolrDocumentList)
+            fetchedDocuments.addAll((SolrDocumentList) response.get("response"));
+        if (response.get("doc") instanceof SolrDocument)
+            fetchedDocuments.add((SolrDocument) response.get("doc"));
+
+        Map<String, SolrDocument> currentDocuments = new HashMap<String, SolrDocument>(fetchedDocuments.size());
+        for (SolrDocument fetchedDocument : fetchedDocuments) {
+            currentDocuments.put((String) fetchedDocument.getFieldValue(SolrTools.FIELD_ID), fetchedDocument);
+        }
+        return currentDocuments;
+    }
+
+    /**
+     * Checks if the indexed document has been indexed since the creation of the task.
+     *
+     * @param currentDocument document currently indexed, null if there is none.
+     * @param actionDate      creation date of the task.
+     * @return true if the indexed document is more recent than the task, false otherwise.
+     */
+    private static boolean isMoreRecent(SolrDocument currentDocument, Date actionDate) {
+        return currentDocument != null
+                && actionDate.compareTo((Date) currentDocument.getFieldValue(SearchService.DATE_STAMP)) <= 0;
+    }
+
+    /**
+     * Checks if the content of the indexed document is the same as the current content.
+     * <p>
+     * During a rebuild in a shadow core, the whole document is always sent as the shadow core might not contain
+     * the document yet.
+     * </p>
+     *
+     * @param currentDocument document currently indexed, null if there is none.
+     * @param contentDigest   digest of the current content, null if unknown.
+     * @param server          server in which the document is indexed.
+     * @return true if the content of the document is already indexed, false otherwise.
+     */
+    private boolean isContentUnchanged(SolrDocument currentDocument, String contentDigest, SolrServer server) {
+        return contentDigest != null && currentDocument != null
+                && contentDigest.equals(currentDocument.getFieldValue(SolrTools.FIELD_CONTENT_DIGEST))
+                && (shadowIndexRebuilder == null || shadowIndexRebuilder.getShadowCore() == null)
+                && server == solrServer;
+    }
+
+    /**
+     * Sets the expected version of the document so any concurrent modification is detected by Solr.
+     * <p>
+     * If the document isn't indexed yet, the version {@link #NEW_DOCUMENT_VERSION} requires it to still be absent, so
+     * a concurrent creation is detected as well.
+     * </p>
+     *
+     * @param document        document to send.
+     * @param currentDocument document currently indexed, null if there is none.
+     */
+    private static void setVersion(SolrInputDocument document, SolrDocument currentDocument) {
+        if (currentDocument != null)
+            document.setField(VERSION_FIELD, currentDocument.getFieldValue(VERSION_FIELD));
+        else
+            document.setField(VERSION_FIELD, NEW_DOCUMENT_VERSION);
+    }
+
+    /**
+     * Sends a document to Solr, resolving version conflicts locally.
+     * <p>
+     * If the document has been modified concurrently, the new version is obtained and the document is sent again,
+     * unless the concurrent modification is more recent than the task.
+     * </p>
+     *
+     * @param document     document to send.
+     * @param reference    reference to the document.
+     * @param actionDate   creation date of the task.
+     * @param server       server in which the document is indexed.
+     * @param commitWithin maximum time (in ms) before the document is searchable.
+     * @throws SolrServerException if the document couldn't be sent.
+     * @throws IOException         if the Solr server couldn't be contacted.
+     */
+    private void addDocument(SolrInputDocument document, String reference, Date actionDate, SolrServer server,
+                             int commitWithin) throws SolrServerException, IOException {
+        for (int conflicts = 0; ; conflicts++) {
+            try {
+                server.add(document, commitWithin);
+                if (conflicts > 0)
+                    resolvedConflicts.incrementAndGet();
                 return;
+            } catch (SolrException e) {
+                if (!isVersionConflict(e) || conflicts >= maxConflictRetries)
+                    throw e;
+
+                logger.debug("The document '{}' was modified concurrently, attempting to index it again", reference);
+                SolrDocument currentDocument = getCurrentDocument(reference, server);
+                if (isMoreRecent(currentDocument, actionDate)) {
+                    logger.debug("Indexation not useful as the document was updated concurrently");
+                    resolvedConflicts.incrementAndGet();
+                    return;
+                }
+                setVersion(document, currentDocument);
+            }
+        }
+    }
+
+    /**
+     * Indexes a list of documents.
+     * <p>
+     * Documents are either indexed one by one, or in the case of a bulk load, sent in batches of
+     * {@link #bulkBatchSize} documents.
+     * </p>
+     *
+     * @param references   references of the documents to index.
+     * @param actionDate   creation date of the task.
+     * @param bulkLoad     whether the documents are indexed as part of a bulk load.
+     * @param reuseContent whether only the metadata of unchanged documents is sent in bulk.
+     * @param nthe         exception collecting every failure.
+     */
+    private void indexDocuments(Queue<String> references, Date actionDate, boolean bulkLoad, boolean reuseContent,
+                                NestedTaskHandlingException nthe) {
+        if (bulkLoad)
+            indexDocumentsInBulk(references, actionDate, solrServer, reuseContent, nthe);
+        else
+            indexDocumentsOneByOne(references, actionDate, nthe);
+    }
+
+    private void indexDocumentsOneByOne(Queue<String> references, Date actionDate, NestedTaskHandlingException nthe) {
+        while (!references.isEmpty()) {
+            try {
+                indexDocument(references.poll(), actionDate);
+            } catch (TaskHandlingException t) {
+                nthe.addTaskHandlingException(t);
+            }
+        }
+    }
+
+    /**
+     * Indexes a list of documents by batches of {@link #bulkBatchSize} documents.
+     * <p>
+     * The indexed versions of the documents of a batch are read with a single request, documents updated since the
+     * creation of the task are left untouched and the others are sent with their expected version.
+     * </p>
+     *
+     * @param references   references of the documents to index.
+     * @param actionDate   creation date of the task.
+     * @param server       server in which the documents are indexed.
+     * @param reuseContent whether only the metadata of unchanged documents is sent.
+     * @param nthe         exception collecting every failure.
+     */
+    private void indexDocumentsInBulk(Queue<String> references, Date actionDate, SolrServer server,
+                                      boolean reuseContent, NestedTaskHandlingException nthe) {
+        List<SolrInputDocument> batch = new ArrayList<SolrInputDocument>(bulkBatchSize);
+        List<String> batchReferences = new ArrayList<String>(bulkBatchSize);
+        while (!references.isEmpty()) {
+            Map<String, String> documentIds = new LinkedHashMap<String, String>(bulkBatchSize);
+            while (!references.isEmpty() && documentIds.size() < bulkBatchSize) {
+                String reference = references.poll();
+                try {
+                    documentIds.put(reference, solrTools.getDocumentId(reference));
+                } catch (Exception e) {
+                    nthe.addTaskHandlingException(wrapException(e,
+                            "An exception occurred while indexing the document '" + reference + "'",
+                            createIndexDocumentTask(reference, actionDate)));
+                }
             }
+            if (documentIds.isEmpty())
+                continue;
 
-            SolrInputDocument document = solrTools.toSolrDocument(reference, actionDate);
-            if (currentDocument != null) {
-                document.setField(VERSION_FIELD, currentDocument.getFieldValue(VERSION_FIELD));
+            Map<String, SolrDocument> currentDocuments;
+            try {
+                currentDocuments = getCurrentDocuments(documentIds.values(), server);
+            } catch (Exception e) {
+                for (String reference : documentIds.keySet()) {
+                    nthe.addTaskHandlingException(wrapException(e,
+                            "An exception occurred while indexing the document '" + reference + "'",
+                            createIndexDocumentTask(reference, actionDate)));
+                }
+                continue;
             }
-            logger.debug("Adding the document '{}'", document);
-            solrServer.add(document);
+
+            for (Map.Entry<String, String> documentId : documentIds.entrySet()) {
+                String reference = documentId.getKey();
+                try {
+                    SolrInputDocument document = prepareDocument(reference, actionDate,
+                            currentDocuments.get(documentId.getValue()), server, reuseContent);
+                    if (document != null) {
+                        batch.add(document);
+                        batchReferences.add(reference);
+                    }
+                } catch (Exception e) {
+                    nthe.addTaskHandlingException(wrapException(e,
+                            "An exception occurred while indexing the document '" + reference + "'",
+                            createIndexDocumentTask(reference, actionDate)));
+                }
+            }
+            sendBatch(batch, batchReferences, actionDate, server, nthe);
+        }
+    }
+
+    /**
+     * Sends a batch of documents to Solr and empties the batch.
+     *
+     * @param batch           documents to send.
+     * @param batchReferences references of the documents in the batch.
+     * @param actionDate      creation date of the task.
+     * @param server          server in which the documents are indexed.
+     * @param nthe            exception collecting every failure.
+     */
+    private void sendBatch(List<SolrInputDocument> batch, List<String> batchReferences, Date actionDate,
+                           SolrServer server, NestedTaskHandlingException nthe) {
+        if (batch.isEmpty())
+            return;
+
+        try {
+            logger.debug("Adding a batch of {} documents", batch.size());
+            if (server instanceof SolrServerAdapter)
+                ((SolrServerAdapter) server).addInBulk(batch, bulkCommitWithin);
+            else
+                server.add(batch, bulkCommitWithin);
+        } catch (Exception e) {
+            if (isVersionConflict(e)) {
+                // At least one document was modified concurrently, send the documents one by one
+                logger.debug("Version conflict in a batch, sending the documents one by one");
+                for (int i = 0; i < batch.size(); i++) {
+                    sendDocument(batch.get(i), batchReferences.get(i), actionDate, server, nthe);
+                }
+            } else {
+                // Every document in the batch has to be indexed again
+                for (String reference : batchReferences) {
+                    nthe.addTaskHandlingException(wrapException(e,
+                            "An exception occurred while indexing the document '" + reference + "'",
+                            createIndexDocumentTask(reference, actionDate)));
+                }
+            }
+        } finally {
+            batch.clear();
+            batchReferences.clear();
+        }
+    }
+
+    private void sendDocument(SolrInputDocument document, String reference, Date actionDate, SolrServer server,
+                              NestedTaskHandlingException nthe) {
+        try {
+            addDocument(document, reference, actionDate, server, bulkCommitWithin);
         } catch (Exception e) {
-            Task task = new DefaultTask(INDEX_DOCUMENT, actionDate).setProperty(DefaultTask.REFERENCE, reference);
-            throw wrapException(e, "An exception occurred while indexing the document '" + reference + "'", task);
+            nthe.addTaskHandlingException(wrapException(e,
+                    "An exception occurred while indexing the document '" + reference + "'",
+                    createIndexDocumentTask(reference, actionDate)));
         }
     }
 
+    private static boolean isVersionConflict(Exception e) {
+        return e instanceof SolrException && ((SolrException) e).code() == SolrException.ErrorCode.CONFLICT.code;
+    }
+
+    private Task createIndexDocumentTask(String reference, Date actionDate) {
+        return new DefaultTask(INDEX_DOCUMENT, actionDate).setProperty(DefaultTask.REFERENCE, reference);
+    }
+
     /**
      * Removes a document from the index based on the given reference.
      * <p>
@@ -122,7 +497,8 @@ public class SolrTaskHandler implements TaskHandler {
         try {
             solrServer.deleteByQuery(
                     SearchService.DATE_STAMP + ":{* TO " + solrTools.format(actionDate) + "} AND "
-                            + SearchService.FIELD_REFERENCE + ":" + ClientUtils.escapeQueryChars(reference));
+                            + SearchService.FIELD_REFERENCE + ":" + ClientUtils.escapeQueryChars(reference),
+                    commitWithin);
         } catch (Exception e) {
             Task task = new DefaultTask(REMOVE_DOCUMENT, actionDate).setProperty(DefaultTask.REFERENCE, reference);
             throw wrapException(e, "An exception occurred while removing the document '" + reference + "'", task);
@@ -138,21 +514,30 @@ public class SolrTaskHandler implements TaskHandler {
      * @param siteId     id of the site to index.
      * @param actionDate creation date of the task.
      */
-    public void indexSite(final String siteId, Date actionDate) {
+    public void indexSite(String siteId, Date actionDate) {
+        indexSite(siteId, actionDate, false);
+    }
+
+    /**
+     * Indexes every document available within a site.
+     * <p>
+     * Every document indexed before the actionDate will be removed.
+     * </p>
+     *
+     * @param siteId     id of the site to index.
+     * @param actionDate creation date of the task.
+     * @param bulkLoad   whether the site is indexed as part of a bulk load.
+     */
+    public void indexSite(String siteId, Date actionDate, boolean bulkLoad) {
         logger.info("Rebuilding the index for '{}'", siteId);
         NestedTaskHandlingException nthe = new NestedTaskHandlingException(
                 "An exception occurred while indexing the site '" + siteId + "'");
         Queue<String> siteReferences = solrTools.getSiteDocumentsReferences(siteId);
-        while (siteReferences.peek() != null) {
-            try {
-                indexDocument(siteReferences.poll(), actionDate);
-            } catch (TaskHandlingException t) {
-                nthe.addTaskHandlingException(t);
-            }
-        }
+        // Every document of the site is parsed again, even if its content hasn't changed
+        indexDocuments(siteReferences, actionDate, bulkLoad, false, nthe);
 
         try {
-            removeSiteDocuments(siteId, actionDate);
+            removeSiteDocuments(siteId, actionDate, bulkLoad);
         } catch (TaskHandlingException t) {
             nthe.addTaskHandlingException(t);
         }
@@ -160,6 +545,61 @@ public class SolrTaskHandler implements TaskHandler {
         if (!nthe.isEmpty()) throw nthe;
     }
 
+    /**
+     * Indexes every document available within a site in the shadow core.
+     * <p>
+     * The shadow core only contains documents indexed since the beginning of the rebuild, so there is no old document
+     * to remove.<br />
+     * If some documents of the site can't be indexed, the site is indexed again later by a new task, unless it failed
+     * too many times in which case the whole rebuild is aborted.<br />
+     * If there is no rebuild running anymore, the site is indexed in the actual core.
+     * </p>
+     *
+     * @param siteId     id of the site to index.
+     * @param actionDate creation date of the task.
+     */
+    public void indexSiteInShadowCore(String siteId, Date actionDate) {
+        SolrServer shadowCore = (shadowIndexRebuilder != null) ? shadowIndexRebuilder.findShadowCore() : null;
+        if (shadowCore == null) {
+            logger.warn("There is no shadow core available, '{}' will be indexed in the actual core", siteId);
+            indexSite(siteId, actionDate, true);
+            return;
+        }
+
+        logger.info("Rebuilding the index for '{}' in the shadow core", siteId);
+        NestedTaskHandlingException nthe = new NestedTaskHandlingException(
+                "An exception occurred while indexing the site '" + siteId + "' in the shadow core");
+        try {
+            indexDocumentsInBulk(solrTools.getSiteDocumentsReferences(siteId), actionDate, shadowCore, false, nthe);
+        } catch (RuntimeException e) {
+            throw siteFailedInShadowCore(siteId, actionDate, e);
+        }
+        if (!nthe.isEmpty()) {
+            // The shadow core would miss the documents that couldn't be indexed
+            throw siteFailedInShadowCore(siteId, actionDate, nthe);
+        }
+        shadowIndexRebuilder.siteRebuilt();
+    }
+
+    /**
+     * Records the failure of a site in the shadow core.
+     *
+     * @param siteId     id of the site that couldn't be indexed.
+     * @param actionDate creation date of the task.
+     * @param e          cause of the failure.
+     * @return an exception scheduling a new attempt if the site can be indexed again, the cause otherwise.
+     */
+    private RuntimeException siteFailedInShadowCore(String siteId, Date actionDate, RuntimeException e) {
+        if (!shadowIndexRebuilder.siteFailed(siteId))
+            return e;
+        Task retry = new DefaultTask(INDEX_SITE, actionDate)
+                .setProperty(DefaultTask.SITE_ID, siteId)
+                .setProperty(SolrTask.BULK_LOAD, Boolean.TRUE.toString())
+                .setProperty(SolrTask.SHADOW_CORE, Boolean.TRUE.toString());
+        return new TemporaryTaskHandlingException("The site '" + siteId + "' will be indexed again in the shadow core",
+                e, retry);
+    }
+
     /**
      * Updates the documents currently indexed for a given site.
      * <p>
@@ -170,6 +610,20 @@ public class SolrTaskHandler implements TaskHandler {
      * @param actionDate creation date of the task to execute
      */
     public void refreshSite(String siteId, Date actionDate) {
+        refreshSite(siteId, actionDate, false);
+    }
+
+    /**
+     * Updates the documents currently indexed for a given site.
+     * <p>
+     * Only the documents already indexed will be updated or removed if necessary.
+     * </p>
+     *
+     * @param siteId     Id of the site to update
+     * @param actionDate creation date of the task to execute
+     * @param bulkLoad   whether the site is refreshed as part of a bulk load.
+     */
+    public void refreshSite(String siteId, Date actionDate, boolean bulkLoad) {
         logger.info("Refreshing the index for '{}'", siteId);
         NestedTaskHandlingException nthe = new NestedTaskHandlingException(
                 "An exception occurred while indexing the site '" + siteId + "'");
@@ -184,18 +638,12 @@ public class SolrTaskHandler implements TaskHandler {
 
         logger.debug("{} elements will be refreshed", references.size());
 
-        // Index already indexed documents
-        while (!references.isEmpty()) {
-            try {
-                indexDocument(references.poll(), actionDate);
-            } catch (TaskHandlingException t) {
-                nthe.addTaskHandlingException(t);
-            }
-        }
+        // Index already indexed documents, only the documents whose content changed are parsed again
+        indexDocuments(references, actionDate, bulkLoad, true, nthe);
 
         // Remove documents that were indexed before
         try {
-            removeSiteDocuments(siteId, actionDate);
+            removeSiteDocuments(siteId, actionDate, bulkLoad);
         } catch (TaskHandlingException t) {
             nthe.addTaskHandlingException(t);
         }
@@ -212,13 +660,18 @@ public class SolrTaskHandler implements TaskHandler {
      * @param actionDate creation date of the task
      */
     public void indexAll(Date actionDate) {
+        if (shadowIndexRebuilder != null && shadowIndexRebuilder.startRebuild()) {
+            indexAllInShadowCore(actionDate);
+            return;
+        }
+
         logger.info("Rebuilding the index for every indexable site");
         NestedTaskHandlingException nthe = new NestedTaskHandlingException(
                 "An exception occurred while reindexing everything");
-        Queue<String> reindexedSites = solrTools.getIndexableSites();
-        while (!reindexedSites.isEmpty()) {
+        Iterator<String> reindexedSites = solrTools.getIndexableSites();
+        while (reindexedSites.hasNext()) {
             try {
-                indexSite(reindexedSites.poll(), actionDate);
+                indexSite(reindexedSites.next(), actionDate, true);
             } catch (TaskHandlingException t) {
                 nthe.addTaskHandlingException(t);
             } finally {
@@ -228,6 +681,7 @@ public class SolrTaskHandler implements TaskHandler {
         }
         try {
             removeAllDocuments(actionDate);
+            endBulkLoad();
         } catch (TaskHandlingException t) {
             nthe.addTaskHandlingException(t);
         }
@@ -237,7 +691,44 @@ public class SolrTaskHandler implements TaskHandler {
             nthe.addTaskHandlingException(t);
         }
 
-        if (nthe.isEmpty()) throw nthe;
+        if (!nthe.isEmpty()) throw nthe;
+    }
+
+    /**
+     * Indexes every available site in the shadow core, which replaces the actual core once every site is indexed.
+     *
+     * @param actionDate creation date of the task
+     */
+    private void indexAllInShadowCore(Date actionDate) {
+        logger.info("Rebuilding the index for every indexable site in the shadow core");
+        NestedTaskHandlingException nthe = new NestedTaskHandlingException(
+                "An exception occurred while reindexing everything");
+        try {
+            Iterator<String> reindexedSites = solrTools.getIndexableSites();
+            while (reindexedSites.hasNext()) {
+                shadowIndexRebuilder.registerSite();
+                try {
+                    indexSiteInShadowCore(reindexedSites.next(), actionDate);
+                } catch (TaskHandlingException t) {
+                    nthe.addTaskHandlingException(t);
+                } finally {
+                    // Clean up the localThread after each site
+                    threadLocalManager.clear();
+                }
+            }
+        } catch (RuntimeException e) {
+            // Swapping now would replace the index with an incomplete one
+            shadowIndexRebuilder.abortRebuild();
+            throw e;
+        }
+
+        try {
+            shadowIndexRebuilder.allSitesRegistered();
+        } catch (TaskHandlingException t) {
+            nthe.addTaskHandlingException(t);
+        }
+
+        if (!nthe.isEmpty()) throw nthe;
     }
 
     /**
@@ -249,10 +740,10 @@ public class SolrTaskHandler implements TaskHandler {
         logger.info("Refreshing the index for every indexable site");
         NestedTaskHandlingException nthe = new NestedTaskHandlingException(
                 "An exception occurred while refreshing everything");
-        Queue<String> refreshedSites = solrTools.getIndexableSites();
-        while (!refreshedSites.isEmpty()) {
+        Iterator<String> refreshedSites = solrTools.getIndexableSites();
+        while (refreshedSites.hasNext()) {
             try {
-                refreshSite(refreshedSites.poll(), actionDate);
+                refreshSite(refreshedSites.next(), actionDate, true);
             } catch (TaskHandlingException t) {
                 nthe.addTaskHandlingException(t);
             } finally {
@@ -262,6 +753,7 @@ public class SolrTaskHandler implements TaskHandler {
         }
         try {
             removeAllDocuments(actionDate);
+            endBulkLoad();
         } catch (TaskHandlingException t) {
             nthe.addTaskHandlingException(t);
         }
@@ -271,7 +763,7 @@ public class SolrTaskHandler implements TaskHandler {
             nthe.addTaskHandlingException(t);
         }
 
-        if (nthe.isEmpty()) throw nthe;
+        if (!nthe.isEmpty()) throw nthe;
     }
 
     /**
@@ -284,11 +776,16 @@ public class SolrTaskHandler implements TaskHandler {
      * @param creationDate creation date of the task.
      */
     public void removeSiteDocuments(String siteId, Date creationDate) {
+        removeSiteDocuments(siteId, creationDate, false);
+    }
+
+    private void removeSiteDocuments(String siteId, Date creationDate, boolean bulkLoad) {
         logger.info("Remove old documents from '{}'", siteId);
         try {
             solrServer.deleteByQuery(
                     SearchService.DATE_STAMP + ":{* TO " + solrTools.format(creationDate) + "} AND "
-                            + SearchService.FIELD_SITEID + ":" + ClientUtils.escapeQueryChars(siteId));
+                            + SearchService.FIELD_SITEID + ":" + ClientUtils.escapeQueryChars(siteId),
+                    bulkLoad ? bulkCommitWithin : commitWithin);
         } catch (Exception e) {
             Task task = new SolrTask(REMOVE_SITE_DOCUMENTS, creationDate).setProperty(DefaultTask.SITE_ID, siteId);
             throw wrapException(e, "Couldn't remove old documents the site '" + siteId + "'", task);
@@ -306,20 +803,37 @@ public class SolrTaskHandler implements TaskHandler {
     public void removeAllDocuments(Date creationDate) {
         logger.info("Remove old documents from every sites");
         try {
-            solrServer.deleteByQuery(SearchService.DATE_STAMP + ":{* TO " + solrTools.format(creationDate) + "}");
+            solrServer.deleteByQuery(SearchService.DATE_STAMP + ":{* TO " + solrTools.format(creationDate) + "}",
+                    commitWithin);
         } catch (Exception e) {
             Task task = new SolrTask(REMOVE_ALL_DOCUMENTS, creationDate);
             throw wrapException(e, "Couldn't remove old documents from the entire instance", task);
         }
     }
 
+    /**
+     * Ends a bulk load by committing every pending modification and opening a new searcher.
+     */
+    public void endBulkLoad() {
+        logger.info("End of the bulk load, commit every pending document");
+        try {
+            solrServer.commit();
+        } catch (Exception e) {
+            throw wrapException(e, "Couldn't commit the documents of the bulk load", new SolrTask(COMMIT_INDEX));
+        }
+    }
+
     /**
      * Optimises the solr index.
+     * <p>
+     * Segments are only merged if the index is fragmented enough and during the off-peak window, as decided by the
+     * {@link SegmentMergeManager}.
+     * </p>
      */
     public void optimiseSolrIndex() {
         logger.info("Optimise the index");
         try {
-            solrServer.optimize();
+            segmentMergeManager.maintainIndex();
         } catch (Exception e) {
             Task task = new SolrTask(OPTIMISE_INDEX);
             throw wrapException(e, "Couldn't optimise the index", task);
@@ -341,8 +855,7 @@ public class SolrTaskHandler implements TaskHandler {
         } else if (e instanceof SolrException
                 && (((SolrException) e).code() == SolrException.ErrorCode.SERVICE_UNAVAILABLE.code
                 || ((SolrException) e).code() == SolrException.ErrorCode.SERVER_ERROR.code
-                || ((SolrException) e).code() == SolrException.ErrorCode.NOT_FOUND.code
-                || ((SolrException) e).code() == SolrException.ErrorCode.CONFLICT.code)) {
+                || ((SolrException) e).code() == SolrException.ErrorCode.NOT_FOUND.code)) {
             return new TemporaryTaskHandlingException(message, e, potentialNewTask);
         } else if (e instanceof IOException) {
             return new TemporaryTaskHandlingException(message, e, potentialNewTask);
@@ -364,4 +877,37 @@ public class SolrTaskHandler implements TaskHandler {
     public void setThreadLocalManager(ThreadLocalManager threadLocalManager) {
         this.threadLocalManager = threadLocalManager;
     }
+
+    public void setShadowIndexRebuilder(ShadowIndexRebuilder shadowIndexRebuilder) {
+        this.shadowIndexRebuilder = shadowIndexRebuilder;
+    }
+
+    public void setSegmentMergeManager(SegmentMergeManager segmentMergeManager) {
+        this.segmentMergeManager = segmentMergeManager;
+    }
+
+    public void setCommitWithin(int commitWithin) {
+        this.commitWithin = commitWithin;
+    }
+
+    public void setBulkCommitWithin(int bulkCommitWithin) {
+        this.bulkCommitWithin = bulkCommitWithin;
+    }
+
+    public void setBulkBatchSize(int bulkBatchSize) {
+        this.bulkBatchSize = bulkBatchSize;
+    }
+
+    public void setMaxConflictRetries(int maxConflictRetries) {
+        this.maxConflictRetries = maxConflictRetries;
+    }
+
+    /**
+     * Gets the number of version conflicts resolved locally since the start of the server.
+     *
+     * @return the number of resolved version conflicts.
+     */
+    public long getResolvedConflicts() {
+        return resolvedConflicts.get();
+    }
 }
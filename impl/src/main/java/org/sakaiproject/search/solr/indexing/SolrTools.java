@@ -1,5 +1,8 @@
 package org.sakaiproject.search.solr.indexing;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterators;
 import org.apache.solr.client.solrj.SolrQuery;
 import org.apache.solr.client.solrj.SolrServer;
@@ -12,13 +15,15 @@ import org.apache.solr.common.util.DateUtil;
 import org.apache.solr.common.util.NamedList;
 import org.apache.tika.Tika;
 import org.apache.tika.metadata.Metadata;
+import org.sakaiproject.javax.PagingPosition;
 import org.sakaiproject.search.api.EntityContentProducer;
 import org.sakaiproject.search.api.SearchIndexBuilder;
 import org.sakaiproject.search.api.SearchService;
+import org.sakaiproject.search.producer.AuthzEntityContentProducer;
 import org.sakaiproject.search.producer.BinaryEntityContentProducer;
 import org.sakaiproject.search.producer.ContentProducerFactory;
-import org.sakaiproject.search.solr.SolrSearchIndexBuilder;
 import org.sakaiproject.search.solr.util.AdminStatRequest;
+import org.sakaiproject.search.solr.util.SearchToolSiteCache;
 import org.sakaiproject.site.api.Site;
 import org.sakaiproject.site.api.SiteService;
 import org.slf4j.Logger;
@@ -29,6 +34,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Set of methods used to facilitate the usage of solr.
@@ -36,16 +44,66 @@ import java.util.*;
  * @author Colin Hebert
  */
 public class SolrTools {
-    private static final String PROPERTY_PREFIX = "property_";
+    /**
+     * Unique identifier of a document, made of the site id and the reference of the document.
+     * <p>
+     * With SolrCloud, the compositeId router uses the part before the {@link #ROUTING_SEPARATOR} to decide on which
+     * shard the document is stored, so every document of a site ends up on the same shard.
+     * </p>
+     */
+    public static final String FIELD_ID = "id";
+    /**
+     * Separator between the routing key (site id) and the reference of the document.
+     */
+    public static final String ROUTING_SEPARATOR = "!";
+    /**
+     * Digest of the binary content of a document, used to detect changes that don't affect the content.
+     */
+    public static final String FIELD_CONTENT_DIGEST = "contentdigest";
+    /**
+     * Realms granting access to a document.
+     */
+    public static final String FIELD_AUTHZ_GROUPS = "authzgroups";
+    /**
+     * Realm indexed with documents whose realms can't be provided, which are available to every user.
+     */
+    public static final String UNKNOWN_AUTHZ_GROUPS = "!unknown";
+    /**
+     * Prefix of the fields holding the custom properties of a document.
+     */
+    public static final String PROPERTY_PREFIX = "property_";
+    /**
+     * Solr atomic update operation replacing the value of a field.
+     */
+    private static final String ATOMIC_SET = "set";
     private static final String UPREFIX = PROPERTY_PREFIX + "tika_";
     private static final Logger logger = LoggerFactory.getLogger(SolrTools.class);
     /**
      * Maximum number of characters retrieved in a document parsed by Tika.
      */
     private static final int MAX_STRING_LENGTH = 10000000;
+    private static final int DEFAULT_SITE_PAGE_SIZE = 500;
+    private static final long INDEXABLE_SITES_MAXIMUM_SIZE = 100000;
+    private static final long INDEXABLE_SITES_EXPIRY = 10 * 60;
+    /**
+     * Whether each site is indexable or not.
+     * <p>
+     * Special sites, user sites and the search tool are checked only once per site while enumerating the sites
+     * again and again. Entries are invalidated with {@link #invalidateSite(String)} when a site is modified.
+     * </p>
+     */
+    private final Cache<String, Boolean> indexableSites = CacheBuilder.newBuilder()
+            .maximumSize(INDEXABLE_SITES_MAXIMUM_SIZE)
+            .expireAfterWrite(INDEXABLE_SITES_EXPIRY, TimeUnit.SECONDS)
+            .build();
+    /**
+     * Number of sites loaded at once while enumerating every indexable site.
+     */
+    private int sitePageSize = DEFAULT_SITE_PAGE_SIZE;
     private SiteService siteService;
     private SearchIndexBuilder searchIndexBuilder;
     private ContentProducerFactory contentProducerFactory;
+    private SearchToolSiteCache searchToolSiteCache;
     private SolrServer solrServer;
     private Tika tika;
 
@@ -57,6 +115,36 @@ public class SolrTools {
         tika.setMaxStringLength(MAX_STRING_LENGTH);
     }
 
+    /**
+     * Gets the unique identifier of a document in the index.
+     *
+     * @param siteId    site containing the document, can be null.
+     * @param reference reference of the document.
+     * @return the identifier of the document, prefixed by the site id used to route the document.
+     */
+    public static String getDocumentId(String siteId, String reference) {
+        return (siteId != null) ? siteId + ROUTING_SEPARATOR + reference : reference;
+    }
+
+    /**
+     * Gets the unique identifier of a document in the index, based on its reference only.
+     * <p>
+     * The site of the document is resolved by its content producer. Without content producer, the identifier can't
+     * be determined: using the reference as is would miss the document indexed with its site.
+     * </p>
+     *
+     * @param reference reference of the document.
+     * @return the identifier of the document, prefixed by the site id used to route the document.
+     * @throws IllegalArgumentException if no content producer handles the reference.
+     */
+    public String getDocumentId(String reference) {
+        EntityContentProducer contentProducer = contentProducerFactory.getContentProducerForElement(reference);
+        if (contentProducer == null)
+            throw new IllegalArgumentException("No content producer found for '" + reference + "', the site "
+                    + "identifying the document can't be resolved");
+        return getDocumentId(contentProducer.getSiteId(reference), reference);
+    }
+
     /**
      * Generates a {@link SolrInputDocument} to index the given resource thanks to its {@link EntityContentProducer}.
      *
@@ -65,6 +153,19 @@ public class SolrTools {
      * @return a document ready to be indexed
      */
     public SolrInputDocument toSolrDocument(String reference, Date actionDate) {
+        return toSolrDocument(reference, actionDate, getContentDigest(reference));
+    }
+
+    /**
+     * Generates a {@link SolrInputDocument} to index the given resource thanks to its {@link EntityContentProducer}.
+     *
+     * @param reference     resource to index
+     * @param actionDate    date of creation of the indexation task
+     * @param contentDigest digest of the binary content of the resource, already computed by
+     *                      {@link #getContentDigest(String)}
+     * @return a document ready to be indexed
+     */
+    public SolrInputDocument toSolrDocument(String reference, Date actionDate, String contentDigest) {
         EntityContentProducer contentProducer = contentProducerFactory.getContentProducerForElement(reference);
         logger.debug("Create a solr document to add '{}' to the index.", reference);
 
@@ -72,13 +173,16 @@ public class SolrTools {
 
         // The date_stamp field should be automatically set by solr (default="NOW"), if it isn't set here
         document.addField(SearchService.DATE_STAMP, actionDate);
+        String siteId = contentProducer.getSiteId(reference);
+        document.addField(FIELD_ID, getDocumentId(siteId, reference));
         document.addField(SearchService.FIELD_REFERENCE, reference);
         document.addField(SearchService.FIELD_CONTAINER, contentProducer.getContainer(reference));
         document.addField(SearchService.FIELD_TYPE, contentProducer.getType(reference));
         document.addField(SearchService.FIELD_TITLE, contentProducer.getTitle(reference));
         document.addField(SearchService.FIELD_TOOL, contentProducer.getTool());
         document.addField(SearchService.FIELD_URL, contentProducer.getUrl(reference));
-        document.addField(SearchService.FIELD_SITEID, contentProducer.getSiteId(reference));
+        document.addField(SearchService.FIELD_SITEID, siteId);
+        document.addField(FIELD_AUTHZ_GROUPS, getAuthzGroups(reference, contentProducer));
 
         // Add the custom properties
         Map<String, Collection<String>> properties = extractCustomProperties(reference, contentProducer);
@@ -87,6 +191,8 @@ public class SolrTools {
         }
 
         // Add the content
+        if (contentDigest != null)
+            document.addField(FIELD_CONTENT_DIGEST, contentDigest);
         if (contentProducer instanceof BinaryEntityContentProducer) {
             // A tika digested document adds content and metadata to the document.
             setDocumentTikaProperties(reference, document, (BinaryEntityContentProducer) contentProducer);
@@ -104,6 +210,91 @@ public class SolrTools {
         return document;
     }
 
+    /**
+     * Generates an atomic update of the metadata of the given resource, leaving its content untouched.
+     * <p>
+     * Only the fields provided by the {@link EntityContentProducer} are updated, the content and the properties
+     * extracted by Tika remain the same.<br />
+     * Custom properties currently indexed but not provided anymore are removed, except the ones extracted by Tika.
+     * </p>
+     *
+     * @param reference     resource to update
+     * @param actionDate    date of creation of the indexation task
+     * @param indexedFields names of the fields of the document currently indexed
+     * @return a partial document ready to be sent to solr
+     */
+    public SolrInputDocument toSolrMetadataUpdate(String reference, Date actionDate,
+                                                  Collection<String> indexedFields) {
+        EntityContentProducer contentProducer = contentProducerFactory.getContentProducerForElement(reference);
+        logger.debug("Create a solr atomic update of the metadata of '{}'.", reference);
+
+        SolrInputDocument document = new SolrInputDocument();
+        document.addField(FIELD_ID, getDocumentId(contentProducer.getSiteId(reference), reference));
+        setAtomically(document, SearchService.DATE_STAMP, actionDate);
+        setAtomically(document, SearchService.FIELD_CONTAINER, contentProducer.getContainer(reference));
+        setAtomically(document, SearchService.FIELD_TYPE, contentProducer.getType(reference));
+        setAtomically(document, SearchService.FIELD_TITLE, contentProducer.getTitle(reference));
+        setAtomically(document, SearchService.FIELD_URL, contentProducer.getUrl(reference));
+        // A modification of the permissions doesn't change the content
+        setAtomically(document, FIELD_AUTHZ_GROUPS, getAuthzGroups(reference, contentProducer));
+
+        Map<String, Collection<String>> properties = extractCustomProperties(reference, contentProducer);
+        for (Map.Entry<String, Collection<String>> entry : properties.entrySet()) {
+            setAtomically(document, PROPERTY_PREFIX + entry.getKey(), entry.getValue());
+        }
+        // Setting a field to null removes it
+        for (String indexedField : indexedFields) {
+            if (indexedField.startsWith(PROPERTY_PREFIX) && !indexedField.startsWith(UPREFIX)
+                    && document.getField(indexedField) == null)
+                setAtomically(document, indexedField, null);
+        }
+        return document;
+    }
+
+    /**
+     * Obtains the realms granting access to a document.
+     * <p>
+     * Documents whose realms can't be provided are indexed with {@link #UNKNOWN_AUTHZ_GROUPS}, so they can be found
+     * with a simple term rather than by looking for documents without any realm.
+     * </p>
+     *
+     * @param reference       reference of the document.
+     * @param contentProducer content producer in charge of the document.
+     * @return the realms granting access to the document, {@link #UNKNOWN_AUTHZ_GROUPS} if they can't be provided.
+     */
+    private static Collection<String> getAuthzGroups(String reference, EntityContentProducer contentProducer) {
+        Collection<String> authzGroups = null;
+        if (contentProducer instanceof AuthzEntityContentProducer)
+            authzGroups = ((AuthzEntityContentProducer) contentProducer).getAuthzGroups(reference);
+
+        if (authzGroups == null || authzGroups.isEmpty())
+            return Collections.singletonList(UNKNOWN_AUTHZ_GROUPS);
+        else
+            return authzGroups;
+    }
+
+    private static void setAtomically(SolrInputDocument document, String fieldName, Object value) {
+        document.addField(fieldName, Collections.singletonMap(ATOMIC_SET, value));
+    }
+
+    /**
+     * Gets the digest of the binary content of a resource.
+     * <p>
+     * The digest is the fingerprint provided by the {@link BinaryEntityContentProducer} (a checksum, or the length and
+     * the modification date of the content), so the content is neither read nor parsed. It allows to skip the
+     * parsing if the content hasn't changed since the last indexation.
+     * </p>
+     *
+     * @param reference resource to check
+     * @return the digest of the content, or null if the resource doesn't provide a fingerprint of a binary content.
+     */
+    public String getContentDigest(String reference) {
+        EntityContentProducer contentProducer = contentProducerFactory.getContentProducerForElement(reference);
+        if (!(contentProducer instanceof BinaryEntityContentProducer))
+            return null;
+        return ((BinaryEntityContentProducer) contentProducer).getContentFingerprint(reference);
+    }
+
     /**
      * Gets the content of a document from a Reader and converts it to a String.
      *
@@ -286,21 +477,55 @@ public class SolrTools {
     /**
      * Gets every indexable site.
      * <p>
-     * Usually this method is used for heavy operations affecting every site using the search index.
+     * Usually this method is used for heavy operations affecting every site using the search index.<br />
+     * Sites are loaded lazily, {@link #sitePageSize} at a time, and each site identifier is returned as soon as the
+     * site has been considered as indexable. The whole list of sites is never kept in memory.
+     * </p>
+     * <p>
+     * Sites created or removed while iterating might be skipped or returned, this isn't a problem as those sites
+     * are handled by the regular indexation events.
      * </p>
      *
-     * @return every site that is considered as indexable.
-     */
-    public Queue<String> getIndexableSites() {
-        Queue<String> refreshedSites = new LinkedList<String>();
-        List<Site> sites = siteService.getSites(SiteService.SelectionType.ANY, null, null, null,
-                SiteService.SortType.NONE, null);
-        for (Site s : sites) {
-            if (isSiteIndexable(s)) {
-                refreshedSites.offer(s.getId());
+     * @return an iterator over every site that is considered as indexable.
+     */
+    public Iterator<String> getIndexableSites() {
+        return new AbstractIterator<String>() {
+            // PagingPosition starts at 1 and is inclusive
+            private int nextPageStart = 1;
+            private boolean lastPage;
+            private Iterator<Site> currentPage = Iterators.emptyIterator();
+
+            @Override
+            protected String computeNext() {
+                while (true) {
+                    while (currentPage.hasNext()) {
+                        Site site = currentPage.next();
+                        if (isSiteIndexable(site))
+                            return site.getId();
+                    }
+
+                    if (lastPage)
+                        return endOfData();
+
+                    currentPage = loadSitesPage();
+                }
             }
-        }
-        return refreshedSites;
+
+            /**
+             * Loads the next page of sites, sorted by identifier to keep a stable order between pages.
+             *
+             * @return an iterator over the sites in the page.
+             */
+            private Iterator<Site> loadSitesPage() {
+                PagingPosition page = new PagingPosition(nextPageStart, nextPageStart + sitePageSize - 1);
+                logger.debug("Loading sites from {} to {}", page.getFirst(), page.getLast());
+                List<Site> sites = siteService.getSites(SiteService.SelectionType.ANY, null, null, null,
+                        SiteService.SortType.ID_ASC, page);
+                nextPageStart += sitePageSize;
+                lastPage = sites.size() < sitePageSize;
+                return sites.iterator();
+            }
+        };
     }
 
     /**
@@ -356,12 +581,40 @@ public class SolrTools {
 
     /**
      * Checks whether a site should be indexed or not.
+     * <p>
+     * The decision is cached, so a site is only checked again once it has been modified.
+     * </p>
      *
      * @param site site to check.
      * @return true if the site is indexable, false otherwise.
      */
-    private boolean isSiteIndexable(Site site) {
-        return !siteService.isSpecialSite(site.getId()) && isSiteWithToolIndexable(site) && isSiteTypeIndexable(site);
+    private boolean isSiteIndexable(final Site site) {
+        try {
+            return indexableSites.get(site.getId(), new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return !siteService.isSpecialSite(site.getId()) && isSiteTypeIndexable(site)
+                            && isSiteWithToolIndexable(site);
+                }
+            });
+        } catch (ExecutionException e) {
+            logger.warn("Couldn't check if the site '{}' is indexable", site.getId(), e.getCause());
+            return false;
+        }
+    }
+
+    /**
+     * Forgets whether a site is indexable.
+     * <p>
+     * This should be called every time a site is modified, as it may have become indexable or not.
+     * </p>
+     *
+     * @param siteId identifier of the modified site.
+     */
+    public void invalidateSite(String siteId) {
+        logger.debug("Invalidate the indexable state of '{}'", siteId);
+        indexableSites.invalidate(siteId);
+        searchToolSiteCache.invalidate(siteId);
     }
 
     /**
@@ -376,13 +629,15 @@ public class SolrTools {
 
     /**
      * Checks if the site is indexable based on the presence of search tool.
+     * <p>
+     * The presence of the search tool is cached as obtaining the list of tools within a site can be expensive.
+     * </p>
      *
      * @param site site to check.
      * @return true if the site is indexable based on the site type.
      */
     private boolean isSiteWithToolIndexable(Site site) {
-        return !searchIndexBuilder.isOnlyIndexSearchToolSites()
-                || site.getToolForCommonId(SolrSearchIndexBuilder.SEARCH_TOOL_ID) != null;
+        return !searchIndexBuilder.isOnlyIndexSearchToolSites() || searchToolSiteCache.hasSearchTool(site);
     }
 
     /**
@@ -425,4 +680,12 @@ public class SolrTools {
     public void setSolrServer(SolrServer solrServer) {
         this.solrServer = solrServer;
     }
+
+    public void setSitePageSize(int sitePageSize) {
+        this.sitePageSize = sitePageSize;
+    }
+
+    public void setSearchToolSiteCache(SearchToolSiteCache searchToolSiteCache) {
+        this.searchToolSiteCache = searchToolSiteCache;
+    }
 }
@@ -0,0 +1,112 @@
+package org.sakaiproject.search.solr.indexing;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.params.SpellingParams;
+import org.sakaiproject.search.solr.util.MaintenanceServerSelector;
+import org.sakaiproject.search.solr.util.SolrServerAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Component rebuilding the spelling and suggestion dictionaries of solr periodically.
+ * <p>
+ * Solr can rebuild the dictionaries after each optimisation, but the index is now only merged down to a few segments
+ * when it's fragmented, and replicas never optimise their own index.<br />
+ * Instead, the dictionaries of each handler in {@link #handlers} are rebuilt every {@link #buildInterval} seconds on
+ * the master and on every replica, as the dictionaries aren't replicated.
+ * </p>
+ * <p>
+ * The dictionaries are only rebuilt by the maintenance server of the cluster.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class SpellingDictionaryBuilder {
+    private static final Logger logger = LoggerFactory.getLogger(SpellingDictionaryBuilder.class);
+    private static final long DEFAULT_BUILD_INTERVAL = 60 * 60;
+    /**
+     * Request handlers whose dictionaries are rebuilt.
+     */
+    private List<String> handlers = Arrays.asList("/spell", "/suggest");
+    /**
+     * Time (in seconds) between two rebuilds of the dictionaries.
+     */
+    private long buildInterval = DEFAULT_BUILD_INTERVAL;
+    private SolrServerAdapter solrServerAdapter;
+    private MaintenanceServerSelector maintenanceServerSelector;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Schedules the periodic rebuild of the dictionaries.
+     */
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (maintenanceServerSelector.isMaintenanceServer())
+                        buildDictionaries();
+                } catch (Exception e) {
+                    logger.error("Couldn't rebuild the spelling dictionaries", e);
+                }
+            }
+        }, buildInterval, buildInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops rebuilding the dictionaries.
+     */
+    public void destroy() {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+    }
+
+    /**
+     * Rebuilds the dictionaries of every handler on every server handling searches.
+     * <p>
+     * A server failing to rebuild its dictionaries doesn't prevent the other ones from being rebuilt.
+     * </p>
+     */
+    public void buildDictionaries() {
+        for (SolrServer searchServer : solrServerAdapter.getSearchServers()) {
+            for (String handler : handlers) {
+                try {
+                    logger.info("Rebuilding the dictionary of '{}' on '{}'", handler, searchServer);
+                    searchServer.query(new SolrQuery()
+                            .setRequestHandler(handler)
+                            .setQuery("*:*")
+                            .setRows(0)
+                            .setParam("spellcheck", true)
+                            .setParam(SpellingParams.SPELLCHECK_BUILD, true));
+                } catch (Exception e) {
+                    logger.warn("Couldn't rebuild the dictionary of '{}' on '{}'",
+                            new Object[]{handler, searchServer, e});
+                }
+            }
+        }
+    }
+
+    public void setHandlers(List<String> handlers) {
+        this.handlers = handlers;
+    }
+
+    public void setBuildInterval(long buildInterval) {
+        this.buildInterval = buildInterval;
+    }
+
+    public void setSolrServerAdapter(SolrServerAdapter solrServerAdapter) {
+        this.solrServerAdapter = solrServerAdapter;
+    }
+
+    public void setMaintenanceServerSelector(MaintenanceServerSelector maintenanceServerSelector) {
+        this.maintenanceServerSelector = maintenanceServerSelector;
+    }
+}
@@ -0,0 +1,50 @@
+package org.sakaiproject.search.solr.response;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.sakaiproject.search.producer.ContentProducerFactory;
+import org.sakaiproject.search.response.filter.SearchItemFilter;
+import org.sakaiproject.search.solr.indexing.SolrTools;
+
+/**
+ * Page of results obtained with a {@link SearchCursor}, providing the cursor to the next page.
+ *
+ * @author Colin Hebert
+ */
+public class CursorSearchList extends SolrSearchList {
+    private final String nextCursor;
+
+    /**
+     * Page of results for a solr query sorted by score and unique key.
+     *
+     * @param rsp                    raw response from solr.
+     * @param filter                 filter to apply on the results.
+     * @param contentProducerFactory factory to obtain a content producer for each result.
+     * @param solrServer             server from which fields missing in the response can be fetched.
+     */
+    public CursorSearchList(QueryResponse rsp, SearchItemFilter filter,
+                            ContentProducerFactory contentProducerFactory, SolrServer solrServer) {
+        super(rsp, 0, filter, contentProducerFactory, solrServer);
+
+        // The cursor is based on the raw response, censored results must not be returned again
+        SolrDocumentList documents = rsp.getResults();
+        if (documents.isEmpty()) {
+            nextCursor = null;
+        } else {
+            SolrDocument lastDocument = documents.get(documents.size() - 1);
+            nextCursor = new SearchCursor((Float) lastDocument.getFieldValue("score"),
+                    (String) lastDocument.getFieldValue(SolrTools.FIELD_ID)).encode();
+        }
+    }
+
+    /**
+     * Gets the cursor to the next page.
+     *
+     * @return an opaque token pointing after the last document of this page, null if this page is empty.
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,70 @@
+package org.sakaiproject.search.solr.response;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+
+/**
+ * Position in the results of a search sorted by score, then by unique key.
+ * <p>
+ * A cursor points to the last document of a page, the next page starts with the documents scoring lower, or scoring
+ * the same with a greater unique key.<br />
+ * Cursors are given to the clients as an opaque token.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public final class SearchCursor {
+    private static final char SEPARATOR = ':';
+    private final float score;
+    private final String documentId;
+
+    /**
+     * Creates a cursor pointing to a document.
+     *
+     * @param score      score of the document.
+     * @param documentId unique key of the document.
+     */
+    public SearchCursor(float score, String documentId) {
+        this.score = score;
+        this.documentId = documentId;
+    }
+
+    /**
+     * Decodes a cursor from its token.
+     *
+     * @param token token obtained with {@link #encode()}.
+     * @return the cursor.
+     * @throws IllegalArgumentException if the token isn't a valid cursor.
+     */
+    public static SearchCursor decode(String token) {
+        String cursor = new String(BaseEncoding.base64Url().omitPadding().decode(token), Charsets.UTF_8);
+        int separatorIndex = cursor.indexOf(SEPARATOR);
+        if (separatorIndex < 0)
+            throw new IllegalArgumentException("The cursor '" + token + "' isn't valid");
+        try {
+            // The exact bits of the score are kept, so it can be compared to the score of other documents
+            float score = Float.intBitsToFloat((int) Long.parseLong(cursor.substring(0, separatorIndex), 16));
+            return new SearchCursor(score, cursor.substring(separatorIndex + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The cursor '" + token + "' isn't valid", e);
+        }
+    }
+
+    /**
+     * Encodes the cursor as an opaque token.
+     *
+     * @return a token which can be decoded with {@link #decode(String)}.
+     */
+    public String encode() {
+        String cursor = Integer.toHexString(Float.floatToIntBits(score)) + SEPARATOR + documentId;
+        return BaseEncoding.base64Url().omitPadding().encode(cursor.getBytes(Charsets.UTF_8));
+    }
+
+    public float getScore() {
+        return score;
+    }
+
+    public String getDocumentId() {
+        return documentId;
+    }
+}
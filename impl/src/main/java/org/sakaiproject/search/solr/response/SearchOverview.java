@@ -0,0 +1,41 @@
+package org.sakaiproject.search.solr.response;
+
+import org.sakaiproject.search.api.SearchList;
+
+import java.util.Map;
+
+/**
+ * Everything displayed for a search: a page of results, suggestions for the query and the counts of each facet.
+ *
+ * @author Colin Hebert
+ */
+public final class SearchOverview {
+    private final SearchList results;
+    private final String[] suggestions;
+    private final Map<String, Map<String, Long>> facets;
+
+    /**
+     * Creates the overview of a search.
+     *
+     * @param results     page of results.
+     * @param suggestions suggested queries, empty if none could be obtained.
+     * @param facets      number of results for each value of each facet, empty if they couldn't be counted.
+     */
+    public SearchOverview(SearchList results, String[] suggestions, Map<String, Map<String, Long>> facets) {
+        this.results = results;
+        this.suggestions = suggestions;
+        this.facets = facets;
+    }
+
+    public SearchList getResults() {
+        return results;
+    }
+
+    public String[] getSuggestions() {
+        return suggestions;
+    }
+
+    public Map<String, Map<String, Long>> getFacets() {
+        return facets;
+    }
+}
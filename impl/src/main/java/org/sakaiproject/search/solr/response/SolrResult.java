@@ -3,15 +3,22 @@ package org.sakaiproject.search.solr.response;
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.util.NamedList;
 import org.sakaiproject.search.api.*;
+import org.sakaiproject.search.solr.indexing.SolrTools;
 
 import java.io.IOException;
 import java.util.*;
 
-import static org.sakaiproject.search.solr.response.TermVectorExtractor.TermInfo;
-
 /**
  * Search result obtained from a Solr server.
+ * <p>
+ * The search response only contains the fields needed to display the result. The other stored fields (such as the
+ * contents) are fetched from solr only if they are requested, along with the other results of the page.
+ * </p>
+ * <p>
+ * Term vectors and highlights are kept as they were received, and only decoded the first time they're requested.
+ * </p>
  *
  * @author Colin Hebert
  */
@@ -19,7 +26,23 @@ public class SolrResult implements SearchResult {
     private static final String SCORE_FIELD = "score";
     private int index;
     private SolrDocument document;
+    /**
+     * Every stored field of the document, fetched on demand.
+     */
+    private SolrDocument storedDocument;
+    private StoredDocumentLoader storedDocumentLoader;
     private Map<String, List<String>> highlights;
+    /**
+     * Summary built from the highlights, on demand.
+     */
+    private String searchResult;
+    /**
+     * TermVector data as received from solr, null if there is none.
+     */
+    private NamedList<Object> rawTermVector;
+    /**
+     * Frequencies decoded from {@link #rawTermVector}, on demand.
+     */
     private TermFrequency terms;
     private String url;
     private EntityContentProducer contentProducer;
@@ -36,6 +59,24 @@ public class SolrResult implements SearchResult {
         this.contentProducer = contentProducer;
     }
 
+    /**
+     * Sets the loader fetching the fields missing in the search response, shared with the other results of the page.
+     *
+     * @param storedDocumentLoader loader of the stored documents of the page.
+     */
+    void setStoredDocumentLoader(StoredDocumentLoader storedDocumentLoader) {
+        this.storedDocumentLoader = storedDocumentLoader;
+    }
+
+    /**
+     * Gets the unique key of the document in the index.
+     *
+     * @return the unique key of the document.
+     */
+    String getDocumentId() {
+        return (String) document.getFieldValue(SolrTools.FIELD_ID);
+    }
+
     @Override
     public float getScore() {
         return (Float) document.getFieldValue(SCORE_FIELD);
@@ -48,18 +89,26 @@ public class SolrResult implements SearchResult {
 
     @Override
     public String[] getFieldNames() {
-        Collection<String> fieldNames = document.getFieldNames();
+        Collection<String> fieldNames = getStoredDocument().getFieldNames();
         return fieldNames.toArray(new String[fieldNames.size()]);
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * @return the values of the field, or null if the document doesn't have this field.
+     */
     @Override
     public String[] getValues(String fieldName) {
-        return collectionToStringArray(document.getFieldValues(fieldName));
+        Collection<Object> values = document.getFieldValues(fieldName);
+        if (values == null)
+            values = getStoredDocument(fieldName).getFieldValues(fieldName);
+        return (values != null) ? collectionToStringArray(values) : null;
     }
 
     @Override
     public Map<String, String[]> getValueMap() {
-        Map<String, Collection<Object>> valueMapObject = document.getFieldValuesMap();
+        Map<String, Collection<Object>> valueMapObject = getStoredDocument().getFieldValuesMap();
         Map<String, String[]> valueMap = new HashMap<String, String[]>(valueMapObject.size(), 1);
         for (Map.Entry<String, Collection<Object>> entry : valueMapObject.entrySet()) {
             valueMap.put(entry.getKey(), collectionToStringArray(entry.getValue()));
@@ -93,12 +142,15 @@ public class SolrResult implements SearchResult {
 
     @Override
     public String getSearchResult() {
-        StringBuilder sb = new StringBuilder();
-        for (Map.Entry<String, List<String>> fieldEntry : highlights.entrySet()) {
-            for (String highlight : fieldEntry.getValue())
-                sb.append(highlight).append("... ");
+        if (searchResult == null) {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, List<String>> fieldEntry : highlights.entrySet()) {
+                for (String highlight : fieldEntry.getValue())
+                    sb.append(highlight).append("... ");
+            }
+            searchResult = sb.toString();
         }
-        return sb.toString();
+        return searchResult;
     }
 
     @Override
@@ -108,11 +160,43 @@ public class SolrResult implements SearchResult {
 
     @Override
     public TermFrequency getTerms() throws IOException {
+        if (terms == null)
+            terms = aggregateTermFrequencies().getTermFrequency();
         return terms;
     }
 
-    public void setTerms(Map<String, Map<String, TermInfo>> terms) {
-        this.terms = extractTermFrequency(terms);
+    /**
+     * Gets the most frequent terms of the document, without sorting every term.
+     *
+     * @param count maximum number of terms returned.
+     * @return the frequency of the most frequent terms, sorted by decreasing frequency.
+     */
+    public TermFrequency getTopTerms(int count) {
+        return aggregateTermFrequencies().getTopTerms(count);
+    }
+
+    /**
+     * Adds up the frequencies of each term in every field of the document.
+     *
+     * @return the frequencies of each term.
+     */
+    private TermFrequencyAggregator aggregateTermFrequencies() {
+        if (rawTermVector == null)
+            return new TermFrequencyAggregator(0);
+
+        TermFrequencyAggregator aggregator = new TermFrequencyAggregator();
+        TermVectorExtractor.aggregateTermFrequencies(rawTermVector, aggregator);
+        return aggregator;
+    }
+
+    /**
+     * Sets the TermVector data of the document, decoded only if {@link #getTerms()} is called.
+     *
+     * @param rawTermVector raw data from the {@link org.apache.solr.handler.component.TermVectorComponent},
+     *                      null if there is none.
+     */
+    public void setTermVector(NamedList<Object> rawTermVector) {
+        this.rawTermVector = rawTermVector;
     }
 
     @Override
@@ -138,7 +222,8 @@ public class SolrResult implements SearchResult {
         sb.append(" sid=\"").append(StringEscapeUtils.escapeXml(getId())).append("\" ");
         sb.append(" site=\"").append(StringEscapeUtils.escapeXml(getSiteId())).append("\" ");
         sb.append(" reference=\"").append(StringEscapeUtils.escapeXml(getReference())).append("\" ");
-        sb.append(" title=\"").append(Base64.encodeBase64String(getTitle().getBytes())).append("\" ");
+        String title = (getTitle() != null) ? getTitle() : "";
+        sb.append(" title=\"").append(Base64.encodeBase64String(title.getBytes())).append("\" ");
         sb.append(" tool=\"").append(StringEscapeUtils.escapeXml(getTool())).append("\" ");
         sb.append(" url=\"").append(StringEscapeUtils.escapeXml(getUrl())).append("\" />");
     }
@@ -148,6 +233,51 @@ public class SolrResult implements SearchResult {
         return contentProducer instanceof PortalUrlEnabledProducer;
     }
 
+    /**
+     * Gets the document with a stored field missing in the search response.
+     * <p>
+     * Only this field is fetched, unless every stored field has already been fetched.
+     * </p>
+     *
+     * @param fieldName name of the field.
+     * @return the document with the field, or the document of the search response if it isn't available.
+     */
+    private SolrDocument getStoredDocument(String fieldName) {
+        if (storedDocument != null || storedDocumentLoader == null)
+            return getStoredDocument();
+        SolrDocument fetchedDocument = storedDocumentLoader.getStoredDocument(getDocumentId(), fieldName);
+        return (fetchedDocument != null) ? fetchedDocument : document;
+    }
+
+    /**
+     * Gets the document with every stored field.
+     * <p>
+     * The document is fetched by the {@link StoredDocumentLoader} the first time it's needed. If it isn't available,
+     * the fields of the search response are used instead.
+     * </p>
+     *
+     * @return the document with every stored field and the score.
+     */
+    private SolrDocument getStoredDocument() {
+        if (storedDocument != null)
+            return storedDocument;
+
+        SolrDocument fetchedDocument = (storedDocumentLoader != null)
+                ? storedDocumentLoader.getStoredDocument(getDocumentId())
+                : null;
+        if (fetchedDocument == null) {
+            storedDocument = document;
+        } else {
+            // Keep the fields that aren't stored, such as the score
+            for (Map.Entry<String, Object> field : document) {
+                if (!fetchedDocument.containsKey(field.getKey()))
+                    fetchedDocument.setField(field.getKey(), field.getValue());
+            }
+            storedDocument = fetchedDocument;
+        }
+        return storedDocument;
+    }
+
     /**
      * Transforms an Collection of Objects in an array of Strings.
      * <p>
@@ -165,63 +295,4 @@ public class SolrResult implements SearchResult {
         }
         return array;
     }
-
-    /**
-     * Extracts a {@link TermFrequency} from the result of a
-     * {@link org.apache.solr.handler.component.TermVectorComponent}.
-     *
-     * @param termsByField A map of field/terms.
-     * @return a term frequency.
-     */
-    private TermFrequency extractTermFrequency(Map<String, Map<String, TermInfo>> termsByField) {
-        Map<String, Long> termFrequencies = new HashMap<String, Long>();
-        // Count the frequencies for each term, based on the sum of the frequency in each field
-        for (Map<String, TermInfo> fieldTerms : termsByField.values()) {
-            for (Map.Entry<String, TermInfo> fieldTerm : fieldTerms.entrySet()) {
-                Long addedFrequency = fieldTerm.getValue().getTermFrequency();
-                // Ignore when the frequency isn't specified (if tf isn't returned by solr)
-                if (addedFrequency == null)
-                    continue;
-                Long frequency = termFrequencies.get(fieldTerm.getKey());
-                termFrequencies.put(fieldTerm.getKey(),
-                        (frequency == null) ? addedFrequency : addedFrequency + frequency);
-            }
-        }
-
-        // Sort tuples (Term/Frequency)
-        // A SortedSet consider that two elements that are equals based on compare are the same
-        // This is why, if the frequency is the same, then the term is used to do the comparison
-        SortedSet<Map.Entry<String, Long>> sortedFrequencies = new TreeSet<Map.Entry<String, Long>>(
-                new Comparator<Map.Entry<String, Long>>() {
-                    @Override
-                    public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
-                        int longComparison = o2.getValue().compareTo(o1.getValue());
-                        return (longComparison != 0) ? longComparison : o1.getKey().compareTo(o2.getKey());
-                    }
-                });
-        sortedFrequencies.addAll(termFrequencies.entrySet());
-
-        // Extract data from each Entry into two arrays
-        final String[] rawTerms = new String[sortedFrequencies.size()];
-        final int[] frequencies = new int[sortedFrequencies.size()];
-        int i = 0;
-        for (Map.Entry<String, Long> term : sortedFrequencies) {
-            rawTerms[i] = term.getKey();
-            // There is a huge loss in precision, but there should not be any issue with null values
-            frequencies[i] = (int) (long) term.getValue();
-            i++;
-        }
-
-        return new TermFrequency() {
-            @Override
-            public String[] getTerms() {
-                return rawTerms;
-            }
-
-            @Override
-            public int[] getFrequencies() {
-                return frequencies;
-            }
-        };
-    }
 }
@@ -1,72 +1,175 @@
 package org.sakaiproject.search.solr.response;
 
 import com.google.common.collect.ForwardingList;
+import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.util.NamedList;
 import org.sakaiproject.search.api.SearchList;
 import org.sakaiproject.search.api.SearchResult;
 import org.sakaiproject.search.api.SearchService;
 import org.sakaiproject.search.producer.ContentProducerFactory;
 import org.sakaiproject.search.response.filter.SearchItemFilter;
+import org.sakaiproject.search.solr.indexing.SolrTools;
 
 import java.util.*;
 
-import static org.sakaiproject.search.solr.response.TermVectorExtractor.TermInfo;
-
 /**
  * List of results after a solr search query.
  *
  * @author Colin Hebert
  */
 public class SolrSearchList extends ForwardingList<SearchResult> implements SearchList {
+    private static final String PARTIAL_RESULTS = "partialResults";
     private final List<SearchResult> solrResults;
     private final QueryResponse rsp;
     private final int start;
+    /**
+     * Number of documents of the response actually used to fill the list.
+     */
+    private final int consumedDocuments;
+    /**
+     * Number of censored documents among the consumed documents.
+     */
+    private final int censoredDocuments;
 
     /**
      * List of results for a solr query.
      *
      * @param rsp                    raw response from solr.
      * @param start                  position of the first result (overall).
-     * @param filter                 filter to apply on each result.
+     * @param filter                 filter to apply on the results.
+     * @param contentProducerFactory factory to obtain a content producer for each result.
+     * @param solrServer             server from which fields missing in the response can be fetched.
+     */
+    public SolrSearchList(QueryResponse rsp, int start, SearchItemFilter filter,
+                          ContentProducerFactory contentProducerFactory, SolrServer solrServer) {
+        this(rsp, start, filter, contentProducerFactory, solrServer, false, Integer.MAX_VALUE);
+    }
+
+    /**
+     * List of results for a solr query, containing only visible results.
+     * <p>
+     * The response is expected to contain more documents than needed, censored results are dropped and only the
+     * first maxResults visible results are kept.
+     * </p>
+     *
+     * @param rsp                    raw response from solr.
+     * @param start                  position of the first visible result (overall).
+     * @param filter                 filter to apply on the results.
      * @param contentProducerFactory factory to obtain a content producer for each result.
+     * @param solrServer             server from which fields missing in the response can be fetched.
+     * @param maxResults             maximum number of visible results.
      */
     public SolrSearchList(QueryResponse rsp, int start, SearchItemFilter filter,
-                          ContentProducerFactory contentProducerFactory) {
+                          ContentProducerFactory contentProducerFactory, SolrServer solrServer, int maxResults) {
+        this(rsp, start, filter, contentProducerFactory, solrServer, true, maxResults);
+    }
+
+    private SolrSearchList(QueryResponse rsp, int start, SearchItemFilter filter,
+                           ContentProducerFactory contentProducerFactory, SolrServer solrServer,
+                           boolean dropCensored, int maxResults) {
         this.rsp = rsp;
         this.start = start;
 
-        List<SearchResult> results = new ArrayList<SearchResult>(rsp.getResults().size());
+        List<SolrResult> results = new ArrayList<SolrResult>(rsp.getResults().size());
 
-        // Extract TermVector information from the response
+        // Index TermVector information from the response, each result decodes its own data only if needed
         TermVectorExtractor termVectorExtractor = new TermVectorExtractor(rsp);
-        Map<String, Map<String, Map<String, TermInfo>>> termsPerDocument = termVectorExtractor.getTermVectorInfo();
 
         // Generate a SolrResult for each document
         for (SolrDocument document : rsp.getResults()) {
             String reference = (String) document.getFieldValue(SearchService.FIELD_REFERENCE);
+            // Highlights and term vectors are identified by the unique key
+            String documentId = (String) document.getFieldValue(SolrTools.FIELD_ID);
 
             SolrResult solrResult = new SolrResult();
             solrResult.setIndex(results.size());
             solrResult.setDocument(document);
 
             // Not mandatory highlighting
-            Map<String, List<String>> highlights = rsp.getHighlighting().get(reference);
+            Map<String, List<String>> highlights = rsp.getHighlighting().get(documentId);
             if (highlights == null)
                 highlights = Collections.emptyMap();
             solrResult.setHighlights(highlights);
 
             // Not mandatory terms counting
-            Map<String, Map<String, TermInfo>> terms = termsPerDocument.get(reference);
-            if (terms == null)
-                terms = Collections.emptyMap();
-            solrResult.setTerms(terms);
+            solrResult.setTermVector(termVectorExtractor.getRawDocumentContent(documentId));
 
             solrResult.setContentProducer(contentProducerFactory.getContentProducerForElement(reference));
 
-            results.add(filter.filter(solrResult));
+            results.add(solrResult);
+        }
+        // Fields missing in the response are fetched for the whole page at once
+        StoredDocumentLoader.attach(solrServer, results);
+        // Results are filtered all at once, allowing the filter to process them in parallel
+        List<SearchResult> filteredResults = filter.filter(new ArrayList<SearchResult>(results));
+
+        List<SearchResult> keptResults = new ArrayList<SearchResult>(Math.min(filteredResults.size(), maxResults));
+        int consumed = 0;
+        int censored = 0;
+        for (SearchResult result : filteredResults) {
+            if (keptResults.size() >= maxResults)
+                break;
+            consumed++;
+            if (result.isCensored()) {
+                censored++;
+                if (dropCensored)
+                    continue;
+            }
+            // Visible results are renumbered once censored results are dropped
+            if (dropCensored && result instanceof SolrResult)
+                ((SolrResult) result).setIndex(keptResults.size());
+            keptResults.add(result);
         }
-        this.solrResults = Collections.unmodifiableList(results);
+        this.solrResults = Collections.unmodifiableList(keptResults);
+        this.consumedDocuments = consumed;
+        this.censoredDocuments = censored;
+    }
+
+    /**
+     * Gets the number of documents of the response used to fill the list.
+     * <p>
+     * The documents after this one haven't been used and can be returned in the next page.
+     * </p>
+     *
+     * @return the number of documents consumed.
+     */
+    public int getConsumedDocuments() {
+        return consumedDocuments;
+    }
+
+    /**
+     * Gets the number of censored documents among the consumed documents.
+     *
+     * @return the number of censored documents.
+     */
+    public int getCensoredDocuments() {
+        return censoredDocuments;
+    }
+
+    /**
+     * Checks whether solr stopped collecting documents before the end of the search.
+     * <p>
+     * When a search takes longer than the time allowed, solr returns the documents collected so far. Those results
+     * and the number of documents found are incomplete.
+     * </p>
+     *
+     * @return true if the results are incomplete.
+     */
+    public boolean isPartialResults() {
+        return isPartialResults(rsp);
+    }
+
+    /**
+     * Checks whether solr stopped collecting documents before the end of a search.
+     *
+     * @param rsp raw response from solr.
+     * @return true if the response is incomplete.
+     */
+    public static boolean isPartialResults(QueryResponse rsp) {
+        NamedList<Object> header = rsp.getHeader();
+        return header != null && Boolean.TRUE.equals(header.get(PARTIAL_RESULTS));
     }
 
     @Override
@@ -0,0 +1,120 @@
+package org.sakaiproject.search.solr.response;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.util.NamedList;
+import org.sakaiproject.search.solr.indexing.SolrTools;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fetches the stored fields of the documents of a page of results, the first time one of them is needed.
+ * <p>
+ * The documents of the whole page are fetched with a single real-time get, rather than one request per result.
+ * Only the requested field is fetched, unless every field is needed.<br />
+ * The real-time get is sent to the /stored handler, handled by the servers doing the searches rather than by the
+ * master.<br />
+ * If the documents can't be fetched, the failure is kept and the documents aren't requested again, each result
+ * uses the fields of the search response instead.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+final class StoredDocumentLoader {
+    private static final Logger logger = LoggerFactory.getLogger(StoredDocumentLoader.class);
+    private static final String STORED_HANDLER = "/stored";
+    private static final String ALL_FIELDS = "*";
+    private final SolrServer solrServer;
+    private final List<String> documentIds;
+    /**
+     * Documents fetched from solr, by fetched field and by id. Empty if the documents couldn't be fetched.
+     */
+    private final Map<String, Map<String, SolrDocument>> storedDocuments =
+            new HashMap<String, Map<String, SolrDocument>>();
+
+    private StoredDocumentLoader(SolrServer solrServer, List<String> documentIds) {
+        this.solrServer = solrServer;
+        this.documentIds = documentIds;
+    }
+
+    /**
+     * Shares a loader between results, so their documents are fetched together.
+     *
+     * @param solrServer server in which the documents are indexed, if null the documents are never fetched.
+     * @param results    results whose documents are fetched together.
+     */
+    static void attach(SolrServer solrServer, Collection<SolrResult> results) {
+        if (solrServer == null || results.isEmpty())
+            return;
+
+        List<String> documentIds = new ArrayList<String>(results.size());
+        for (SolrResult result : results) {
+            documentIds.add(result.getDocumentId());
+        }
+        StoredDocumentLoader storedDocumentLoader = new StoredDocumentLoader(solrServer, documentIds);
+        for (SolrResult result : results) {
+            result.setStoredDocumentLoader(storedDocumentLoader);
+        }
+    }
+
+    /**
+     * Gets the document with every stored field.
+     *
+     * @param documentId unique key of the document.
+     * @return the stored document, or null if it isn't indexed anymore or couldn't be fetched.
+     */
+    SolrDocument getStoredDocument(String documentId) {
+        return getStoredDocument(documentId, ALL_FIELDS);
+    }
+
+    /**
+     * Gets the document with a single stored field.
+     *
+     * @param documentId unique key of the document.
+     * @param fieldName  name of the fetched field.
+     * @return the document with the field and its id, or null if it isn't indexed anymore or couldn't be fetched.
+     */
+    synchronized SolrDocument getStoredDocument(String documentId, String fieldName) {
+        Map<String, SolrDocument> documents = storedDocuments.get(fieldName);
+        if (documents == null) {
+            documents = fetchStoredDocuments(fieldName);
+            storedDocuments.put(fieldName, documents);
+        }
+        return documents.get(documentId);
+    }
+
+    private Map<String, SolrDocument> fetchStoredDocuments(String fieldName) {
+        try {
+            SolrQuery query = new SolrQuery()
+                    .setRequestHandler(STORED_HANDLER)
+                    .setFields(fieldName, SolrTools.FIELD_ID)
+                    .set("id", documentIds.toArray(new String[documentIds.size()]));
+            NamedList<Object> response = solrServer.query(query).getResponse();
+
+            // A single document is returned on its own, multiple documents are returned as a list
+            List<SolrDocument> fetchedDocuments = new ArrayList<SolrDocument>(documentIds.size());
+            if (response.get("response") instanceof SolrDocumentList)
+                fetchedDocuments.addAll((SolrDocumentList) response.get("response"));
+            if (response.get("doc") instanceof SolrDocument)
+                fetchedDocuments.add((SolrDocument) response.get("doc"));
+
+            Map<String, SolrDocument> documents = new HashMap<String, SolrDocument>(fetchedDocuments.size());
+            for (SolrDocument fetchedDocument : fetchedDocuments) {
+                documents.put((String) fetchedDocument.getFieldValue(SolrTools.FIELD_ID), fetchedDocument);
+            }
+            return documents;
+        } catch (Exception e) {
+            logger.warn("Couldn't fetch the stored fields of {} documents", documentIds.size(), e);
+            return Collections.emptyMap();
+        }
+    }
+}
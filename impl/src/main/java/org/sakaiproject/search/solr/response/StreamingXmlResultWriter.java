@@ -0,0 +1,167 @@
+package org.sakaiproject.search.solr.response;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.StreamingResponseCallback;
+import org.apache.solr.common.SolrDocument;
+import org.sakaiproject.search.api.SearchResult;
+import org.sakaiproject.search.api.SearchService;
+import org.sakaiproject.search.producer.ContentProducerFactory;
+import org.sakaiproject.search.response.filter.SearchItemFilter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Writes search results as XML while solr streams them.
+ * <p>
+ * Results are filtered and written by small batches, so the memory used doesn't depend on the number of results.
+ * Highlights and term vectors are sent by solr after the documents, they aren't available in a streamed response.
+ * </p>
+ * <p>
+ * The header is written before any result is received, so its size is the number of results returned by solr. It is
+ * an upper bound of the number of results actually written, as the results the user can't read are left out.
+ * </p>
+ * <p>
+ * Solr callbacks can't throw checked exceptions. When the output can't be written anymore (usually because the client
+ * went away), the stream is aborted with a {@link StreamAbortedException} and the failure is thrown by
+ * {@link #checkWriteFailure()}.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class StreamingXmlResultWriter extends StreamingResponseCallback {
+    private static final int BATCH_SIZE = 50;
+    private final Writer writer;
+    private final int rows;
+    private final SearchItemFilter filter;
+    private final ContentProducerFactory contentProducerFactory;
+    private final SolrServer solrServer;
+    private final List<SolrResult> pendingResults = new ArrayList<SolrResult>(BATCH_SIZE);
+    private final StringBuilder sb = new StringBuilder();
+    private boolean headerWritten;
+    private int index;
+    private IOException writeFailure;
+
+    /**
+     * Creates a writer for the results of a search.
+     *
+     * @param writer                 output in which the XML is written.
+     * @param rows                   maximum number of results requested.
+     * @param filter                 filter to apply on the results.
+     * @param contentProducerFactory factory to obtain a content producer for each result.
+     * @param solrServer             server from which fields missing in the response can be fetched.
+     */
+    public StreamingXmlResultWriter(Writer writer, int rows, SearchItemFilter filter,
+                                    ContentProducerFactory contentProducerFactory, SolrServer solrServer) {
+        this.writer = writer;
+        this.rows = rows;
+        this.filter = filter;
+        this.contentProducerFactory = contentProducerFactory;
+        this.solrServer = solrServer;
+    }
+
+    @Override
+    public void streamDocListInfo(long numFound, long start, Float maxScore) {
+        writeHeader(numFound, start);
+        abortIfWriteFailed();
+    }
+
+    @Override
+    public void streamSolrDocument(SolrDocument document) {
+        abortIfWriteFailed();
+        String reference = (String) document.getFieldValue(SearchService.FIELD_REFERENCE);
+
+        SolrResult solrResult = new SolrResult();
+        solrResult.setIndex(index++);
+        solrResult.setDocument(document);
+        solrResult.setHighlights(Collections.<String, List<String>>emptyMap());
+        solrResult.setContentProducer(contentProducerFactory.getContentProducerForElement(reference));
+        pendingResults.add(solrResult);
+
+        if (pendingResults.size() >= BATCH_SIZE) {
+            writePendingResults();
+            abortIfWriteFailed();
+        }
+    }
+
+    /**
+     * Writes the last results and closes the XML document.
+     *
+     * @throws IOException if the XML couldn't be written.
+     */
+    public void finish() throws IOException {
+        checkWriteFailure();
+        if (!headerWritten)
+            writeHeader(0, 0);
+        writePendingResults();
+        sb.append("</results>");
+        write();
+        checkWriteFailure();
+        writer.flush();
+    }
+
+    /**
+     * Throws the failure that aborted the stream, if any.
+     *
+     * @throws IOException if the XML couldn't be written.
+     */
+    public void checkWriteFailure() throws IOException {
+        if (writeFailure != null)
+            throw writeFailure;
+    }
+
+    private void writeHeader(long numFound, long start) {
+        sb.append("<?xml version=\"1.0\"?>\n<results ");
+        sb.append(" fullsize=\"").append(numFound).append("\" ");
+        sb.append(" start=\"").append(start).append("\" ");
+        // Filtered results aren't known yet, the size can only be an upper bound
+        sb.append(" size=\"").append(Math.max(0, Math.min(rows, numFound - start))).append("\" ");
+        sb.append(" >");
+        write();
+        headerWritten = true;
+    }
+
+    private void writePendingResults() {
+        if (pendingResults.isEmpty())
+            return;
+        // Fields missing in the response are fetched for the whole batch at once
+        StoredDocumentLoader.attach(solrServer, pendingResults);
+        for (SearchResult result : filter.filter(new ArrayList<SearchResult>(pendingResults))) {
+            result.toXMLString(sb);
+        }
+        pendingResults.clear();
+        write();
+    }
+
+    private void write() {
+        try {
+            if (writeFailure == null)
+                writer.append(sb);
+        } catch (IOException e) {
+            writeFailure = e;
+        }
+        sb.setLength(0);
+    }
+
+    /**
+     * Stops solr from streaming the other results once the output can't be written anymore.
+     *
+     * @throws StreamAbortedException if the output couldn't be written.
+     */
+    private void abortIfWriteFailed() {
+        if (writeFailure != null)
+            throw new StreamAbortedException(writeFailure);
+    }
+
+    /**
+     * Thrown from the callbacks of solr to stop the streaming once the results can't be written anymore.
+     */
+    public static class StreamAbortedException extends RuntimeException {
+        public StreamAbortedException(IOException cause) {
+            super("Couldn't write the streamed results", cause);
+        }
+    }
+}
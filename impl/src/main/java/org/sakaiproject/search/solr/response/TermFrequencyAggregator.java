@@ -0,0 +1,220 @@
+package org.sakaiproject.search.solr.response;
+
+import org.sakaiproject.search.api.TermFrequency;
+
+import java.util.Arrays;
+
+/**
+ * Adds up the frequencies of terms and sorts them by decreasing frequency.
+ * <p>
+ * Frequencies are kept as primitives in parallel arrays, terms are located with an open-addressing hash table
+ * (linear probing) containing the position of each term in those arrays.<br />
+ * Sorting is done with a binary heap of positions limited to the number of terms requested, so obtaining the
+ * few most frequent terms doesn't require to sort every term.
+ * </p>
+ * <p>
+ * Terms with the same frequency are sorted alphabetically.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class TermFrequencyAggregator {
+    private static final int DEFAULT_EXPECTED_TERMS = 16;
+    private static final TermFrequency EMPTY_TERM_FREQUENCY = createTermFrequency(new String[0], new int[0]);
+    private String[] terms;
+    private long[] frequencies;
+    private int size;
+    /**
+     * Position of each term (plus one) in {@link #terms}, 0 being an empty slot.
+     * <p>
+     * The length of the table is a power of two, and the table is always at most half full.
+     * </p>
+     */
+    private int[] table;
+
+    /**
+     * Creates an aggregator for an unknown number of terms.
+     */
+    public TermFrequencyAggregator() {
+        this(DEFAULT_EXPECTED_TERMS);
+    }
+
+    /**
+     * Creates an aggregator sized for the expected number of distinct terms.
+     *
+     * @param expectedTerms number of distinct terms expected.
+     */
+    public TermFrequencyAggregator(int expectedTerms) {
+        int capacity = Math.max(expectedTerms, 1);
+        terms = new String[capacity];
+        frequencies = new long[capacity];
+        table = new int[Integer.highestOneBit(capacity * 2 - 1) * 2];
+    }
+
+    /**
+     * Adds occurrences of a term.
+     *
+     * @param term      term found.
+     * @param frequency number of occurrences of the term.
+     */
+    public void add(String term, long frequency) {
+        int mask = table.length - 1;
+        int slot = spread(term.hashCode()) & mask;
+        while (table[slot] != 0) {
+            int position = table[slot] - 1;
+            if (terms[position].equals(term)) {
+                frequencies[position] += frequency;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == terms.length) {
+            terms = Arrays.copyOf(terms, size * 2);
+            frequencies = Arrays.copyOf(frequencies, size * 2);
+        }
+        terms[size] = term;
+        frequencies[size] = frequency;
+        table[slot] = ++size;
+
+        if (size * 2 > table.length)
+            rehash(table.length * 2);
+    }
+
+    /**
+     * Gets the number of distinct terms.
+     *
+     * @return the number of distinct terms added.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets every term, sorted by decreasing frequency.
+     *
+     * @return the frequency of every term.
+     */
+    public TermFrequency getTermFrequency() {
+        return getTopTerms(size);
+    }
+
+    /**
+     * Gets the most frequent terms, sorted by decreasing frequency.
+     *
+     * @param count maximum number of terms returned.
+     * @return the frequency of the most frequent terms.
+     */
+    public TermFrequency getTopTerms(int count) {
+        int heapSize = Math.min(count, size);
+        if (heapSize <= 0)
+            return EMPTY_TERM_FREQUENCY;
+
+        // Min-heap of positions, the least frequent of the kept terms being at the top
+        int[] heap = new int[heapSize];
+        for (int position = 0; position < heapSize; position++) {
+            heap[position] = position;
+            siftUp(heap, position);
+        }
+        for (int position = heapSize; position < size; position++) {
+            if (isBefore(position, heap[0])) {
+                heap[0] = position;
+                siftDown(heap, heapSize);
+            }
+        }
+
+        // Remove the least frequent term from the heap until it's empty, filling the arrays from the end
+        String[] topTerms = new String[heapSize];
+        int[] topFrequencies = new int[heapSize];
+        for (int remaining = heapSize; remaining > 0; remaining--) {
+            int position = heap[0];
+            topTerms[remaining - 1] = terms[position];
+            // There is a huge loss in precision, but frequencies in a single document don't go that high
+            topFrequencies[remaining - 1] = (int) frequencies[position];
+            heap[0] = heap[remaining - 1];
+            siftDown(heap, remaining - 1);
+        }
+        return createTermFrequency(topTerms, topFrequencies);
+    }
+
+    /**
+     * Checks if a term comes before another one once sorted.
+     *
+     * @param position      position of the first term.
+     * @param otherPosition position of the second term.
+     * @return true if the first term is more frequent, or as frequent and alphabetically first.
+     */
+    private boolean isBefore(int position, int otherPosition) {
+        if (frequencies[position] != frequencies[otherPosition])
+            return frequencies[position] > frequencies[otherPosition];
+        return terms[position].compareTo(terms[otherPosition]) < 0;
+    }
+
+    private void siftUp(int[] heap, int index) {
+        int position = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!isBefore(heap[parent], position))
+                break;
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = position;
+    }
+
+    private void siftDown(int[] heap, int heapSize) {
+        if (heapSize == 0)
+            return;
+        int index = 0;
+        int position = heap[0];
+        int half = heapSize >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < heapSize && isBefore(heap[child], heap[right]))
+                child = right;
+            if (!isBefore(position, heap[child]))
+                break;
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = position;
+    }
+
+    private void rehash(int capacity) {
+        int[] newTable = new int[capacity];
+        int mask = capacity - 1;
+        for (int position = 0; position < size; position++) {
+            int slot = spread(terms[position].hashCode()) & mask;
+            while (newTable[slot] != 0)
+                slot = (slot + 1) & mask;
+            newTable[slot] = position + 1;
+        }
+        table = newTable;
+    }
+
+    /**
+     * Spreads the bits of a hash code, so terms with similar hash codes don't end up in adjacent slots.
+     *
+     * @param hashCode hash code of a term.
+     * @return a well distributed hash code.
+     */
+    private static int spread(int hashCode) {
+        int h = hashCode * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static TermFrequency createTermFrequency(final String[] terms, final int[] frequencies) {
+        return new TermFrequency() {
+            @Override
+            public String[] getTerms() {
+                return terms;
+            }
+
+            @Override
+            public int[] getFrequencies() {
+                return frequencies;
+            }
+        };
+    }
+}
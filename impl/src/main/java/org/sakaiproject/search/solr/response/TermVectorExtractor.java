@@ -16,6 +16,11 @@ import java.util.*;
  * The field map contains itself a {@link Map} of terms used in the field, with the term as the key.<br />
  * The term map associate a term to a {@link TermInfo}.
  * </p>
+ * <p>
+ * Decoding every term of every document is expensive, so the raw data of each document is only indexed by its unique
+ * key when the extractor is created. It's decoded once it's requested, either for a single document with
+ * {@link #extractDocumentContent(NamedList)} or for the whole response with {@link #getTermVectorInfo()}.
+ * </p>
  * <p/>
  * TODO: Change nested {@link Map} to a custom data-structure able to contain more information?
  *
@@ -45,7 +50,11 @@ public class TermVectorExtractor {
      * ...
      * </pre>
      */
-    private Map<String, Map<String, Map<String, TermInfo>>> termVectorInfo = Collections.emptyMap();
+    private Map<String, Map<String, Map<String, TermInfo>>> termVectorInfo;
+    /**
+     * Raw TermVector data of each document, not decoded yet.
+     */
+    private final Map<String, NamedList<Object>> rawDocuments;
 
     /**
      * Creates a TermVectorExtractor for the given query response sent by Solr.
@@ -55,36 +64,41 @@ public class TermVectorExtractor {
     @SuppressWarnings("unchecked")
     public TermVectorExtractor(QueryResponse queryResponse) {
         NamedList<Object> res = (NamedList<Object>) queryResponse.getResponse().get(TERM_VECTORS);
-        if (res != null)
-            termVectorInfo = extractTermVectorInfo(res);
+        rawDocuments = (res != null) ? indexRawDocuments(res) : Collections.<String, NamedList<Object>>emptyMap();
     }
 
     /**
-     * Extracts documents from the {@link org.apache.solr.handler.component.TermVectorComponent} result.
+     * Indexes the raw data of each document from the {@link org.apache.solr.handler.component.TermVectorComponent}
+     * result by the unique key of the document.
      *
      * @param termVectorInfoRaw Raw data extracted from the solr query
-     * @return A map of document ids associated with a map of fields in these documents
+     * @return A map of document ids associated with the raw data of these documents
      */
     @SuppressWarnings("unchecked")
-    private Map<String, Map<String, Map<String, TermInfo>>> extractTermVectorInfo(
-            NamedList<Object> termVectorInfoRaw) {
-        Map<String, Map<String, Map<String, TermInfo>>> documents =
-                new HashMap<String, Map<String, Map<String, TermInfo>>>(termVectorInfoRaw.size());
+    private static Map<String, NamedList<Object>> indexRawDocuments(NamedList<Object> termVectorInfoRaw) {
+        Map<String, NamedList<Object>> documents = new HashMap<String, NamedList<Object>>(termVectorInfoRaw.size());
         for (Map.Entry<String, Object> termVectorInfoEntryRaw : termVectorInfoRaw) {
             // Ignore unique key field name and warnings
             if (!UNIQUE_KEY_FIELD_NAME.equals(termVectorInfoEntryRaw.getKey())
                     && !WARNINGS.equals(termVectorInfoEntryRaw.getKey())) {
                 // From this point, the entry can be considered as always a document
                 NamedList<Object> documentContentRaw = (NamedList<Object>) termVectorInfoEntryRaw.getValue();
-                String documentReference = (String) documentContentRaw.get(UNIQUE_KEY);
-                Map<String, Map<String, TermInfo>> fieldTerms = extractDocumentContent(documentContentRaw);
-
-                documents.put(documentReference, fieldTerms);
+                documents.put((String) documentContentRaw.get(UNIQUE_KEY), documentContentRaw);
             }
         }
         return Collections.unmodifiableMap(documents);
     }
 
+    /**
+     * Gets the raw TermVector data of a document, without decoding it.
+     *
+     * @param documentId unique key of the document.
+     * @return the raw data of the document, or null if the response doesn't contain any data for this document.
+     */
+    public NamedList<Object> getRawDocumentContent(String documentId) {
+        return rawDocuments.get(documentId);
+    }
+
     /**
      * Extracts fields from a document.
      *
@@ -92,7 +106,7 @@ public class TermVectorExtractor {
      * @return A map of field names associated with a map of terms in these fields
      */
     @SuppressWarnings("unchecked")
-    private Map<String, Map<String, TermInfo>> extractDocumentContent(NamedList<Object> documentContentRaw) {
+    public static Map<String, Map<String, TermInfo>> extractDocumentContent(NamedList<Object> documentContentRaw) {
         Map<String, Map<String, TermInfo>> fields =
                 new HashMap<String, Map<String, TermInfo>>(documentContentRaw.size());
         for (Map.Entry<String, Object> documentContentEntryRaw : documentContentRaw) {
@@ -109,6 +123,32 @@ public class TermVectorExtractor {
         return Collections.unmodifiableMap(fields);
     }
 
+    /**
+     * Adds the frequency of every term of a document to an aggregator, without decoding the other data.
+     * <p>
+     * The frequencies of a term found in multiple fields are added up. Terms without frequency (if tf isn't returned
+     * by solr) are ignored.
+     * </p>
+     *
+     * @param documentContentRaw Raw data extracted from the solr query
+     * @param aggregator         aggregator receiving the frequencies
+     */
+    @SuppressWarnings("unchecked")
+    public static void aggregateTermFrequencies(NamedList<Object> documentContentRaw,
+                                                TermFrequencyAggregator aggregator) {
+        for (Map.Entry<String, Object> documentContentEntryRaw : documentContentRaw) {
+            // Ignore documentId
+            if (UNIQUE_KEY.equals(documentContentEntryRaw.getKey()))
+                continue;
+            NamedList<Object> fieldContentRaw = (NamedList<Object>) documentContentEntryRaw.getValue();
+            for (Map.Entry<String, Object> fieldContentEntryRaw : fieldContentRaw) {
+                Number termFrequency = (Number) ((NamedList<Object>) fieldContentEntryRaw.getValue()).get(TF);
+                if (termFrequency != null)
+                    aggregator.add(fieldContentEntryRaw.getKey(), termFrequency.longValue());
+            }
+        }
+    }
+
     /**
      * Extracts terms from a field.
      *
@@ -116,7 +156,7 @@ public class TermVectorExtractor {
      * @return A map of terms associated with various data on these fields, {@link }
      */
     @SuppressWarnings("unchecked")
-    private Map<String, TermInfo> extractFieldContent(NamedList<Object> fieldContentRaw) {
+    private static Map<String, TermInfo> extractFieldContent(NamedList<Object> fieldContentRaw) {
         Map<String, TermInfo> terms = new HashMap<String, TermInfo>(fieldContentRaw.size());
         for (Map.Entry<String, Object> fieldContentEntryRaw : fieldContentRaw) {
             String term = fieldContentEntryRaw.getKey();
@@ -138,14 +178,14 @@ public class TermVectorExtractor {
         return Collections.unmodifiableMap(terms);
     }
 
-    private List<Long> extractTermPositions(NamedList<Number> termPositionsRaw) {
+    private static List<Long> extractTermPositions(NamedList<Number> termPositionsRaw) {
         List<Long> positions = new ArrayList<Long>(termPositionsRaw.size());
         for (Map.Entry<?, Number> position : termPositionsRaw)
             positions.add(position.getValue().longValue());
         return Collections.unmodifiableList(positions);
     }
 
-    private List<TermInfo.Offset> extractTermOffsets(NamedList<Number> termOffsetsRaw) {
+    private static List<TermInfo.Offset> extractTermOffsets(NamedList<Number> termOffsetsRaw) {
         List<TermInfo.Offset> offsets = new ArrayList<TermInfo.Offset>(termOffsetsRaw.size() / 2);
         for (Iterator<Map.Entry<String, Number>> iterator = termOffsetsRaw.iterator(); iterator.hasNext(); ) {
             TermInfo.Offset offset = new TermInfo.Offset();
@@ -156,7 +196,19 @@ public class TermVectorExtractor {
         return Collections.unmodifiableList(offsets);
     }
 
+    /**
+     * Gets the TermVector data of every document, decoding it the first time.
+     *
+     * @return A map of document ids associated with a map of fields in these documents
+     */
     public Map<String, Map<String, Map<String, TermInfo>>> getTermVectorInfo() {
+        if (termVectorInfo == null) {
+            Map<String, Map<String, Map<String, TermInfo>>> documents =
+                    new HashMap<String, Map<String, Map<String, TermInfo>>>(rawDocuments.size());
+            for (Map.Entry<String, NamedList<Object>> rawDocument : rawDocuments.entrySet())
+                documents.put(rawDocument.getKey(), extractDocumentContent(rawDocument.getValue()));
+            termVectorInfo = Collections.unmodifiableMap(documents);
+        }
         return termVectorInfo;
     }
 
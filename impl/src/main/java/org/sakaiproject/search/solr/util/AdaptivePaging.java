@@ -0,0 +1,175 @@
+package org.sakaiproject.search.solr.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.sakaiproject.search.solr.response.SolrSearchList;
+import org.sakaiproject.tool.api.SessionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paging strategy returning full pages of visible results, even if some results are censored.
+ * <p>
+ * The ratio of censored results is tracked for each user (exponentially weighted moving average), and more documents
+ * than requested are fetched from solr accordingly, up to {@link #maxOverFetchFactor} times the requested number.
+ * Censored results are then dropped and only the requested number of visible results is returned.
+ * </p>
+ * <p>
+ * As the position of a visible result doesn't match its position in solr anymore, the position in solr where each
+ * page ended is kept for each user and search, the next page starts exactly there.<br />
+ * Without this information (first page, or the page wasn't reached sequentially), the position of the visible result
+ * is used, which may show again results already seen but never skips one.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class AdaptivePaging {
+    private static final Logger logger = LoggerFactory.getLogger(AdaptivePaging.class);
+    private static final double DEFAULT_MAX_OVER_FETCH_FACTOR = 4;
+    private static final long DEFAULT_MAXIMUM_SIZE = 10000;
+    private static final long DEFAULT_EXPIRY = 30 * 60;
+    /**
+     * Weight of the latest page in the censor ratio.
+     */
+    private static final double EWMA_WEIGHT = 0.3;
+    /**
+     * Maximum number of documents fetched, compared to the requested number of documents.
+     */
+    private double maxOverFetchFactor = DEFAULT_MAX_OVER_FETCH_FACTOR;
+    private long maximumSize = DEFAULT_MAXIMUM_SIZE;
+    /**
+     * Time (in seconds) after which the paging details of a user are forgotten.
+     */
+    private long expiry = DEFAULT_EXPIRY;
+    private SessionManager sessionManager;
+    private Cache<String, Double> censorRatios;
+    private Cache<List<Object>, Map<Integer, Integer>> continuations;
+
+    /**
+     * Initialises the censor ratios and the continuations.
+     */
+    public void init() {
+        censorRatios = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(expiry, TimeUnit.SECONDS)
+                .build();
+        continuations = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(expiry, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Gets the number of documents to fetch from solr to obtain the requested number of visible results.
+     *
+     * @param requestedRows number of visible results requested.
+     * @return the number of documents to fetch.
+     */
+    public int getRowsToFetch(int requestedRows) {
+        Double censorRatio = censorRatios.getIfPresent(getCurrentUserId());
+        int maxRows = (int) Math.ceil(requestedRows * maxOverFetchFactor);
+        if (censorRatio == null || censorRatio <= 0)
+            return requestedRows;
+        else if (censorRatio >= 1)
+            return maxRows;
+        else
+            return Math.min((int) Math.ceil(requestedRows / (1 - censorRatio)), maxRows);
+    }
+
+    /**
+     * Gets the position in solr of the first document of a page.
+     *
+     * @param searchTerms terms of the search query.
+     * @param siteIds     sites in which the search is done, can be null.
+     * @param start       position of the first visible result.
+     * @return the position of the first document to fetch from solr.
+     */
+    public int getSolrStart(String searchTerms, List<String> siteIds, int start) {
+        Map<Integer, Integer> pageEnds = continuations.getIfPresent(createSearchKey(searchTerms, siteIds));
+        Integer solrStart = (pageEnds != null) ? pageEnds.get(start) : null;
+        return (solrStart != null) ? solrStart : start;
+    }
+
+    /**
+     * Records a page of results, updating the censor ratio of the user and the position of the next page.
+     *
+     * @param searchTerms terms of the search query.
+     * @param siteIds     sites in which the search is done, can be null.
+     * @param start       position of the first visible result.
+     * @param solrStart   position in solr of the first document of the page.
+     * @param results     visible results of the page.
+     */
+    public void recordPage(String searchTerms, List<String> siteIds, int start, int solrStart,
+                           SolrSearchList results) {
+        if (results.getConsumedDocuments() == 0)
+            return;
+
+        String userId = getCurrentUserId();
+        double pageCensorRatio = (double) results.getCensoredDocuments() / results.getConsumedDocuments();
+        Double censorRatio = censorRatios.getIfPresent(userId);
+        censorRatio = (censorRatio == null)
+                ? pageCensorRatio
+                : EWMA_WEIGHT * pageCensorRatio + (1 - EWMA_WEIGHT) * censorRatio;
+        censorRatios.put(userId, censorRatio);
+        logger.debug("Censor ratio of '{}' is now {}", userId, censorRatio);
+
+        try {
+            Map<Integer, Integer> pageEnds = continuations.get(createSearchKey(searchTerms, siteIds),
+                    new Callable<Map<Integer, Integer>>() {
+                        @Override
+                        public Map<Integer, Integer> call() throws Exception {
+                            return new ConcurrentHashMap<Integer, Integer>();
+                        }
+                    });
+            pageEnds.put(start + results.size(), solrStart + results.getConsumedDocuments());
+        } catch (ExecutionException e) {
+            logger.warn("Couldn't keep the position of the next page", e.getCause());
+        }
+    }
+
+    private String getCurrentUserId() {
+        String userId = sessionManager.getCurrentSessionUserId();
+        return (userId != null) ? userId : "";
+    }
+
+    /**
+     * Creates a key identifying a search done by the current user.
+     *
+     * @param searchTerms terms of the search query.
+     * @param siteIds     sites in which the search is done, can be null.
+     * @return a key identifying the search.
+     */
+    private List<Object> createSearchKey(String searchTerms, List<String> siteIds) {
+        List<String> sortedSiteIds = (siteIds != null)
+                ? new ArrayList<String>(new TreeSet<String>(siteIds))
+                : Collections.<String>emptyList();
+        return Arrays.<Object>asList(getCurrentUserId(), searchTerms, sortedSiteIds);
+    }
+
+    public void setMaxOverFetchFactor(double maxOverFetchFactor) {
+        this.maxOverFetchFactor = maxOverFetchFactor;
+    }
+
+    public void setMaximumSize(long maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    public void setExpiry(long expiry) {
+        this.expiry = expiry;
+    }
+
+    public void setSessionManager(SessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+}
@@ -0,0 +1,153 @@
+package org.sakaiproject.search.solr.util;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs searches in the background, in the session of the user starting them.
+ * <p>
+ * Searches are run by at most {@link #threadCount} threads, up to {@link #queueSize} other searches wait for a thread.
+ * Beyond that, new searches fail immediately with a {@link RejectedExecutionException} instead of piling up while
+ * solr is slow.
+ * </p>
+ * <p>
+ * Each search is cancelled if it isn't done after its timeout. The future of a cancelled search fails immediately
+ * with a {@link java.util.concurrent.CancellationException} and the thread running it is interrupted.<br />
+ * An interruption doesn't stop a thread blocked on a request already sent to solr though: the thread stays busy until
+ * solr answers or the socket timeout of the solr client expires, and solr executes the whole request anyway. Unless
+ * the socket timeout is close to the timeout of the searches, cancelled searches can keep every thread busy and new
+ * searches are then rejected.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class AsyncSearchExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(AsyncSearchExecutor.class);
+    private static final int DEFAULT_THREAD_COUNT = 8;
+    private static final int DEFAULT_QUEUE_SIZE = 100;
+    private static final long DEFAULT_TIMEOUT = 10000;
+    private int threadCount = DEFAULT_THREAD_COUNT;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    /**
+     * Time in milliseconds after which a search is cancelled, unless another timeout is given for the search.
+     */
+    private long defaultTimeout = DEFAULT_TIMEOUT;
+    private SessionManager sessionManager;
+    private ThreadLocalManager threadLocalManager;
+    private ListeningExecutorService searchExecutor;
+    private ScheduledExecutorService timeoutScheduler;
+
+    /**
+     * Starts the threads running searches.
+     */
+    public void init() {
+        searchExecutor = MoreExecutors.listeningDecorator(new ThreadPoolExecutor(threadCount, threadCount,
+                0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize)));
+        timeoutScheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    /**
+     * Stops the threads running searches, cancelling the searches in progress.
+     */
+    public void destroy() {
+        searchExecutor.shutdownNow();
+        timeoutScheduler.shutdownNow();
+    }
+
+    /**
+     * Starts a search in the background.
+     *
+     * @param search  search to run in the session of the current user.
+     * @param timeout time in milliseconds after which the search is cancelled, 0 for {@link #defaultTimeout}.
+     * @param <T>     type of the result of the search.
+     * @return the result of the search, once available, or a failed future if too many searches are waiting.
+     */
+    public <T> ListenableFuture<T> submit(Callable<T> search, long timeout) {
+        final ListenableFuture<T> future;
+        try {
+            future = searchExecutor.submit(new SessionSearch<T>(sessionManager.getCurrentSession(), search));
+        } catch (RejectedExecutionException e) {
+            logger.warn("Too many searches are running, a search has been rejected");
+            return Futures.immediateFailedFuture(e);
+        }
+
+        final ScheduledFuture<?> timeoutTask = timeoutScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (future.cancel(true))
+                    logger.debug("A search has been cancelled after its timeout");
+            }
+        }, (timeout > 0) ? timeout : defaultTimeout, TimeUnit.MILLISECONDS);
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                timeoutTask.cancel(false);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return future;
+    }
+
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public void setDefaultTimeout(long defaultTimeout) {
+        this.defaultTimeout = defaultTimeout;
+    }
+
+    public void setSessionManager(SessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+
+    public void setThreadLocalManager(ThreadLocalManager threadLocalManager) {
+        this.threadLocalManager = threadLocalManager;
+    }
+
+    /**
+     * Search run in the session of the user who started it.
+     * <p>
+     * Only the session is passed to the searching thread, security advisors set by the caller don't apply.
+     * </p>
+     *
+     * @param <T> type of the result of the search.
+     */
+    private final class SessionSearch<T> implements Callable<T> {
+        private final Session session;
+        private final Callable<T> search;
+
+        private SessionSearch(Session session, Callable<T> search) {
+            this.session = session;
+            this.search = search;
+        }
+
+        @Override
+        public T call() throws Exception {
+            sessionManager.setCurrentSession(session);
+            try {
+                return search.call();
+            } finally {
+                threadLocalManager.clear();
+            }
+        }
+    }
+}
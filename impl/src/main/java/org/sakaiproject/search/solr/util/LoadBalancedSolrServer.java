@@ -0,0 +1,432 @@
+package org.sakaiproject.search.solr.util;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.StreamingResponseCallback;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SolrServer spreading read requests over multiple replicas.
+ * <p>
+ * For each request, two healthy replicas are picked at random and the one with the lowest average latency
+ * (exponentially weighted moving average) is used. A replica without any measured latency isn't preferred over
+ * another one, the order stays random.<br />
+ * If the replica doesn't answer within the 95th percentile of the latest {@link #LATENCY_SAMPLES} latencies, the
+ * same request is sent to another replica and the first response is used. Until {@link #MIN_LATENCY_SAMPLES}
+ * latencies are known, the initial {@link #hedgeDelay} is used instead.<br />
+ * If the replica can't be reached or fails with a server error (5xx), the request is sent to another replica
+ * straight away and the failure counts as a request taking {@link #FAILED_REQUEST_LATENCY} ms, so a replica failing
+ * fast isn't mistaken for a fast replica. Client errors (4xx) would fail on every replica, they are thrown straight
+ * away without penalising the replica.
+ * </p>
+ * <p>
+ * Streamed responses are handed to a callback as they are received, they can't be sent twice nor retried once
+ * started. They are sent to a single replica, without hedging.
+ * </p>
+ * <p>
+ * Every replica is checked in the background with a query matching no document (the ping handler of solr fails
+ * unless its health check file exists). A replica failing to answer is ejected until it answers again, and the
+ * latency of each check is taken into account so a replica can recover from its failures.
+ * </p>
+ * <p>
+ * This server is meant for lookups only, modifications must be sent to the master.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class LoadBalancedSolrServer extends SolrServer {
+    private static final Logger logger = LoggerFactory.getLogger(LoadBalancedSolrServer.class);
+    /**
+     * Weight of the latest request in the average latency.
+     */
+    private static final double EWMA_WEIGHT = 0.3;
+    /**
+     * Latency (in ms) recorded for a failed request, the socket timeout of the Solr clients.
+     */
+    private static final long FAILED_REQUEST_LATENCY = 10000;
+    /**
+     * Number of latest request latencies from which the hedge delay is computed.
+     */
+    private static final int LATENCY_SAMPLES = 1000;
+    /**
+     * Number of latencies required before computing the hedge delay, and between two computations.
+     */
+    private static final int MIN_LATENCY_SAMPLES = 100;
+    /**
+     * Percentile of the latencies after which a request is sent to a second replica.
+     */
+    private static final double HEDGE_PERCENTILE = 0.95;
+    /**
+     * Minimal hedge delay (in ms), so fast requests aren't all sent twice.
+     */
+    private static final long MIN_HEDGE_DELAY = 10;
+    /**
+     * Query used to check the health of a replica, cheap and independent from the content of the index.
+     */
+    private static final SolrParams HEALTH_CHECK_QUERY = new SolrQuery("-*:*").setRows(0);
+    private final List<Replica> replicas;
+    /**
+     * Hedge delay (in ms) used until enough latencies are known.
+     */
+    private final long hedgeDelay;
+    /**
+     * Latest latencies of successful requests, used as a circular buffer.
+     */
+    private final long[] latencySamples = new long[LATENCY_SAMPLES];
+    private int latencySampleCount;
+    private int nextLatencySample;
+    private int latenciesSinceComputation;
+    private long percentileHedgeDelay;
+    private final Random random = new Random();
+    private final ExecutorService requestExecutor;
+    private final ScheduledExecutorService pingScheduler;
+
+    /**
+     * Creates a load balanced server over a list of replicas.
+     *
+     * @param replicaServers servers for each replica.
+     * @param hedgeDelay     delay (in ms) after which a request is sent to a second replica, until the latencies of
+     *                       the replicas are known.
+     * @param pingInterval   delay (in ms) between two health checks of the replicas.
+     */
+    public LoadBalancedSolrServer(List<? extends SolrServer> replicaServers, long hedgeDelay, long pingInterval) {
+        if (replicaServers.isEmpty())
+            throw new IllegalArgumentException("At least one replica is required");
+
+        List<Replica> replicas = new ArrayList<Replica>(replicaServers.size());
+        for (SolrServer replicaServer : replicaServers) {
+            replicas.add(new Replica(replicaServer));
+        }
+        this.replicas = Collections.unmodifiableList(replicas);
+        this.hedgeDelay = hedgeDelay;
+        this.requestExecutor = Executors.newCachedThreadPool();
+        this.pingScheduler = Executors.newSingleThreadScheduledExecutor();
+        pingScheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkReplicas();
+            }
+        }, pingInterval, pingInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public NamedList<Object> request(final SolrRequest request) throws SolrServerException, IOException {
+        List<Replica> candidates = getCandidates();
+        long currentHedgeDelay = getHedgeDelay();
+        CompletionService<NamedList<Object>> completionService =
+                new ExecutorCompletionService<NamedList<Object>>(requestExecutor);
+        List<Future<NamedList<Object>>> pendingRequests = new ArrayList<Future<NamedList<Object>>>(2);
+        Exception lastException = null;
+        int nextCandidate = 0;
+
+        try {
+            pendingRequests.add(completionService.submit(createCall(candidates.get(nextCandidate++), request)));
+            while (!pendingRequests.isEmpty()) {
+                // Only wait for the hedge delay if another replica is available
+                Future<NamedList<Object>> completed = (nextCandidate < candidates.size())
+                        ? completionService.poll(currentHedgeDelay, TimeUnit.MILLISECONDS)
+                        : completionService.take();
+
+                if (completed == null) {
+                    logger.debug("No response within {}ms, sending the request to another replica",
+                            currentHedgeDelay);
+                    pendingRequests.add(completionService.submit(createCall(candidates.get(nextCandidate++), request)));
+                    continue;
+                }
+
+                pendingRequests.remove(completed);
+                try {
+                    return completed.get();
+                } catch (ExecutionException e) {
+                    lastException = (Exception) e.getCause();
+                    // The request itself is wrong, another replica would reject it as well
+                    if (!isReplicaFailure(lastException))
+                        break;
+                    logger.warn("A replica failed to handle the request", lastException);
+                    if (pendingRequests.isEmpty() && nextCandidate < candidates.size())
+                        pendingRequests.add(completionService.submit(
+                                createCall(candidates.get(nextCandidate++), request)));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SolrServerException("Interrupted while waiting for a replica", e);
+        } finally {
+            // The slowest requests aren't useful anymore
+            for (Future<NamedList<Object>> pendingRequest : pendingRequests) {
+                pendingRequest.cancel(true);
+            }
+        }
+
+        if (lastException instanceof SolrServerException)
+            throw (SolrServerException) lastException;
+        else if (lastException instanceof IOException)
+            throw (IOException) lastException;
+        else if (lastException instanceof RuntimeException)
+            throw (RuntimeException) lastException;
+        else
+            throw new SolrServerException("No replica could handle the request", lastException);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The request is sent to the best candidate only, in the calling thread. Its latency depends on the callback as
+     * much as on the replica, it is only recorded if the replica fails.
+     * </p>
+     */
+    @Override
+    public QueryResponse queryAndStreamResponse(SolrParams params, StreamingResponseCallback callback)
+            throws SolrServerException, IOException {
+        Replica replica = getCandidates().get(0);
+        try {
+            return replica.getServer().queryAndStreamResponse(params, callback);
+        } catch (SolrServerException e) {
+            replica.updateLatency(FAILED_REQUEST_LATENCY);
+            throw e;
+        } catch (IOException e) {
+            replica.updateLatency(FAILED_REQUEST_LATENCY);
+            throw e;
+        } catch (SolrException e) {
+            if (isReplicaFailure(e))
+                replica.updateLatency(FAILED_REQUEST_LATENCY);
+            throw e;
+        }
+    }
+
+    /**
+     * Checks whether a failure is caused by the replica rather than by the request.
+     *
+     * @param e failure of a request.
+     * @return true if the replica couldn't be reached or failed with a server error, false for client errors.
+     */
+    private static boolean isReplicaFailure(Exception e) {
+        if (e instanceof SolrException)
+            return ((SolrException) e).code() >= SolrException.ErrorCode.SERVER_ERROR.code;
+        return e instanceof SolrServerException || e instanceof IOException;
+    }
+
+    /**
+     * Creates a call sending the request to a replica and keeping track of its latency.
+     *
+     * @param replica replica handling the request.
+     * @param request request to send.
+     * @return a call sending the request.
+     */
+    private Callable<NamedList<Object>> createCall(final Replica replica, final SolrRequest request) {
+        return new Callable<NamedList<Object>>() {
+            @Override
+            public NamedList<Object> call() throws Exception {
+                long start = System.currentTimeMillis();
+                try {
+                    NamedList<Object> response = replica.getServer().request(request);
+                    long latency = System.currentTimeMillis() - start;
+                    replica.updateLatency(latency);
+                    recordLatency(latency);
+                    return response;
+                } catch (Exception e) {
+                    // Failures are counted as very slow requests, however fast they failed
+                    long latency = System.currentTimeMillis() - start;
+                    replica.updateLatency(isReplicaFailure(e) ? Math.max(latency, FAILED_REQUEST_LATENCY) : latency);
+                    throw e;
+                }
+            }
+        };
+    }
+
+    /**
+     * Records the latency of a successful request, and computes the hedge delay again regularly.
+     *
+     * @param latency latency (in ms) of the request.
+     */
+    private synchronized void recordLatency(long latency) {
+        latencySamples[nextLatencySample] = latency;
+        nextLatencySample = (nextLatencySample + 1) % LATENCY_SAMPLES;
+        if (latencySampleCount < LATENCY_SAMPLES)
+            latencySampleCount++;
+
+        if (++latenciesSinceComputation >= MIN_LATENCY_SAMPLES) {
+            latenciesSinceComputation = 0;
+            long[] sortedSamples = Arrays.copyOf(latencySamples, latencySampleCount);
+            Arrays.sort(sortedSamples);
+            long percentile = sortedSamples[(int) Math.ceil(HEDGE_PERCENTILE * sortedSamples.length) - 1];
+            percentileHedgeDelay = Math.max(percentile, MIN_HEDGE_DELAY);
+        }
+    }
+
+    /**
+     * Gets the delay after which a request is sent to a second replica.
+     *
+     * @return the 95th percentile of the latest latencies, or the initial hedge delay if too few latencies are known.
+     */
+    synchronized long getHedgeDelay() {
+        return (latencySampleCount < MIN_LATENCY_SAMPLES) ? hedgeDelay : percentileHedgeDelay;
+    }
+
+    /**
+     * Orders the replicas in which the request should be attempted.
+     * <p>
+     * The best of two random healthy replicas comes first, followed by the other healthy replicas and finally the
+     * unhealthy ones, as a last resort.
+     * </p>
+     *
+     * @return the list of replicas in the order in which they should be used.
+     */
+    private List<Replica> getCandidates() {
+        List<Replica> healthyReplicas = new ArrayList<Replica>(replicas.size());
+        List<Replica> unhealthyReplicas = new ArrayList<Replica>();
+        for (Replica replica : replicas) {
+            if (replica.isHealthy())
+                healthyReplicas.add(replica);
+            else
+                unhealthyReplicas.add(replica);
+        }
+
+        Collections.shuffle(healthyReplicas, random);
+        // Power of two choices, the first two replicas are random, keep the fastest one first if both are measured
+        if (healthyReplicas.size() >= 2 && healthyReplicas.get(0).hasLatency() && healthyReplicas.get(1).hasLatency()
+                && healthyReplicas.get(1).getAverageLatency() < healthyReplicas.get(0).getAverageLatency())
+            Collections.swap(healthyReplicas, 0, 1);
+
+        // Unhealthy replicas are a last resort, don't always fall back on the same one
+        Collections.shuffle(unhealthyReplicas, random);
+        healthyReplicas.addAll(unhealthyReplicas);
+        return healthyReplicas;
+    }
+
+    /**
+     * Checks every replica and updates its health.
+     */
+    void checkReplicas() {
+        for (Replica replica : replicas) {
+            try {
+                replica.check();
+                if (!replica.isHealthy())
+                    logger.info("The replica '{}' is available again", replica.getServer());
+                replica.setHealthy(true);
+            } catch (Exception e) {
+                if (replica.isHealthy())
+                    logger.warn("The replica '{}' is unavailable and will be ignored", replica.getServer(), e);
+                replica.setHealthy(false);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of replicas currently considered as healthy.
+     *
+     * @return the number of healthy replicas.
+     */
+    public int getHealthyReplicaCount() {
+        int healthyReplicas = 0;
+        for (Replica replica : replicas) {
+            if (replica.isHealthy())
+                healthyReplicas++;
+        }
+        return healthyReplicas;
+    }
+
+    /**
+     * Gets the server of every replica, healthy or not.
+     *
+     * @return the servers of the replicas.
+     */
+    public List<SolrServer> getReplicaServers() {
+        List<SolrServer> replicaServers = new ArrayList<SolrServer>(replicas.size());
+        for (Replica replica : replicas) {
+            replicaServers.add(replica.getServer());
+        }
+        return replicaServers;
+    }
+
+    @Override
+    public void shutdown() {
+        pingScheduler.shutdownNow();
+        requestExecutor.shutdownNow();
+        for (Replica replica : replicas) {
+            replica.getServer().shutdown();
+        }
+    }
+
+    /**
+     * Replica with its health and its average latency.
+     */
+    private static final class Replica {
+        private final SolrServer server;
+        private volatile boolean healthy = true;
+        private double averageLatency;
+        private boolean latencyMeasured;
+
+        private Replica(SolrServer server) {
+            this.server = server;
+        }
+
+        public SolrServer getServer() {
+            return server;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        public void setHealthy(boolean healthy) {
+            this.healthy = healthy;
+        }
+
+        public synchronized double getAverageLatency() {
+            return averageLatency;
+        }
+
+        public synchronized boolean hasLatency() {
+            return latencyMeasured;
+        }
+
+        private synchronized void updateLatency(long latency) {
+            // The first latency is the average, instead of being averaged with a fictitious latency of 0
+            averageLatency = latencyMeasured ? EWMA_WEIGHT * latency + (1 - EWMA_WEIGHT) * averageLatency : latency;
+            latencyMeasured = true;
+        }
+
+        /**
+         * Sends the health check query to this replica and keeps track of its latency.
+         *
+         * @throws SolrServerException if the replica couldn't handle the query.
+         */
+        public void check() throws SolrServerException {
+            long start = System.currentTimeMillis();
+            try {
+                server.query(HEALTH_CHECK_QUERY);
+                updateLatency(System.currentTimeMillis() - start);
+            } catch (SolrServerException e) {
+                updateLatency(FAILED_REQUEST_LATENCY);
+                throw e;
+            } catch (RuntimeException e) {
+                updateLatency(FAILED_REQUEST_LATENCY);
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.sakaiproject.search.solr.util;
+
+import org.sakaiproject.cluster.api.ClusterService;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Selects the only server of the cluster running the periodic maintenance of the index.
+ * <p>
+ * Every Sakai server schedules the same maintenance operations, but they only need to be done once for the whole
+ * cluster.<br />
+ * The maintenance server is the first active server of the cluster (ordered by server id), if it stops, another
+ * server takes over at the next check.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class MaintenanceServerSelector {
+    private static final Logger logger = LoggerFactory.getLogger(MaintenanceServerSelector.class);
+    private ClusterService clusterService;
+    private ServerConfigurationService serverConfigurationService;
+
+    /**
+     * Checks whether the current server is in charge of the maintenance of the index.
+     *
+     * @return true if the current server is the first active server of the cluster, or if the active servers are
+     *         unknown.
+     */
+    public boolean isMaintenanceServer() {
+        List<String> servers = clusterService.getServers();
+        if (servers == null || servers.isEmpty())
+            return true;
+
+        String maintenanceServer = Collections.min(servers);
+        logger.debug("The maintenance of the index is done by '{}'", maintenanceServer);
+        return maintenanceServer.equals(serverConfigurationService.getServerIdInstance());
+    }
+
+    public void setClusterService(ClusterService clusterService) {
+        this.clusterService = clusterService;
+    }
+
+    public void setServerConfigurationService(ServerConfigurationService serverConfigurationService) {
+        this.serverConfigurationService = serverConfigurationService;
+    }
+}
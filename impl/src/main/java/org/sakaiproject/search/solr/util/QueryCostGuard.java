@@ -0,0 +1,214 @@
+package org.sakaiproject.search.solr.util;
+
+import org.sakaiproject.search.api.InvalidSearchQueryException;
+import org.sakaiproject.search.api.SearchService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Checks the cost of search queries typed by users before they're sent to solr.
+ * <p>
+ * Each clause of the query is given a cost: a term costs {@link #TERM_COST}, a phrase costs {@link #PHRASE_TERM_COST}
+ * for each of its words and a wildcard term costs {@link #WILDCARD_COST}, as it is expanded to every matching term of
+ * the index. Queries costing more than {@link #maxCost} (typically huge lists of terms) are rejected.
+ * </p>
+ * <p>
+ * Constructs enumerating the whole dictionary of the index are rewritten or rejected:
+ * <ul>
+ * <li>A leading wildcard on a full text field is looked up in {@link #REVERSED_FIELD}, which indexes every term
+ * reversed, so solr enumerates the terms starting with the end of the word instead of every term.</li>
+ * <li>A wildcard term on a full text field whose prefix is shorter than {@link #minPrefixLength} characters is
+ * rejected, searching it as a plain term would silently return different results.</li>
+ * <li>Terms made only of wildcards are rejected.</li>
+ * </ul>
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class QueryCostGuard {
+    /**
+     * Field in which the terms of the contents and titles are also indexed reversed.
+     */
+    public static final String REVERSED_FIELD = "text_rev";
+    /**
+     * Fields containing full text, which have too many terms to be enumerated from a leading wildcard.
+     */
+    public static final List<String> FULL_TEXT_FIELDS = Collections.unmodifiableList(Arrays.asList(
+            "text", SearchService.FIELD_CONTENTS, SearchService.FIELD_TITLE));
+    private static final Logger logger = LoggerFactory.getLogger(QueryCostGuard.class);
+    private static final int TERM_COST = 1;
+    private static final int PHRASE_TERM_COST = 2;
+    private static final int WILDCARD_COST = 10;
+    private static final int DEFAULT_MAX_COST = 100;
+    private static final int DEFAULT_MIN_PREFIX_LENGTH = 3;
+    /**
+     * Phrases (even if the closing quote is missing) or any sequence of non blank characters.
+     */
+    private static final Pattern CLAUSE_PATTERN = Pattern.compile("\"[^\"]*\"?|\\S+");
+    /**
+     * Clause split into its modifiers (+, -, opening parentheses), field, term and ending (boost, closing parentheses).
+     */
+    private static final Pattern TERM_PATTERN = Pattern.compile("([+\\-!(]*)(?:(\\w+):)?(.*?)((?:\\^[\\d.]*)?\\)*)");
+    private static final List<String> OPERATORS = Arrays.asList("AND", "OR", "NOT", "&&", "||");
+    private int maxCost = DEFAULT_MAX_COST;
+    private int minPrefixLength = DEFAULT_MIN_PREFIX_LENGTH;
+    private final AtomicLong checkedQueries = new AtomicLong();
+    private final AtomicLong rewrittenQueries = new AtomicLong();
+    private final AtomicLong rejectedQueries = new AtomicLong();
+
+    /**
+     * Checks the cost of a search query and rewrites its expensive clauses.
+     *
+     * @param searchTerms search query typed by the user.
+     * @return the query to send to solr, the same query if nothing was rewritten.
+     * @throws InvalidSearchQueryException if the query is too expensive to be executed.
+     */
+    public String checkQuery(String searchTerms) throws InvalidSearchQueryException {
+        checkedQueries.incrementAndGet();
+        if (searchTerms == null)
+            return null;
+
+        StringBuilder sb = new StringBuilder(searchTerms.length());
+        boolean rewritten = false;
+        int cost = 0;
+        Matcher clauseMatcher = CLAUSE_PATTERN.matcher(searchTerms);
+        int lastEnd = 0;
+        while (clauseMatcher.find()) {
+            sb.append(searchTerms, lastEnd, clauseMatcher.start());
+            lastEnd = clauseMatcher.end();
+            String clause = clauseMatcher.group();
+
+            if (OPERATORS.contains(clause)) {
+                sb.append(clause);
+            } else if (clause.startsWith("\"")) {
+                cost += PHRASE_TERM_COST * Math.max(1, clause.replace("\"", "").trim().split("\\s+").length);
+                sb.append(clause);
+            } else {
+                String rewrittenClause = rewriteClause(searchTerms, clause);
+                cost += isWildcard(rewrittenClause) ? WILDCARD_COST : TERM_COST;
+                rewritten |= !clause.equals(rewrittenClause);
+                sb.append(rewrittenClause);
+            }
+
+            if (cost > maxCost)
+                throw reject("The search '" + searchTerms + "' is too expensive, "
+                        + "it contains too many terms or wildcards");
+        }
+        sb.append(searchTerms, lastEnd, searchTerms.length());
+
+        if (!rewritten)
+            return searchTerms;
+        rewrittenQueries.incrementAndGet();
+        logger.debug("The search '{}' has been rewritten as '{}'", searchTerms, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Rewrites a single clause of a query if it would enumerate the dictionary of the index.
+     *
+     * @param searchTerms whole query, used in error messages.
+     * @param clause      clause of the query, not a phrase.
+     * @return the rewritten clause, the same clause if it isn't expensive.
+     * @throws InvalidSearchQueryException if the clause can't be rewritten.
+     */
+    private String rewriteClause(String searchTerms, String clause) throws InvalidSearchQueryException {
+        Matcher termMatcher = TERM_PATTERN.matcher(clause);
+        if (!termMatcher.matches())
+            return clause;
+        String modifiers = termMatcher.group(1);
+        String field = termMatcher.group(2);
+        String term = termMatcher.group(3);
+        String ending = termMatcher.group(4);
+
+        // Match all documents, the only query made of wildcards that doesn't enumerate the terms
+        if ("*:*".equals(term) || !isWildcard(term))
+            return clause;
+        if (term.replace("*", "").replace("?", "").isEmpty())
+            throw reject("The search '" + searchTerms + "' contains a term made only of wildcards");
+
+        boolean fullTextField = field == null || FULL_TEXT_FIELDS.contains(field);
+        if (fullTextField && (term.charAt(0) == '*' || term.charAt(0) == '?'))
+            return modifiers + REVERSED_FIELD + ':' + term + ending;
+
+        if (fullTextField && getPrefixLength(term) < minPrefixLength)
+            throw reject("The search '" + searchTerms + "' contains a wildcard after fewer than " + minPrefixLength
+                    + " characters");
+
+        return clause;
+    }
+
+    private InvalidSearchQueryException reject(String message) {
+        rejectedQueries.incrementAndGet();
+        logger.info(message);
+        return new InvalidSearchQueryException(message);
+    }
+
+    /**
+     * Checks whether a term contains a wildcard that isn't escaped.
+     *
+     * @param term term to check.
+     * @return true if the term is expanded by solr to the matching terms of the index.
+     */
+    private static boolean isWildcard(String term) {
+        return getPrefixLength(term) < term.length();
+    }
+
+    /**
+     * Gets the number of characters before the first wildcard that isn't escaped.
+     *
+     * @param term term containing wildcards.
+     * @return the length of the fixed part of the term, the length of the term if it doesn't contain wildcards.
+     */
+    private static int getPrefixLength(String term) {
+        for (int i = 0; i < term.length(); i++) {
+            char c = term.charAt(i);
+            if (c == '\\')
+                i++;
+            else if (c == '*' || c == '?')
+                return i;
+        }
+        return term.length();
+    }
+
+    /**
+     * Gets the number of queries checked.
+     *
+     * @return the number of queries checked since the start.
+     */
+    public long getCheckedQueries() {
+        return checkedQueries.get();
+    }
+
+    /**
+     * Gets the number of queries rewritten.
+     *
+     * @return the number of queries rewritten since the start.
+     */
+    public long getRewrittenQueries() {
+        return rewrittenQueries.get();
+    }
+
+    /**
+     * Gets the number of queries rejected.
+     *
+     * @return the number of queries rejected since the start.
+     */
+    public long getRejectedQueries() {
+        return rejectedQueries.get();
+    }
+
+    public void setMaxCost(int maxCost) {
+        this.maxCost = maxCost;
+    }
+
+    public void setMinPrefixLength(int minPrefixLength) {
+        this.minPrefixLength = minPrefixLength;
+    }
+}
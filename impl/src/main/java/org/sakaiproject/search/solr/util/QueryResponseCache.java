@@ -0,0 +1,353 @@
+package org.sakaiproject.search.solr.util;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.params.TermVectorParams;
+import org.apache.solr.common.util.NamedList;
+import org.sakaiproject.search.solr.response.SolrSearchList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the raw responses of search queries.
+ * <p>
+ * The same searches are often run multiple times in a short time (common terms in a course, going back and forth
+ * between pages). Responses are cached based on the normalised query, the set of sites, the realms used to restrict
+ * the results, the requested range and the filter and sorter names.
+ * </p>
+ * <p>
+ * Every cached response is bound to the version of the index it comes from. The version is obtained from the Luke
+ * handler every {@link #versionCheckInterval} seconds, once the index changes, previous responses aren't used anymore
+ * and are evicted. If the version can't be obtained, nothing is cached.<br />
+ * With replicas, the version comes from the master, a response may be outdated until the replicas are synchronised.
+ * <br />
+ * With SolrCloud, the Luke handler only gives the version of the shard answering the request, while the other
+ * shards can change independently. Responses are never cached in that case.
+ * </p>
+ * <p>
+ * The cache is bounded by the estimated size of the responses ({@link #maximumWeight} bytes).<br />
+ * Only raw responses are cached, the results are still filtered for each user after being retrieved from the cache.
+ * <br />
+ * Responses of searches interrupted after the time allowed are incomplete, they are returned without being cached.
+ * </p>
+ * <p>
+ * The statistics of the cache (hit rate, evictions...) are logged every {@link #statsLogInterval} seconds.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class QueryResponseCache {
+    private static final Logger logger = LoggerFactory.getLogger(QueryResponseCache.class);
+    private static final String LUKE_HANDLER = "/admin/luke";
+    private static final long UNKNOWN_VERSION = -1;
+    private static final long DEFAULT_MAXIMUM_WEIGHT = 50 * 1024 * 1024;
+    private static final long DEFAULT_EXPIRY = 10 * 60;
+    private static final long DEFAULT_VERSION_CHECK_INTERVAL = 5;
+    private static final long DEFAULT_STATS_LOG_INTERVAL = 15 * 60;
+    /**
+     * Rough size (in bytes) of any object that isn't a String.
+     */
+    private static final int OBJECT_SIZE = 16;
+    /**
+     * Maximum estimated size (in bytes) of the cached responses.
+     */
+    private long maximumWeight = DEFAULT_MAXIMUM_WEIGHT;
+    /**
+     * Time (in seconds) after which a response is evicted, even if the index hasn't changed.
+     */
+    private long expiry = DEFAULT_EXPIRY;
+    /**
+     * Time (in seconds) between two checks of the version of the index.
+     */
+    private long versionCheckInterval = DEFAULT_VERSION_CHECK_INTERVAL;
+    /**
+     * Time (in seconds) between two logs of the statistics of the cache, 0 to never log them.
+     */
+    private long statsLogInterval = DEFAULT_STATS_LOG_INTERVAL;
+    private SolrServer solrServer;
+    private Cache<QueryKey, QueryResponse> responses;
+    private volatile long indexVersion = UNKNOWN_VERSION;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Initialises the cache and starts checking the version of the index.
+     */
+    public void init() {
+        responses = CacheBuilder.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher(new Weigher<QueryKey, QueryResponse>() {
+                    @Override
+                    public int weigh(QueryKey key, QueryResponse response) {
+                        return estimateSize(response.getResponse());
+                    }
+                })
+                .expireAfterWrite(expiry, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+
+        if (solrServer instanceof SolrServerAdapter && ((SolrServerAdapter) solrServer).isCloudMode()) {
+            logger.info("The version of a SolrCloud index can't be checked, search responses won't be cached");
+            return;
+        }
+
+        checkIndexVersion();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkIndexVersion();
+            }
+        }, versionCheckInterval, versionCheckInterval, TimeUnit.SECONDS);
+        if (statsLogInterval > 0) {
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    logStats();
+                }
+            }, statsLogInterval, statsLogInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops checking the version of the index and empties the cache.
+     */
+    public void destroy() {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+        responses.invalidateAll();
+    }
+
+    /**
+     * Gets the response of a search query, from the cache if the same query has been run on the current index.
+     *
+     * @param searchTerms terms of the search query.
+     * @param siteIds     sites in which the search is done, can be null.
+     * @param authzGroups realms used to restrict the results, can be null.
+     * @param start       position of the first result.
+     * @param end         position of the last result.
+     * @param filterName  name of the filter applied to the results, can be null.
+     * @param sorterName  name of the sorter applied to the results, can be null.
+     * @param query       query actually sent to solr if the response isn't cached.
+     * @return the response to the search query.
+     * @throws SolrServerException if the query failed.
+     */
+    public QueryResponse getResponse(String searchTerms, List<String> siteIds, List<String> authzGroups,
+                                     int start, int end, String filterName, String sorterName,
+                                     final SolrQuery query)
+            throws SolrServerException {
+        long currentVersion = indexVersion;
+        if (currentVersion == UNKNOWN_VERSION)
+            return solrServer.query(query);
+
+        QueryKey key = new QueryKey(currentVersion, searchTerms, siteIds, authzGroups, start, end,
+                filterName, sorterName, query.getBool(TermVectorParams.TV, false), query.getFacetFields());
+        try {
+            return responses.get(key, new Callable<QueryResponse>() {
+                @Override
+                public QueryResponse call() throws Exception {
+                    QueryResponse response = solrServer.query(query);
+                    // Failing the load keeps an incomplete response out of the cache, it is still returned below
+                    if (SolrSearchList.isPartialResults(response))
+                        throw new PartialResponseException(response);
+                    return response;
+                }
+            });
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PartialResponseException)
+                return ((PartialResponseException) e.getCause()).getResponse();
+            else if (e.getCause() instanceof SolrServerException)
+                throw (SolrServerException) e.getCause();
+            else
+                throw new SolrServerException(e.getCause());
+        }
+    }
+
+    /**
+     * Obtains the current version of the index and evicts every response if the index changed.
+     */
+    void checkIndexVersion() {
+        long newVersion;
+        try {
+            SolrQuery query = new SolrQuery()
+                    .setRequestHandler(LUKE_HANDLER)
+                    .set("show", "index")
+                    .set("numTerms", 0);
+            NamedList<?> indexStatistics = (NamedList<?>) solrServer.query(query).getResponse().get("index");
+            newVersion = ((Number) indexStatistics.get("version")).longValue();
+        } catch (Exception e) {
+            logger.warn("Couldn't obtain the version of the index, search responses won't be cached", e);
+            newVersion = UNKNOWN_VERSION;
+        }
+
+        if (newVersion != indexVersion) {
+            logger.debug("The version of the index changed from {} to {}", indexVersion, newVersion);
+            indexVersion = newVersion;
+            responses.invalidateAll();
+        }
+    }
+
+    /**
+     * Gets the statistics of the cache.
+     *
+     * @return the number of hits, misses and evictions of the cache.
+     */
+    public CacheStats getStats() {
+        return responses.stats();
+    }
+
+    /**
+     * Logs the statistics of the cache since its initialisation.
+     */
+    void logStats() {
+        CacheStats stats = responses.stats();
+        logger.info("Search response cache: {} responses, hit rate {}% ({} hits, {} misses, {} evictions)",
+                new Object[]{responses.size(), Math.round(stats.hitRate() * 100), stats.hitCount(), stats.missCount(),
+                        stats.evictionCount()});
+    }
+
+    /**
+     * Estimates the memory used by a part of a solr response.
+     *
+     * @param value part of the response.
+     * @return the estimated size of the value in bytes.
+     */
+    private static int estimateSize(Object value) {
+        int size = OBJECT_SIZE;
+        if (value instanceof String) {
+            size += ((String) value).length() * 2;
+        } else if (value instanceof NamedList) {
+            NamedList<?> namedList = (NamedList<?>) value;
+            for (int i = 0; i < namedList.size(); i++) {
+                size += estimateSize(namedList.getName(i)) + estimateSize(namedList.getVal(i));
+            }
+        } else if (value instanceof SolrDocument) {
+            size += estimateSize(((SolrDocument) value).getFieldValueMap());
+        } else if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+            }
+        } else if (value instanceof Collection) {
+            for (Object element : (Collection<?>) value) {
+                size += estimateSize(element);
+            }
+        }
+        return size;
+    }
+
+    public void setSolrServer(SolrServer solrServer) {
+        this.solrServer = solrServer;
+    }
+
+    public void setMaximumWeight(long maximumWeight) {
+        this.maximumWeight = maximumWeight;
+    }
+
+    public void setExpiry(long expiry) {
+        this.expiry = expiry;
+    }
+
+    public void setVersionCheckInterval(long versionCheckInterval) {
+        this.versionCheckInterval = versionCheckInterval;
+    }
+
+    public void setStatsLogInterval(long statsLogInterval) {
+        this.statsLogInterval = statsLogInterval;
+    }
+
+    /**
+     * Incomplete response, thrown to prevent it from being cached.
+     */
+    private static final class PartialResponseException extends Exception {
+        private final transient QueryResponse response;
+
+        private PartialResponseException(QueryResponse response) {
+            this.response = response;
+        }
+
+        public QueryResponse getResponse() {
+            return response;
+        }
+    }
+
+    /**
+     * Normalised search query, bound to a version of the index.
+     */
+    private static final class QueryKey {
+        private final long indexVersion;
+        private final String searchTerms;
+        private final List<String> siteIds;
+        private final List<String> authzGroups;
+        private final int start;
+        private final int end;
+        private final String filterName;
+        private final String sorterName;
+        private final boolean termVectors;
+        private final List<String> facetFields;
+
+        private QueryKey(long indexVersion, String searchTerms, List<String> siteIds, List<String> authzGroups,
+                         int start, int end, String filterName, String sorterName, boolean termVectors,
+                         String[] facetFields) {
+            this.indexVersion = indexVersion;
+            // Extra spaces don't change the results
+            this.searchTerms = (searchTerms != null) ? searchTerms.trim().replaceAll("\\s+", " ") : null;
+            // Neither does the order of the sites
+            this.siteIds = (siteIds != null)
+                    ? new ArrayList<String>(new TreeSet<String>(siteIds))
+                    : Collections.<String>emptyList();
+            this.authzGroups = authzGroups;
+            this.start = start;
+            this.end = end;
+            this.filterName = filterName;
+            this.sorterName = sorterName;
+            this.termVectors = termVectors;
+            this.facetFields = (facetFields != null)
+                    ? Arrays.asList(facetFields)
+                    : Collections.<String>emptyList();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            QueryKey that = (QueryKey) o;
+            return indexVersion == that.indexVersion
+                    && start == that.start
+                    && end == that.end
+                    && termVectors == that.termVectors
+                    && Objects.equal(searchTerms, that.searchTerms)
+                    && siteIds.equals(that.siteIds)
+                    && Objects.equal(authzGroups, that.authzGroups)
+                    && Objects.equal(filterName, that.filterName)
+                    && Objects.equal(sorterName, that.sorterName)
+                    && facetFields.equals(that.facetFields);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(indexVersion, searchTerms, siteIds, authzGroups, start, end, filterName,
+                    sorterName, termVectors, facetFields);
+        }
+    }
+}
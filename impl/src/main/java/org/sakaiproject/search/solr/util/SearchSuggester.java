@@ -0,0 +1,302 @@
+package org.sakaiproject.search.solr.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.FacetField;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.client.solrj.response.SpellCheckResponse;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.SpellingParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Autocompletion and spelling suggestions for search queries.
+ * <p>
+ * The last word of the query is completed with the terms indexed in the {@link #SUGGEST_FIELD} field (titles,
+ * contents and tools).<br />
+ * Suggestions are always restricted to some documents (the sites and realms of the user), otherwise they would
+ * reveal terms of documents the user can't read.<br />
+ * Candidate terms come from the FST-based suggester of solr (/suggest), which is kept in memory by solr and rebuilt
+ * periodically by the {@link org.sakaiproject.search.solr.indexing.SpellingDictionaryBuilder}. Only the candidates
+ * found in the matching documents are suggested. If none of them are found, terms are enumerated with a facet prefix
+ * on the matching documents instead, provided the last word has at least {@link #minPrefixLength} characters (shorter
+ * prefixes would enumerate too many terms, like the wildcards rejected by the {@link QueryCostGuard}).
+ * </p>
+ * <p>
+ * Suggestions are requested again and again while the user types, the latest ones are kept in memory for
+ * {@link #expiry} seconds.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class SearchSuggester {
+    /**
+     * Field from which terms are suggested.
+     */
+    public static final String SUGGEST_FIELD = "text";
+    private static final Logger logger = LoggerFactory.getLogger(SearchSuggester.class);
+    private static final String SUGGEST_HANDLER = "/suggest";
+    private static final String SPELL_HANDLER = "/spell";
+    /**
+     * Parameter enabling the spellcheck component, {@link SpellingParams#SPELLCHECK_PREFIX} is only the prefix of its
+     * options.
+     */
+    private static final String SPELLCHECK_PARAM = "spellcheck";
+    private static final int DEFAULT_SUGGESTION_COUNT = 5;
+    private static final long DEFAULT_MAXIMUM_SIZE = 1000;
+    private static final long DEFAULT_EXPIRY = 5 * 60;
+    private static final int DEFAULT_MIN_PREFIX_LENGTH = 3;
+    /**
+     * Number of candidates obtained from the suggester for each suggestion returned.
+     */
+    private static final int CANDIDATES_PER_SUGGESTION = 4;
+    /**
+     * Terms appearing in fewer documents are enumerated directly instead of using solr's filterCache.
+     */
+    private static final int FACET_ENUM_CACHE_MIN_DF = 1000;
+    private int suggestionCount = DEFAULT_SUGGESTION_COUNT;
+    private long maximumSize = DEFAULT_MAXIMUM_SIZE;
+    private long expiry = DEFAULT_EXPIRY;
+    /**
+     * Minimum number of characters of the last word before enumerating the indexed terms starting with it.
+     */
+    private int minPrefixLength = DEFAULT_MIN_PREFIX_LENGTH;
+    /**
+     * Server on which suggestions are looked up.
+     */
+    private SolrServer solrServer;
+    private Cache<List<Object>, List<String>> suggestions;
+
+    /**
+     * Initialises the cache.
+     */
+    public void init() {
+        suggestions = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expiry, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Empties the cache.
+     */
+    public void destroy() {
+        suggestions.invalidateAll();
+    }
+
+    /**
+     * Completes the last word of a search query.
+     *
+     * @param searchString  search query typed so far.
+     * @param filterQueries filters restricting the documents from which terms are suggested.
+     * @return the search query with its last word completed, the most frequent terms first. Nothing is suggested
+     *         without filters.
+     */
+    public List<String> getSuggestions(String searchString, List<String> filterQueries) {
+        final String normalisedSearch = searchString.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ENGLISH);
+        if (normalisedSearch.isEmpty() || filterQueries.isEmpty())
+            return Collections.emptyList();
+        final List<String> sortedFilterQueries = new ArrayList<String>(filterQueries);
+        Collections.sort(sortedFilterQueries);
+
+        try {
+            return suggestions.get(Arrays.<Object>asList(normalisedSearch, sortedFilterQueries),
+                    new Callable<List<String>>() {
+                        @Override
+                        public List<String> call() throws Exception {
+                            return lookupSuggestions(normalisedSearch, sortedFilterQueries);
+                        }
+                    });
+        } catch (ExecutionException e) {
+            logger.warn("Couldn't obtain suggestions for '{}'", searchString, e.getCause());
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Gets a corrected version of a search query.
+     *
+     * @param searchString search query.
+     * @return the corrected query, null if the query is correctly spelled or can't be corrected.
+     */
+    public String getSpellingSuggestion(final String searchString) {
+        try {
+            List<String> correction = suggestions.get(Arrays.<Object>asList(SPELL_HANDLER, searchString),
+                    new Callable<List<String>>() {
+                        @Override
+                        public List<String> call() throws Exception {
+                            String collation = lookupSpellingSuggestion(searchString);
+                            return (collation != null)
+                                    ? Collections.singletonList(collation)
+                                    : Collections.<String>emptyList();
+                        }
+                    });
+            return correction.isEmpty() ? null : correction.get(0);
+        } catch (ExecutionException e) {
+            logger.warn("Couldn't obtain a spelling suggestion for '{}'", searchString, e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Gets statistics on the suggestions cache.
+     *
+     * @return the statistics of the cache.
+     */
+    public CacheStats getStats() {
+        return suggestions.stats();
+    }
+
+    private List<String> lookupSuggestions(String normalisedSearch, List<String> filterQueries)
+            throws SolrServerException {
+        int lastWordIndex = normalisedSearch.lastIndexOf(' ') + 1;
+        String searchStart = normalisedSearch.substring(0, lastWordIndex);
+        String lastWord = normalisedSearch.substring(lastWordIndex);
+
+        List<String> terms = keepIndexedTerms(lookupSuggestedTerms(lastWord), filterQueries);
+        if (terms.isEmpty() && lastWord.length() >= minPrefixLength)
+            terms = lookupIndexedTerms(lastWord, filterQueries);
+        List<String> completedSearches = new ArrayList<String>(terms.size());
+        for (String term : terms) {
+            completedSearches.add(searchStart + term);
+        }
+        return Collections.unmodifiableList(completedSearches);
+    }
+
+    /**
+     * Looks up the candidate terms starting with a prefix in the suggester.
+     *
+     * @param prefix start of the term.
+     * @return the terms found by the suggester in the whole index, the most frequent first.
+     * @throws SolrServerException if the suggester couldn't be reached.
+     */
+    private List<String> lookupSuggestedTerms(String prefix) throws SolrServerException {
+        QueryResponse response = solrServer.query(new SolrQuery()
+                .setRequestHandler(SUGGEST_HANDLER)
+                .setQuery(prefix)
+                .setParam(SpellingParams.SPELLCHECK_COUNT,
+                        String.valueOf(suggestionCount * CANDIDATES_PER_SUGGESTION)));
+        SpellCheckResponse spellCheckResponse = response.getSpellCheckResponse();
+        if (spellCheckResponse == null || spellCheckResponse.getSuggestions().isEmpty())
+            return Collections.emptyList();
+        return spellCheckResponse.getSuggestions().get(0).getAlternatives();
+    }
+
+    /**
+     * Keeps the candidate terms found in the documents matching the filters.
+     *
+     * @param candidates    terms suggested for the whole index.
+     * @param filterQueries filters restricting the documents.
+     * @return at most {@link #suggestionCount} candidates found in the matching documents, in the same order.
+     * @throws SolrServerException if the terms couldn't be checked.
+     */
+    private List<String> keepIndexedTerms(List<String> candidates, List<String> filterQueries)
+            throws SolrServerException {
+        if (candidates.isEmpty())
+            return Collections.emptyList();
+
+        SolrQuery query = new SolrQuery()
+                .setQuery("*:*")
+                .setRows(0)
+                .setFacet(true);
+        query.setFilterQueries(filterQueries.toArray(new String[filterQueries.size()]));
+        for (String candidate : candidates) {
+            query.addFacetQuery(createTermQuery(candidate));
+        }
+
+        Map<String, Integer> candidateCounts = solrServer.query(query).getFacetQuery();
+        if (candidateCounts == null)
+            return Collections.emptyList();
+        List<String> terms = new ArrayList<String>(suggestionCount);
+        for (String candidate : candidates) {
+            Integer count = candidateCounts.get(createTermQuery(candidate));
+            if (count != null && count > 0 && terms.size() < suggestionCount)
+                terms.add(candidate);
+        }
+        return terms;
+    }
+
+    private static String createTermQuery(String term) {
+        return "{!term f=" + SUGGEST_FIELD + "}" + term;
+    }
+
+    /**
+     * Looks up the terms starting with a prefix in the documents matching the filters.
+     *
+     * @param prefix        start of the term.
+     * @param filterQueries filters restricting the documents.
+     * @return the most frequent terms in the matching documents.
+     * @throws SolrServerException if the terms couldn't be obtained.
+     */
+    private List<String> lookupIndexedTerms(String prefix, List<String> filterQueries) throws SolrServerException {
+        SolrQuery query = new SolrQuery()
+                .setQuery("*:*")
+                .setRows(0)
+                .setFacet(true)
+                .addFacetField(SUGGEST_FIELD)
+                .setFacetPrefix(prefix)
+                .setFacetLimit(suggestionCount)
+                .setFacetMinCount(1)
+                .setParam(FacetParams.FACET_METHOD, FacetParams.FACET_METHOD_enum)
+                .setParam(FacetParams.FACET_ENUM_CACHE_MINDF, String.valueOf(FACET_ENUM_CACHE_MIN_DF));
+        query.setFilterQueries(filterQueries.toArray(new String[filterQueries.size()]));
+
+        FacetField facetField = solrServer.query(query).getFacetField(SUGGEST_FIELD);
+        if (facetField == null || facetField.getValues() == null)
+            return Collections.emptyList();
+        List<String> terms = new ArrayList<String>(facetField.getValueCount());
+        for (FacetField.Count count : facetField.getValues()) {
+            terms.add(count.getName());
+        }
+        return terms;
+    }
+
+    private String lookupSpellingSuggestion(String searchString) throws SolrServerException {
+        QueryResponse response = solrServer.query(new SolrQuery()
+                .setRequestHandler(SPELL_HANDLER)
+                .setQuery(searchString)
+                .setParam(SPELLCHECK_PARAM, true)
+                .setParam(SpellingParams.SPELLCHECK_COLLATE, true));
+        SpellCheckResponse spellCheckResponse = response.getSpellCheckResponse();
+        if (spellCheckResponse == null || spellCheckResponse.isCorrectlySpelled())
+            return null;
+        else
+            return spellCheckResponse.getCollatedResult();
+    }
+
+    public void setSuggestionCount(int suggestionCount) {
+        this.suggestionCount = suggestionCount;
+    }
+
+    public void setMaximumSize(long maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    public void setExpiry(long expiry) {
+        this.expiry = expiry;
+    }
+
+    public void setMinPrefixLength(int minPrefixLength) {
+        this.minPrefixLength = minPrefixLength;
+    }
+
+    public void setSolrServer(SolrServer solrServer) {
+        this.solrServer = solrServer;
+    }
+}
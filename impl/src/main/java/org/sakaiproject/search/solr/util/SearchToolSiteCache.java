@@ -0,0 +1,123 @@
+package org.sakaiproject.search.solr.util;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.sakaiproject.exception.IdUnusedException;
+import org.sakaiproject.search.solr.SolrSearchIndexBuilder;
+import org.sakaiproject.site.api.Site;
+import org.sakaiproject.site.api.SiteService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the sites containing the search tool.
+ * <p>
+ * When only sites with the search tool are indexed, the presence of the tool has to be checked for every single event.
+ * Loading a site and its tools is expensive, so the result of this check is kept for a limited amount of time.<br />
+ * The cache is bounded in size and entries expire after {@link #expiry} seconds. Entries should be invalidated
+ * with {@link #invalidate(String)} as soon as a site is modified.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class SearchToolSiteCache {
+    private static final Logger logger = LoggerFactory.getLogger(SearchToolSiteCache.class);
+    private static final long DEFAULT_MAXIMUM_SIZE = 100000;
+    private static final long DEFAULT_EXPIRY = 10 * 60;
+    private long maximumSize = DEFAULT_MAXIMUM_SIZE;
+    private long expiry = DEFAULT_EXPIRY;
+    private SiteService siteService;
+    private LoadingCache<String, Boolean> searchToolSites;
+
+    /**
+     * Initialises the cache.
+     */
+    public void init() {
+        searchToolSites = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expiry, TimeUnit.SECONDS)
+                .build(new CacheLoader<String, Boolean>() {
+                    @Override
+                    public Boolean load(String siteId) throws Exception {
+                        try {
+                            return hasSearchToolUncached(siteService.getSite(siteId));
+                        } catch (IdUnusedException e) {
+                            logger.warn("Couldn't find the site '{}'", siteId, e);
+                            return false;
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Checks whether a site contains the search tool.
+     *
+     * @param siteId identifier of the site to check.
+     * @return true if the site exists and contains the search tool, false otherwise.
+     */
+    public boolean hasSearchTool(String siteId) {
+        try {
+            return searchToolSites.get(siteId);
+        } catch (ExecutionException e) {
+            logger.warn("Couldn't check if the site '{}' contains the search tool", siteId, e.getCause());
+            return false;
+        }
+    }
+
+    /**
+     * Checks whether an already loaded site contains the search tool.
+     * <p>
+     * Using the site directly avoids loading it again if the result isn't cached yet.
+     * </p>
+     *
+     * @param site site to check.
+     * @return true if the site contains the search tool, false otherwise.
+     */
+    public boolean hasSearchTool(final Site site) {
+        try {
+            return searchToolSites.get(site.getId(), new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return hasSearchToolUncached(site);
+                }
+            });
+        } catch (ExecutionException e) {
+            logger.warn("Couldn't check if the site '{}' contains the search tool", site.getId(), e.getCause());
+            return false;
+        }
+    }
+
+    /**
+     * Removes the cached state of a site.
+     * <p>
+     * This should be called every time a site is modified, as the search tool may have been added or removed.
+     * </p>
+     *
+     * @param siteId identifier of the modified site.
+     */
+    public void invalidate(String siteId) {
+        logger.debug("Invalidate the search tool state of '{}'", siteId);
+        searchToolSites.invalidate(siteId);
+    }
+
+    private boolean hasSearchToolUncached(Site site) {
+        return site.getToolForCommonId(SolrSearchIndexBuilder.SEARCH_TOOL_ID) != null;
+    }
+
+    public void setSiteService(SiteService siteService) {
+        this.siteService = siteService;
+    }
+
+    public void setMaximumSize(long maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    public void setExpiry(long expiry) {
+        this.expiry = expiry;
+    }
+}
@@ -1,17 +1,29 @@
 package org.sakaiproject.search.solr.util;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.http.client.HttpClient;
 import org.apache.solr.client.solrj.SolrRequest;
 import org.apache.solr.client.solrj.SolrServer;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.StreamingResponseCallback;
 import org.apache.solr.client.solrj.beans.DocumentObjectBinder;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.client.solrj.impl.BinaryRequestWriter;
+import org.apache.solr.client.solrj.impl.CloudSolrServer;
+import org.apache.solr.client.solrj.impl.ConcurrentUpdateSolrServer;
+import org.apache.solr.client.solrj.impl.HttpClientUtil;
 import org.apache.solr.client.solrj.impl.HttpSolrServer;
+import org.apache.solr.client.solrj.request.AbstractUpdateRequest;
+import org.apache.solr.client.solrj.request.CoreAdminRequest;
+import org.apache.solr.client.solrj.response.CoreAdminResponse;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.client.solrj.response.SolrPingResponse;
 import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.CoreAdminParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.core.CoreContainer;
@@ -23,8 +35,13 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * SolrServerAdapter allows to generate a SolrServer object on the fly depending on the configuration in
@@ -33,29 +50,152 @@ import java.util.List;
  * By default an embedded server will be spawned, otherwise, if search.solr.server is set in sakai.properties,
  * a client for that server will be created.
  * </p>
+ * <p>
+ * With an external server, lookups and modifications are handled by two distinct clients, each with its own pool of
+ * connections, so a burst of indexation doesn't slow the searches down.<br />
+ * Modifications are sent synchronously in the javabin format, so failures and version conflicts are reported to the
+ * caller and a real-time get following a modification always sees it.<br />
+ * Batches of documents sent with {@link #addInBulk(Collection, int)} are streamed by a
+ * {@link ConcurrentUpdateSolrServer} instead. Each batch is flushed before returning and the errors reported while
+ * streaming it are thrown to the caller. A pool of {@link #bulkIndexingConcurrency} streaming servers sends batches
+ * concurrently, each of them streaming a single batch at a time so an error always belongs to the batch in which it
+ * is reported.
+ * </p>
+ * <p>
+ * If search.solr.server.replicas is set in sakai.properties (comma separated urls), searches are load balanced
+ * between those replicas with a {@link LoadBalancedSolrServer}. Real-time gets and administration requests are
+ * still sent to search.solr.server as replicas might not be up to date.
+ * </p>
+ * <p>
+ * If search.solr.zkHost is set in sakai.properties, the adapter works with a SolrCloud cluster instead, using the
+ * collection search.solr.collection ("search" by default). Shadow cores aren't available in that mode.
+ * </p>
+ * <p>
+ * A shadow core can be created next to the actual core through CoreAdmin requests, in order to rebuild the index
+ * without affecting the searches. While the shadow core exists, every modification is written on both cores.
+ * Once the shadow core is ready, it is swapped with the actual core and the old index is dropped.<br />
+ * Other servers start writing in the shadow core once they look for it with {@link #findShadowCore()}, which every
+ * modification does at most every {@link #shadowCheckInterval} ms, and stop when the shadow core disappears.
+ * </p>
  *
  * @author Colin Hebert
  */
 public class SolrServerAdapter extends SolrServer {
     private static final String CORE_NAME = "search";
+    private static final String SHADOW_CORE_SUFFIX = "-shadow";
+    private static final String VERSION_FIELD = "_version_";
     private static final String SOLR_HOME_PROPERTY = "solr.solr.home";
     private static final String SOLR_CONFIGURATION_PATH = ServerConfigurationService.getSakaiHomePath() + "solr/";
     private static final String SOLR_CONFIGURATION_CLASSPATH = "/org/sakaiproject/search/solr/conf/";
     private static final int HTTP_SERVER_TIMEOUT = 10000;
+    private static final int DEFAULT_LOOKUP_MAX_CONNECTIONS = 100;
+    private static final int DEFAULT_INDEXING_MAX_CONNECTIONS = 10;
+    private static final int DEFAULT_INDEXING_QUEUE_SIZE = 100;
+    private static final int DEFAULT_INDEXING_THREAD_COUNT = 4;
+    private static final int DEFAULT_BULK_INDEXING_CONCURRENCY = 2;
+    private static final long DEFAULT_HEDGE_DELAY = 500;
+    private static final long DEFAULT_PING_INTERVAL = 10000;
+    private static final long DEFAULT_SHADOW_CHECK_INTERVAL = 5000;
     private static final Logger logger = LoggerFactory.getLogger(SolrServerAdapter.class);
-    private SolrServer instance;
+    /**
+     * Maximum number of connections to the server used for lookups.
+     */
+    private int lookupMaxConnections = DEFAULT_LOOKUP_MAX_CONNECTIONS;
+    /**
+     * Maximum number of connections to the server used for modifications.
+     */
+    private int indexingMaxConnections = DEFAULT_INDEXING_MAX_CONNECTIONS;
+    /**
+     * Number of update requests waiting to be sent to the server.
+     */
+    private int indexingQueueSize = DEFAULT_INDEXING_QUEUE_SIZE;
+    /**
+     * Number of threads streaming update requests to the server.
+     */
+    private int indexingThreadCount = DEFAULT_INDEXING_THREAD_COUNT;
+    /**
+     * Number of batches streamed concurrently to the server.
+     */
+    private int bulkIndexingConcurrency = DEFAULT_BULK_INDEXING_CONCURRENCY;
+    /**
+     * Delay (in ms) after which a search is sent to a second replica, until the latencies of the replicas are known.
+     */
+    private long hedgeDelay = DEFAULT_HEDGE_DELAY;
+    /**
+     * Delay (in ms) between two health checks of the replicas.
+     */
+    private long pingInterval = DEFAULT_PING_INTERVAL;
+    /**
+     * Delay (in ms) between two checks for a shadow core created by another server.
+     */
+    private long shadowCheckInterval = DEFAULT_SHADOW_CHECK_INTERVAL;
+    /**
+     * Time after which modifications check again for a shadow core created by another server.
+     */
+    private volatile long nextShadowCheck;
+    private SolrServer lookupInstance;
+    /**
+     * Server used for requests that must be handled by the master, such as real-time gets.
+     */
+    private SolrServer masterLookupInstance;
+    private SolrServer indexingInstance;
+    /**
+     * Idle servers streaming batches of documents, null if batches are sent by the indexing server.
+     */
+    private BlockingQueue<BatchConcurrentUpdateSolrServer> bulkIndexingInstances;
+    private HttpClient lookupHttpClient;
+    private HttpClient indexingHttpClient;
+    /**
+     * Server able to handle CoreAdmin requests.
+     */
+    private SolrServer adminServer;
+    private String coreName;
+    private String shadowCoreName;
+    private volatile SolrServer shadowInstance;
+    private CoreContainer coreContainer;
+    private String serverBaseUrl;
+    private boolean cloudMode;
 
     /**
      * Sets up an actual SolrServer, embedded or external depending on the configuration.
      */
     public void init() {
+        String zkHost = ServerConfigurationService.getString("search.solr.zkHost");
         String serverUrl = ServerConfigurationService.getString("search.solr.server");
-        if (!serverUrl.isEmpty()) {
+        if (!zkHost.isEmpty()) {
+            coreName = ServerConfigurationService.getString("search.solr.collection", CORE_NAME);
+            logger.info("The SolrCloud cluster is set up, using the collection '{}'", coreName);
+            try {
+                CloudSolrServer cloudSolrServer = new CloudSolrServer(zkHost);
+                cloudSolrServer.setDefaultCollection(coreName);
+                // The cluster routes modifications and distributes searches by itself
+                lookupInstance = cloudSolrServer;
+                masterLookupInstance = cloudSolrServer;
+                indexingInstance = cloudSolrServer;
+                cloudMode = true;
+            } catch (MalformedURLException e) {
+                throw new IllegalStateException("Couldn't connect to the SolrCloud cluster '" + zkHost + "'", e);
+            }
+        } else if (!serverUrl.isEmpty()) {
             logger.info("The Solr server is set up");
-            HttpSolrServer httpSolrServer = new HttpSolrServer(serverUrl);
-            httpSolrServer.setConnectionTimeout(HTTP_SERVER_TIMEOUT);
-            httpSolrServer.setSoTimeout(HTTP_SERVER_TIMEOUT);
-            instance = httpSolrServer;
+            lookupHttpClient = createHttpClient(lookupMaxConnections);
+            indexingHttpClient = createHttpClient(indexingMaxConnections);
+            masterLookupInstance = new HttpSolrServer(serverUrl, lookupHttpClient);
+            lookupInstance = createReplicasServer(masterLookupInstance);
+            HttpSolrServer httpIndexingInstance = new HttpSolrServer(serverUrl, indexingHttpClient);
+            httpIndexingInstance.setRequestWriter(new BinaryRequestWriter());
+            indexingInstance = httpIndexingInstance;
+            bulkIndexingInstances = new ArrayBlockingQueue<BatchConcurrentUpdateSolrServer>(bulkIndexingConcurrency);
+            for (int i = 0; i < bulkIndexingConcurrency; i++) {
+                bulkIndexingInstances.add(new BatchConcurrentUpdateSolrServer(serverUrl, indexingHttpClient,
+                        indexingQueueSize, indexingThreadCount));
+            }
+            // The core name is the last element of the url
+            String normalisedUrl = serverUrl.endsWith("/") ? serverUrl.substring(0, serverUrl.length() - 1) : serverUrl;
+            int coreNamePosition = normalisedUrl.lastIndexOf('/');
+            serverBaseUrl = normalisedUrl.substring(0, coreNamePosition);
+            coreName = normalisedUrl.substring(coreNamePosition + 1);
+            adminServer = new HttpSolrServer(serverBaseUrl, lookupHttpClient);
         } else {
             logger.info("The Solr server isn't set up, using an embedded one");
             if (!new File(SOLR_CONFIGURATION_PATH).exists())
@@ -65,13 +205,257 @@ public class SolrServerAdapter extends SolrServer {
             Thread.currentThread().setContextClassLoader(this.getClass().getClassLoader());
             System.setProperty(SOLR_HOME_PROPERTY, SOLR_CONFIGURATION_PATH);
             try {
-                CoreContainer coreContainer = new CoreContainer.Initializer().initialize();
-                instance = new EmbeddedSolrServer(coreContainer, CORE_NAME);
+                coreContainer = new CoreContainer.Initializer().initialize();
+                coreName = CORE_NAME;
+                lookupInstance = new EmbeddedSolrServer(coreContainer, coreName);
+                masterLookupInstance = lookupInstance;
+                indexingInstance = lookupInstance;
+                // The embedded server handles CoreAdmin requests sent to the admin path
+                adminServer = lookupInstance;
                 Thread.currentThread().setContextClassLoader(currentClassLoader);
             } catch (FileNotFoundException e) {
                 throw new IllegalStateException("Couldn't create an embedded instance of solr");
             }
         }
+        shadowCoreName = coreName + SHADOW_CORE_SUFFIX;
+    }
+
+    /**
+     * Creates a load balanced server over the replicas configured in search.solr.server.replicas.
+     *
+     * @param masterServer server to use if there is no replica.
+     * @return a load balanced server, or the master server if there is no replica.
+     */
+    private SolrServer createReplicasServer(SolrServer masterServer) {
+        String replicaUrls = ServerConfigurationService.getString("search.solr.server.replicas");
+        if (replicaUrls.trim().isEmpty())
+            return masterServer;
+
+        List<SolrServer> replicas = new ArrayList<SolrServer>();
+        for (String replicaUrl : replicaUrls.split(",")) {
+            if (!replicaUrl.trim().isEmpty())
+                replicas.add(new HttpSolrServer(replicaUrl.trim(), lookupHttpClient));
+        }
+        logger.info("Searches are load balanced between {} replicas", replicas.size());
+        return new LoadBalancedSolrServer(replicas, hedgeDelay, pingInterval);
+    }
+
+    /**
+     * Gets the server able to handle a lookup request.
+     * <p>
+     * Real-time gets and administration requests are handled by the master, as replicas might not be up to date.<br />
+     * The stored fields of search results (/stored) are fetched from the replicas, which returned these results.
+     * </p>
+     *
+     * @param path path of the request handler.
+     * @return the server in charge of the request.
+     */
+    private SolrServer getLookupInstance(String path) {
+        if (path != null && (path.startsWith("/get") || path.startsWith("/admin")))
+            return masterLookupInstance;
+        else
+            return lookupInstance;
+    }
+
+    /**
+     * Gets every server handling searches, each of them having its own spelling dictionaries.
+     * <p>
+     * With replicas, the master and every replica are returned. With SolrCloud, requests are distributed by the
+     * cluster so a single server is returned.
+     * </p>
+     *
+     * @return the servers handling searches.
+     */
+    public List<SolrServer> getSearchServers() {
+        List<SolrServer> searchServers = new ArrayList<SolrServer>();
+        searchServers.add(masterLookupInstance);
+        if (lookupInstance instanceof LoadBalancedSolrServer)
+            searchServers.addAll(((LoadBalancedSolrServer) lookupInstance).getReplicaServers());
+        return searchServers;
+    }
+
+    /**
+     * Creates an HttpClient with a pool of keep-alive connections to the Solr server.
+     *
+     * @param maxConnections maximum number of connections in the pool.
+     * @return a new HttpClient.
+     */
+    private HttpClient createHttpClient(int maxConnections) {
+        ModifiableSolrParams params = new ModifiableSolrParams();
+        params.set(HttpClientUtil.PROP_MAX_CONNECTIONS, maxConnections);
+        params.set(HttpClientUtil.PROP_MAX_CONNECTIONS_PER_HOST, maxConnections);
+        params.set(HttpClientUtil.PROP_CONNECTION_TIMEOUT, HTTP_SERVER_TIMEOUT);
+        params.set(HttpClientUtil.PROP_SO_TIMEOUT, HTTP_SERVER_TIMEOUT);
+        params.set(HttpClientUtil.PROP_FOLLOW_REDIRECTS, false);
+        return HttpClientUtil.createClient(params);
+    }
+
+    /**
+     * Creates an empty shadow core using the same configuration as the actual core.
+     * <p>
+     * Once created, every modification sent to this adapter is also sent to the shadow core.
+     * </p>
+     *
+     * @return a server modifying only the shadow core.
+     * @throws SolrServerException if the shadow core couldn't be created.
+     * @throws IOException         if the Solr server couldn't be contacted.
+     */
+    public synchronized SolrServer createShadowCore() throws SolrServerException, IOException {
+        if (cloudMode)
+            throw new UnsupportedOperationException("Shadow cores aren't available with SolrCloud");
+        if (shadowInstance != null)
+            throw new IllegalStateException("The shadow core '" + shadowCoreName + "' already exists");
+
+        CoreAdminResponse status = CoreAdminRequest.getStatus(coreName, adminServer);
+        String instanceDir = (String) status.getCoreStatus(coreName).get("instanceDir");
+
+        // A shadow core might remain from an interrupted rebuild
+        if (CoreAdminRequest.getStatus(shadowCoreName, adminServer).getCoreStatus(shadowCoreName).size() > 0) {
+            logger.warn("Dropping the shadow core '{}' left by a previous rebuild", shadowCoreName);
+            CoreAdminRequest.unloadCore(shadowCoreName, true, adminServer);
+        }
+
+        logger.info("Creating the shadow core '{}' in '{}'", shadowCoreName, instanceDir);
+        CoreAdminRequest.Create createRequest = new CoreAdminRequest.Create();
+        createRequest.setCoreName(shadowCoreName);
+        createRequest.setInstanceDir(instanceDir);
+        // A new data directory is used every time to avoid any collision with the current index
+        createRequest.setDataDir("data-" + System.currentTimeMillis());
+        createRequest.process(adminServer);
+
+        shadowInstance = createShadowInstance();
+        return shadowInstance;
+    }
+
+    /**
+     * Gets the server modifying only the shadow core.
+     *
+     * @return the shadow core server, or null if there is no shadow core.
+     */
+    public SolrServer getShadowCore() {
+        return shadowInstance;
+    }
+
+    /**
+     * Gets the server modifying only the shadow core, even if the shadow core has been created by another server.
+     * <p>
+     * If the shadow core exists on the Solr server, every modification sent to this adapter is also sent to the
+     * shadow core from now on.
+     * </p>
+     *
+     * @return the shadow core server, or null if there is no shadow core.
+     * @throws SolrServerException if the status of the shadow core couldn't be obtained.
+     * @throws IOException         if the Solr server couldn't be contacted.
+     */
+    public synchronized SolrServer findShadowCore() throws SolrServerException, IOException {
+        if (shadowInstance != null || cloudMode)
+            return shadowInstance;
+
+        nextShadowCheck = System.currentTimeMillis() + shadowCheckInterval;
+
+        if (CoreAdminRequest.getStatus(shadowCoreName, adminServer).getCoreStatus(shadowCoreName).size() > 0) {
+            logger.info("Writing in the shadow core '{}' created by another server", shadowCoreName);
+            shadowInstance = createShadowInstance();
+        }
+        return shadowInstance;
+    }
+
+    /**
+     * Gets the server modifying the shadow core before sending a modification.
+     * <p>
+     * If there was no shadow core during the last {@link #shadowCheckInterval} ms, its existence is checked again, so
+     * the modifications are also written in a shadow core created by another server.
+     * </p>
+     *
+     * @return the shadow core server, or null if there is no shadow core.
+     */
+    private SolrServer getShadowInstance() {
+        SolrServer shadow = shadowInstance;
+        if (shadow != null || cloudMode || System.currentTimeMillis() < nextShadowCheck)
+            return shadow;
+
+        synchronized (this) {
+            if (System.currentTimeMillis() < nextShadowCheck)
+                return shadowInstance;
+            try {
+                return findShadowCore();
+            } catch (Exception e) {
+                logger.warn("Couldn't check if the shadow core '{}' exists", shadowCoreName, e);
+                return shadowInstance;
+            }
+        }
+    }
+
+    /**
+     * Gets the maximum delay before every server writes its modifications in a new shadow core.
+     *
+     * @return the delay (in ms) between two checks for a shadow core.
+     */
+    public long getShadowCheckInterval() {
+        return shadowCheckInterval;
+    }
+
+    /**
+     * Checks whether the adapter works with a SolrCloud cluster, in which case shadow cores aren't available.
+     *
+     * @return true if the adapter works with a SolrCloud cluster, false otherwise.
+     */
+    public boolean isCloudMode() {
+        return cloudMode;
+    }
+
+    public String getShadowCoreName() {
+        return shadowCoreName;
+    }
+
+    private SolrServer createShadowInstance() {
+        if (coreContainer != null)
+            return new EmbeddedSolrServer(coreContainer, shadowCoreName);
+        else
+            return new ShadowCoreServer(serverBaseUrl + '/' + shadowCoreName, indexingHttpClient);
+    }
+
+    /**
+     * Atomically replaces the actual core with the shadow core, and drops the old index.
+     *
+     * @throws SolrServerException if the cores couldn't be swapped.
+     * @throws IOException         if the Solr server couldn't be contacted.
+     */
+    public synchronized void swapShadowCore() throws SolrServerException, IOException {
+        if (shadowInstance == null)
+            throw new IllegalStateException("There is no shadow core to swap with");
+
+        shadowInstance.commit();
+
+        logger.info("Swapping the cores '{}' and '{}'", coreName, shadowCoreName);
+        CoreAdminRequest swapRequest = new CoreAdminRequest();
+        swapRequest.setAction(CoreAdminParams.CoreAdminAction.SWAP);
+        swapRequest.setCoreName(coreName);
+        swapRequest.setOtherCoreName(shadowCoreName);
+        swapRequest.process(adminServer);
+
+        // The shadow core now contains the old index
+        dropShadowCore();
+    }
+
+    /**
+     * Drops the shadow core and its index.
+     *
+     * @throws SolrServerException if the core couldn't be unloaded.
+     * @throws IOException         if the Solr server couldn't be contacted.
+     */
+    public synchronized void dropShadowCore() throws SolrServerException, IOException {
+        if (shadowInstance == null)
+            return;
+
+        // Stop writing in the shadow core before dropping it
+        SolrServer droppedInstance = shadowInstance;
+        shadowInstance = null;
+        logger.info("Dropping the core '{}'", shadowCoreName);
+        CoreAdminRequest.unloadCore(shadowCoreName, true, adminServer);
+        // Shutting down an embedded server would shut down the entire CoreContainer
+        if (coreContainer == null)
+            droppedInstance.shutdown();
     }
 
     /**
@@ -105,147 +489,387 @@ public class SolrServerAdapter extends SolrServer {
         }
     }
 
+    /**
+     * Removes the version of documents sent to the shadow core.
+     * <p>
+     * The version of a document is obtained from the actual core, and would be rejected by the shadow core.
+     * </p>
+     *
+     * @param doc document sent to both cores.
+     * @return a copy of the document without any version.
+     */
+    private static SolrInputDocument withoutVersion(SolrInputDocument doc) {
+        if (doc.getField(VERSION_FIELD) == null)
+            return doc;
+        SolrInputDocument copy = doc.deepCopy();
+        copy.removeField(VERSION_FIELD);
+        return copy;
+    }
+
+    private static Collection<SolrInputDocument> withoutVersion(Collection<SolrInputDocument> docs) {
+        Collection<SolrInputDocument> copies = new ArrayList<SolrInputDocument>(docs.size());
+        for (SolrInputDocument doc : docs) {
+            copies.add(withoutVersion(doc));
+        }
+        return copies;
+    }
+
     @Override
     public UpdateResponse add(Collection<SolrInputDocument> docs) throws SolrServerException, IOException {
-        return instance.add(docs);
+        SolrServer shadow = getShadowInstance();
+        if (shadow != null)
+            shadow.add(withoutVersion(docs));
+        return indexingInstance.add(docs);
     }
 
     @Override
     public UpdateResponse add(Collection<SolrInputDocument> docs, int commitWithinMs)
             throws SolrServerException, IOException {
-        return instance.add(docs, commitWithinMs);
+        SolrServer shadow = getShadowInstance();
+        if (shadow != null)
+            shadow.add(withoutVersion(docs), commitWithinMs);
+        return indexingInstance.add(docs, commitWithinMs);
+    }
+
+    /**
+     * Sends a batch of documents, streaming them to an external server.
+     * <p>
+     * The batch is entirely sent before returning, and any failure reported while sending it is thrown.<br />
+     * If every streaming server is already sending a batch, waits until one of them is available.
+     * </p>
+     *
+     * @param docs           documents to send.
+     * @param commitWithinMs maximum time (in ms) before the documents are searchable.
+     * @return the response of the server.
+     * @throws SolrServerException if the batch couldn't be indexed.
+     * @throws IOException         if the Solr server couldn't be contacted.
+     */
+    public UpdateResponse addInBulk(Collection<SolrInputDocument> docs, int commitWithinMs)
+            throws SolrServerException, IOException {
+        if (bulkIndexingInstances == null)
+            return add(docs, commitWithinMs);
+
+        SolrServer shadow = getShadowInstance();
+        if (shadow != null)
+            shadow.add(withoutVersion(docs), commitWithinMs);
+        BatchConcurrentUpdateSolrServer bulkIndexingInstance;
+        try {
+            bulkIndexingInstance = bulkIndexingInstances.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SolrServerException("Interrupted while waiting to send a batch of documents", e);
+        }
+        try {
+            return bulkIndexingInstance.addBatch(docs, commitWithinMs);
+        } finally {
+            bulkIndexingInstances.add(bulkIndexingInstance);
+        }
     }
 
     @Override
     public UpdateResponse addBeans(Collection<?> beans) throws SolrServerException, IOException {
-        return instance.addBeans(beans);
+        SolrServer shadow = getShadowInstance();
+        if (shadow != null)
+            shadow.addBeans(beans);
+        return indexingInstance.addBeans(beans);
     }
 
     @Override
     public UpdateResponse addBeans(Collection<?> beans, int commitWithinMs) throws SolrServerException, IOException {
-        return instance.addBeans(beans, commitWithinMs);
+        SolrServer shadow = getShadowInstance();
+        if (shadow != null)
+            shadow.addBeans(beans, commitWithinMs);
+        return indexingInstance.addBeans(beans, commitWithinMs);
     }
 
     @Override
     public UpdateResponse add(SolrInputDocument doc) throws SolrServerException, IOException {
-        return instance.add(doc);
+        SolrServer shadow = getShadowInstance();
+        if (shadow != null)
+            shadow.add(withoutVersion(doc));
+        return indexingInstance.add(doc);
     }
 
     @Override
     public UpdateResponse add(SolrInputDocument doc, int commitWithinMs) throws SolrServerException, IOException {
-        return instance.add(doc, commitWithinMs);
+        SolrServer shadow = getShadowInstance();
+        if (shadow != null)
+            shadow.add(withoutVersion(doc), commitWithinMs);
+        return indexingInstance.add(doc, commitWithinMs);
     }
 
     @Override
     public UpdateResponse addBean(Object obj) throws IOException, SolrServerException {
-        return instance.addBean(obj);
+        SolrServer shadow = getShadowInstance();
+        if (shadow != null)
+            shadow.addBean(obj);
+        return indexingInstance.addBean(obj);
     }
 
     @Override
     public UpdateResponse addBean(Object obj, int commitWithinMs) throws IOException, SolrServerException {
-        return instance.addBean(obj, commitWithinMs);
+        SolrServer shadow = getShadowInstance();
+        if (shadow != null)
+            shadow.addBean(obj, commitWithinMs);
+        return indexingInstance.addBean(obj, commitWithinMs);
     }
 
     @Override
     public UpdateResponse commit() throws SolrServerException, IOException {
-        return instance.commit();
+        return indexingInstance.commit();
     }
 
     @Override
     public UpdateResponse optimize() throws SolrServerException, IOException {
-        return instance.optimize();
+        return indexingInstance.optimize();
     }
 
     @Override
     public UpdateResponse commit(boolean waitFlush, boolean waitSearcher) throws SolrServerException, IOException {
-        return instance.commit(waitFlush, waitSearcher);
+        return indexingInstance.commit(waitFlush, waitSearcher);
     }
 
     @Override
     public UpdateResponse commit(boolean waitFlush, boolean waitSearcher, boolean softCommit)
             throws SolrServerException, IOException {
-        return instance.commit(waitFlush, waitSearcher, softCommit);
+        return indexingInstance.commit(waitFlush, waitSearcher, softCommit);
     }
 
     @Override
     public UpdateResponse optimize(boolean waitFlush, boolean waitSearcher) throws SolrServerException, IOException {
-        return instance.optimize(waitFlush, waitSearcher);
+        return indexingInstance.optimize(waitFlush, waitSearcher);
     }
 
     @Override
     public UpdateResponse optimize(boolean waitFlush, boolean waitSearcher, int maxSegments)
             throws SolrServerException, IOException {
-        return instance.optimize(waitFlush, waitSearcher, maxSegments);
+        return indexingInstance.optimize(waitFlush, waitSearcher, maxSegments);
     }
 
     @Override
     public UpdateResponse rollback() throws SolrServerException, IOException {
-        return instance.rollback();
+        return indexingInstance.rollback();
     }
 
     @Override
     public UpdateResponse deleteById(String id) throws SolrServerException, IOException {
-        return instance.deleteById(id);
+        SolrServer shadow = getShadowInstance();
+        if (shadow != null)
+            shadow.deleteById(id);
+        return indexingInstance.deleteById(id);
     }
 
     @Override
     public UpdateResponse deleteById(String id, int commitWithinMs) throws SolrServerException, IOException {
-        return instance.deleteById(id, commitWithinMs);
+        SolrServer shadow = getShadowInstance();
+        if (shadow != null)
+            shadow.deleteById(id, commitWithinMs);
+        return indexingInstance.deleteById(id, commitWithinMs);
     }
 
     @Override
     public UpdateResponse deleteById(List<String> ids) throws SolrServerException, IOException {
-        return instance.deleteById(ids);
+        SolrServer shadow = getShadowInstance();
+        if (shadow != null)
+            shadow.deleteById(ids);
+        return indexingInstance.deleteById(ids);
     }
 
     @Override
     public UpdateResponse deleteById(List<String> ids, int commitWithinMs) throws SolrServerException, IOException {
-        return instance.deleteById(ids, commitWithinMs);
+        SolrServer shadow = getShadowInstance();
+        if (shadow != null)
+            shadow.deleteById(ids, commitWithinMs);
+        return indexingInstance.deleteById(ids, commitWithinMs);
     }
 
     @Override
     public UpdateResponse deleteByQuery(String query) throws SolrServerException, IOException {
-        return instance.deleteByQuery(query);
+        SolrServer shadow = getShadowInstance();
+        if (shadow != null)
+            shadow.deleteByQuery(query);
+        return indexingInstance.deleteByQuery(query);
     }
 
     @Override
     public UpdateResponse deleteByQuery(String query, int commitWithinMs) throws SolrServerException, IOException {
-        return instance.deleteByQuery(query, commitWithinMs);
+        SolrServer shadow = getShadowInstance();
+        if (shadow != null)
+            shadow.deleteByQuery(query, commitWithinMs);
+        return indexingInstance.deleteByQuery(query, commitWithinMs);
     }
 
     @Override
     public SolrPingResponse ping() throws SolrServerException, IOException {
-        return instance.ping();
+        return lookupInstance.ping();
     }
 
     @Override
     public QueryResponse query(SolrParams params) throws SolrServerException {
-        return instance.query(params);
+        return getLookupInstance(params.get(CommonParams.QT)).query(params);
     }
 
     @Override
     public QueryResponse query(SolrParams params, SolrRequest.METHOD method) throws SolrServerException {
-        return instance.query(params, method);
+        return getLookupInstance(params.get(CommonParams.QT)).query(params, method);
     }
 
     @Override
     public QueryResponse queryAndStreamResponse(SolrParams params, StreamingResponseCallback callback)
             throws SolrServerException, IOException {
-        return instance.queryAndStreamResponse(params, callback);
+        return getLookupInstance(params.get(CommonParams.QT)).queryAndStreamResponse(params, callback);
     }
 
     @Override
     public NamedList<Object> request(SolrRequest solrRequest) throws SolrServerException, IOException {
-        return instance.request(solrRequest);
+        if (solrRequest instanceof AbstractUpdateRequest)
+            return indexingInstance.request(solrRequest);
+        else
+            return getLookupInstance(solrRequest.getPath()).request(solrRequest);
     }
 
     @Override
     public DocumentObjectBinder getBinder() {
-        return instance.getBinder();
+        return lookupInstance.getBinder();
     }
 
     @Override
     public void shutdown() {
-        instance.shutdown();
+        // Embedded servers share the same CoreContainer and SolrCloud uses a single client, shut down only once
+        lookupInstance.shutdown();
+        if (coreContainer == null && !cloudMode) {
+            if (masterLookupInstance != lookupInstance)
+                masterLookupInstance.shutdown();
+            indexingInstance.shutdown();
+            for (BatchConcurrentUpdateSolrServer bulkIndexingInstance : bulkIndexingInstances) {
+                bulkIndexingInstance.shutdown();
+            }
+            adminServer.shutdown();
+            SolrServer shadow = shadowInstance;
+            if (shadow != null)
+                shadow.shutdown();
+            lookupHttpClient.getConnectionManager().shutdown();
+            indexingHttpClient.getConnectionManager().shutdown();
+        }
+    }
+
+    /**
+     * Server writing in a shadow core that may be swapped or dropped by another server at any time.
+     * <p>
+     * Once the shadow core doesn't exist anymore, the modifications are only sent to the actual core.
+     * </p>
+     */
+    private final class ShadowCoreServer extends HttpSolrServer {
+        private ShadowCoreServer(String baseURL, HttpClient client) {
+            super(baseURL, client);
+        }
+
+        @Override
+        public NamedList<Object> request(SolrRequest request) throws SolrServerException, IOException {
+            try {
+                return super.request(request);
+            } catch (SolrException e) {
+                if (e.code() != SolrException.ErrorCode.NOT_FOUND.code)
+                    throw e;
+                detachShadowCore(this);
+                return new NamedList<Object>();
+            }
+        }
+    }
+
+    /**
+     * Stops writing in a shadow core that has been swapped or dropped by another server.
+     *
+     * @param droppedInstance server in charge of the dropped shadow core.
+     */
+    private synchronized void detachShadowCore(SolrServer droppedInstance) {
+        if (shadowInstance != droppedInstance)
+            return;
+        logger.info("The shadow core '{}' has been swapped or dropped by another server", shadowCoreName);
+        shadowInstance = null;
+        droppedInstance.shutdown();
+    }
+
+    /**
+     * ConcurrentUpdateSolrServer sending one batch of documents at a time and reporting the failures of that batch.
+     * <p>
+     * An instance must only be used by one thread at a time, which is ensured by the pool of idle instances.<br />
+     * Update requests are sent in the background, so failures are collected while the batch is streamed and thrown
+     * once every request of the batch has been sent.<br />
+     * Version conflicts are reported like any other failure, letting the caller handle them.
+     * </p>
+     */
+    private static class BatchConcurrentUpdateSolrServer extends ConcurrentUpdateSolrServer {
+        private final List<Throwable> errors = new CopyOnWriteArrayList<Throwable>();
+
+        public BatchConcurrentUpdateSolrServer(String solrServerUrl, HttpClient client, int queueSize,
+                                               int threadCount) {
+            super(solrServerUrl, client, queueSize, threadCount);
+            setRequestWriter(new BinaryRequestWriter());
+        }
+
+        @Override
+        public void handleError(Throwable ex) {
+            errors.add(ex);
+        }
+
+        /**
+         * Streams a batch of documents and waits until it has been sent.
+         *
+         * @param docs           documents to send.
+         * @param commitWithinMs maximum time (in ms) before the documents are searchable.
+         * @return the response of the server.
+         * @throws SolrServerException if the batch couldn't be indexed.
+         * @throws IOException         if the Solr server couldn't be contacted.
+         */
+        public UpdateResponse addBatch(Collection<SolrInputDocument> docs, int commitWithinMs)
+                throws SolrServerException, IOException {
+            errors.clear();
+            UpdateResponse response = add(docs, commitWithinMs);
+            blockUntilFinished();
+
+            if (errors.isEmpty())
+                return response;
+            for (Throwable error : errors.subList(1, errors.size())) {
+                logger.error("Another failure occurred while sending a batch of documents", error);
+            }
+            Throwable error = errors.get(0);
+            if (error instanceof SolrException)
+                throw (SolrException) error;
+            else
+                throw new SolrServerException("A batch of documents couldn't be indexed", error);
+        }
+    }
+
+    public void setLookupMaxConnections(int lookupMaxConnections) {
+        this.lookupMaxConnections = lookupMaxConnections;
+    }
+
+    public void setIndexingMaxConnections(int indexingMaxConnections) {
+        this.indexingMaxConnections = indexingMaxConnections;
+    }
+
+    public void setIndexingQueueSize(int indexingQueueSize) {
+        this.indexingQueueSize = indexingQueueSize;
+    }
+
+    public void setIndexingThreadCount(int indexingThreadCount) {
+        this.indexingThreadCount = indexingThreadCount;
+    }
+
+    public void setBulkIndexingConcurrency(int bulkIndexingConcurrency) {
+        this.bulkIndexingConcurrency = bulkIndexingConcurrency;
+    }
+
+    public void setHedgeDelay(long hedgeDelay) {
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    public void setPingInterval(long pingInterval) {
+        this.pingInterval = pingInterval;
+    }
+
+    public void setShadowCheckInterval(long shadowCheckInterval) {
+        this.shadowCheckInterval = shadowCheckInterval;
     }
 }
@@ -0,0 +1,136 @@
+package org.sakaiproject.search.solr.util;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import org.sakaiproject.authz.api.AuthzGroupService;
+import org.sakaiproject.authz.api.SecurityService;
+import org.sakaiproject.tool.api.SessionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Cache of the realms in which each user is allowed to read documents.
+ * <p>
+ * Those realms are compared to the realms indexed with each document, so documents that aren't accessible to the
+ * current user are excluded by solr. Obtaining the realms of a user is expensive, so the result is kept for
+ * {@link #expiry} seconds.
+ * </p>
+ * <p>
+ * Only the realms in which the user is a member are obtained, realms granting access through the roles of every
+ * authenticated or anonymous user (.auth, .anon, public view) aren't. Those realms are usually site realms in which
+ * the user isn't a member, so the filter must only exclude documents from the user's own sites, given by
+ * {@link #getSiteIds(List)}.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class UserAuthzGroupsCache {
+    private static final Logger logger = LoggerFactory.getLogger(UserAuthzGroupsCache.class);
+    private static final long DEFAULT_MAXIMUM_SIZE = 10000;
+    private static final long DEFAULT_EXPIRY = 60;
+    private static final Pattern SITE_AUTHZ_GROUP = Pattern.compile("^/site/([^/]+)$");
+    private long maximumSize = DEFAULT_MAXIMUM_SIZE;
+    private long expiry = DEFAULT_EXPIRY;
+    /**
+     * Functions (permissions) allowing to read indexed documents.
+     */
+    private List<String> readFunctions = Collections.emptyList();
+    private AuthzGroupService authzGroupService;
+    private SecurityService securityService;
+    private SessionManager sessionManager;
+    private LoadingCache<String, List<String>> userAuthzGroups;
+
+    /**
+     * Initialises the cache.
+     */
+    public void init() {
+        userAuthzGroups = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(expiry, TimeUnit.SECONDS)
+                .build(new CacheLoader<String, List<String>>() {
+                    @Override
+                    public List<String> load(String userId) throws Exception {
+                        // Sorted, so the same realms always generate the same filter query
+                        Set<String> authzGroups = new TreeSet<String>();
+                        for (String readFunction : readFunctions) {
+                            authzGroups.addAll(authzGroupService.getAuthzGroupsIsAllowed(userId, readFunction, null));
+                        }
+                        return Collections.unmodifiableList(new ArrayList<String>(authzGroups));
+                    }
+                });
+    }
+
+    /**
+     * Gets the realms in which the current user is allowed to read documents.
+     *
+     * @return a sorted list of realms, or null if the current user shouldn't be restricted to some realms
+     *         (anonymous user, administrator or failure).
+     */
+    public List<String> getCurrentUserAuthzGroups() {
+        String userId = sessionManager.getCurrentSessionUserId();
+        if (userId == null || securityService.isSuperUser())
+            return null;
+
+        try {
+            return userAuthzGroups.get(userId);
+        } catch (ExecutionException e) {
+            logger.warn("Couldn't obtain the realms of '{}'", userId, e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Gets the sites whose realms are part of the given realms.
+     * <p>
+     * The realms of a site's groups aren't taken into account, a group member may not be allowed to read in the whole
+     * site.
+     * </p>
+     *
+     * @param authzGroups realms in which a user is allowed to read documents.
+     * @return the sorted identifiers of the sites in which the user is allowed to read documents.
+     */
+    public static List<String> getSiteIds(List<String> authzGroups) {
+        Set<String> siteIds = new TreeSet<String>();
+        for (String authzGroup : authzGroups) {
+            Matcher siteAuthzGroup = SITE_AUTHZ_GROUP.matcher(authzGroup);
+            if (siteAuthzGroup.matches())
+                siteIds.add(siteAuthzGroup.group(1));
+        }
+        return new ArrayList<String>(siteIds);
+    }
+
+    public void setMaximumSize(long maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    public void setExpiry(long expiry) {
+        this.expiry = expiry;
+    }
+
+    public void setReadFunctions(List<String> readFunctions) {
+        this.readFunctions = readFunctions;
+    }
+
+    public void setAuthzGroupService(AuthzGroupService authzGroupService) {
+        this.authzGroupService = authzGroupService;
+    }
+
+    public void setSecurityService(SecurityService securityService) {
+        this.securityService = securityService;
+    }
+
+    public void setSessionManager(SessionManager sessionManager) {
+        this.sessionManager = sessionManager;
+    }
+}
@@ -0,0 +1,140 @@
+package org.sakaiproject.search.queueing;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.search.indexing.DefaultTask;
+import org.sakaiproject.search.indexing.Task;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+import static org.sakaiproject.search.indexing.DefaultTask.Type.INDEX_DOCUMENT;
+import static org.sakaiproject.search.indexing.DefaultTask.Type.REMOVE_DOCUMENT;
+
+/**
+ * Checks that tasks are held and replaced by the {@link TaskDebouncer}.
+ *
+ * @author Colin Hebert
+ */
+public class TaskDebouncerTest {
+    private static final long DEBOUNCE_DELAY = 5;
+    private static final long TICK_DURATION = 500;
+    private static final int WHEEL_SIZE = 8;
+    private static final int MAX_WAIT_FACTOR = 3;
+    private static final long START = 1000000;
+    private static final String REFERENCE = "/content/site1/document";
+    @Mock
+    private IndexQueueing mockIndexQueueing;
+    private TaskDebouncer taskDebouncer;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        taskDebouncer = new TaskDebouncer();
+        taskDebouncer.setIndexQueueing(mockIndexQueueing);
+        taskDebouncer.setDebounceDelay(DEBOUNCE_DELAY);
+        taskDebouncer.setTickDuration(TICK_DURATION);
+        taskDebouncer.setWheelSize(WHEEL_SIZE);
+        taskDebouncer.setMaxWaitFactor(MAX_WAIT_FACTOR);
+        taskDebouncer.createWheel(START);
+    }
+
+    /**
+     * Attempts to debounce a single task.
+     * <p>
+     * Checks that the task is held until the end of the delay.
+     * </p>
+     */
+    @Test
+    public void testTaskHeldUntilDelayExpires() {
+        Task task = new DefaultTask(INDEX_DOCUMENT);
+        taskDebouncer.debounce(REFERENCE, task, START);
+
+        taskDebouncer.advance(START + 4000);
+        verify(mockIndexQueueing, never()).addTaskToQueue(any(Task.class));
+
+        taskDebouncer.advance(START + 5000);
+        verify(mockIndexQueueing).addTaskToQueue(task);
+        assertThat(taskDebouncer.getPendingTaskCount(), is(0));
+    }
+
+    /**
+     * Attempts to debounce multiple tasks for the same reference in a short time.
+     * <p>
+     * Checks that only the last task is queued.<br />
+     * Checks that the delay restarts with each new task, even beyond a complete rotation of the wheel.
+     * </p>
+     */
+    @Test
+    public void testTaskReplacedAndDelayRestarted() {
+        Task firstTask = new DefaultTask(INDEX_DOCUMENT);
+        Task lastTask = new DefaultTask(REMOVE_DOCUMENT);
+        taskDebouncer.debounce(REFERENCE, firstTask, START);
+        taskDebouncer.debounce(REFERENCE, new DefaultTask(INDEX_DOCUMENT), START + 3000);
+        taskDebouncer.debounce(REFERENCE, lastTask, START + 6000);
+
+        taskDebouncer.advance(START + 10000);
+        verify(mockIndexQueueing, never()).addTaskToQueue(any(Task.class));
+        assertThat(taskDebouncer.getPendingTaskCount(), is(1));
+
+        taskDebouncer.advance(START + 11000);
+        verify(mockIndexQueueing, times(1)).addTaskToQueue(any(Task.class));
+        verify(mockIndexQueueing).addTaskToQueue(lastTask);
+    }
+
+    /**
+     * Attempts to debounce tasks for the same reference continuously.
+     * <p>
+     * Checks that the last task is queued once the maximum wait is reached, even though new tasks keep coming.
+     * </p>
+     */
+    @Test
+    public void testTaskQueuedAfterMaxWait() {
+        Task lastTask = null;
+        for (long time = START; time <= START + 14000; time += 2000) {
+            lastTask = new DefaultTask(INDEX_DOCUMENT);
+            taskDebouncer.debounce(REFERENCE, lastTask, time);
+            taskDebouncer.advance(time);
+        }
+        verify(mockIndexQueueing, never()).addTaskToQueue(any(Task.class));
+
+        taskDebouncer.advance(START + 15000);
+        verify(mockIndexQueueing).addTaskToQueue(lastTask);
+        assertThat(taskDebouncer.getPendingTaskCount(), is(0));
+    }
+
+    /**
+     * Attempts to debounce tasks for different references.
+     * <p>
+     * Checks that every task is queued independently.
+     * </p>
+     */
+    @Test
+    public void testDifferentReferencesNotMerged() {
+        taskDebouncer.debounce(REFERENCE, new DefaultTask(INDEX_DOCUMENT), START);
+        taskDebouncer.debounce(REFERENCE + "2", new DefaultTask(INDEX_DOCUMENT), START + 1000);
+
+        taskDebouncer.advance(START + 6000);
+
+        verify(mockIndexQueueing, times(2)).addTaskToQueue(any(Task.class));
+    }
+
+    /**
+     * Attempts to shut the debouncer down while tasks are held.
+     * <p>
+     * Checks that the pending tasks are queued straight away.
+     * </p>
+     */
+    @Test
+    public void testPendingTasksQueuedOnDestroy() {
+        Task task = new DefaultTask(INDEX_DOCUMENT);
+        taskDebouncer.debounce(REFERENCE, task, START);
+
+        taskDebouncer.destroy();
+
+        verify(mockIndexQueueing).addTaskToQueue(task);
+        assertThat(taskDebouncer.getPendingTaskCount(), is(0));
+    }
+}
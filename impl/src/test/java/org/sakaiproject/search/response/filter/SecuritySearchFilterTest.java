@@ -1,18 +1,28 @@
 package org.sakaiproject.search.response.filter;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.authz.api.AuthzGroupService;
+import org.sakaiproject.event.api.Event;
 import org.sakaiproject.search.api.EntityContentProducer;
 import org.sakaiproject.search.api.SearchResult;
 import org.sakaiproject.search.producer.ContentProducerFactory;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import org.sakaiproject.tool.api.SessionManager;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
-import static org.mockito.Mockito.mock;
-import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.*;
 
 /**
  * @author Colin Hebert
@@ -21,12 +31,25 @@ public class SecuritySearchFilterTest {
     private SecuritySearchFilter securitySearchFilter;
     @Mock
     private ContentProducerFactory contentProducerFactory;
+    @Mock
+    private SessionManager sessionManager;
+    @Mock
+    private ThreadLocalManager threadLocalManager;
 
     @Before
     public void setUp() throws Exception {
         MockitoAnnotations.initMocks(this);
         securitySearchFilter = new SecuritySearchFilter();
         securitySearchFilter.setContentProducerFactory(contentProducerFactory);
+        securitySearchFilter.setSessionManager(sessionManager);
+        securitySearchFilter.setThreadLocalManager(threadLocalManager);
+        securitySearchFilter.init();
+        when(sessionManager.getCurrentSessionUserId()).thenReturn("user");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        securitySearchFilter.destroy();
     }
 
     @Test
@@ -60,4 +83,171 @@ public class SecuritySearchFilterTest {
         assertEquals(searchResult, actualResult);
         assertFalse(actualResult.isCensored());
     }
+
+    /**
+     * Attempts to filter a page of results.
+     * <p>
+     * Checks that the order of the results is kept and that each result is filtered.
+     * </p>
+     */
+    @Test
+    public void testPageFiltered() {
+        EntityContentProducer entityContentProducer = mock(EntityContentProducer.class);
+        when(contentProducerFactory.getContentProducerForElement(anyString())).thenReturn(entityContentProducer);
+        SearchResult readableResult = mockResult("readable");
+        SearchResult hiddenResult = mockResult("hidden");
+        when(entityContentProducer.canRead("readable")).thenReturn(true);
+
+        List<SearchResult> actualResults = securitySearchFilter.filter(
+                Arrays.asList(readableResult, hiddenResult, readableResult));
+
+        assertEquals(3, actualResults.size());
+        assertEquals(readableResult, actualResults.get(0));
+        assertTrue(actualResults.get(1).isCensored());
+        assertEquals(readableResult, actualResults.get(2));
+    }
+
+    /**
+     * Attempts to filter the same result twice, with a modification of a realm in between.
+     * <p>
+     * Checks that the permission is checked once before the modification and again after the modification.
+     * </p>
+     */
+    @Test
+    public void testDecisionCachedUntilRealmUpdate() {
+        EntityContentProducer entityContentProducer = mock(EntityContentProducer.class);
+        when(contentProducerFactory.getContentProducerForElement(anyString())).thenReturn(entityContentProducer);
+        SearchResult searchResult = mockResult("reference");
+        when(entityContentProducer.canRead("reference")).thenReturn(true);
+
+        securitySearchFilter.filter(searchResult);
+        securitySearchFilter.filter(searchResult);
+        verify(entityContentProducer, times(1)).canRead("reference");
+
+        Event event = mock(Event.class);
+        when(event.getEvent()).thenReturn(AuthzGroupService.SECURE_UPDATE_AUTHZ_GROUP);
+        securitySearchFilter.update(null, event);
+        securitySearchFilter.filter(searchResult);
+        verify(entityContentProducer, times(2)).canRead("reference");
+    }
+
+    /**
+     * Attempts to filter two results twice, with a modification of one of them in between.
+     * <p>
+     * Checks that the permission is checked again only for the modified result.
+     * </p>
+     */
+    @Test
+    public void testDecisionForgottenAfterModification() {
+        EntityContentProducer entityContentProducer = mock(EntityContentProducer.class);
+        when(contentProducerFactory.getContentProducerForElement(anyString())).thenReturn(entityContentProducer);
+        List<SearchResult> searchResults = Arrays.asList(mockResult("/content/group/site1/modified"),
+                mockResult("/content/group/site1/unchanged"));
+
+        securitySearchFilter.filter(searchResults);
+        securitySearchFilter.update(null, mockEvent("content.revise", "/content/group/site1/modified", true));
+        securitySearchFilter.update(null, mockEvent("content.read", "/content/group/site1/unchanged", false));
+        securitySearchFilter.filter(searchResults);
+
+        verify(entityContentProducer, times(2)).canRead("/content/group/site1/modified");
+        verify(entityContentProducer, times(1)).canRead("/content/group/site1/unchanged");
+    }
+
+    /**
+     * Attempts to filter results from a collection twice, with a modification of the collection in between.
+     * <p>
+     * Checks that the permissions on the content of the collection are checked again.
+     * </p>
+     */
+    @Test
+    public void testDecisionForgottenAfterCollectionModification() {
+        EntityContentProducer entityContentProducer = mock(EntityContentProducer.class);
+        when(contentProducerFactory.getContentProducerForElement(anyString())).thenReturn(entityContentProducer);
+        List<SearchResult> searchResults = Arrays.asList(mockResult("/content/group/site1/hidden/file"),
+                mockResult("/content/group/site1/file"));
+
+        securitySearchFilter.filter(searchResults);
+        securitySearchFilter.update(null, mockEvent("content.revise", "/content/group/site1/hidden/", true));
+        securitySearchFilter.filter(searchResults);
+
+        verify(entityContentProducer, times(2)).canRead("/content/group/site1/hidden/file");
+        verify(entityContentProducer, times(1)).canRead("/content/group/site1/file");
+    }
+
+    /**
+     * Attempts to filter results from two sites twice, with a modification of the realm of one site in between.
+     * <p>
+     * Checks that the permissions are checked again only for the results of the modified site.
+     * </p>
+     */
+    @Test
+    public void testSiteDecisionsForgottenAfterRealmUpdate() {
+        EntityContentProducer entityContentProducer = mock(EntityContentProducer.class);
+        when(contentProducerFactory.getContentProducerForElement(anyString())).thenReturn(entityContentProducer);
+        SearchResult site1Result = mockResult("reference1");
+        when(site1Result.getSiteId()).thenReturn("site1");
+        SearchResult site2Result = mockResult("reference2");
+        when(site2Result.getSiteId()).thenReturn("site2");
+        List<SearchResult> searchResults = Arrays.asList(site1Result, site2Result);
+
+        securitySearchFilter.filter(searchResults);
+        securitySearchFilter.update(null,
+                mockEvent(AuthzGroupService.SECURE_UPDATE_AUTHZ_GROUP, "/realm//site/site1/group/group1", true));
+        securitySearchFilter.filter(searchResults);
+
+        verify(entityContentProducer, times(2)).canRead("reference1");
+        verify(entityContentProducer, times(1)).canRead("reference2");
+    }
+
+    /**
+     * Attempts to filter a page of results while every permission checking thread is busy.
+     * <p>
+     * Checks that the remaining permission is checked by the searching thread instead of waiting for a free thread.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testCheckedInlineWhenThreadsBusy() throws Exception {
+        securitySearchFilter.destroy();
+        securitySearchFilter.setThreadCount(1);
+        securitySearchFilter.init();
+        EntityContentProducer entityContentProducer = mock(EntityContentProducer.class);
+        when(contentProducerFactory.getContentProducerForElement(anyString())).thenReturn(entityContentProducer);
+        final CountDownLatch inlineCheck = new CountDownLatch(1);
+        final Thread searchThread = Thread.currentThread();
+        when(entityContentProducer.canRead("slow")).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                return inlineCheck.await(5, TimeUnit.SECONDS);
+            }
+        });
+        when(entityContentProducer.canRead("fast")).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                inlineCheck.countDown();
+                return Thread.currentThread() == searchThread;
+            }
+        });
+
+        List<SearchResult> actualResults = securitySearchFilter.filter(
+                Arrays.asList(mockResult("slow"), mockResult("fast")));
+
+        assertFalse(actualResults.get(0).isCensored());
+        assertFalse(actualResults.get(1).isCensored());
+    }
+
+    private SearchResult mockResult(String reference) {
+        SearchResult searchResult = mock(SearchResult.class);
+        when(searchResult.getReference()).thenReturn(reference);
+        return searchResult;
+    }
+
+    private Event mockEvent(String eventType, String resource, boolean modify) {
+        Event event = mock(Event.class);
+        when(event.getEvent()).thenReturn(eventType);
+        when(event.getResource()).thenReturn(resource);
+        when(event.getModify()).thenReturn(modify);
+        return event;
+    }
 }
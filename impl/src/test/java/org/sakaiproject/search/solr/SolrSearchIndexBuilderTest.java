@@ -11,6 +11,10 @@ import org.sakaiproject.search.indexing.TaskMatcher;
 import org.sakaiproject.search.producer.ContentProducerFactory;
 import org.sakaiproject.search.producer.ProducerBuilder;
 import org.sakaiproject.search.queueing.IndexQueueing;
+import org.sakaiproject.search.queueing.TaskDebouncer;
+import org.sakaiproject.search.solr.indexing.SolrTools;
+import org.sakaiproject.search.solr.util.SearchToolSiteCache;
+import org.sakaiproject.site.api.SiteService;
 
 import java.util.Date;
 
@@ -23,6 +27,10 @@ public class SolrSearchIndexBuilderTest {
     private SolrSearchIndexBuilder solrSearchIndexBuilder;
     @Mock
     private IndexQueueing mockIndexQueueing;
+    @Mock
+    private SearchToolSiteCache mockSearchToolSiteCache;
+    @Mock
+    private SolrTools mockSolrTools;
     private ContentProducerFactory contentProducerFactory;
 
     @Before
@@ -32,6 +40,8 @@ public class SolrSearchIndexBuilderTest {
         solrSearchIndexBuilder.setIndexQueueing(mockIndexQueueing);
         contentProducerFactory = new ContentProducerFactory();
         solrSearchIndexBuilder.setContentProducerFactory(contentProducerFactory);
+        solrSearchIndexBuilder.setSearchToolSiteCache(mockSearchToolSiteCache);
+        solrSearchIndexBuilder.setSolrTools(mockSolrTools);
     }
 
     @Test
@@ -90,6 +100,27 @@ public class SolrSearchIndexBuilderTest {
                 argThat(new TaskMatcher(DefaultTask.Type.REMOVE_DOCUMENT.getTypeName())));
     }
 
+    @Test
+    public void testDocumentTaskDebounced() throws Exception {
+        String reference = "reference";
+        String eventType = "eventType";
+        Event event = mock(Event.class);
+        when(event.getEventTime()).thenReturn(new Date());
+        when(event.getResource()).thenReturn(reference);
+        when(event.getEvent()).thenReturn(eventType);
+        ProducerBuilder producerBuilder = ProducerBuilder.create().addDoc(reference)
+                .addEvent(eventType, ProducerBuilder.ActionType.ADD);
+        contentProducerFactory.addContentProducer(producerBuilder.build());
+        TaskDebouncer mockTaskDebouncer = mock(TaskDebouncer.class);
+        solrSearchIndexBuilder.setTaskDebouncer(mockTaskDebouncer);
+
+        solrSearchIndexBuilder.addResource(null, event);
+
+        verify(mockTaskDebouncer).debounce(eq(reference),
+                argThat(new TaskMatcher(DefaultTask.Type.INDEX_DOCUMENT.getTypeName())));
+        verify(mockIndexQueueing, never()).addTaskToQueue(any(Task.class));
+    }
+
     @Test
     public void testRebuildSite() throws Exception {
         String siteId = "siteId";
@@ -125,4 +156,37 @@ public class SolrSearchIndexBuilderTest {
         verify(mockIndexQueueing).addTaskToQueue(
                 argThat(new TaskMatcher(DefaultTask.Type.REFRESH_ALL.getTypeName())));
     }
+
+    @Test
+    public void testResourceIgnoredWithoutSearchTool() throws Exception {
+        String reference = "reference";
+        String eventType = "eventType";
+        Event event = mock(Event.class);
+        when(event.getEventTime()).thenReturn(new Date());
+        when(event.getResource()).thenReturn(reference);
+        when(event.getEvent()).thenReturn(eventType);
+        ProducerBuilder producerBuilder = ProducerBuilder.create().addDoc(reference)
+                .addEvent(eventType, ProducerBuilder.ActionType.ADD);
+        contentProducerFactory.addContentProducer(producerBuilder.build());
+        solrSearchIndexBuilder.setSearchToolRequired(true);
+        when(mockSearchToolSiteCache.hasSearchTool(anyString())).thenReturn(false);
+
+        solrSearchIndexBuilder.addResource(null, event);
+
+        verify(mockIndexQueueing, never()).addTaskToQueue(any(Task.class));
+    }
+
+    @Test
+    public void testSiteUpdateInvalidatesSiteCaches() throws Exception {
+        String siteId = "siteId";
+        Event event = mock(Event.class);
+        when(event.getEventTime()).thenReturn(new Date());
+        when(event.getResource()).thenReturn(SiteService.REFERENCE_ROOT + "/" + siteId);
+        when(event.getEvent()).thenReturn(SiteService.SECURE_UPDATE_SITE);
+
+        solrSearchIndexBuilder.addResource(null, event);
+
+        verify(mockSolrTools).invalidateSite(siteId);
+        verify(mockIndexQueueing, never()).addTaskToQueue(any(Task.class));
+    }
 }
@@ -0,0 +1,600 @@
+package org.sakaiproject.search.solr;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.BaseEncoding;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.StreamingResponseCallback;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.params.TermVectorParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.search.api.InvalidSearchQueryException;
+import org.sakaiproject.search.api.SearchService;
+import org.sakaiproject.search.producer.ContentProducerFactory;
+import org.sakaiproject.search.solr.indexing.SolrTools;
+import org.sakaiproject.search.solr.response.SearchOverview;
+import org.sakaiproject.search.solr.response.SolrSearchList;
+import org.sakaiproject.search.solr.util.AsyncSearchExecutor;
+import org.sakaiproject.search.solr.util.QueryCostGuard;
+import org.sakaiproject.search.solr.util.SearchSuggester;
+import org.sakaiproject.search.solr.util.UserAuthzGroupsCache;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks the queries generated by the {@link SolrSearchService}.
+ *
+ * @author Colin Hebert
+ */
+public class SolrSearchServiceTest {
+    @Mock
+    private SolrServer mockSolrServer;
+    private SolrSearchService solrSearchService;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        solrSearchService = new SolrSearchService();
+        solrSearchService.setSolrServer(mockSolrServer);
+        solrSearchService.setContentProducerFactory(new ContentProducerFactory());
+
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("response", new SolrDocumentList());
+        QueryResponse queryResponse = new QueryResponse();
+        queryResponse.setResponse(response);
+        when(mockSolrServer.query(any(SolrParams.class))).thenReturn(queryResponse);
+    }
+
+    /**
+     * Attempts to search twice in the same sites listed in a different order.
+     * <p>
+     * Checks that the same filter query is generated, so solr's filterCache can be used.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testSiteFilterIndependentOfOrder() throws Exception {
+        solrSearchService.search("biology", Arrays.asList("site2", "site1", "site2"), 0, 10);
+        solrSearchService.search("biology", Arrays.asList("site1", "site2"), 0, 10);
+
+        List<String> filterQueries = getFilterQueries(2);
+        assertThat(filterQueries.get(0), equalTo("{!lucene q.op=OR df=siteid}site1 site2"));
+        assertThat(filterQueries.get(1), equalTo(filterQueries.get(0)));
+    }
+
+    /**
+     * Attempts to search in a site whose identifier contains special characters.
+     * <p>
+     * Checks that the site identifier is escaped.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testSiteFilterEscaped() throws Exception {
+        solrSearchService.search("biology", Arrays.asList("~user"), 0, 10);
+
+        assertThat(getFilterQueries(1).get(0), equalTo("{!lucene q.op=OR df=siteid}\\~user"));
+    }
+
+    /**
+     * Attempts to search as a user allowed to read in some realms.
+     * <p>
+     * Checks that documents from the user's sites are excluded if they belong to other realms, unless their realms are
+     * unknown.<br />
+     * Checks that documents from other sites are kept, as they may be accessible to every authenticated user.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testAuthzGroupsFilter() throws Exception {
+        UserAuthzGroupsCache mockUserAuthzGroupsCache = mock(UserAuthzGroupsCache.class);
+        when(mockUserAuthzGroupsCache.getCurrentUserAuthzGroups())
+                .thenReturn(Arrays.asList("/site/site1", "/site/site1/group/group1"));
+        solrSearchService.setUserAuthzGroupsCache(mockUserAuthzGroupsCache);
+
+        solrSearchService.search("biology", null, 0, 10);
+
+        assertThat(getFilterQueries(1).get(0), equalTo("{!lucene q.op=OR df=authzgroups}\\!unknown"
+                + " \\/site\\/site1 \\/site\\/site1\\/group\\/group1 (*:* -siteid:(site1))"));
+    }
+
+    /**
+     * Attempts to search as a user who isn't allowed to read in any site.
+     * <p>
+     * Checks that no document is excluded, as every document may be accessible to every authenticated user.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testAuthzGroupsFilterWithoutSite() throws Exception {
+        UserAuthzGroupsCache mockUserAuthzGroupsCache = mock(UserAuthzGroupsCache.class);
+        when(mockUserAuthzGroupsCache.getCurrentUserAuthzGroups())
+                .thenReturn(Arrays.asList("/site/site1/group/group1"));
+        solrSearchService.setUserAuthzGroupsCache(mockUserAuthzGroupsCache);
+
+        solrSearchService.search("biology", null, 0, 10);
+
+        assertThat(getFilterQueries(1).get(0), equalTo("*:*"));
+    }
+
+    /**
+     * Attempts to search.
+     * <p>
+     * Checks that only the fields needed to display results are requested, leaving the contents out.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testContentsNotFetched() throws Exception {
+        solrSearchService.search("biology", null, 0, 10);
+
+        ArgumentCaptor<SolrParams> paramsCaptor = ArgumentCaptor.forClass(SolrParams.class);
+        verify(mockSolrServer).query(paramsCaptor.capture());
+        List<String> fields = Arrays.asList(paramsCaptor.getValue().get(CommonParams.FL).split(","));
+        assertThat(fields.contains(SearchService.FIELD_REFERENCE), is(true));
+        assertThat(fields.contains(SearchService.FIELD_CONTENTS), is(false));
+    }
+
+    /**
+     * Attempts to search with and without term vectors.
+     * <p>
+     * Checks that term vectors are only requested when asked for.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testTermVectorsOptIn() throws Exception {
+        solrSearchService.search("biology", null, 0, 10);
+        solrSearchService.search("biology", null, 0, 10, null, null, true);
+
+        ArgumentCaptor<SolrParams> paramsCaptor = ArgumentCaptor.forClass(SolrParams.class);
+        verify(mockSolrServer, times(2)).query(paramsCaptor.capture());
+        assertThat(paramsCaptor.getAllValues().get(0).getBool(TermVectorParams.TV), is(false));
+        assertThat(paramsCaptor.getAllValues().get(1).getBool(TermVectorParams.TV), is(true));
+    }
+
+    /**
+     * Attempts to get two pages of results with a cursor.
+     * <p>
+     * Checks that results are sorted by score and unique key, and that the second page starts after the last
+     * document of the first page.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testCursorStartsAfterLastDocument() throws Exception {
+        SolrDocumentList documents = new SolrDocumentList();
+        SolrDocument document = new SolrDocument();
+        document.setField(SolrTools.FIELD_ID, "site1!/content/file");
+        document.setField(SearchService.FIELD_REFERENCE, "/content/file");
+        document.setField("score", 0.5f);
+        documents.add(document);
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("response", documents);
+        response.add("highlighting", new NamedList<Object>());
+        QueryResponse queryResponse = new QueryResponse();
+        queryResponse.setResponse(response);
+        when(mockSolrServer.query(any(SolrParams.class))).thenReturn(queryResponse);
+
+        String cursor = solrSearchService.search("biology", null, null, 10).getNextCursor();
+        solrSearchService.search("biology", null, cursor, 10);
+
+        ArgumentCaptor<SolrParams> paramsCaptor = ArgumentCaptor.forClass(SolrParams.class);
+        verify(mockSolrServer, times(2)).query(paramsCaptor.capture());
+        SolrParams firstPage = paramsCaptor.getAllValues().get(0);
+        SolrParams secondPage = paramsCaptor.getAllValues().get(1);
+        assertThat(firstPage.get(CommonParams.SORT), equalTo("score desc,id asc"));
+        assertThat(firstPage.get(CommonParams.FQ), is(nullValue()));
+        assertThat(secondPage.get(CommonParams.START), equalTo("0"));
+        assertThat(secondPage.get("cursorUpTo"), equalTo("id:[* TO site1\\!\\/content\\/file]"));
+        assertThat(secondPage.get(CommonParams.FQ), equalTo("{!frange cache=false cost=200 l=0 u=0.5}"
+                + "if(and(query($cursorUpTo,0),map(query($cursorQuery),0.5,0.5,1,0)),-1,query($cursorQuery))"));
+    }
+
+    /**
+     * Attempts to search with an invalid cursor.
+     * <p>
+     * Checks that the search is rejected.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test(expected = InvalidSearchQueryException.class)
+    public void testInvalidCursorRejected() throws Exception {
+        solrSearchService.search("biology", null, "not a cursor", 10);
+    }
+
+    /**
+     * Attempts to search with the XML interface.
+     * <p>
+     * Checks that the streamed documents are written, with the number of results found.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testSearchXMLStreamed() throws Exception {
+        when(mockSolrServer.queryAndStreamResponse(any(SolrParams.class), any(StreamingResponseCallback.class)))
+                .thenAnswer(new Answer<QueryResponse>() {
+                    @Override
+                    public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+                        StreamingResponseCallback callback = (StreamingResponseCallback) invocation.getArguments()[1];
+                        callback.streamDocListInfo(12, 0, 0.5f);
+                        SolrDocument document = new SolrDocument();
+                        document.setField(SearchService.FIELD_REFERENCE, "/content/file");
+                        document.setField(SearchService.FIELD_TITLE, "Biology");
+                        document.setField("score", 0.5f);
+                        callback.streamSolrDocument(document);
+                        return new QueryResponse();
+                    }
+                });
+        Map<String, String[]> parameters = new HashMap<String, String[]>();
+        parameters.put("q", new String[]{"biology"});
+        parameters.put("ctx", new String[]{"site1;site2"});
+        parameters.put("s", new String[]{"0"});
+        parameters.put("e", new String[]{"10"});
+
+        String xml = solrSearchService.searchXML(parameters);
+
+        assertThat(xml, containsString("fullsize=\"12\""));
+        assertThat(xml, containsString("size=\"10\""));
+        assertThat(xml, containsString("reference=\"/content/file\""));
+        assertThat(xml, containsString("</results>"));
+    }
+
+    /**
+     * Attempts to search through the XML interface on behalf of a user, with a valid checksum.
+     * <p>
+     * Checks that the search is done in a session of the user, and that the previous session is restored.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testSearchXMLAsUser() throws Exception {
+        SessionManager mockSessionManager = mock(SessionManager.class);
+        Session previousSession = mock(Session.class);
+        final Session searchSession = mock(Session.class);
+        when(mockSessionManager.getCurrentSession()).thenReturn(previousSession);
+        when(mockSessionManager.startSession()).thenReturn(searchSession);
+        solrSearchService.setSessionManager(mockSessionManager);
+        solrSearchService.setSharedKey("secret");
+        Map<String, String[]> parameters = createXmlParameters("biology");
+        parameters.put("u", new String[]{"user1"});
+        parameters.put("cs", new String[]{BaseEncoding.base16().lowerCase().encode(MessageDigest.getInstance("SHA-1")
+                .digest("secretuser1biology".getBytes(Charsets.UTF_8)))});
+
+        String xml = solrSearchService.searchXML(parameters);
+
+        assertThat(xml, containsString("</results>"));
+        verify(searchSession).setUserId("user1");
+        InOrder inOrder = inOrder(mockSessionManager, mockSolrServer);
+        inOrder.verify(mockSessionManager).setCurrentSession(searchSession);
+        inOrder.verify(mockSolrServer).queryAndStreamResponse(any(SolrParams.class),
+                any(StreamingResponseCallback.class));
+        inOrder.verify(mockSessionManager).setCurrentSession(previousSession);
+        verify(searchSession).invalidate();
+    }
+
+    /**
+     * Attempts to search through the XML interface on behalf of a user, with an invalid checksum.
+     * <p>
+     * Checks that the search is rejected without querying solr.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testSearchXMLInvalidChecksum() throws Exception {
+        solrSearchService.setSessionManager(mock(SessionManager.class));
+        solrSearchService.setSharedKey("secret");
+        Map<String, String[]> parameters = createXmlParameters("biology");
+        parameters.put("u", new String[]{"admin"});
+        parameters.put("cs", new String[]{"0123456789abcdef"});
+
+        String xml = solrSearchService.searchXML(parameters);
+
+        assertThat(xml, containsString("<error>"));
+        verify(mockSolrServer, never()).queryAndStreamResponse(any(SolrParams.class),
+                any(StreamingResponseCallback.class));
+    }
+
+    private static Map<String, String[]> createXmlParameters(String searchTerms) {
+        Map<String, String[]> parameters = new HashMap<String, String[]>();
+        parameters.put("q", new String[]{searchTerms});
+        parameters.put("s", new String[]{"0"});
+        parameters.put("e", new String[]{"10"});
+        return parameters;
+    }
+
+    /**
+     * Attempts to count the results of a search for each tool, type, site and container.
+     * <p>
+     * Checks that the counts of each field are returned, without the documents missing a value.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testFacetsCounted() throws Exception {
+        NamedList<Object> toolCounts = new NamedList<Object>();
+        toolCounts.add("sakai.resources", 12);
+        toolCounts.add("sakai.forums", 3);
+        NamedList<Object> containerCounts = new NamedList<Object>();
+        containerCounts.add("", 4);
+        containerCounts.add("/content/group/site1/", 11);
+        NamedList<Object> facetFields = new NamedList<Object>();
+        facetFields.add(SearchService.FIELD_TOOL, toolCounts);
+        facetFields.add(SearchService.FIELD_CONTAINER, containerCounts);
+        NamedList<Object> facetCounts = new NamedList<Object>();
+        facetCounts.add("facet_queries", new NamedList<Object>());
+        facetCounts.add("facet_fields", facetFields);
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("response", new SolrDocumentList());
+        response.add("facet_counts", facetCounts);
+        QueryResponse queryResponse = new QueryResponse();
+        queryResponse.setResponse(response);
+        when(mockSolrServer.query(any(SolrParams.class))).thenReturn(queryResponse);
+        UserAuthzGroupsCache mockUserAuthzGroupsCache = mock(UserAuthzGroupsCache.class);
+        when(mockUserAuthzGroupsCache.getCurrentUserAuthzGroups()).thenReturn(Arrays.asList("/site/site1"));
+        solrSearchService.setUserAuthzGroupsCache(mockUserAuthzGroupsCache);
+
+        Map<String, Map<String, Long>> facets = solrSearchService.getFacets("biology", Arrays.asList("site1"));
+
+        assertThat(facets.get(SearchService.FIELD_TOOL).get("sakai.resources"), is(12L));
+        assertThat(facets.get(SearchService.FIELD_TOOL).get("sakai.forums"), is(3L));
+        assertThat(facets.get(SearchService.FIELD_CONTAINER).containsKey(""), is(false));
+        assertThat(facets.get(SearchService.FIELD_TYPE).isEmpty(), is(true));
+        ArgumentCaptor<SolrParams> paramsCaptor = ArgumentCaptor.forClass(SolrParams.class);
+        verify(mockSolrServer).query(paramsCaptor.capture());
+        assertThat(Arrays.asList(paramsCaptor.getValue().getParams(FacetParams.FACET_FIELD)),
+                equalTo(SolrSearchService.FACET_FIELDS));
+        assertThat(paramsCaptor.getValue().get(CommonParams.ROWS), equalTo("0"));
+    }
+
+    /**
+     * Attempts to count the results of a search in every site of a user and in sites the user isn't member of.
+     * <p>
+     * Checks that only the documents of the user's sites are counted.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testFacetsRestrictedToUserSites() throws Exception {
+        UserAuthzGroupsCache mockUserAuthzGroupsCache = mock(UserAuthzGroupsCache.class);
+        when(mockUserAuthzGroupsCache.getCurrentUserAuthzGroups())
+                .thenReturn(Arrays.asList("/site/site2", "/site/site1"));
+        solrSearchService.setUserAuthzGroupsCache(mockUserAuthzGroupsCache);
+
+        solrSearchService.getFacets("biology", null);
+        solrSearchService.getFacets("biology", Arrays.asList("site3", "site1"));
+
+        ArgumentCaptor<SolrParams> paramsCaptor = ArgumentCaptor.forClass(SolrParams.class);
+        verify(mockSolrServer, times(2)).query(paramsCaptor.capture());
+        assertThat(paramsCaptor.getAllValues().get(0).getParams(CommonParams.FQ)[0],
+                equalTo("{!lucene q.op=OR df=siteid}site1 site2"));
+        assertThat(paramsCaptor.getAllValues().get(1).getParams(CommonParams.FQ)[0],
+                equalTo("{!lucene q.op=OR df=siteid}site1"));
+    }
+
+    /**
+     * Attempts to count the results of a search in a site as an anonymous user, whose realms are unknown.
+     * <p>
+     * Checks that nothing is counted, as counts couldn't be restricted to the readable documents of the site.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testNoFacetsForAnonymousUser() throws Exception {
+        solrSearchService.setUserAuthzGroupsCache(mock(UserAuthzGroupsCache.class));
+
+        Map<String, Map<String, Long>> facets = solrSearchService.getFacets("biology", Arrays.asList("site1"));
+
+        assertThat(facets.isEmpty(), is(true));
+        verifyZeroInteractions(mockSolrServer);
+    }
+
+    /**
+     * Attempts to search with a leading wildcard while solr takes longer than the time allowed.
+     * <p>
+     * Checks that the query is rewritten, sent with the time allowed, and that the results are flagged as partial.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testGuardedQueryWithPartialResults() throws Exception {
+        NamedList<Object> header = new NamedList<Object>();
+        header.add("partialResults", true);
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("responseHeader", header);
+        response.add("response", new SolrDocumentList());
+        response.add("highlighting", new NamedList<Object>());
+        QueryResponse queryResponse = new QueryResponse();
+        queryResponse.setResponse(response);
+        when(mockSolrServer.query(any(SolrParams.class))).thenReturn(queryResponse);
+        solrSearchService.setQueryCostGuard(new QueryCostGuard());
+        solrSearchService.setTimeAllowed(500);
+
+        SolrSearchList results = (SolrSearchList) solrSearchService.search("*ology", null, 0, 10);
+
+        assertThat(results.isPartialResults(), is(true));
+        ArgumentCaptor<SolrParams> paramsCaptor = ArgumentCaptor.forClass(SolrParams.class);
+        verify(mockSolrServer).query(paramsCaptor.capture());
+        assertThat(paramsCaptor.getValue().get(CommonParams.Q), equalTo("text_rev:*ology"));
+        assertThat(paramsCaptor.getValue().get(CommonParams.TIME_ALLOWED), equalTo("500"));
+    }
+
+    /**
+     * Attempts to get the results, suggestions and facets of a search while facets can't be counted.
+     * <p>
+     * Checks that the results and suggestions are still returned, without facets.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testSearchOverviewWithoutFacets() throws Exception {
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("response", new SolrDocumentList());
+        response.add("highlighting", new NamedList<Object>());
+        final QueryResponse queryResponse = new QueryResponse();
+        queryResponse.setResponse(response);
+        when(mockSolrServer.query(any(SolrParams.class))).thenAnswer(new Answer<QueryResponse>() {
+            @Override
+            public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+                SolrParams params = (SolrParams) invocation.getArguments()[0];
+                if (params.getBool(FacetParams.FACET, false))
+                    throw new SolrServerException("Facets unavailable");
+                return queryResponse;
+            }
+        });
+        SearchSuggester mockSearchSuggester = mock(SearchSuggester.class);
+        when(mockSearchSuggester.getSuggestions(eq("biology"), anyListOf(String.class)))
+                .thenReturn(Arrays.asList("biology cell"));
+        solrSearchService.setSearchSuggester(mockSearchSuggester);
+        UserAuthzGroupsCache mockUserAuthzGroupsCache = mock(UserAuthzGroupsCache.class);
+        when(mockUserAuthzGroupsCache.getCurrentUserAuthzGroups()).thenReturn(Arrays.asList("/site/site1"));
+        solrSearchService.setUserAuthzGroupsCache(mockUserAuthzGroupsCache);
+
+        SearchOverview overview = solrSearchService.getSearchOverview("biology", Arrays.asList("site1"), 0, 10, 0)
+                .get();
+
+        assertThat(overview.getResults().getFullSize(), is(0));
+        assertThat(overview.getSuggestions(), equalTo(new String[]{"biology cell"}));
+        assertThat(overview.getFacets().isEmpty(), is(true));
+    }
+
+    /**
+     * Attempts to get the results, suggestions and facets of a search in two sites, in the background.
+     * <p>
+     * Checks that the three lookups are done by the executor and that suggestions are restricted to the searched
+     * sites of the user.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testSearchOverviewInBackground() throws Exception {
+        AsyncSearchExecutor asyncSearchExecutor = new AsyncSearchExecutor();
+        asyncSearchExecutor.setSessionManager(mock(SessionManager.class));
+        asyncSearchExecutor.setThreadLocalManager(mock(ThreadLocalManager.class));
+        asyncSearchExecutor.init();
+        solrSearchService.setAsyncSearchExecutor(asyncSearchExecutor);
+        SearchSuggester mockSearchSuggester = mock(SearchSuggester.class);
+        when(mockSearchSuggester.getSuggestions(eq("biology"), anyListOf(String.class)))
+                .thenReturn(Arrays.asList("biology cell"));
+        solrSearchService.setSearchSuggester(mockSearchSuggester);
+        UserAuthzGroupsCache mockUserAuthzGroupsCache = mock(UserAuthzGroupsCache.class);
+        when(mockUserAuthzGroupsCache.getCurrentUserAuthzGroups())
+                .thenReturn(Arrays.asList("/site/site1", "/site/site2", "/site/site3"));
+        solrSearchService.setUserAuthzGroupsCache(mockUserAuthzGroupsCache);
+
+        try {
+            SearchOverview overview = solrSearchService.getSearchOverview("biology",
+                    Arrays.asList("site2", "site1"), 0, 10, 0).get(5, TimeUnit.SECONDS);
+
+            assertThat(overview.getResults().getFullSize(), is(0));
+            assertThat(overview.getSuggestions(), equalTo(new String[]{"biology cell"}));
+            assertThat(overview.getFacets().get(SearchService.FIELD_TOOL).isEmpty(), is(true));
+            verify(mockSearchSuggester).getSuggestions("biology", Arrays.asList(
+                    "{!lucene q.op=OR df=siteid}site1 site2",
+                    "{!lucene q.op=OR df=authzgroups}\\!unknown \\/site\\/site1 \\/site\\/site2"
+                            + " \\/site\\/site3 (*:* -siteid:(site1 site2 site3))"));
+        } finally {
+            asyncSearchExecutor.destroy();
+        }
+    }
+
+    /**
+     * Attempts to get suggestions in every site of a user.
+     * <p>
+     * Checks that terms are suggested from the documents of the user's sites readable through the user's realms.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testSuggestionsRestrictedToUserSites() throws Exception {
+        SearchSuggester mockSearchSuggester = mock(SearchSuggester.class);
+        solrSearchService.setSearchSuggester(mockSearchSuggester);
+        UserAuthzGroupsCache mockUserAuthzGroupsCache = mock(UserAuthzGroupsCache.class);
+        when(mockUserAuthzGroupsCache.getCurrentUserAuthzGroups())
+                .thenReturn(Arrays.asList("/site/site2", "/site/site1", "/site/site1/group/group1"));
+        solrSearchService.setUserAuthzGroupsCache(mockUserAuthzGroupsCache);
+
+        solrSearchService.getSearchSuggestions("biology", null, true);
+
+        verify(mockSearchSuggester).getSuggestions("biology", Arrays.asList(
+                "{!lucene q.op=OR df=siteid}site1 site2",
+                "{!lucene q.op=OR df=authzgroups}\\!unknown \\/site\\/site2 \\/site\\/site1"
+                        + " \\/site\\/site1\\/group\\/group1 (*:* -siteid:(site2 site1))"));
+    }
+
+    /**
+     * Attempts to get suggestions in a site as an anonymous user, whose realms are unknown.
+     * <p>
+     * Checks that nothing is suggested, as terms couldn't be restricted to the readable documents of the site.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testNoSuggestionsForAnonymousUser() throws Exception {
+        SearchSuggester mockSearchSuggester = mock(SearchSuggester.class);
+        solrSearchService.setSearchSuggester(mockSearchSuggester);
+        solrSearchService.setUserAuthzGroupsCache(mock(UserAuthzGroupsCache.class));
+
+        String[] suggestions = solrSearchService.getSearchSuggestions("biology", "site1", false);
+
+        assertThat(suggestions.length, is(0));
+        verifyZeroInteractions(mockSearchSuggester);
+    }
+
+    private List<String> getFilterQueries(int searchCount) throws Exception {
+        ArgumentCaptor<SolrParams> paramsCaptor = ArgumentCaptor.forClass(SolrParams.class);
+        verify(mockSolrServer, times(searchCount)).query(paramsCaptor.capture());
+        String[] filterQueries = new String[searchCount];
+        for (int i = 0; i < searchCount; i++) {
+            filterQueries[i] = paramsCaptor.getAllValues().get(i).get(CommonParams.FQ);
+        }
+        return Arrays.asList(filterQueries);
+    }
+}
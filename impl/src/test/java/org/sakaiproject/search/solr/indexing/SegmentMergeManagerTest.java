@@ -0,0 +1,156 @@
+package org.sakaiproject.search.solr.indexing;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.params.UpdateParams;
+import org.apache.solr.common.util.NamedList;
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that segments are merged only when necessary.
+ *
+ * @author Colin Hebert
+ */
+public class SegmentMergeManagerTest {
+    @Mock
+    private SolrServer mockSolrServer;
+    private SegmentMergeManager segmentMergeManager;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        segmentMergeManager = new SegmentMergeManager();
+        segmentMergeManager.setSolrServer(mockSolrServer);
+        segmentMergeManager.setMaxSegments(10);
+        segmentMergeManager.setMaxDeletedDocumentsRatio(0.1);
+        // The whole day is off-peak
+        segmentMergeManager.setOffPeakStart(0);
+        segmentMergeManager.setOffPeakEnd(24);
+    }
+
+    /**
+     * Attempts to maintain an index with too many segments.
+     * <p>
+     * Checks that the index is optimised down to the maximum number of segments.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testTooManySegments() throws Exception {
+        mockIndexStatistics(1000, 1000, 20);
+
+        segmentMergeManager.maintainIndex();
+
+        verify(mockSolrServer).optimize(true, true, 10);
+    }
+
+    /**
+     * Attempts to maintain an index with too many deleted documents.
+     * <p>
+     * Checks that deleted documents are expunged without optimising the index.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testTooManyDeletedDocuments() throws Exception {
+        mockIndexStatistics(800, 1000, 5);
+
+        segmentMergeManager.maintainIndex();
+
+        verify(mockSolrServer).request(argThat(new ExpungeDeletesMatcher()));
+        verify(mockSolrServer, never()).optimize(anyBoolean(), anyBoolean(), anyInt());
+    }
+
+    /**
+     * Attempts to maintain an index that isn't fragmented.
+     * <p>
+     * Checks that nothing is merged.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testHealthyIndex() throws Exception {
+        mockIndexStatistics(950, 1000, 5);
+
+        segmentMergeManager.maintainIndex();
+
+        verify(mockSolrServer, never()).request(any(SolrRequest.class));
+        verify(mockSolrServer, never()).optimize(anyBoolean(), anyBoolean(), anyInt());
+    }
+
+    /**
+     * Attempts to maintain a fragmented index outside of the off-peak window.
+     * <p>
+     * Checks that the index isn't even inspected.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testOutsideOfOffPeakWindow() throws Exception {
+        // Empty window
+        segmentMergeManager.setOffPeakStart(3);
+        segmentMergeManager.setOffPeakEnd(3);
+        mockIndexStatistics(1, 1000, 50);
+
+        segmentMergeManager.maintainIndex();
+
+        verify(mockSolrServer, never()).query(any(SolrParams.class));
+        verify(mockSolrServer, never()).optimize(anyBoolean(), anyBoolean(), anyInt());
+    }
+
+    /**
+     * Checks the off-peak window when it spans over midnight.
+     */
+    @Test
+    public void testOffPeakWindowOverMidnight() {
+        segmentMergeManager.setOffPeakStart(22);
+        segmentMergeManager.setOffPeakEnd(4);
+
+        assertTrue(segmentMergeManager.isOffPeak(new DateTime(2013, 3, 10, 23, 0, 0).toDate()));
+        assertTrue(segmentMergeManager.isOffPeak(new DateTime(2013, 3, 10, 2, 0, 0).toDate()));
+        assertFalse(segmentMergeManager.isOffPeak(new DateTime(2013, 3, 10, 12, 0, 0).toDate()));
+    }
+
+    private void mockIndexStatistics(int numDocs, int maxDoc, int segmentCount) throws Exception {
+        NamedList<Object> indexStatistics = new NamedList<Object>();
+        indexStatistics.add("numDocs", numDocs);
+        indexStatistics.add("maxDoc", maxDoc);
+        indexStatistics.add("segmentCount", segmentCount);
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("index", indexStatistics);
+        QueryResponse queryResponse = mock(QueryResponse.class);
+        when(queryResponse.getResponse()).thenReturn(response);
+        when(mockSolrServer.query(any(SolrParams.class))).thenReturn(queryResponse);
+    }
+
+    /**
+     * Matches requests asking to expunge deleted documents.
+     */
+    private static class ExpungeDeletesMatcher extends BaseMatcher<SolrRequest> {
+        @Override
+        public boolean matches(Object o) {
+            return o instanceof SolrRequest
+                    && ((SolrRequest) o).getParams().getBool(UpdateParams.EXPUNGE_DELETES, false);
+        }
+
+        @Override
+        public void describeTo(Description description) {
+        }
+    }
+}
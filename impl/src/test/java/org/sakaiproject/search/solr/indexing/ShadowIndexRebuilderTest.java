@@ -0,0 +1,226 @@
+package org.sakaiproject.search.solr.indexing;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sakaiproject.search.solr.util.SolrServerAdapter;
+
+import static org.hamcrest.CoreMatchers.hasItem;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that the shadow core replaces the actual core at the right time.
+ * <p>
+ * The status document of the shadow core is simulated, each update replacing the document returned by the next
+ * real-time get.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class ShadowIndexRebuilderTest {
+    @Mock
+    private SolrServerAdapter mockSolrServerAdapter;
+    @Mock
+    private SolrServer mockShadowCore;
+    private ShadowIndexRebuilder shadowIndexRebuilder;
+    private SolrDocument status;
+    private final Answer<Object> statusUpdate = new Answer<Object>() {
+        @Override
+        public Object answer(InvocationOnMock invocation) throws Throwable {
+            SolrInputDocument update = (SolrInputDocument) invocation.getArguments()[0];
+            status = new SolrDocument();
+            for (String fieldName : update.getFieldNames()) {
+                status.setField(fieldName, update.getFieldValues(fieldName));
+            }
+            return null;
+        }
+    };
+    private final Answer<QueryResponse> statusLookup = new Answer<QueryResponse>() {
+        @Override
+        public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+            NamedList<Object> response = new NamedList<Object>();
+            response.add("doc", status);
+            QueryResponse queryResponse = mock(QueryResponse.class);
+            when(queryResponse.getResponse()).thenReturn(response);
+            return queryResponse;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        shadowIndexRebuilder = new ShadowIndexRebuilder();
+        shadowIndexRebuilder.setSolrServerAdapter(mockSolrServerAdapter);
+
+        when(mockSolrServerAdapter.createShadowCore()).thenAnswer(new Answer<SolrServer>() {
+            @Override
+            public SolrServer answer(InvocationOnMock invocation) throws Throwable {
+                when(mockSolrServerAdapter.findShadowCore()).thenReturn(mockShadowCore);
+                return mockShadowCore;
+            }
+        });
+        doAnswer(statusUpdate).when(mockShadowCore).add(any(SolrInputDocument.class));
+        when(mockShadowCore.query(any(SolrParams.class))).thenAnswer(statusLookup);
+    }
+
+    /**
+     * Attempts to rebuild two sites, the last one finishing after the registration of every site.
+     * <p>
+     * Checks that the cores are swapped only once every site has been rebuilt, and that the status document is
+     * removed beforehand.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testSwapAfterLastSite() throws Exception {
+        assertTrue(shadowIndexRebuilder.startRebuild());
+        shadowIndexRebuilder.registerSite();
+        shadowIndexRebuilder.registerSite();
+        shadowIndexRebuilder.siteRebuilt();
+        shadowIndexRebuilder.allSitesRegistered();
+        verify(mockSolrServerAdapter, never()).swapShadowCore();
+
+        shadowIndexRebuilder.siteRebuilt();
+        verify(mockShadowCore).deleteById(ShadowIndexRebuilder.STATUS_ID);
+        verify(mockSolrServerAdapter).swapShadowCore();
+    }
+
+    /**
+     * Attempts to rebuild sites that are all rebuilt before the end of the registration.
+     * <p>
+     * Checks that the cores are swapped once every site has been registered.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testSwapAfterRegistration() throws Exception {
+        assertTrue(shadowIndexRebuilder.startRebuild());
+        shadowIndexRebuilder.registerSite();
+        shadowIndexRebuilder.siteRebuilt();
+        verify(mockSolrServerAdapter, never()).swapShadowCore();
+
+        shadowIndexRebuilder.allSitesRegistered();
+        verify(mockSolrServerAdapter).swapShadowCore();
+    }
+
+    /**
+     * Attempts to rebuild a site while another server updates the status of the rebuild.
+     * <p>
+     * Checks that the status is read and updated again, so the site is still counted.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testConcurrentStatusUpdate() throws Exception {
+        assertTrue(shadowIndexRebuilder.startRebuild());
+        shadowIndexRebuilder.registerSite();
+        shadowIndexRebuilder.allSitesRegistered();
+        reset(mockShadowCore);
+        doThrow(new SolrException(SolrException.ErrorCode.CONFLICT, "Version conflict")).doAnswer(statusUpdate)
+                .when(mockShadowCore).add(any(SolrInputDocument.class));
+        when(mockShadowCore.query(any(SolrParams.class))).thenAnswer(statusLookup);
+
+        shadowIndexRebuilder.siteRebuilt();
+
+        verify(mockShadowCore, times(2)).add(any(SolrInputDocument.class));
+        verify(mockSolrServerAdapter).swapShadowCore();
+    }
+
+    /**
+     * Attempts to rebuild two sites, one of them failing once.
+     * <p>
+     * Checks that the failure is recorded, that the site is rebuilt again and that the cores are swapped once it has
+     * been rebuilt.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testRetryAfterFailedSite() throws Exception {
+        assertTrue(shadowIndexRebuilder.startRebuild());
+        shadowIndexRebuilder.registerSite();
+        shadowIndexRebuilder.registerSite();
+        shadowIndexRebuilder.allSitesRegistered();
+        shadowIndexRebuilder.siteRebuilt();
+
+        assertTrue(shadowIndexRebuilder.siteFailed("site1"));
+        assertThat(status.getFieldValues(ShadowIndexRebuilder.FIELD_FAILED_SITES), hasItem((Object) "site1"));
+        verify(mockSolrServerAdapter, never()).dropShadowCore();
+
+        shadowIndexRebuilder.siteRebuilt();
+        verify(mockSolrServerAdapter).swapShadowCore();
+    }
+
+    /**
+     * Attempts to rebuild two sites, one of them failing every time.
+     * <p>
+     * Checks that the rebuild is aborted after the last attempt and that the cores are never swapped.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testAbortAfterFailedSite() throws Exception {
+        shadowIndexRebuilder.setMaxSiteAttempts(2);
+        assertTrue(shadowIndexRebuilder.startRebuild());
+        shadowIndexRebuilder.registerSite();
+        shadowIndexRebuilder.registerSite();
+        shadowIndexRebuilder.allSitesRegistered();
+
+        assertTrue(shadowIndexRebuilder.siteFailed("site1"));
+        assertFalse(shadowIndexRebuilder.siteFailed("site1"));
+        verify(mockSolrServerAdapter).dropShadowCore();
+
+        when(mockSolrServerAdapter.findShadowCore()).thenReturn(null);
+        shadowIndexRebuilder.siteRebuilt();
+        verify(mockSolrServerAdapter, never()).swapShadowCore();
+    }
+
+    /**
+     * Attempts to start a rebuild while another one is running, possibly on another server.
+     * <p>
+     * Checks that the second rebuild doesn't start.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testConcurrentRebuild() throws Exception {
+        when(mockSolrServerAdapter.findShadowCore()).thenReturn(mockShadowCore);
+
+        assertFalse(shadowIndexRebuilder.startRebuild());
+        verify(mockSolrServerAdapter, never()).createShadowCore();
+    }
+
+    /**
+     * Attempts to start a rebuild on a SolrCloud cluster.
+     * <p>
+     * Checks that the rebuild doesn't start, so the index is rebuilt in place, and that no shadow core is created.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testNoRebuildInCloudMode() throws Exception {
+        when(mockSolrServerAdapter.isCloudMode()).thenReturn(true);
+
+        assertFalse(shadowIndexRebuilder.startRebuild());
+        verify(mockSolrServerAdapter, never()).createShadowCore();
+    }
+}
@@ -0,0 +1,134 @@
+package org.sakaiproject.search.solr.indexing;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
+import org.apache.solr.util.AbstractSolrTestCase;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.sakaiproject.search.producer.ContentProducerFactory;
+import org.sakaiproject.search.producer.ProducerBuilder;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Date;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Compares the time taken to rebuild the index with and without the bulk load mode.
+ * <p>
+ * Both modes start from the same index, either empty or already containing every document.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+@org.apache.lucene.util.LuceneTestCase.SuppressCodecs({"Lucene3x", "Lucene40", "Lucene41", "Lucene42"})
+public class SolrBulkLoadBenchmarkIT extends AbstractSolrTestCase {
+    private static final Logger logger = LoggerFactory.getLogger(SolrBulkLoadBenchmarkIT.class);
+    private static final Date DATE_1 = new DateTime(2013, 3, 10, 16, 0, 0).toDate();
+    private static final Date DATE_2 = new DateTime(2013, 3, 10, 17, 0, 0).toDate();
+    private static final int NUMBER_OF_SITES = 20;
+    private static final int DOCUMENTS_PER_SITE = 100;
+    private SolrServer solrServer;
+    private SolrTaskHandler solrTaskHandler;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        initCore("org/sakaiproject/search/solr/conf/search/conf/solrconfig.xml",
+                "org/sakaiproject/search/solr/conf/search/conf/schema.xml",
+                "org/sakaiproject/search/solr/conf",
+                "search");
+    }
+
+    @Before
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        solrServer = new EmbeddedSolrServer(h.getCoreContainer(), h.getCore().getName());
+        clearIndex();
+
+        solrTaskHandler = new SolrTaskHandler();
+        solrTaskHandler.setSolrServer(solrServer);
+        SolrTools solrTools = new SolrTools();
+        solrTaskHandler.setSolrTools(solrTools);
+        solrTools.setSolrServer(solrServer);
+        ContentProducerFactory contentProducerFactory = new ContentProducerFactory();
+        solrTools.setContentProducerFactory(contentProducerFactory);
+        solrTaskHandler.setThreadLocalManager(mock(ThreadLocalManager.class));
+
+        ProducerBuilder producerBuilder = ProducerBuilder.create();
+        for (int i = 0; i < NUMBER_OF_SITES; i++) {
+            producerBuilder.addDocsToSite(getSiteId(i), DOCUMENTS_PER_SITE);
+        }
+        contentProducerFactory.addContentProducer(producerBuilder.build());
+    }
+
+    /**
+     * Rebuilds the same sites in an empty index, once document by document and once in bulk.
+     * <p>
+     * Checks that both modes index every document.<br />
+     * The time taken by each mode is logged.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testInsertTime() throws Exception {
+        long regularTime = rebuild(DATE_1, false);
+        assertThat(countDocuments(), is((long) NUMBER_OF_SITES * DOCUMENTS_PER_SITE));
+
+        clearIndex();
+        long bulkTime = rebuild(DATE_1, true);
+        assertThat(countDocuments(), is((long) NUMBER_OF_SITES * DOCUMENTS_PER_SITE));
+
+        logger.info("Inserting {} documents took {}ms document by document and {}ms in bulk",
+                new Object[]{NUMBER_OF_SITES * DOCUMENTS_PER_SITE, regularTime, bulkTime});
+    }
+
+    /**
+     * Rebuilds the same sites in an index already containing them, once document by document and once in bulk.
+     * <p>
+     * Checks that both modes index every document.<br />
+     * The time taken by each mode is logged.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testUpdateTime() throws Exception {
+        rebuild(DATE_1, true);
+        long regularTime = rebuild(DATE_2, false);
+        assertThat(countDocuments(), is((long) NUMBER_OF_SITES * DOCUMENTS_PER_SITE));
+
+        clearIndex();
+        rebuild(DATE_1, true);
+        long bulkTime = rebuild(DATE_2, true);
+        assertThat(countDocuments(), is((long) NUMBER_OF_SITES * DOCUMENTS_PER_SITE));
+
+        logger.info("Updating {} documents took {}ms document by document and {}ms in bulk",
+                new Object[]{NUMBER_OF_SITES * DOCUMENTS_PER_SITE, regularTime, bulkTime});
+    }
+
+    private long rebuild(Date actionDate, boolean bulkLoad) {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < NUMBER_OF_SITES; i++) {
+            solrTaskHandler.indexSite(getSiteId(i), actionDate, bulkLoad);
+        }
+        solrTaskHandler.removeAllDocuments(actionDate);
+        solrTaskHandler.endBulkLoad();
+        return System.currentTimeMillis() - start;
+    }
+
+    private long countDocuments() throws Exception {
+        return solrServer.query(new SolrQuery("*:*").setRows(0)).getResults().getNumFound();
+    }
+
+    private static String getSiteId(int siteNumber) {
+        return "site" + siteNumber;
+    }
+}
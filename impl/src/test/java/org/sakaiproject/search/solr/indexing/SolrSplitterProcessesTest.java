@@ -111,7 +111,7 @@ public class SolrSplitterProcessesTest {
     public void testIndexAllTask() {
         Task task = mock(Task.class);
         when(task.getType()).thenReturn(DefaultTask.Type.INDEX_ALL.getTypeName());
-        when(mockSolrTools.getIndexableSites()).thenReturn(indexableSites);
+        when(mockSolrTools.getIndexableSites()).thenReturn(indexableSites.iterator());
         int indexableSitesSize = indexableSites.size();
         int numberOfTasks = indexableSitesSize + 1;
         solrSplitterProcesses.executeTask(task);
@@ -123,6 +123,33 @@ public class SolrSplitterProcessesTest {
                 argThat(new TaskMatcher(DefaultTask.Type.INDEX_SITE.getTypeName())));
     }
 
+    /**
+     * Attempts to execute an "IndexAll" task with a shadow core available.
+     * <p>
+     * Checks that no "RemoveAll" task has been created.<br />
+     * Checks that an "IndexSite" task has been created and registered for each site available.<br />
+     * Checks that the rebuilder is notified once every site has been registered.
+     * </p>
+     */
+    @Test
+    public void testIndexAllTaskInShadowCore() {
+        ShadowIndexRebuilder mockShadowIndexRebuilder = mock(ShadowIndexRebuilder.class);
+        solrSplitterProcesses.setShadowIndexRebuilder(mockShadowIndexRebuilder);
+        when(mockShadowIndexRebuilder.startRebuild()).thenReturn(true);
+        Task task = mock(Task.class);
+        when(task.getType()).thenReturn(DefaultTask.Type.INDEX_ALL.getTypeName());
+        when(mockSolrTools.getIndexableSites()).thenReturn(indexableSites.iterator());
+        int indexableSitesSize = indexableSites.size();
+        solrSplitterProcesses.executeTask(task);
+
+        verify(mockIndexQueueing, times(indexableSitesSize)).addTaskToQueue(
+                argThat(new TaskMatcher(DefaultTask.Type.INDEX_SITE.getTypeName())));
+        verify(mockIndexQueueing, never()).addTaskToQueue(
+                argThat(new TaskMatcher(SolrTask.Type.REMOVE_ALL_DOCUMENTS.getTypeName())));
+        verify(mockShadowIndexRebuilder, times(indexableSitesSize)).registerSite();
+        verify(mockShadowIndexRebuilder).allSitesRegistered();
+    }
+
     /**
      * Attempts to execute a "RefreshAll" task.
      * <p>
@@ -135,7 +162,7 @@ public class SolrSplitterProcessesTest {
     public void testRefreshAllTask() {
         Task task = mock(Task.class);
         when(task.getType()).thenReturn(DefaultTask.Type.REFRESH_ALL.getTypeName());
-        when(mockSolrTools.getIndexableSites()).thenReturn(indexableSites);
+        when(mockSolrTools.getIndexableSites()).thenReturn(indexableSites.iterator());
         int indexableSitesSize = indexableSites.size();
         int numberOfTasks = indexableSitesSize + 1;
         solrSplitterProcesses.executeTask(task);
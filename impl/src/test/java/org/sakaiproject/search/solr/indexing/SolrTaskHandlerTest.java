@@ -0,0 +1,319 @@
+package org.sakaiproject.search.solr.indexing;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.search.api.SearchService;
+import org.sakaiproject.search.indexing.exception.TaskHandlingException;
+import org.sakaiproject.search.indexing.exception.TemporaryTaskHandlingException;
+import org.sakaiproject.search.solr.util.SolrServerAdapter;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.Queue;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks the handling of concurrent modifications by the {@link SolrTaskHandler}.
+ *
+ * @author Colin Hebert
+ */
+public class SolrTaskHandlerTest {
+    private static final String REFERENCE = "/content/site1/document";
+    private static final Date INDEXATION_DATE = new DateTime(2013, 3, 10, 16, 0, 0).toDate();
+    private static final Date ACTION_DATE = new DateTime(2013, 3, 10, 17, 0, 0).toDate();
+    private static final int MAX_CONFLICT_RETRIES = 3;
+    private static final String CONTENT_DIGEST = "d41d8cd98f00b204e9800998ecf8427e";
+    @Mock
+    private SolrServer mockSolrServer;
+    @Mock
+    private SolrTools mockSolrTools;
+    private SolrTaskHandler solrTaskHandler;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        solrTaskHandler = new SolrTaskHandler();
+        solrTaskHandler.setSolrServer(mockSolrServer);
+        solrTaskHandler.setSolrTools(mockSolrTools);
+        solrTaskHandler.setMaxConflictRetries(MAX_CONFLICT_RETRIES);
+
+        when(mockSolrTools.getDocumentId(REFERENCE)).thenReturn(REFERENCE);
+        when(mockSolrTools.toSolrDocument(eq(REFERENCE), eq(ACTION_DATE), anyString()))
+                .thenReturn(new SolrInputDocument());
+        when(mockSolrTools.toSolrMetadataUpdate(eq(REFERENCE), eq(ACTION_DATE), anyCollectionOf(String.class)))
+                .thenReturn(new SolrInputDocument());
+        QueryResponse currentDocumentResponse = createCurrentDocumentResponse(INDEXATION_DATE);
+        when(mockSolrServer.query(any(SolrParams.class))).thenReturn(currentDocumentResponse);
+    }
+
+    /**
+     * Attempts to index a document modified concurrently once.
+     * <p>
+     * Checks that the document is sent again and that the conflict is counted as resolved.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testConflictResolvedLocally() throws Exception {
+        when(mockSolrServer.add(any(SolrInputDocument.class), anyInt()))
+                .thenThrow(new SolrException(SolrException.ErrorCode.CONFLICT, "Conflict"))
+                .thenReturn(null);
+
+        solrTaskHandler.indexDocument(REFERENCE, ACTION_DATE);
+
+        verify(mockSolrServer, times(2)).add(any(SolrInputDocument.class), anyInt());
+        assertThat(solrTaskHandler.getResolvedConflicts(), is(1L));
+    }
+
+    /**
+     * Attempts to index a document modified concurrently by a more recent task.
+     * <p>
+     * Checks that the document isn't sent again.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testConflictWithMoreRecentModification() throws Exception {
+        // Another task indexes the document in the meantime
+        QueryResponse olderDocumentResponse = createCurrentDocumentResponse(INDEXATION_DATE);
+        QueryResponse newerDocumentResponse =
+                createCurrentDocumentResponse(new DateTime(ACTION_DATE).plusMinutes(1).toDate());
+        when(mockSolrServer.query(any(SolrParams.class))).thenReturn(olderDocumentResponse, newerDocumentResponse);
+        when(mockSolrServer.add(any(SolrInputDocument.class), anyInt()))
+                .thenThrow(new SolrException(SolrException.ErrorCode.CONFLICT, "Conflict"));
+
+        solrTaskHandler.indexDocument(REFERENCE, ACTION_DATE);
+
+        verify(mockSolrServer, times(1)).add(any(SolrInputDocument.class), anyInt());
+        assertThat(solrTaskHandler.getResolvedConflicts(), is(1L));
+    }
+
+    /**
+     * Attempts to index a new document created concurrently by a more recent task.
+     * <p>
+     * Checks that the document is sent with a version requiring it to be absent, and isn't sent again once the
+     * concurrent creation is detected.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testConcurrentCreation() throws Exception {
+        QueryResponse noDocumentResponse = mock(QueryResponse.class);
+        when(noDocumentResponse.getResponse()).thenReturn(new NamedList<Object>());
+        QueryResponse newerDocumentResponse =
+                createCurrentDocumentResponse(new DateTime(ACTION_DATE).plusMinutes(1).toDate());
+        when(mockSolrServer.query(any(SolrParams.class))).thenReturn(noDocumentResponse, newerDocumentResponse);
+        when(mockSolrServer.add(any(SolrInputDocument.class), anyInt()))
+                .thenThrow(new SolrException(SolrException.ErrorCode.CONFLICT, "Conflict"));
+
+        solrTaskHandler.indexDocument(REFERENCE, ACTION_DATE);
+
+        ArgumentCaptor<SolrInputDocument> sentDocument = ArgumentCaptor.forClass(SolrInputDocument.class);
+        verify(mockSolrServer, times(1)).add(sentDocument.capture(), anyInt());
+        assertThat(sentDocument.getValue().getFieldValue("_version_"), is((Object) (-1L)));
+        assertThat(solrTaskHandler.getResolvedConflicts(), is(1L));
+    }
+
+    /**
+     * Attempts to index a document constantly modified concurrently.
+     * <p>
+     * Checks that the number of attempts is bounded.<br />
+     * Checks that the failure isn't considered as temporary (which would lock the indexation down).
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testConflictRetriesBounded() throws Exception {
+        when(mockSolrServer.add(any(SolrInputDocument.class), anyInt()))
+                .thenThrow(new SolrException(SolrException.ErrorCode.CONFLICT, "Conflict"));
+
+        try {
+            solrTaskHandler.indexDocument(REFERENCE, ACTION_DATE);
+            fail("The conflict should have been reported");
+        } catch (TaskHandlingException e) {
+            assertThat(e, not(instanceOf(TemporaryTaskHandlingException.class)));
+        }
+
+        verify(mockSolrServer, times(MAX_CONFLICT_RETRIES + 1)).add(any(SolrInputDocument.class), anyInt());
+        assertThat(solrTaskHandler.getResolvedConflicts(), is(0L));
+    }
+
+    /**
+     * Attempts to index a document whose content hasn't changed since the last indexation.
+     * <p>
+     * Checks that only the metadata is updated, without parsing the content again.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testUnchangedContentUpdatesMetadataOnly() throws Exception {
+        QueryResponse currentDocumentResponse = createCurrentDocumentResponse(INDEXATION_DATE, CONTENT_DIGEST);
+        when(mockSolrServer.query(any(SolrParams.class))).thenReturn(currentDocumentResponse);
+        when(mockSolrTools.getContentDigest(REFERENCE)).thenReturn(CONTENT_DIGEST);
+
+        solrTaskHandler.indexDocument(REFERENCE, ACTION_DATE);
+
+        verify(mockSolrTools).toSolrMetadataUpdate(eq(REFERENCE), eq(ACTION_DATE), anyCollectionOf(String.class));
+        verify(mockSolrTools, never()).toSolrDocument(anyString(), any(Date.class), anyString());
+        verify(mockSolrServer).add(any(SolrInputDocument.class), anyInt());
+    }
+
+    /**
+     * Attempts to index a document whose content has changed since the last indexation.
+     * <p>
+     * Checks that the whole document is indexed again.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testChangedContentReindexed() throws Exception {
+        QueryResponse currentDocumentResponse = createCurrentDocumentResponse(INDEXATION_DATE, CONTENT_DIGEST);
+        when(mockSolrServer.query(any(SolrParams.class))).thenReturn(currentDocumentResponse);
+        when(mockSolrTools.getContentDigest(REFERENCE)).thenReturn("0cc175b9c0f1b6a831c399e269772661");
+
+        solrTaskHandler.indexDocument(REFERENCE, ACTION_DATE);
+
+        verify(mockSolrTools).toSolrDocument(REFERENCE, ACTION_DATE, "0cc175b9c0f1b6a831c399e269772661");
+        verify(mockSolrTools, never())
+                .toSolrMetadataUpdate(anyString(), any(Date.class), anyCollectionOf(String.class));
+    }
+
+    /**
+     * Attempts to reindex a site in bulk.
+     * <p>
+     * Checks that the indexed versions of a batch are read with a single request.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testBulkBatchReadOnce() throws Exception {
+        String otherReference = "/content/site1/otherDocument";
+        Queue<String> siteReferences = new LinkedList<String>(Arrays.asList(REFERENCE, otherReference));
+        when(mockSolrTools.getSiteDocumentsReferences("site1")).thenReturn(siteReferences);
+        when(mockSolrTools.getDocumentId(otherReference)).thenReturn(otherReference);
+        when(mockSolrTools.toSolrDocument(eq(otherReference), eq(ACTION_DATE), anyString()))
+                .thenReturn(new SolrInputDocument());
+
+        solrTaskHandler.indexSite("site1", ACTION_DATE, true);
+
+        verify(mockSolrServer, times(1)).query(any(SolrParams.class));
+        verify(mockSolrTools).toSolrDocument(eq(REFERENCE), eq(ACTION_DATE), anyString());
+        verify(mockSolrTools).toSolrDocument(eq(otherReference), eq(ACTION_DATE), anyString());
+    }
+
+    /**
+     * Attempts to reindex a site in bulk while one of its documents has been updated more recently.
+     * <p>
+     * Checks that the more recent document isn't overwritten.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testBulkSkipsMoreRecentDocument() throws Exception {
+        QueryResponse newerDocumentResponse =
+                createCurrentDocumentResponse(new DateTime(ACTION_DATE).plusMinutes(1).toDate());
+        when(mockSolrServer.query(any(SolrParams.class))).thenReturn(newerDocumentResponse);
+        Queue<String> siteReferences = new LinkedList<String>(Arrays.asList(REFERENCE));
+        when(mockSolrTools.getSiteDocumentsReferences("site1")).thenReturn(siteReferences);
+
+        solrTaskHandler.indexSite("site1", ACTION_DATE, true);
+
+        verify(mockSolrTools, never()).toSolrDocument(eq(REFERENCE), any(Date.class), anyString());
+        verify(mockSolrServer, never()).add(anyCollectionOf(SolrInputDocument.class), anyInt());
+    }
+
+    /**
+     * Attempts to reindex a site in bulk through the {@link SolrServerAdapter}.
+     * <p>
+     * Checks that the documents are streamed as a batch instead of being sent synchronously.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testBulkBatchStreamedByAdapter() throws Exception {
+        SolrServerAdapter mockSolrServerAdapter = mock(SolrServerAdapter.class);
+        solrTaskHandler.setSolrServer(mockSolrServerAdapter);
+        Queue<String> siteReferences = new LinkedList<String>(Arrays.asList(REFERENCE));
+        when(mockSolrTools.getSiteDocumentsReferences("site1")).thenReturn(siteReferences);
+
+        solrTaskHandler.indexSite("site1", ACTION_DATE, true);
+
+        verify(mockSolrServerAdapter).addInBulk(anyCollectionOf(SolrInputDocument.class), anyInt());
+        verify(mockSolrServerAdapter, never()).add(anyCollectionOf(SolrInputDocument.class), anyInt());
+    }
+
+    /**
+     * Attempts to rebuild a site in the shadow core while the shadow core can't be reached.
+     * <p>
+     * Checks that the failure is recorded and that the site is scheduled to be rebuilt again.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testFailedShadowSiteIndexedAgain() throws Exception {
+        ShadowIndexRebuilder mockShadowIndexRebuilder = mock(ShadowIndexRebuilder.class);
+        SolrServer mockShadowCore = mock(SolrServer.class);
+        solrTaskHandler.setShadowIndexRebuilder(mockShadowIndexRebuilder);
+        when(mockShadowIndexRebuilder.findShadowCore()).thenReturn(mockShadowCore);
+        when(mockShadowIndexRebuilder.siteFailed("site1")).thenReturn(true);
+        when(mockShadowCore.query(any(SolrParams.class)))
+                .thenThrow(new SolrException(SolrException.ErrorCode.SERVICE_UNAVAILABLE, "Unavailable"));
+        Queue<String> siteReferences = new LinkedList<String>(Arrays.asList(REFERENCE));
+        when(mockSolrTools.getSiteDocumentsReferences("site1")).thenReturn(siteReferences);
+
+        try {
+            solrTaskHandler.indexSiteInShadowCore("site1", ACTION_DATE);
+            fail("The failure of the site should have been reported");
+        } catch (TaskHandlingException e) {
+            assertThat(e, instanceOf(TemporaryTaskHandlingException.class));
+        }
+        verify(mockShadowIndexRebuilder).siteFailed("site1");
+        verify(mockShadowIndexRebuilder, never()).siteRebuilt();
+    }
+
+    private QueryResponse createCurrentDocumentResponse(Date indexationDate) {
+        return createCurrentDocumentResponse(indexationDate, null);
+    }
+
+    private QueryResponse createCurrentDocumentResponse(Date indexationDate, String contentDigest) {
+        SolrDocument currentDocument = new SolrDocument();
+        currentDocument.setField(SolrTools.FIELD_ID, REFERENCE);
+        currentDocument.setField("_version_", indexationDate.getTime());
+        currentDocument.setField(SearchService.DATE_STAMP, indexationDate);
+        if (contentDigest != null)
+            currentDocument.setField(SolrTools.FIELD_CONTENT_DIGEST, contentDigest);
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("doc", currentDocument);
+        QueryResponse queryResponse = mock(QueryResponse.class);
+        when(queryResponse.getResponse()).thenReturn(response);
+        return queryResponse;
+    }
+}
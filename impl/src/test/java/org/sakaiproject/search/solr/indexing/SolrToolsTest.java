@@ -0,0 +1,196 @@
+package org.sakaiproject.search.solr.indexing;
+
+import com.google.common.collect.Lists;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.javax.PagingPosition;
+import org.sakaiproject.search.api.EntityContentProducer;
+import org.sakaiproject.search.api.SearchIndexBuilder;
+import org.sakaiproject.search.producer.BinaryEntityContentProducer;
+import org.sakaiproject.search.producer.ContentProducerFactory;
+import org.sakaiproject.search.solr.util.SearchToolSiteCache;
+import org.sakaiproject.site.api.Site;
+import org.sakaiproject.site.api.SiteService;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks the enumeration of indexable sites.
+ *
+ * @author Colin Hebert
+ */
+public class SolrToolsTest {
+    private static final int PAGE_SIZE = 2;
+    @Mock
+    private SiteService mockSiteService;
+    @Mock
+    private SearchIndexBuilder mockSearchIndexBuilder;
+    @Mock
+    private ContentProducerFactory mockContentProducerFactory;
+    private SolrTools solrTools;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        solrTools = new SolrTools();
+        solrTools.setSiteService(mockSiteService);
+        solrTools.setSearchIndexBuilder(mockSearchIndexBuilder);
+        solrTools.setSitePageSize(PAGE_SIZE);
+        solrTools.setContentProducerFactory(mockContentProducerFactory);
+        SearchToolSiteCache searchToolSiteCache = new SearchToolSiteCache();
+        searchToolSiteCache.setSiteService(mockSiteService);
+        searchToolSiteCache.init();
+        solrTools.setSearchToolSiteCache(searchToolSiteCache);
+    }
+
+    /**
+     * Attempts to enumerate sites spread over multiple pages.
+     * <p>
+     * Checks that every indexable site is returned.<br />
+     * Checks that special sites are ignored.<br />
+     * Checks that sites are loaded page by page.
+     * </p>
+     */
+    @Test
+    public void testIndexableSitesArePaged() {
+        List<Site> firstPage = Lists.newArrayList(mockSite("site1"), mockSite("!admin"));
+        List<Site> secondPage = Lists.newArrayList(mockSite("site2"));
+        when(mockSiteService.isSpecialSite("!admin")).thenReturn(true);
+        when(mockSiteService.getSites(any(SiteService.SelectionType.class), any(), anyString(), anyMap(),
+                any(SiteService.SortType.class), any(PagingPosition.class)))
+                .thenReturn(firstPage, secondPage);
+
+        List<String> sites = Lists.newArrayList(solrTools.getIndexableSites());
+
+        assertThat(sites, equalTo((List<String>) Lists.newArrayList("site1", "site2")));
+        verify(mockSiteService, times(2)).getSites(any(SiteService.SelectionType.class), any(), anyString(),
+                anyMap(), any(SiteService.SortType.class), any(PagingPosition.class));
+    }
+
+    /**
+     * Attempts to enumerate sites twice.
+     * <p>
+     * Checks that the presence of the search tool is checked only once.
+     * </p>
+     */
+    @Test
+    public void testIndexabilityIsCached() {
+        Site site = mockSite("site1");
+        when(mockSearchIndexBuilder.isOnlyIndexSearchToolSites()).thenReturn(true);
+        when(mockSiteService.getSites(any(SiteService.SelectionType.class), any(), anyString(), anyMap(),
+                any(SiteService.SortType.class), any(PagingPosition.class)))
+                .thenReturn(Collections.singletonList(site));
+
+        Lists.newArrayList(solrTools.getIndexableSites());
+        Lists.newArrayList(solrTools.getIndexableSites());
+
+        verify(site, times(1)).getToolForCommonId(anyString());
+    }
+
+    /**
+     * Attempts to enumerate sites twice, then again after a modification of a site.
+     * <p>
+     * Checks that special and user sites are checked once, and once more after the site has been invalidated.
+     * </p>
+     */
+    @Test
+    public void testIndexabilityForgottenAfterModification() {
+        Site site = mockSite("site1");
+        when(mockSearchIndexBuilder.isExcludeUserSites()).thenReturn(true);
+        when(mockSiteService.getSites(any(SiteService.SelectionType.class), any(), anyString(), anyMap(),
+                any(SiteService.SortType.class), any(PagingPosition.class)))
+                .thenReturn(Collections.singletonList(site));
+
+        Lists.newArrayList(solrTools.getIndexableSites());
+        Lists.newArrayList(solrTools.getIndexableSites());
+        solrTools.invalidateSite("site1");
+        Lists.newArrayList(solrTools.getIndexableSites());
+
+        verify(mockSiteService, times(2)).isSpecialSite("site1");
+        verify(mockSiteService, times(2)).isUserSite("site1");
+    }
+
+    /**
+     * Checks that document identifiers are prefixed by the site id used to route them.
+     */
+    @Test
+    public void testDocumentIdRoutedBySite() {
+        assertThat(SolrTools.getDocumentId("site1", "/content/group/site1/file"),
+                equalTo("site1!/content/group/site1/file"));
+        assertThat(SolrTools.getDocumentId(null, "/content/file"), equalTo("/content/file"));
+    }
+
+    /**
+     * Attempts to identify a document whose reference isn't handled by any content producer.
+     * <p>
+     * Checks that the identification fails instead of using an identifier without the site.
+     * </p>
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testDocumentIdWithoutContentProducer() {
+        when(mockContentProducerFactory.getContentProducerForElement(anyString())).thenReturn(null);
+
+        solrTools.getDocumentId("/unknown/file");
+    }
+
+    /**
+     * Attempts to obtain the digest of a binary content.
+     * <p>
+     * Checks that the digest is the fingerprint provided by the content producer, without reading the content.<br />
+     * Checks that there is no digest without fingerprint.
+     * </p>
+     */
+    @Test
+    public void testContentDigest() {
+        BinaryEntityContentProducer contentProducer = mock(BinaryEntityContentProducer.class);
+        when(mockContentProducerFactory.getContentProducerForElement(anyString())).thenReturn(contentProducer);
+        when(contentProducer.getContentFingerprint("/content/file")).thenReturn("1@20130310160000000");
+
+        assertThat(solrTools.getContentDigest("/content/file"), equalTo("1@20130310160000000"));
+        assertThat(solrTools.getContentDigest("/content/empty"), nullValue());
+        verify(contentProducer, never()).getContentStream(anyString());
+    }
+
+    /**
+     * Attempts to update the metadata of a document which lost one of its custom properties.
+     * <p>
+     * Checks that the lost property is removed, while the other properties and those extracted by Tika are left
+     * untouched.
+     * </p>
+     */
+    @Test
+    public void testRemovedPropertyUnset() {
+        EntityContentProducer contentProducer = mock(EntityContentProducer.class);
+        when(mockContentProducerFactory.getContentProducerForElement(anyString())).thenReturn(contentProducer);
+        when(contentProducer.getSiteId("/content/file")).thenReturn("site1");
+        Map<String, String> properties = Collections.singletonMap("kept", "value");
+        doReturn(properties).when(contentProducer).getCustomProperties("/content/file");
+
+        SolrInputDocument update = solrTools.toSolrMetadataUpdate("/content/file", new Date(),
+                Arrays.asList(SolrTools.FIELD_ID, "property_kept", "property_removed", "property_tika_author"));
+
+        assertThat(update.getFieldValue("property_removed"),
+                equalTo((Object) Collections.singletonMap("set", null)));
+        assertThat(update.getFieldValue("property_kept"),
+                equalTo((Object) Collections.singletonMap("set", Collections.singleton("value"))));
+        assertThat(update.getField("property_tika_author"), nullValue());
+    }
+
+    private Site mockSite(String siteId) {
+        Site site = mock(Site.class);
+        when(site.getId()).thenReturn(siteId);
+        return site;
+    }
+}
@@ -0,0 +1,232 @@
+package org.sakaiproject.search.solr.response;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.search.api.SearchService;
+import org.sakaiproject.search.api.TermFrequency;
+import org.sakaiproject.search.solr.indexing.SolrTools;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that the data of a result missing in the search response is fetched or decoded only when needed.
+ *
+ * @author Colin Hebert
+ */
+public class SolrResultTest {
+    @Mock
+    private SolrServer mockSolrServer;
+    private SolrResult solrResult;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        SolrDocument document = new SolrDocument();
+        document.setField(SolrTools.FIELD_ID, "site1!/content/file");
+        document.setField(SearchService.FIELD_REFERENCE, "/content/file");
+        document.setField(SearchService.FIELD_TITLE, "Biology");
+        document.setField("score", 1.5f);
+
+        SolrDocument storedDocument = new SolrDocument();
+        storedDocument.setField(SolrTools.FIELD_ID, "site1!/content/file");
+        storedDocument.setField(SearchService.FIELD_REFERENCE, "/content/file");
+        storedDocument.setField(SearchService.FIELD_TITLE, "Biology");
+        storedDocument.setField(SearchService.FIELD_CONTENTS, "Lecture notes");
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("doc", storedDocument);
+        QueryResponse queryResponse = new QueryResponse();
+        queryResponse.setResponse(response);
+        when(mockSolrServer.query(any(SolrParams.class))).thenReturn(queryResponse);
+
+        solrResult = new SolrResult();
+        solrResult.setDocument(document);
+        StoredDocumentLoader.attach(mockSolrServer, Collections.singletonList(solrResult));
+    }
+
+    /**
+     * Attempts to get a field present in the search response.
+     * <p>
+     * Checks that nothing is fetched from solr.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testReturnedFieldNotFetched() throws Exception {
+        assertThat(solrResult.getValues(SearchService.FIELD_TITLE), equalTo(new String[]{"Biology"}));
+
+        verifyZeroInteractions(mockSolrServer);
+    }
+
+    /**
+     * Attempts to get the contents of a result twice.
+     * <p>
+     * Checks that only the contents and the id are fetched, once, from the handler served by the replicas.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testMissingFieldFetchedOnce() throws Exception {
+        assertThat(solrResult.getValues(SearchService.FIELD_CONTENTS), equalTo(new String[]{"Lecture notes"}));
+        assertThat(solrResult.getValues(SearchService.FIELD_CONTENTS), equalTo(new String[]{"Lecture notes"}));
+
+        ArgumentCaptor<SolrParams> query = ArgumentCaptor.forClass(SolrParams.class);
+        verify(mockSolrServer, times(1)).query(query.capture());
+        assertThat(query.getValue().get(CommonParams.QT), equalTo("/stored"));
+        assertThat(query.getValue().get(CommonParams.FL),
+                equalTo(SearchService.FIELD_CONTENTS + "," + SolrTools.FIELD_ID));
+    }
+
+    /**
+     * Attempts to get every value of a result twice.
+     * <p>
+     * Checks that every stored field is fetched once, and that the score is kept.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testEveryFieldFetchedOnce() throws Exception {
+        assertThat(solrResult.getValueMap().get("score"), equalTo(new String[]{"1.5"}));
+        assertThat(solrResult.getFieldNames().length, is(5));
+
+        ArgumentCaptor<SolrParams> query = ArgumentCaptor.forClass(SolrParams.class);
+        verify(mockSolrServer, times(1)).query(query.capture());
+        assertThat(query.getValue().get(CommonParams.FL), equalTo("*," + SolrTools.FIELD_ID));
+    }
+
+    /**
+     * Attempts to get a field that isn't stored for the document.
+     * <p>
+     * Checks that no value is returned.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testUnknownFieldNull() throws Exception {
+        assertThat(solrResult.getValues("unknown"), nullValue());
+    }
+
+    /**
+     * Attempts to get the contents of two results of the same page.
+     * <p>
+     * Checks that the stored documents of the page are fetched with a single request.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testPageFetchedOnce() throws Exception {
+        SolrResult otherResult = new SolrResult();
+        SolrDocument otherDocument = new SolrDocument();
+        otherDocument.setField(SolrTools.FIELD_ID, "site1!/content/other");
+        otherResult.setDocument(otherDocument);
+        StoredDocumentLoader.attach(mockSolrServer, Arrays.asList(solrResult, otherResult));
+        SolrDocumentList storedDocuments = new SolrDocumentList();
+        storedDocuments.add(createStoredDocument("site1!/content/file", "Lecture notes"));
+        storedDocuments.add(createStoredDocument("site1!/content/other", "Exercises"));
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("response", storedDocuments);
+        QueryResponse queryResponse = new QueryResponse();
+        queryResponse.setResponse(response);
+        when(mockSolrServer.query(any(SolrParams.class))).thenReturn(queryResponse);
+
+        assertThat(solrResult.getValues(SearchService.FIELD_CONTENTS), equalTo(new String[]{"Lecture notes"}));
+        assertThat(otherResult.getValues(SearchService.FIELD_CONTENTS), equalTo(new String[]{"Exercises"}));
+
+        verify(mockSolrServer, times(1)).query(any(SolrParams.class));
+    }
+
+    /**
+     * Attempts to get the contents of a result twice while the stored document can't be fetched.
+     * <p>
+     * Checks that the document is requested only once, and that the fields of the search response are used.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testFailedFetchNotRetried() throws Exception {
+        doThrow(new SolrServerException("Unreachable")).when(mockSolrServer).query(any(SolrParams.class));
+
+        assertThat(solrResult.getValues(SearchService.FIELD_CONTENTS), nullValue());
+        assertThat(solrResult.getValues(SearchService.FIELD_CONTENTS), nullValue());
+        assertThat(solrResult.getValues(SearchService.FIELD_TITLE), equalTo(new String[]{"Biology"}));
+
+        verify(mockSolrServer, times(1)).query(any(SolrParams.class));
+    }
+
+    /**
+     * Attempts to get the frequency of terms found in two fields.
+     * <p>
+     * Checks that the frequencies of each field are added and sorted by decreasing frequency.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testTermFrequenciesDecoded() throws Exception {
+        NamedList<Object> rawTermVector = new NamedList<Object>();
+        rawTermVector.add("uniqueKey", "site1!/content/file");
+        rawTermVector.add(SearchService.FIELD_CONTENTS, createFieldTerms("biology", 2, "lecture", 3));
+        rawTermVector.add(SearchService.FIELD_TITLE, createFieldTerms("biology", 2));
+        solrResult.setTermVector(rawTermVector);
+
+        TermFrequency termFrequency = solrResult.getTerms();
+
+        assertThat(termFrequency.getTerms(), equalTo(new String[]{"biology", "lecture"}));
+        assertThat(termFrequency.getFrequencies(), equalTo(new int[]{4, 3}));
+        assertThat(solrResult.getTerms(), sameInstance(termFrequency));
+    }
+
+    /**
+     * Attempts to get the frequency of terms without term vectors in the response.
+     * <p>
+     * Checks that no term is returned.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testNoTermVector() throws Exception {
+        assertThat(solrResult.getTerms().getTerms().length, is(0));
+    }
+
+    private static SolrDocument createStoredDocument(String documentId, String contents) {
+        SolrDocument storedDocument = new SolrDocument();
+        storedDocument.setField(SolrTools.FIELD_ID, documentId);
+        storedDocument.setField(SearchService.FIELD_CONTENTS, contents);
+        return storedDocument;
+    }
+
+    private static NamedList<Object> createFieldTerms(Object... termsAndFrequencies) {
+        NamedList<Object> fieldTerms = new NamedList<Object>();
+        for (int i = 0; i < termsAndFrequencies.length; i += 2) {
+            NamedList<Object> termInfo = new NamedList<Object>();
+            termInfo.add("tf", termsAndFrequencies[i + 1]);
+            fieldTerms.add((String) termsAndFrequencies[i], termInfo);
+        }
+        return fieldTerms;
+    }
+}
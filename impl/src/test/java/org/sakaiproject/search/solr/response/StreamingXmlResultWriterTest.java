@@ -0,0 +1,75 @@
+package org.sakaiproject.search.solr.response;
+
+import org.apache.solr.common.SolrDocument;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.search.api.SearchService;
+import org.sakaiproject.search.producer.ContentProducerFactory;
+import org.sakaiproject.search.response.filter.SearchItemFilter;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that the results streamed by solr stop being processed once they can't be written.
+ *
+ * @author Colin Hebert
+ */
+public class StreamingXmlResultWriterTest {
+    @Mock
+    private Writer mockWriter;
+    @Mock
+    private SearchItemFilter mockFilter;
+    @Mock
+    private ContentProducerFactory mockContentProducerFactory;
+    private StreamingXmlResultWriter resultWriter;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        resultWriter = new StreamingXmlResultWriter(mockWriter, 10, mockFilter, mockContentProducerFactory, null);
+    }
+
+    /**
+     * Attempts to stream results while the output can't be written.
+     * <p>
+     * Checks that the stream is aborted as soon as the header can't be written, that the following results aren't
+     * processed and that the failure is thrown.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testStreamAbortedOnWriteFailure() throws Exception {
+        IOException writeFailure = new IOException("Connection reset");
+        when(mockWriter.append(any(CharSequence.class))).thenThrow(writeFailure);
+
+        try {
+            resultWriter.streamDocListInfo(100, 0, null);
+            fail();
+        } catch (StreamingXmlResultWriter.StreamAbortedException e) {
+            // The header couldn't be written
+        }
+        try {
+            SolrDocument document = new SolrDocument();
+            document.setField(SearchService.FIELD_REFERENCE, "/content/file");
+            resultWriter.streamSolrDocument(document);
+            fail();
+        } catch (StreamingXmlResultWriter.StreamAbortedException e) {
+            // The result isn't processed
+        }
+
+        verifyZeroInteractions(mockContentProducerFactory, mockFilter);
+        try {
+            resultWriter.checkWriteFailure();
+            fail();
+        } catch (IOException e) {
+            // The write failure is kept
+        }
+    }
+}
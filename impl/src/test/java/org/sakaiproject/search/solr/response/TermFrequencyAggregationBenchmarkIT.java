@@ -0,0 +1,163 @@
+package org.sakaiproject.search.solr.response;
+
+import org.apache.solr.common.util.NamedList;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.search.api.TermFrequency;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Compares the time taken to aggregate term frequencies with {@link TermFrequencyAggregator} and with boxed
+ * frequencies in a {@link HashMap} sorted through a {@link TreeSet}.
+ * <p>
+ * Term vectors are generated to look like the response for a page of results: each document has a few thousand
+ * distinct terms following a Zipf-like distribution, in the contents and the title.
+ * </p>
+ *
+ * @author Colin Hebert
+ */
+public class TermFrequencyAggregationBenchmarkIT {
+    private static final Logger logger = LoggerFactory.getLogger(TermFrequencyAggregationBenchmarkIT.class);
+    private static final int DOCUMENTS = 20;
+    private static final int TERMS_PER_DOCUMENT = 3000;
+    private static final int VOCABULARY_SIZE = 20000;
+    private static final int TOP_TERMS = 10;
+    private static final int WARM_UP_ITERATIONS = 200;
+    private static final int ITERATIONS = 500;
+    private final List<NamedList<Object>> rawTermVectors = new ArrayList<NamedList<Object>>(DOCUMENTS);
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < DOCUMENTS; i++) {
+            NamedList<Object> rawTermVector = new NamedList<Object>();
+            rawTermVector.add("uniqueKey", "site!/content/document" + i);
+            rawTermVector.add("contents", createFieldTerms(random, TERMS_PER_DOCUMENT));
+            rawTermVector.add("title", createFieldTerms(random, 10));
+            rawTermVectors.add(rawTermVector);
+        }
+    }
+
+    /**
+     * Aggregates the frequencies of every document of the page with both implementations.
+     * <p>
+     * Checks that both implementations sort terms the same way.<br />
+     * The time taken by each implementation is logged.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testAggregationTime() throws Exception {
+        for (NamedList<Object> rawTermVector : rawTermVectors) {
+            TermFrequency expected = aggregateWithMap(rawTermVector);
+            TermFrequency actual = aggregateWithAggregator(rawTermVector, Integer.MAX_VALUE);
+            assertThat(actual.getTerms(), equalTo(expected.getTerms()));
+            assertThat(actual.getFrequencies(), equalTo(expected.getFrequencies()));
+        }
+
+        long mapTime = 0;
+        long aggregatorTime = 0;
+        long topTermsTime = 0;
+        for (int i = 0; i < WARM_UP_ITERATIONS + ITERATIONS; i++) {
+            long start = System.nanoTime();
+            for (NamedList<Object> rawTermVector : rawTermVectors)
+                aggregateWithMap(rawTermVector);
+            long afterMap = System.nanoTime();
+            for (NamedList<Object> rawTermVector : rawTermVectors)
+                aggregateWithAggregator(rawTermVector, Integer.MAX_VALUE);
+            long afterAggregator = System.nanoTime();
+            for (NamedList<Object> rawTermVector : rawTermVectors)
+                aggregateWithAggregator(rawTermVector, TOP_TERMS);
+            long afterTopTerms = System.nanoTime();
+
+            if (i >= WARM_UP_ITERATIONS) {
+                mapTime += afterMap - start;
+                aggregatorTime += afterAggregator - afterMap;
+                topTermsTime += afterTopTerms - afterAggregator;
+            }
+        }
+
+        logger.info("Average time per page with a HashMap and a TreeSet: {}us", mapTime / ITERATIONS / 1000);
+        logger.info("Average time per page with the aggregator: {}us", aggregatorTime / ITERATIONS / 1000);
+        logger.info("Average time per page for the top " + TOP_TERMS + " terms: {}us",
+                topTermsTime / ITERATIONS / 1000);
+    }
+
+    private static NamedList<Object> createFieldTerms(Random random, int termCount) {
+        NamedList<Object> fieldTerms = new NamedList<Object>();
+        Set<Integer> usedTerms = new HashSet<Integer>();
+        while (usedTerms.size() < termCount) {
+            // Rank skewed towards the most common words of the vocabulary
+            int rank = (int) Math.pow(VOCABULARY_SIZE, random.nextDouble());
+            if (!usedTerms.add(rank))
+                continue;
+            NamedList<Object> termInfo = new NamedList<Object>();
+            termInfo.add("tf", 1 + VOCABULARY_SIZE / (rank * 50 + random.nextInt(50) + 1));
+            fieldTerms.add("term" + rank, termInfo);
+        }
+        return fieldTerms;
+    }
+
+    private static TermFrequency aggregateWithAggregator(NamedList<Object> rawTermVector, int count) {
+        TermFrequencyAggregator aggregator = new TermFrequencyAggregator();
+        TermVectorExtractor.aggregateTermFrequencies(rawTermVector, aggregator);
+        return aggregator.getTopTerms(count);
+    }
+
+    /**
+     * Aggregates frequencies with boxed values in a map, sorted in a {@link TreeSet}.
+     *
+     * @param rawTermVector raw term vector of a document.
+     * @return the frequency of each term, sorted by decreasing frequency.
+     */
+    @SuppressWarnings("unchecked")
+    private static TermFrequency aggregateWithMap(NamedList<Object> rawTermVector) {
+        Map<String, Long> termFrequencies = new HashMap<String, Long>();
+        for (Map.Entry<String, Object> field : rawTermVector) {
+            if ("uniqueKey".equals(field.getKey()))
+                continue;
+            for (Map.Entry<String, Object> term : (NamedList<Object>) field.getValue()) {
+                Long addedFrequency = ((Number) ((NamedList<Object>) term.getValue()).get("tf")).longValue();
+                Long frequency = termFrequencies.get(term.getKey());
+                termFrequencies.put(term.getKey(), (frequency == null) ? addedFrequency : addedFrequency + frequency);
+            }
+        }
+
+        SortedSet<Map.Entry<String, Long>> sortedFrequencies = new TreeSet<Map.Entry<String, Long>>(
+                new Comparator<Map.Entry<String, Long>>() {
+                    @Override
+                    public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+                        int longComparison = o2.getValue().compareTo(o1.getValue());
+                        return (longComparison != 0) ? longComparison : o1.getKey().compareTo(o2.getKey());
+                    }
+                });
+        sortedFrequencies.addAll(termFrequencies.entrySet());
+
+        final String[] terms = new String[sortedFrequencies.size()];
+        final int[] frequencies = new int[sortedFrequencies.size()];
+        int i = 0;
+        for (Map.Entry<String, Long> term : sortedFrequencies) {
+            terms[i] = term.getKey();
+            frequencies[i] = (int) (long) term.getValue();
+            i++;
+        }
+        return new TermFrequency() {
+            @Override
+            public String[] getTerms() {
+                return terms;
+            }
+
+            @Override
+            public int[] getFrequencies() {
+                return frequencies;
+            }
+        };
+    }
+}
@@ -0,0 +1,89 @@
+package org.sakaiproject.search.solr.response;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.search.api.TermFrequency;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Checks that term frequencies are added up and sorted.
+ *
+ * @author Colin Hebert
+ */
+public class TermFrequencyAggregatorTest {
+    private TermFrequencyAggregator aggregator;
+
+    @Before
+    public void setUp() throws Exception {
+        aggregator = new TermFrequencyAggregator(2);
+    }
+
+    /**
+     * Attempts to add the same terms multiple times.
+     * <p>
+     * Checks that frequencies are added up and sorted by decreasing frequency, then alphabetically.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testFrequenciesAddedAndSorted() throws Exception {
+        aggregator.add("lecture", 1);
+        aggregator.add("biology", 2);
+        aggregator.add("notes", 3);
+        aggregator.add("lecture", 2);
+
+        TermFrequency termFrequency = aggregator.getTermFrequency();
+
+        assertThat(termFrequency.getTerms(), equalTo(new String[]{"lecture", "notes", "biology"}));
+        assertThat(termFrequency.getFrequencies(), equalTo(new int[]{3, 3, 2}));
+    }
+
+    /**
+     * Attempts to add many more terms than expected.
+     * <p>
+     * Checks that every term is kept with its frequency.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testGrowsBeyondExpectedTerms() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            aggregator.add("term" + (i % 500), i % 500);
+        }
+
+        TermFrequency termFrequency = aggregator.getTermFrequency();
+
+        assertThat(aggregator.size(), is(500));
+        assertThat(termFrequency.getTerms()[0], is("term499"));
+        assertThat(termFrequency.getFrequencies()[0], is(998));
+        assertThat(termFrequency.getTerms()[499], is("term0"));
+    }
+
+    /**
+     * Attempts to get the most frequent terms.
+     * <p>
+     * Checks that only the requested number of terms is returned, in the same order as a complete sort.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testTopTerms() throws Exception {
+        String[] terms = {"e", "b", "d", "a", "c", "f"};
+        long[] frequencies = {1, 5, 3, 5, 4, 2};
+        for (int i = 0; i < terms.length; i++) {
+            aggregator.add(terms[i], frequencies[i]);
+        }
+
+        TermFrequency topTerms = aggregator.getTopTerms(3);
+
+        assertThat(topTerms.getTerms(), equalTo(new String[]{"a", "b", "c"}));
+        assertThat(topTerms.getFrequencies(), equalTo(new int[]{5, 5, 4}));
+        assertThat(aggregator.getTopTerms(10).getTerms().length, is(6));
+    }
+}
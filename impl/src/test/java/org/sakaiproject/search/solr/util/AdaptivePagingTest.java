@@ -0,0 +1,84 @@
+package org.sakaiproject.search.solr.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.search.solr.response.SolrSearchList;
+import org.sakaiproject.tool.api.SessionManager;
+
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that pages are filled with visible results despite censored results.
+ *
+ * @author Colin Hebert
+ */
+public class AdaptivePagingTest {
+    @Mock
+    private SessionManager mockSessionManager;
+    private AdaptivePaging adaptivePaging;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(mockSessionManager.getCurrentSessionUserId()).thenReturn("user1");
+
+        adaptivePaging = new AdaptivePaging();
+        adaptivePaging.setSessionManager(mockSessionManager);
+        adaptivePaging.setMaxOverFetchFactor(3);
+        adaptivePaging.init();
+    }
+
+    /**
+     * Attempts to get the number of rows to fetch before and after a page containing censored results.
+     * <p>
+     * Checks that more rows are fetched once censored results have been found, up to the maximum over-fetch factor.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testRowsIncreasedWithCensoredResults() throws Exception {
+        assertThat(adaptivePaging.getRowsToFetch(10), is(10));
+
+        adaptivePaging.recordPage("biology", null, 0, 0, createPage(10, 20, 10));
+        assertThat(adaptivePaging.getRowsToFetch(10), is(20));
+
+        adaptivePaging.recordPage("biology", null, 10, 20, createPage(0, 20, 20));
+        adaptivePaging.recordPage("biology", null, 10, 40, createPage(0, 30, 30));
+        assertThat(adaptivePaging.getRowsToFetch(10), is(30));
+    }
+
+    /**
+     * Attempts to get the position of the next page after a page containing censored results.
+     * <p>
+     * Checks that the next page starts after the last document used, only for the same user and search.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testNextPageStartsAfterConsumedDocuments() throws Exception {
+        adaptivePaging.recordPage("biology", Arrays.asList("site1", "site2"), 0, 0, createPage(10, 15, 5));
+
+        assertThat(adaptivePaging.getSolrStart("biology", Arrays.asList("site2", "site1"), 10), is(15));
+        assertThat(adaptivePaging.getSolrStart("biology", Arrays.asList("site2", "site1"), 20), is(20));
+        assertThat(adaptivePaging.getSolrStart("physics", Arrays.asList("site1", "site2"), 10), is(10));
+
+        when(mockSessionManager.getCurrentSessionUserId()).thenReturn("user2");
+        assertThat(adaptivePaging.getSolrStart("biology", Arrays.asList("site1", "site2"), 10), is(10));
+    }
+
+    private SolrSearchList createPage(int size, int consumedDocuments, int censoredDocuments) {
+        SolrSearchList page = mock(SolrSearchList.class);
+        when(page.size()).thenReturn(size);
+        when(page.getConsumedDocuments()).thenReturn(consumedDocuments);
+        when(page.getCensoredDocuments()).thenReturn(censoredDocuments);
+        return page;
+    }
+}
@@ -0,0 +1,130 @@
+package org.sakaiproject.search.solr.util;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.thread_local.api.ThreadLocalManager;
+import org.sakaiproject.tool.api.Session;
+import org.sakaiproject.tool.api.SessionManager;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that searches run in the background are bounded, cancelled after their timeout and run in the right session.
+ *
+ * @author Colin Hebert
+ */
+public class AsyncSearchExecutorTest {
+    private static final long TEST_TIMEOUT = 5;
+    @Mock
+    private SessionManager mockSessionManager;
+    @Mock
+    private ThreadLocalManager mockThreadLocalManager;
+    @Mock
+    private Session mockSession;
+    private AsyncSearchExecutor asyncSearchExecutor;
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(mockSessionManager.getCurrentSession()).thenReturn(mockSession);
+        asyncSearchExecutor = new AsyncSearchExecutor();
+        asyncSearchExecutor.setSessionManager(mockSessionManager);
+        asyncSearchExecutor.setThreadLocalManager(mockThreadLocalManager);
+        asyncSearchExecutor.setThreadCount(1);
+        asyncSearchExecutor.setQueueSize(1);
+        asyncSearchExecutor.init();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        asyncSearchExecutor.destroy();
+    }
+
+    /**
+     * Attempts to run a search in the background.
+     * <p>
+     * Checks that the search is run in the session of the caller, which is cleared afterwards.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testSearchRunInCallerSession() throws Exception {
+        ListenableFuture<String> future = asyncSearchExecutor.submit(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return "results";
+            }
+        }, 0);
+
+        assertThat(future.get(TEST_TIMEOUT, TimeUnit.SECONDS), equalTo("results"));
+        verify(mockSessionManager).setCurrentSession(mockSession);
+        verify(mockThreadLocalManager).clear();
+    }
+
+    /**
+     * Attempts to run a search taking longer than its timeout.
+     * <p>
+     * Checks that the search is cancelled.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test(expected = CancellationException.class)
+    public void testSearchCancelledAfterTimeout() throws Exception {
+        ListenableFuture<String> future = asyncSearchExecutor.submit(createBlockedSearch(), 50);
+
+        future.get(TEST_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Attempts to run more searches than the number of threads and the size of the queue.
+     * <p>
+     * Checks that the extra search fails immediately.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testSearchRejectedWhenQueueFull() throws Exception {
+        asyncSearchExecutor.submit(createBlockedSearch(), 0);
+        asyncSearchExecutor.submit(createBlockedSearch(), 0);
+
+        ListenableFuture<String> rejectedSearch = asyncSearchExecutor.submit(createBlockedSearch(), 0);
+
+        try {
+            rejectedSearch.get(TEST_TIMEOUT, TimeUnit.SECONDS);
+            fail("The search should have been rejected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(RejectedExecutionException.class));
+        }
+    }
+
+    private Callable<String> createBlockedSearch() {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                release.await();
+                return "results";
+            }
+        };
+    }
+}
@@ -0,0 +1,256 @@
+package org.sakaiproject.search.solr.util;
+
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.StreamingResponseCallback;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks the distribution of requests between replicas.
+ *
+ * @author Colin Hebert
+ */
+public class LoadBalancedSolrServerTest {
+    private static final long HEDGE_DELAY = 100;
+    private static final long PING_INTERVAL = 60 * 60 * 1000;
+    @Mock
+    private SolrServer mockReplica1;
+    @Mock
+    private SolrServer mockReplica2;
+    @Mock
+    private SolrRequest mockRequest;
+    private LoadBalancedSolrServer loadBalancedSolrServer;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        loadBalancedSolrServer = new LoadBalancedSolrServer(Arrays.asList(mockReplica1, mockReplica2),
+                HEDGE_DELAY, PING_INTERVAL);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        loadBalancedSolrServer.shutdown();
+    }
+
+    /**
+     * Attempts to send a request while one of the replicas fails.
+     * <p>
+     * Checks that the response of the working replica is returned.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testFailover() throws Exception {
+        NamedList<Object> response = new NamedList<Object>();
+        doThrow(new SolrServerException("Failure")).when(mockReplica1).request(mockRequest);
+        when(mockReplica2.request(mockRequest)).thenReturn(response);
+
+        // Whichever replica is picked first, the response should come from the working one
+        for (int i = 0; i < 10; i++) {
+            assertThat(loadBalancedSolrServer.request(mockRequest), sameInstance(response));
+        }
+    }
+
+    /**
+     * Attempts to send a request to a replica too slow to answer.
+     * <p>
+     * Checks that the request is sent to another replica and that the fastest response is returned.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testHedgedRequest() throws Exception {
+        final NamedList<Object> slowResponse = new NamedList<Object>();
+        NamedList<Object> fastResponse = new NamedList<Object>();
+        when(mockReplica1.request(mockRequest)).thenAnswer(new Answer<NamedList<Object>>() {
+            @Override
+            public NamedList<Object> answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(HEDGE_DELAY * 10);
+                return slowResponse;
+            }
+        });
+        when(mockReplica2.request(mockRequest)).thenReturn(fastResponse);
+        // Only the slow replica is considered healthy, the other one is the fallback
+        doThrow(new SolrServerException("Unreachable")).when(mockReplica2).query(any(SolrParams.class));
+        loadBalancedSolrServer.checkReplicas();
+
+        assertThat(loadBalancedSolrServer.request(mockRequest), sameInstance(fastResponse));
+    }
+
+    /**
+     * Attempts to stream a response from a replica slower than the hedge delay.
+     * <p>
+     * Checks that the request is sent to a single replica.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testStreamedRequestNotHedged() throws Exception {
+        final QueryResponse response = new QueryResponse();
+        final AtomicInteger streamedRequests = new AtomicInteger();
+        Answer<QueryResponse> slowAnswer = new Answer<QueryResponse>() {
+            @Override
+            public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+                streamedRequests.incrementAndGet();
+                Thread.sleep(HEDGE_DELAY * 3);
+                return response;
+            }
+        };
+        when(mockReplica1.queryAndStreamResponse(any(SolrParams.class), any(StreamingResponseCallback.class)))
+                .thenAnswer(slowAnswer);
+        when(mockReplica2.queryAndStreamResponse(any(SolrParams.class), any(StreamingResponseCallback.class)))
+                .thenAnswer(slowAnswer);
+
+        QueryResponse actualResponse = loadBalancedSolrServer.queryAndStreamResponse(mock(SolrParams.class),
+                mock(StreamingResponseCallback.class));
+
+        assertThat(actualResponse, sameInstance(response));
+        assertThat(streamedRequests.get(), is(1));
+    }
+
+    /**
+     * Attempts to check the health of replicas while one of them is unreachable.
+     * <p>
+     * Checks that the unreachable replica is ejected, and comes back once it answers again.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testUnhealthyReplicaEjected() throws Exception {
+        doThrow(new SolrServerException("Unreachable")).when(mockReplica1).query(any(SolrParams.class));
+        loadBalancedSolrServer.checkReplicas();
+        assertThat(loadBalancedSolrServer.getHealthyReplicaCount(), is(1));
+
+        doReturn(null).when(mockReplica1).query(any(SolrParams.class));
+        loadBalancedSolrServer.checkReplicas();
+        assertThat(loadBalancedSolrServer.getHealthyReplicaCount(), is(2));
+    }
+
+    /**
+     * Attempts to send requests while one of the replicas fails immediately and the other one is slow.
+     * <p>
+     * Checks that once the failure is recorded, the failing replica isn't preferred for being fast.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testFastFailureNotPreferred() throws Exception {
+        final AtomicInteger failingRequests = new AtomicInteger();
+        when(mockReplica1.request(mockRequest)).thenAnswer(new Answer<NamedList<Object>>() {
+            @Override
+            public NamedList<Object> answer(InvocationOnMock invocation) throws Throwable {
+                failingRequests.incrementAndGet();
+                throw new SolrServerException("Failure");
+            }
+        });
+        when(mockReplica2.request(mockRequest)).thenAnswer(new Answer<NamedList<Object>>() {
+            @Override
+            public NamedList<Object> answer(InvocationOnMock invocation) throws Throwable {
+                Thread.sleep(HEDGE_DELAY / 10);
+                return new NamedList<Object>();
+            }
+        });
+        // Make sure that the failing replica has been tried at least once
+        while (failingRequests.get() == 0) {
+            loadBalancedSolrServer.request(mockRequest);
+        }
+        int failuresBefore = failingRequests.get();
+
+        for (int i = 0; i < 10; i++) {
+            loadBalancedSolrServer.request(mockRequest);
+        }
+        assertThat(failingRequests.get(), is(failuresBefore));
+    }
+
+    /**
+     * Attempts to send an invalid request.
+     * <p>
+     * Checks that the client error is thrown without sending the request to another replica.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testClientErrorNotFailedOver() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        Answer<NamedList<Object>> badRequest = new Answer<NamedList<Object>>() {
+            @Override
+            public NamedList<Object> answer(InvocationOnMock invocation) throws Throwable {
+                attempts.incrementAndGet();
+                throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Invalid query");
+            }
+        };
+        when(mockReplica1.request(mockRequest)).thenAnswer(badRequest);
+        when(mockReplica2.request(mockRequest)).thenAnswer(badRequest);
+
+        try {
+            loadBalancedSolrServer.request(mockRequest);
+            fail("The client error should have been thrown");
+        } catch (SolrException e) {
+            assertThat(e.code(), is(SolrException.ErrorCode.BAD_REQUEST.code));
+        }
+        assertThat(attempts.get(), is(1));
+    }
+
+    /**
+     * Attempts to send many fast requests.
+     * <p>
+     * Checks that the hedge delay follows the measured latencies instead of the initial delay.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testHedgeDelayFollowsLatencies() throws Exception {
+        when(mockReplica1.request(mockRequest)).thenReturn(new NamedList<Object>());
+        when(mockReplica2.request(mockRequest)).thenReturn(new NamedList<Object>());
+        assertThat(loadBalancedSolrServer.getHedgeDelay(), is(HEDGE_DELAY));
+
+        for (int i = 0; i < 200; i++) {
+            loadBalancedSolrServer.request(mockRequest);
+        }
+        assertThat(loadBalancedSolrServer.getHedgeDelay() < HEDGE_DELAY, is(true));
+    }
+
+    /**
+     * Attempts to send a request while every replica fails.
+     * <p>
+     * Checks that the failure is reported.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test(expected = SolrServerException.class)
+    public void testEveryReplicaFails() throws Exception {
+        doThrow(new SolrServerException("Failure")).when(mockReplica1).request(mockRequest);
+        doThrow(new SolrServerException("Failure")).when(mockReplica2).request(mockRequest);
+
+        loadBalancedSolrServer.request(mockRequest);
+    }
+}
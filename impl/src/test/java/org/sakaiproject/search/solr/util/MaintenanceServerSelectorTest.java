@@ -0,0 +1,83 @@
+package org.sakaiproject.search.solr.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.cluster.api.ClusterService;
+import org.sakaiproject.component.api.ServerConfigurationService;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks that a single server of the cluster is in charge of the maintenance.
+ *
+ * @author Colin Hebert
+ */
+public class MaintenanceServerSelectorTest {
+    @Mock
+    private ClusterService mockClusterService;
+    @Mock
+    private ServerConfigurationService mockServerConfigurationService;
+    private MaintenanceServerSelector maintenanceServerSelector;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        maintenanceServerSelector = new MaintenanceServerSelector();
+        maintenanceServerSelector.setClusterService(mockClusterService);
+        maintenanceServerSelector.setServerConfigurationService(mockServerConfigurationService);
+        when(mockClusterService.getServers()).thenReturn(Arrays.asList("server3-3", "server1-1", "server2-2"));
+    }
+
+    /**
+     * Attempts to select the maintenance server from the first server of the cluster.
+     * <p>
+     * Checks that the server with the smallest id is selected, whatever the order of the servers.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testFirstServerSelected() throws Exception {
+        when(mockServerConfigurationService.getServerIdInstance()).thenReturn("server1-1");
+
+        assertTrue(maintenanceServerSelector.isMaintenanceServer());
+    }
+
+    /**
+     * Attempts to select the maintenance server from another server of the cluster.
+     * <p>
+     * Checks that the server isn't selected.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testOtherServerNotSelected() throws Exception {
+        when(mockServerConfigurationService.getServerIdInstance()).thenReturn("server2-2");
+
+        assertFalse(maintenanceServerSelector.isMaintenanceServer());
+    }
+
+    /**
+     * Attempts to select the maintenance server while the active servers are unknown.
+     * <p>
+     * Checks that the current server does the maintenance rather than nobody.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testUnknownServersSelected() throws Exception {
+        when(mockClusterService.getServers()).thenReturn(Collections.<String>emptyList());
+        when(mockServerConfigurationService.getServerIdInstance()).thenReturn("server2-2");
+
+        assertTrue(maintenanceServerSelector.isMaintenanceServer());
+    }
+}
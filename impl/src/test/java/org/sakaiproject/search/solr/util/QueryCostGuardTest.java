@@ -0,0 +1,115 @@
+package org.sakaiproject.search.solr.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.search.api.InvalidSearchQueryException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that expensive search queries are rewritten or rejected.
+ *
+ * @author Colin Hebert
+ */
+public class QueryCostGuardTest {
+    private QueryCostGuard queryCostGuard;
+
+    @Before
+    public void setUp() throws Exception {
+        queryCostGuard = new QueryCostGuard();
+        queryCostGuard.setMaxCost(30);
+        queryCostGuard.setMinPrefixLength(3);
+    }
+
+    /**
+     * Attempts to check a query containing only cheap clauses.
+     * <p>
+     * Checks that the query is left untouched.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testCheapQueryUntouched() throws Exception {
+        String searchTerms = "+biol* \"cell division\" OR tool:*resources \\*star -title:draft^2";
+
+        assertThat(queryCostGuard.checkQuery(searchTerms), sameInstance(searchTerms));
+        assertThat(queryCostGuard.getRewrittenQueries(), is(0L));
+        assertThat(queryCostGuard.getRejectedQueries(), is(0L));
+    }
+
+    /**
+     * Attempts to check a query with leading wildcards.
+     * <p>
+     * Checks that leading wildcards are searched in the reversed field.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testExpensiveClausesRewritten() throws Exception {
+        assertThat(queryCostGuard.checkQuery("(*ology OR contents:?ell) cell"),
+                equalTo("(text_rev:*ology OR text_rev:?ell) cell"));
+        assertThat(queryCostGuard.getRewrittenQueries(), is(1L));
+    }
+
+    /**
+     * Attempts to check a query with a short prefix.
+     * <p>
+     * Checks that the query is rejected rather than searched differently.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testShortPrefixRejected() throws Exception {
+        try {
+            queryCostGuard.checkQuery("ab* cell");
+            fail("The query should have been rejected");
+        } catch (InvalidSearchQueryException e) {
+            assertThat(queryCostGuard.getRejectedQueries(), is(1L));
+            assertThat(queryCostGuard.getRewrittenQueries(), is(0L));
+        }
+    }
+
+    /**
+     * Attempts to check a query made only of wildcards.
+     * <p>
+     * Checks that the query is rejected, while a query matching all documents isn't.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testWildcardOnlyRejected() throws Exception {
+        assertThat(queryCostGuard.checkQuery("*:*"), equalTo("*:*"));
+        try {
+            queryCostGuard.checkQuery("biology *");
+            fail("The query should have been rejected");
+        } catch (InvalidSearchQueryException e) {
+            assertThat(queryCostGuard.getRejectedQueries(), is(1L));
+        }
+    }
+
+    /**
+     * Attempts to check a huge list of terms.
+     * <p>
+     * Checks that the query is rejected once its cost exceeds the maximum cost.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test(expected = InvalidSearchQueryException.class)
+    public void testHugeOrListRejected() throws Exception {
+        StringBuilder sb = new StringBuilder("term0");
+        for (int i = 1; i <= 50; i++) {
+            sb.append(" OR term").append(i);
+        }
+
+        queryCostGuard.checkQuery(sb.toString());
+    }
+}
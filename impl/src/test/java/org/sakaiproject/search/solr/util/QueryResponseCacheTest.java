@@ -0,0 +1,198 @@
+package org.sakaiproject.search.solr.util;
+
+import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that search responses are cached as long as the index doesn't change.
+ *
+ * @author Colin Hebert
+ */
+public class QueryResponseCacheTest {
+    private static final long VERSION_CHECK_INTERVAL = 60 * 60;
+    @Mock
+    private SolrServer mockSolrServer;
+    private QueryResponseCache queryResponseCache;
+    private long indexVersion = 1;
+    private int searchCount;
+    private boolean partialResponses;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        when(mockSolrServer.query(any(SolrParams.class))).thenAnswer(new Answer<QueryResponse>() {
+            @Override
+            public QueryResponse answer(InvocationOnMock invocation) throws Throwable {
+                SolrParams params = (SolrParams) invocation.getArguments()[0];
+                NamedList<Object> response = new NamedList<Object>();
+                if ("/admin/luke".equals(params.get(CommonParams.QT))) {
+                    NamedList<Object> index = new NamedList<Object>();
+                    index.add("version", indexVersion);
+                    response.add("index", index);
+                } else {
+                    searchCount++;
+                    if (partialResponses) {
+                        NamedList<Object> header = new NamedList<Object>();
+                        header.add("partialResults", true);
+                        response.add("responseHeader", header);
+                    }
+                }
+                QueryResponse queryResponse = new QueryResponse();
+                queryResponse.setResponse(response);
+                return queryResponse;
+            }
+        });
+
+        queryResponseCache = new QueryResponseCache();
+        queryResponseCache.setSolrServer(mockSolrServer);
+        queryResponseCache.setVersionCheckInterval(VERSION_CHECK_INTERVAL);
+        queryResponseCache.init();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        queryResponseCache.destroy();
+    }
+
+    /**
+     * Attempts to run the same search twice, with a different formatting.
+     * <p>
+     * Checks that the second response comes from the cache.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testSameSearchCached() throws Exception {
+        QueryResponse firstResponse = search("biology  lecture", "site1", "site2");
+        QueryResponse secondResponse = search(" biology lecture", "site2", "site1");
+
+        assertThat(secondResponse, sameInstance(firstResponse));
+        assertThat(searchCount, is(1));
+        assertThat(queryResponseCache.getStats().hitRate(), is(0.5));
+    }
+
+    /**
+     * Attempts to run the same search on different sites.
+     * <p>
+     * Checks that both searches are sent to solr.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testDifferentSitesNotCached() throws Exception {
+        search("biology", "site1");
+        search("biology", "site2");
+
+        assertThat(searchCount, is(2));
+    }
+
+    /**
+     * Attempts to run the same search before and after a modification of the index.
+     * <p>
+     * Checks that the cached response isn't used anymore.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testIndexChangeInvalidatesCache() throws Exception {
+        QueryResponse firstResponse = search("biology", "site1");
+        indexVersion++;
+        queryResponseCache.checkIndexVersion();
+        QueryResponse secondResponse = search("biology", "site1");
+
+        assertThat(secondResponse, not(sameInstance(firstResponse)));
+        assertThat(searchCount, is(2));
+    }
+
+    /**
+     * Attempts to run the same search while the version of the index is unknown.
+     * <p>
+     * Checks that nothing is cached.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testUnknownVersionNotCached() throws Exception {
+        doThrow(new SolrServerException("Unreachable")).when(mockSolrServer).query(any(SolrParams.class));
+        queryResponseCache.checkIndexVersion();
+        doReturn(new QueryResponse()).when(mockSolrServer).query(any(SolrParams.class));
+
+        search("biology", "site1");
+        search("biology", "site1");
+
+        verify(mockSolrServer, times(4)).query(any(SolrParams.class));
+    }
+
+    /**
+     * Attempts to run the same search twice on a SolrCloud cluster.
+     * <p>
+     * Checks that both searches are sent to solr, as the version of every shard can't be known.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testCloudModeNotCached() throws Exception {
+        SolrServerAdapter mockSolrServerAdapter = mock(SolrServerAdapter.class);
+        when(mockSolrServerAdapter.isCloudMode()).thenReturn(true);
+        when(mockSolrServerAdapter.query(any(SolrParams.class))).thenReturn(new QueryResponse());
+        queryResponseCache.destroy();
+        queryResponseCache = new QueryResponseCache();
+        queryResponseCache.setSolrServer(mockSolrServerAdapter);
+        queryResponseCache.init();
+
+        search("biology", "site1");
+        search("biology", "site1");
+
+        verify(mockSolrServerAdapter, times(2)).query(any(SolrParams.class));
+    }
+
+    /**
+     * Attempts to run the same search twice while solr returns partial responses.
+     * <p>
+     * Checks that both searches are sent to solr, as incomplete responses aren't cached.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testPartialResponseNotCached() throws Exception {
+        partialResponses = true;
+
+        QueryResponse firstResponse = search("biology", "site1");
+        QueryResponse secondResponse = search("biology", "site1");
+
+        assertThat(secondResponse, not(sameInstance(firstResponse)));
+        assertThat(searchCount, is(2));
+        assertThat(queryResponseCache.getStats().hitCount(), is(0L));
+    }
+
+    private QueryResponse search(String searchTerms, String... siteIds) throws SolrServerException {
+        return queryResponseCache.getResponse(searchTerms, Arrays.asList(siteIds), null, 0, 10, null, null,
+                new SolrQuery(searchTerms));
+    }
+}
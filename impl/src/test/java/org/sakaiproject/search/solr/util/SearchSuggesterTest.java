@@ -0,0 +1,191 @@
+package org.sakaiproject.search.solr.util;
+
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.response.QueryResponse;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.params.SpellingParams;
+import org.apache.solr.common.util.NamedList;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks that the last word of a search is completed, and that suggestions are kept in memory.
+ *
+ * @author Colin Hebert
+ */
+public class SearchSuggesterTest {
+    @Mock
+    private SolrServer mockSolrServer;
+    private SearchSuggester searchSuggester;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        searchSuggester = new SearchSuggester();
+        searchSuggester.setSolrServer(mockSolrServer);
+        searchSuggester.init();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        searchSuggester.destroy();
+    }
+
+    /**
+     * Attempts to get suggestions twice for the same search, typed differently.
+     * <p>
+     * Checks that the last word is completed by the suggester, with the terms found in the documents of the site only,
+     * and that solr is queried only once for the search.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testLastWordCompletedAndCached() throws Exception {
+        NamedList<Object> suggestion = new NamedList<Object>();
+        suggestion.add("numFound", 2);
+        suggestion.add("startOffset", 0);
+        suggestion.add("endOffset", 4);
+        suggestion.add("suggestion", Arrays.asList("biology", "biolab"));
+        NamedList<Object> suggestions = new NamedList<Object>();
+        suggestions.add("biol", suggestion);
+        NamedList<Object> spellcheck = new NamedList<Object>();
+        spellcheck.add("suggestions", suggestions);
+        NamedList<Object> facetQueries = new NamedList<Object>();
+        facetQueries.add("{!term f=text}biology", 2);
+        facetQueries.add("{!term f=text}biolab", 0);
+        NamedList<Object> facetCounts = new NamedList<Object>();
+        facetCounts.add("facet_queries", facetQueries);
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("spellcheck", spellcheck);
+        response.add("facet_counts", facetCounts);
+        when(mockSolrServer.query(any(SolrParams.class))).thenReturn(createQueryResponse(response));
+
+        searchSuggester.getSuggestions("cell  Biol", Arrays.asList("siteid:site1"));
+
+        assertThat(searchSuggester.getSuggestions("cell biol ", Arrays.asList("siteid:site1")),
+                equalTo(Arrays.asList("cell biology")));
+        ArgumentCaptor<SolrParams> paramsCaptor = ArgumentCaptor.forClass(SolrParams.class);
+        verify(mockSolrServer, times(2)).query(paramsCaptor.capture());
+        assertThat(paramsCaptor.getAllValues().get(0).get(CommonParams.QT), equalTo("/suggest"));
+        assertThat(paramsCaptor.getAllValues().get(0).get(CommonParams.Q), equalTo("biol"));
+        assertThat(paramsCaptor.getAllValues().get(1).get(CommonParams.FQ), equalTo("siteid:site1"));
+        assertThat(paramsCaptor.getAllValues().get(1).getParams(FacetParams.FACET_QUERY),
+                equalTo(new String[]{"{!term f=text}biology", "{!term f=text}biolab"}));
+    }
+
+    /**
+     * Attempts to get suggestions restricted to a site, while the suggester has no candidate.
+     * <p>
+     * Checks that the terms of the documents of the site are enumerated instead.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testRestrictedSuggestionsFromIndexedTerms() throws Exception {
+        NamedList<Object> textTerms = new NamedList<Object>();
+        textTerms.add("biology", 3);
+        NamedList<Object> facetFields = new NamedList<Object>();
+        facetFields.add(SearchSuggester.SUGGEST_FIELD, textTerms);
+        NamedList<Object> facetCounts = new NamedList<Object>();
+        facetCounts.add("facet_queries", new NamedList<Object>());
+        facetCounts.add("facet_fields", facetFields);
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("facet_counts", facetCounts);
+        when(mockSolrServer.query(any(SolrParams.class))).thenReturn(createQueryResponse(response));
+
+        assertThat(searchSuggester.getSuggestions("biol", Arrays.asList("siteid:site1")),
+                equalTo(Arrays.asList("biology")));
+        ArgumentCaptor<SolrParams> paramsCaptor = ArgumentCaptor.forClass(SolrParams.class);
+        verify(mockSolrServer, times(2)).query(paramsCaptor.capture());
+        assertThat(paramsCaptor.getValue().get(CommonParams.FQ), equalTo("siteid:site1"));
+        assertThat(paramsCaptor.getValue().get(FacetParams.FACET_PREFIX), equalTo("biol"));
+    }
+
+    /**
+     * Attempts to get suggestions without any restriction.
+     * <p>
+     * Checks that nothing is suggested, as terms of any document could be revealed.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testNoUnrestrictedSuggestions() throws Exception {
+        assertThat(searchSuggester.getSuggestions("biol", Collections.<String>emptyList()),
+                equalTo(Collections.<String>emptyList()));
+        verifyZeroInteractions(mockSolrServer);
+    }
+
+    /**
+     * Attempts to get suggestions for a word too short to enumerate the indexed terms, without any candidate.
+     * <p>
+     * Checks that only the suggester is queried.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testShortPrefixNotEnumerated() throws Exception {
+        when(mockSolrServer.query(any(SolrParams.class))).thenReturn(createQueryResponse(new NamedList<Object>()));
+
+        assertThat(searchSuggester.getSuggestions("bi", Arrays.asList("siteid:site1")),
+                equalTo(Collections.<String>emptyList()));
+        ArgumentCaptor<SolrParams> paramsCaptor = ArgumentCaptor.forClass(SolrParams.class);
+        verify(mockSolrServer, times(1)).query(paramsCaptor.capture());
+        assertThat(paramsCaptor.getValue().get(CommonParams.QT), equalTo("/suggest"));
+    }
+
+    /**
+     * Attempts to get a spelling suggestion.
+     * <p>
+     * Checks that the spellcheck component is enabled with its actual parameter name, and that the collation is
+     * returned.
+     * </p>
+     *
+     * @throws Exception any exception.
+     */
+    @Test
+    public void testSpellcheckEnabled() throws Exception {
+        NamedList<Object> suggestion = new NamedList<Object>();
+        suggestion.add("numFound", 1);
+        suggestion.add("startOffset", 0);
+        suggestion.add("endOffset", 7);
+        suggestion.add("suggestion", Arrays.asList("biology"));
+        NamedList<Object> suggestions = new NamedList<Object>();
+        suggestions.add("biologi", suggestion);
+        suggestions.add("correctlySpelled", false);
+        suggestions.add("collation", "biology");
+        NamedList<Object> spellcheck = new NamedList<Object>();
+        spellcheck.add("suggestions", suggestions);
+        NamedList<Object> response = new NamedList<Object>();
+        response.add("spellcheck", spellcheck);
+        when(mockSolrServer.query(any(SolrParams.class))).thenReturn(createQueryResponse(response));
+
+        assertThat(searchSuggester.getSpellingSuggestion("biologi"), equalTo("biology"));
+        ArgumentCaptor<SolrParams> paramsCaptor = ArgumentCaptor.forClass(SolrParams.class);
+        verify(mockSolrServer).query(paramsCaptor.capture());
+        assertThat(paramsCaptor.getValue().get("spellcheck"), equalTo("true"));
+        assertThat(paramsCaptor.getValue().get(SpellingParams.SPELLCHECK_COLLATE), equalTo("true"));
+    }
+
+    private static QueryResponse createQueryResponse(NamedList<Object> response) {
+        QueryResponse queryResponse = new QueryResponse();
+        queryResponse.setResponse(response);
+        return queryResponse;
+    }
+}
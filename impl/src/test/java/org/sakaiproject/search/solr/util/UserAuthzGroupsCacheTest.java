@@ -0,0 +1,92 @@
+package org.sakaiproject.search.solr.util;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.sakaiproject.authz.api.AuthzGroupService;
+import org.sakaiproject.authz.api.SecurityService;
+import org.sakaiproject.tool.api.SessionManager;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+/**
+ * Checks the realms and sites in which a user is allowed to read documents.
+ *
+ * @author Colin Hebert
+ */
+public class UserAuthzGroupsCacheTest {
+    @Mock
+    private AuthzGroupService mockAuthzGroupService;
+    @Mock
+    private SecurityService mockSecurityService;
+    @Mock
+    private SessionManager mockSessionManager;
+    private UserAuthzGroupsCache userAuthzGroupsCache;
+
+    @Before
+    public void setUp() throws Exception {
+        MockitoAnnotations.initMocks(this);
+        userAuthzGroupsCache = new UserAuthzGroupsCache();
+        userAuthzGroupsCache.setAuthzGroupService(mockAuthzGroupService);
+        userAuthzGroupsCache.setSecurityService(mockSecurityService);
+        userAuthzGroupsCache.setSessionManager(mockSessionManager);
+        userAuthzGroupsCache.setReadFunctions(Arrays.asList("content.read", "annc.read"));
+        userAuthzGroupsCache.init();
+    }
+
+    /**
+     * Attempts to obtain the realms of a user twice.
+     * <p>
+     * Checks that the realms of every read function are merged and sorted.<br />
+     * Checks that the realms are only obtained once.
+     * </p>
+     */
+    @Test
+    public void testRealmsMergedAndCached() {
+        when(mockSessionManager.getCurrentSessionUserId()).thenReturn("user");
+        when(mockAuthzGroupService.getAuthzGroupsIsAllowed("user", "content.read", null))
+                .thenReturn(new HashSet<String>(Arrays.asList("/site/site2", "/site/site1")));
+        when(mockAuthzGroupService.getAuthzGroupsIsAllowed("user", "annc.read", null))
+                .thenReturn(new HashSet<String>(Arrays.asList("/site/site1")));
+
+        userAuthzGroupsCache.getCurrentUserAuthzGroups();
+        assertThat(userAuthzGroupsCache.getCurrentUserAuthzGroups(),
+                equalTo(Arrays.asList("/site/site1", "/site/site2")));
+        verify(mockAuthzGroupService, times(1)).getAuthzGroupsIsAllowed("user", "content.read", null);
+    }
+
+    /**
+     * Attempts to obtain the realms of the anonymous user.
+     * <p>
+     * Checks that the anonymous user isn't restricted, as their permissions only come from public realms.
+     * </p>
+     */
+    @Test
+    public void testAnonymousUserNotRestricted() {
+        when(mockSessionManager.getCurrentSessionUserId()).thenReturn(null);
+
+        assertThat(userAuthzGroupsCache.getCurrentUserAuthzGroups(), nullValue());
+    }
+
+    /**
+     * Attempts to obtain the sites of a user from their realms.
+     * <p>
+     * Checks that only site realms are taken into account, not the realms of groups or other entities.
+     * </p>
+     */
+    @Test
+    public void testSiteIdsFromSiteRealms() {
+        assertThat(UserAuthzGroupsCache.getSiteIds(Arrays.asList("/content/group/site3/", "/site/site2",
+                "/site/site1/group/group1", "/site/~user")), equalTo(Arrays.asList("site2", "~user")));
+        assertThat(UserAuthzGroupsCache.getSiteIds(Collections.<String>emptyList()),
+                equalTo(Collections.<String>emptyList()));
+    }
+}